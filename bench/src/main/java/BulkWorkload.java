@@ -0,0 +1,115 @@
+import bench.Bulk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The valid {@link Test#TEST_EXPRESSIONS}, evaluated by a
+ * {@link BulkEvaluator} for every orgUnit of a generated hierarchy and
+ * every month of a year.
+ */
+public class BulkWorkload
+    implements Bulk
+{
+    private final List<CompiledExpression> expressions = new ArrayList<>();
+
+    private BulkEvaluator evaluator;
+
+    private int[] orgUnits;
+
+    private int[] periods;
+
+    @Override
+    public void setUp( int levels, int parallelism )
+    {
+        List<String> uids = new ArrayList<>();
+        List<String> parentUids = new ArrayList<>();
+
+        addOrgUnits( null, levels, uids, parentUids );
+
+        OrgUnitHierarchy hierarchy = new OrgUnitHierarchy( uids.toArray( new String[0] ), parentUids.toArray( new String[0] ) );
+
+        Map<String, List<String>> members = new HashMap<>();
+
+        members.put( "OUG00000001", new ArrayList<>() );
+        members.put( "OUG00000002", new ArrayList<>() );
+
+        for ( int i = 0; i < uids.size(); i++ )
+        {
+            if ( i % 3 == 0 )
+            {
+                members.get( "OUG00000001" ).add( uids.get( i ) );
+            }
+
+            if ( i % 5 == 0 )
+            {
+                members.get( "OUG00000002" ).add( uids.get( i ) );
+            }
+        }
+
+        Map<String, Double> constantMap = new HashMap<>();
+
+        constantMap.put( "PI000000000", 3.14159 );
+
+        List<String> items = Arrays.asList( "#{A0000000001}", "#{A0000000002}", "#{A0000000003}" );
+
+        ValueSource source = ( item, orgUnit, period ) -> items.contains( item )
+            ? (double) ( orgUnit + Periods.index( period ) % 12 ) : null;
+
+        evaluator = new BulkEvaluator( hierarchy, constantMap, source );
+        evaluator.setOrgUnitGroups( new OrgUnitGroups( hierarchy, members ) );
+        evaluator.setParallelism( parallelism );
+
+        for ( String expression : Test.TEST_EXPRESSIONS )
+        {
+            CompiledExpression compiled = CompiledExpression.compile( expression );
+
+            if ( compiled.isValid() )
+            {
+                expressions.add( compiled );
+            }
+        }
+
+        orgUnits = new int[hierarchy.size()];
+
+        for ( int i = 0; i < orgUnits.length; i++ )
+        {
+            orgUnits[i] = i;
+        }
+
+        periods = new int[12];
+        periods[0] = Periods.parse( "201801" );
+
+        for ( int i = 1; i < periods.length; i++ )
+        {
+            periods[i] = Periods.shift( periods[i - 1], 1, 0 );
+        }
+    }
+
+    @Override
+    public long evaluate()
+        throws InterruptedException
+    {
+        long[] results = new long[1];
+
+        evaluator.evaluate( expressions, orgUnits, periods, ( expression, orgUnit, period, value ) -> results[0]++ );
+
+        return results[0];
+    }
+
+    private static void addOrgUnits( String parentUid, int levels, List<String> uids, List<String> parentUids )
+    {
+        String uid = String.format( "OU%09d", uids.size() );
+
+        uids.add( uid );
+        parentUids.add( parentUid );
+
+        for ( int child = 0; levels > 1 && child < 10; child++ )
+        {
+            addOrgUnits( uid, levels - 1, uids, parentUids );
+        }
+    }
+}
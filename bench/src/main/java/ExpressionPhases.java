@@ -0,0 +1,194 @@
+import bench.Phases;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The phases of handling an expression, over a corpus of the valid
+ * {@link Test#TEST_EXPRESSIONS} of one kind. Evaluation is with a new
+ * {@link Test#context()} each time, as for each orgUnit and period in a
+ * real run, so no sorted views are kept from one evaluation to the next.
+ * (Evaluation as a double reuses one context, which is cleared by each
+ * evaluation, so that only the evaluation itself is measured.)
+ */
+public class ExpressionPhases
+    implements Phases
+{
+    private static final Pattern LOGICAL = Pattern.compile( "[<>!]|==|&&|\\|\\||(?i:true|false)|\\.if\\(|\\.except\\(" );
+
+    private static final Pattern ARITHMETIC = Pattern.compile( "[0-9.)}\\]]\\s*[-+*/%^]" );
+
+    private final ExpressionLexer lexer = new ExpressionLexer( null );
+
+    private String[] expressions;
+
+    private CompiledExpression[] compiled;
+
+    private ParseTree[] trees;
+
+    private CompiledExpression[] numeric;
+
+    private EvalContext numericContext;
+
+    public ExpressionPhases()
+    {
+        lexer.removeErrorListeners();
+    }
+
+    /**
+     * Gets the kind of an expression: scope (including aggregation
+     * chains), string, logical, arithmetic or literal, in that order.
+     */
+    static String kind( String expression )
+    {
+        if ( expression.contains( ".period(" ) || expression.contains( ".ou" ) || expression.contains( "OUG{" ) )
+        {
+            return "scope";
+        }
+        else if ( expression.contains( "\"" ) )
+        {
+            return "string";
+        }
+        else if ( LOGICAL.matcher( expression ).find() )
+        {
+            return "logical";
+        }
+        else if ( ARITHMETIC.matcher( expression ).find() )
+        {
+            return "arithmetic";
+        }
+
+        return "literal";
+    }
+
+    @Override
+    public void setUp( String corpus )
+    {
+        List<CompiledExpression> valid = new ArrayList<>();
+
+        for ( String expression : Test.TEST_EXPRESSIONS )
+        {
+            CompiledExpression compiledExpression = CompiledExpression.compile( expression );
+
+            if ( kind( expression ).equals( corpus ) && compiledExpression.isValid() && evaluates( compiledExpression ) )
+            {
+                valid.add( compiledExpression );
+            }
+        }
+
+        if ( valid.isEmpty() )
+        {
+            throw new IllegalArgumentException( "No expressions in corpus: " + corpus );
+        }
+
+        expressions = new String[valid.size()];
+        compiled = new CompiledExpression[valid.size()];
+        trees = new ParseTree[valid.size()];
+
+        for ( int i = 0; i < valid.size(); i++ )
+        {
+            expressions[i] = valid.get( i ).getExpression();
+            compiled[i] = valid.get( i );
+            trees[i] = valid.get( i ).getTree();
+        }
+
+        numeric = valid.stream()
+            .filter( c -> c.evaluate( Test.context() ) instanceof Double )
+            .toArray( CompiledExpression[]::new );
+
+        numericContext = Test.context();
+    }
+
+    @Override
+    public int size()
+    {
+        return expressions.length;
+    }
+
+    @Override
+    public int numericSize()
+    {
+        return numeric.length;
+    }
+
+    @Override
+    public Object lex( int i )
+    {
+        lexer.setInputStream( CharStreams.fromString( expressions[i] ) );
+
+        int count = 0;
+
+        while ( lexer.nextToken().getType() != Token.EOF )
+        {
+            count++;
+        }
+
+        return count;
+    }
+
+    @Override
+    public Object parse( int i )
+    {
+        return ExpressionParsingService.parse( expressions[i] );
+    }
+
+    @Override
+    public Object parseAntlr( int i )
+    {
+        AntlrErrorListener errorListener = new AntlrErrorListener();
+
+        ExpressionLexer antlrLexer = new ExpressionLexer( CharStreams.fromString( expressions[i] ) );
+        antlrLexer.removeErrorListeners();
+        antlrLexer.addErrorListener( errorListener );
+
+        ExpressionParser parser = new ExpressionParser( new CommonTokenStream( antlrLexer ) );
+        parser.removeErrorListeners();
+        parser.addErrorListener( errorListener );
+
+        return parser.expr();
+    }
+
+    @Override
+    public Object check( int i )
+    {
+        return new ExpressionChecker().visit( trees[i] );
+    }
+
+    @Override
+    public Object evaluate( int i )
+    {
+        return new ExpressionEvaluator( Test.context() ).visit( trees[i] );
+    }
+
+    @Override
+    public Object evaluateCompiled( int i )
+    {
+        return compiled[i].evaluate( Test.context() );
+    }
+
+    @Override
+    public double evaluateDouble( int i )
+    {
+        return numeric[i].evaluateDouble( numericContext );
+    }
+
+    private static boolean evaluates( CompiledExpression compiledExpression )
+    {
+        try
+        {
+            compiledExpression.evaluate( new ExpressionEvaluator( Test.context() ) );
+            compiledExpression.evaluate( Test.context() );
+
+            return true;
+        }
+        catch ( ParsingException ex )
+        {
+            return false;
+        }
+    }
+}
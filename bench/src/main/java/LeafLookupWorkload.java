@@ -0,0 +1,57 @@
+import bench.LeafLookup;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compiled indicator, evaluated with its dimension item values in a
+ * map keyed by text (through a {@link ValueSource}) or in a
+ * {@link ValueFrame}.
+ */
+public class LeafLookupWorkload
+    implements LeafLookup
+{
+    private static final String INDICATOR = "( #{A0000000001} + #{A0000000002} + #{A0000000003} )"
+        + " / ( #{A0000000004} + #{A0000000005} + #{A0000000006} ) * C{PI000000000}";
+
+    private CompiledExpression compiled;
+
+    private EvalContext ctx;
+
+    @Override
+    public void setUp( boolean bySlot )
+    {
+        SlotLayout layout = new SlotLayout();
+
+        compiled = CompiledExpression.compile( INDICATOR, layout );
+
+        Map<String, Double> values = new HashMap<>();
+
+        for ( int i = 1; i <= 6; i++ )
+        {
+            values.put( "#{A000000000" + i + "}", (double) i );
+        }
+
+        Map<String, Double> constantMap = new HashMap<>();
+
+        constantMap.put( "PI000000000", 3.14159 );
+
+        ctx = new EvalContext( values, constantMap );
+
+        if ( bySlot )
+        {
+            ctx.setValueFrame( layout.frame( values ) );
+            ctx.setConstantFrame( layout.constantFrame( constantMap ) );
+        }
+        else
+        {
+            ctx.setValueSource( ( item, orgUnit, period ) -> values.get( item ) );
+        }
+    }
+
+    @Override
+    public double evaluate()
+    {
+        return compiled.evaluateDouble( ctx );
+    }
+}
@@ -0,0 +1,99 @@
+import bench.PeriodValues;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Monthly values in a {@link MultiPeriodValues}, and the same values in
+ * the parallel lists MultiPeriodValues used to keep, for the TreeMap
+ * selection it used to make.
+ */
+public class PeriodValuesWorkload
+    implements PeriodValues
+{
+    private final MultiPeriodValues values = new MultiPeriodValues();
+
+    private final List<String> legacyPeriods = new ArrayList<>();
+
+    private final List<Object> legacyValues = new ArrayList<>();
+
+    @Override
+    public void setUp( int size, boolean inPeriodOrder )
+    {
+        int[] periods = new int[size];
+
+        periods[0] = Periods.parse( "201001" );
+
+        for ( int i = 1; i < size; i++ )
+        {
+            periods[i] = Periods.shift( periods[i - 1], 1, 0 );
+        }
+
+        if ( !inPeriodOrder )
+        {
+            Random random = new Random( 1 );
+
+            for ( int i = size - 1; i > 0; i-- )
+            {
+                int j = random.nextInt( i + 1 );
+                int period = periods[i];
+
+                periods[i] = periods[j];
+                periods[j] = period;
+            }
+        }
+
+        for ( int period : periods )
+        {
+            values.addPeriodDouble( Periods.index( period ), period );
+
+            legacyPeriods.add( Periods.format( period ) );
+            legacyValues.add( (double) Periods.index( period ) );
+        }
+    }
+
+    @Override
+    public Object last( int limit )
+    {
+        return values.last( limit );
+    }
+
+    @Override
+    public Object lastTreeMap( int limit )
+    {
+        SortedMap<String, List<Object>> sortedValues = new TreeMap<>( Collections.reverseOrder() );
+
+        for ( int i = 0; i < legacyPeriods.size(); i++ )
+        {
+            if ( !sortedValues.containsKey( legacyPeriods.get( i ) ) )
+            {
+                sortedValues.put( legacyPeriods.get( i ), new ArrayList<Object>() );
+            }
+
+            sortedValues.get( legacyPeriods.get( i ) ).add( legacyValues.get( i ) );
+        }
+
+        MultiPeriodValues lastValues = new MultiPeriodValues();
+
+        int count = 0;
+
+        for ( String period : sortedValues.keySet() )
+        {
+            for ( Object o : sortedValues.get( period ) )
+            {
+                if ( ++count > limit )
+                {
+                    return lastValues;
+                }
+
+                lastValues.addPeriodValue( o, period );
+            }
+        }
+
+        return lastValues;
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs a realistic set of indicators against generated data of growing
+ * size ({@link SyntheticData}), to see how the scopes behave at national
+ * scale, which microbenchmarks cannot show.
+ * <p/>
+ * For each hierarchy size, each indicator is evaluated at a sample of
+ * orgUnits and periods, by the {@link ExpressionEvaluator} (whose scope
+ * functions are in {@link ExpressionChecker}) and by the compiled node
+ * tree. Each evaluation is timed, giving the p50 and p99 latency of each
+ * indicator, and the throughput. The peak heap use is measured for each
+ * size, including the hierarchy.
+ * <p/>
+ * The results are written as results.csv, and plotted against the number
+ * of orgUnits in throughput.svg, p99.svg and heap.svg:
+ * <pre>
+ * java -Xmx4g -cp bench/target/benchmarks.jar ScaleRunner [--depths 4,5,6,7] [--fanout 10]
+ *     [--periods 24] [--density 0.3] [--samples 2000] [--seed 1] [--out target/scale]
+ * </pre>
+ * The default depths, with 10 children per orgUnit, give about 1k, 10k,
+ * 100k and 1M orgUnits.
+ */
+public class ScaleRunner
+{
+    /**
+     * Indicators, with short names for the plots.
+     */
+    private static final String[][] INDICATORS = {
+        { "ratio", "#{A0000000001} / #{A0000000002} * 100" },
+        { "coalesce", "coalesce( #{A0000000001}, #{A0000000002}, 0 )" },
+        { "year sum", "#{A0000000001}.period(-11,0).sum()" },
+        { "6 month stddev", "#{A0000000002}.period(-5,0).stddev()" },
+        { "quarter change", "#{A0000000001}.period(-2,0).average() - #{A0000000001}.period(-14,-12).average()" },
+        { "children sum", "#{A0000000001}.ouDescendant(1).sum()" },
+        { "3 levels average", "#{A0000000001}.ouDescendant(1,3).average()" },
+        { "children p90", "#{A0000000003}.ouDescendant(1).percentile(90)" },
+        { "children quarter", "#{A0000000001}.ouDescendant(1).period(-2,0).sum()" },
+        { "peer median", "#{A0000000001}.ouPeer(1).median()" },
+        { "parent", "#{A0000000001}.ouAncestor(1)" },
+        { "level 3 sum", "#{A0000000001}.ouLevel(3).sum()" },
+        { "group max", "#{A0000000002}.ouGroup(\"OUG00000002\").max()" },
+        { "group count", "OUG{OUG00000001} * C{PI000000000}" },
+    };
+
+    private static final String[] MODES = { "evaluator", "compiled" };
+
+    private static final int WARMUP_ROUNDS = 5; // Untimed rounds over the samples, for the JIT.
+
+    private int[] depths = { 4, 5, 6, 7 };
+
+    private int fanout = 10;
+
+    private int periodCount = 24;
+
+    private double density = 0.3;
+
+    private int samples = 2000;
+
+    private long seed = 1;
+
+    private Path out = Paths.get( "target", "scale" );
+
+    public static void main( String[] args )
+        throws IOException
+    {
+        ScaleRunner runner = new ScaleRunner();
+
+        for ( int i = 0; i + 1 < args.length; i += 2 )
+        {
+            String value = args[i + 1];
+
+            switch ( args[i] )
+            {
+                case "--depths": runner.depths = Arrays.stream( value.split( "," ) ).mapToInt( Integer::parseInt ).toArray(); break;
+                case "--fanout": runner.fanout = Integer.parseInt( value ); break;
+                case "--periods": runner.periodCount = Integer.parseInt( value ); break;
+                case "--density": runner.density = Double.parseDouble( value ); break;
+                case "--samples": runner.samples = Integer.parseInt( value ); break;
+                case "--seed": runner.seed = Long.parseLong( value ); break;
+                case "--out": runner.out = Paths.get( value ); break;
+                default: throw new IllegalArgumentException( "unknown option: " + args[i] );
+            }
+        }
+
+        runner.run();
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    public void run()
+        throws IOException
+    {
+        Files.createDirectories( out );
+
+        List<CompiledExpression> indicators = new ArrayList<>();
+
+        for ( String[] indicator : INDICATORS )
+        {
+            CompiledExpression compiled = CompiledExpression.compile( indicator[1] );
+
+            if ( !compiled.isValid() )
+            {
+                throw new IllegalStateException( indicator[1] + ": " + compiled.getErrors() );
+            }
+
+            indicators.add( compiled );
+        }
+
+        Map<String, Double> constantMap = new HashMap<>();
+
+        constantMap.put( "PI000000000", 3.14159 );
+
+        SvgPlot throughputPlot = new SvgPlot( "Evaluation throughput", "orgUnits", "evaluations / s", true );
+        SvgPlot p99Plot = new SvgPlot( "p99 latency per indicator (evaluator)", "orgUnits", "p99 latency (us)", true );
+        SvgPlot heapPlot = new SvgPlot( "Peak heap", "orgUnits", "MB", false );
+
+        try ( Writer csv = Files.newBufferedWriter( out.resolve( "results.csv" ), StandardCharsets.UTF_8 ) )
+        {
+            csv.write( "orgUnits,mode,indicator,evaluations,evaluationsPerSecond,p50Micros,p99Micros,peakHeapMB\n" );
+
+            System.out.printf( Locale.ROOT, "%9s %-9s %-18s %12s %10s %10s %8s%n",
+                "orgUnits", "mode", "indicator", "evals/s", "p50 us", "p99 us", "heap MB" );
+
+            for ( int depth : depths )
+            {
+                System.gc();
+
+                List<MemoryPoolMXBean> heapPools = heapPools();
+
+                heapPools.forEach( MemoryPoolMXBean::resetPeakUsage );
+
+                OrgUnitHierarchy hierarchy = SyntheticData.hierarchy( depth, fanout );
+                OrgUnitGroups groups = SyntheticData.groups( hierarchy, new double[] { 0.01, 0.001 }, seed );
+                ValueSource values = SyntheticData.values( density, seed );
+                int[] periods = SyntheticData.months( "201601", periodCount );
+
+                // Samples: random orgUnits, in the last year of periods (so year scopes are inside the range.)
+
+                Random random = new Random( seed );
+                int[] sampleOrgUnits = new int[samples];
+                int[] samplePeriods = new int[samples];
+
+                for ( int s = 0; s < samples; s++ )
+                {
+                    sampleOrgUnits[s] = random.nextInt( hierarchy.size() );
+                    samplePeriods[s] = periods[Math.max( 0, periodCount - 12 ) + random.nextInt( Math.min( 12, periodCount ) )];
+                }
+
+                int orgUnits = hierarchy.size();
+
+                for ( String mode : MODES )
+                {
+                    long totalEvaluations = 0;
+                    long totalNanos = 0;
+
+                    List<String> rows = new ArrayList<>();
+
+                    for ( int e = 0; e < indicators.size(); e++ )
+                    {
+                        CompiledExpression indicator = indicators.get( e );
+
+                        for ( int round = 0; round < WARMUP_ROUNDS; round++ )
+                        {
+                            for ( int s = 0; s < samples; s++ )
+                            {
+                                evaluate( mode, indicator, context( hierarchy, groups, values, constantMap, sampleOrgUnits[s], samplePeriods[s] ) );
+                            }
+                        }
+
+                        long[] nanos = new long[samples];
+
+                        for ( int s = 0; s < samples; s++ )
+                        {
+                            EvalContext ctx = context( hierarchy, groups, values, constantMap, sampleOrgUnits[s], samplePeriods[s] );
+
+                            long start = System.nanoTime();
+
+                            evaluate( mode, indicator, ctx );
+
+                            nanos[s] = System.nanoTime() - start;
+                        }
+
+                        long sum = Arrays.stream( nanos ).sum();
+
+                        Arrays.sort( nanos );
+
+                        double perSecond = samples * 1e9 / Math.max( 1, sum );
+                        double p50 = percentile( nanos, 50 ) / 1e3;
+                        double p99 = percentile( nanos, 99 ) / 1e3;
+
+                        totalEvaluations += samples;
+                        totalNanos += sum;
+
+                        rows.add( String.format( Locale.ROOT, "%d,%s,%s,%d,%.0f,%.3f,%.3f", orgUnits, mode, INDICATORS[e][0], samples, perSecond, p50, p99 ) );
+
+                        System.out.printf( Locale.ROOT, "%9d %-9s %-18s %12.0f %10.3f %10.3f%n", orgUnits, mode, INDICATORS[e][0], perSecond, p50, p99 );
+
+                        if ( mode.equals( MODES[0] ) )
+                        {
+                            p99Plot.add( INDICATORS[e][0], orgUnits, Math.max( p99, 0.001 ) );
+                        }
+                    }
+
+                    double peakHeap = heapPools.stream().mapToLong( pool -> pool.getPeakUsage().getUsed() ).sum() / 1048576.0;
+                    double perSecond = totalEvaluations * 1e9 / Math.max( 1, totalNanos );
+
+                    for ( String row : rows )
+                    {
+                        csv.write( row + String.format( Locale.ROOT, ",%.1f%n", peakHeap ) );
+                    }
+
+                    csv.write( String.format( Locale.ROOT, "%d,%s,all,%d,%.0f,,,%.1f%n", orgUnits, mode, totalEvaluations, perSecond, peakHeap ) );
+
+                    System.out.printf( Locale.ROOT, "%9d %-9s %-18s %12.0f %10s %10s %8.1f%n", orgUnits, mode, "all", perSecond, "", "", peakHeap );
+
+                    throughputPlot.add( mode, orgUnits, perSecond );
+
+                    if ( mode.equals( MODES[0] ) )
+                    {
+                        heapPlot.add( "peak heap", orgUnits, peakHeap );
+                    }
+                }
+            }
+        }
+
+        throughputPlot.write( out.resolve( "throughput.svg" ) );
+        p99Plot.write( out.resolve( "p99.svg" ) );
+        heapPlot.write( out.resolve( "heap.svg" ) );
+
+        System.out.println( "results in " + out.toAbsolutePath() );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static EvalContext context( OrgUnitHierarchy hierarchy, OrgUnitGroups groups, ValueSource values,
+        Map<String, Double> constantMap, int orgUnit, int period )
+    {
+        EvalContext ctx = new EvalContext( Collections.emptyMap(), constantMap, hierarchy, hierarchy.uid( orgUnit ) );
+
+        ctx.setOrgUnitGroups( groups );
+        ctx.setValueSource( values );
+        ctx.setCurrentPeriod( period );
+
+        return ctx;
+    }
+
+    private static Object evaluate( String mode, CompiledExpression indicator, EvalContext ctx )
+    {
+        try
+        {
+            return mode.equals( "compiled" ) ? indicator.evaluate( ctx ) : indicator.evaluate( new ExpressionEvaluator( ctx ) );
+        }
+        catch ( ParsingException ex )
+        {
+            return ex; // Such as a type error from a missing value; it still counts as an evaluation.
+        }
+    }
+
+    /**
+     * Gets a percentile of sorted values (nearest rank.)
+     */
+    private static long percentile( long[] sorted, int percent )
+    {
+        return sorted[Math.min( sorted.length - 1, Math.max( 0, (int) Math.ceil( percent / 100.0 * sorted.length ) - 1 ) )];
+    }
+
+    private static List<MemoryPoolMXBean> heapPools()
+    {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            if ( pool.getType() == MemoryType.HEAP && pool.isValid() )
+            {
+                pools.add( pool );
+            }
+        }
+
+        return pools;
+    }
+}
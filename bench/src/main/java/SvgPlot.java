@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A line chart written as SVG, with a log scale x axis (for data sizes
+ * that grow tenfold) and a linear or log scale y axis.
+ */
+public class SvgPlot
+{
+    private static final String[] COLORS = { "#1f77b4", "#ff7f0e", "#2ca02c", "#d62728", "#9467bd", "#8c564b",
+        "#e377c2", "#7f7f7f", "#bcbd22", "#17becf" };
+
+    private static final int WIDTH = 720;
+
+    private static final int HEIGHT = 440;
+
+    private static final int LEFT = 70;
+
+    private static final int RIGHT = 250; // Room for the legend.
+
+    private static final int TOP = 40;
+
+    private static final int BOTTOM = 50;
+
+    private final String title;
+
+    private final String xLabel;
+
+    private final String yLabel;
+
+    private final boolean logY;
+
+    private final Map<String, List<double[]>> series = new LinkedHashMap<>();
+
+    /**
+     * Makes an empty chart.
+     *
+     * @param title the title.
+     * @param xLabel the x axis label.
+     * @param yLabel the y axis label.
+     * @param logY whether the y axis has a log scale.
+     */
+    public SvgPlot( String title, String xLabel, String yLabel, boolean logY )
+    {
+        this.title = title;
+        this.xLabel = xLabel;
+        this.yLabel = yLabel;
+        this.logY = logY;
+    }
+
+    /**
+     * Adds a point to a series (a line.) Points must be positive, and are
+     * joined in the order they are added.
+     */
+    public void add( String name, double x, double y )
+    {
+        series.computeIfAbsent( name, n -> new ArrayList<>() ).add( new double[] { x, y } );
+    }
+
+    public void write( Path path )
+        throws IOException
+    {
+        double xMin = Double.MAX_VALUE;
+        double xMax = -Double.MAX_VALUE;
+        double yMin = Double.MAX_VALUE;
+        double yMax = -Double.MAX_VALUE;
+
+        for ( List<double[]> points : series.values() )
+        {
+            for ( double[] p : points )
+            {
+                xMin = Math.min( xMin, p[0] );
+                xMax = Math.max( xMax, p[0] );
+                yMin = Math.min( yMin, p[1] );
+                yMax = Math.max( yMax, p[1] );
+            }
+        }
+
+        // Axis ranges: the data for x (with a margin), whole powers of ten for log y, from 0 for linear y.
+
+        double x0 = Math.log10( xMin ) - 0.1;
+        double x1 = Math.max( x0 + 1, Math.log10( xMax ) + 0.1 );
+        double y0 = logY ? Math.floor( Math.log10( Math.max( yMin, 1e-9 ) ) ) : 0;
+        double y1 = logY ? Math.max( y0 + 1, Math.ceil( Math.log10( yMax ) ) ) : niceCeiling( yMax );
+
+        try ( Writer out = Files.newBufferedWriter( path, StandardCharsets.UTF_8 ) )
+        {
+            out.write( String.format( Locale.ROOT, "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\" font-family=\"sans-serif\" font-size=\"12\">\n", WIDTH, HEIGHT ) );
+            out.write( String.format( Locale.ROOT, "<rect width=\"%d\" height=\"%d\" fill=\"white\"/>\n", WIDTH, HEIGHT ) );
+            out.write( text( LEFT, 24, "start", 15, title ) );
+            out.write( text( LEFT + plotWidth() / 2.0, HEIGHT - 10, "middle", 12, xLabel ) );
+            out.write( String.format( Locale.ROOT, "<text transform=\"translate(16,%d) rotate(-90)\" text-anchor=\"middle\">%s</text>\n",
+                TOP + plotHeight() / 2, escape( yLabel ) ) );
+
+            for ( double e = Math.ceil( x0 ); e <= x1; e++ )
+            {
+                double x = LEFT + ( e - x0 ) / ( x1 - x0 ) * plotWidth();
+
+                out.write( line( x, TOP, x, TOP + plotHeight(), "#ddd" ) );
+                out.write( text( x, TOP + plotHeight() + 16, "middle", 11, label( Math.pow( 10, e ) ) ) );
+            }
+
+            int yTicks = logY ? (int) ( y1 - y0 ) : 5;
+
+            for ( int t = 0; t <= yTicks; t++ )
+            {
+                double y = TOP + plotHeight() - (double) t / yTicks * plotHeight();
+                double value = logY ? Math.pow( 10, y0 + t ) : y1 * t / yTicks;
+
+                out.write( line( LEFT, y, LEFT + plotWidth(), y, "#ddd" ) );
+                out.write( text( LEFT - 6, y + 4, "end", 11, label( value ) ) );
+            }
+
+            out.write( String.format( Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"none\" stroke=\"#333\"/>\n",
+                LEFT, TOP, plotWidth(), plotHeight() ) );
+
+            int s = 0;
+
+            for ( Map.Entry<String, List<double[]>> entry : series.entrySet() )
+            {
+                String color = COLORS[s % COLORS.length];
+                String dash = s < COLORS.length ? "" : " stroke-dasharray=\"6,3\""; // After the colors run out.
+                StringBuilder points = new StringBuilder();
+
+                for ( double[] p : entry.getValue() )
+                {
+                    double x = LEFT + ( Math.log10( p[0] ) - x0 ) / ( x1 - x0 ) * plotWidth();
+                    double y = TOP + plotHeight() - ( logY
+                        ? ( Math.log10( Math.max( p[1], Math.pow( 10, y0 ) ) ) - y0 ) / ( y1 - y0 )
+                        : p[1] / y1 ) * plotHeight();
+
+                    points.append( String.format( Locale.ROOT, "%.1f,%.1f ", x, y ) );
+                    out.write( String.format( Locale.ROOT, "<circle cx=\"%.1f\" cy=\"%.1f\" r=\"3\" fill=\"%s\"/>\n", x, y, color ) );
+                }
+
+                out.write( String.format( Locale.ROOT, "<polyline points=\"%s\" fill=\"none\" stroke=\"%s\" stroke-width=\"2\"%s/>\n",
+                    points.toString().trim(), color, dash ) );
+
+                double legendY = TOP + 10 + s * 18;
+
+                out.write( line( WIDTH - RIGHT + 15, legendY - 4, WIDTH - RIGHT + 35, legendY - 4, color ).replace( "/>", dash + " stroke-width=\"2\"/>" ) );
+                out.write( text( WIDTH - RIGHT + 40, legendY, "start", 11, entry.getKey() ) );
+
+                s++;
+            }
+
+            out.write( "</svg>\n" );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static int plotWidth()
+    {
+        return WIDTH - LEFT - RIGHT;
+    }
+
+    private static int plotHeight()
+    {
+        return HEIGHT - TOP - BOTTOM;
+    }
+
+    /**
+     * Rounds up to 1, 2 or 5 times a power of ten.
+     */
+    private static double niceCeiling( double value )
+    {
+        if ( value <= 0 )
+        {
+            return 1;
+        }
+
+        double power = Math.pow( 10, Math.floor( Math.log10( value ) ) );
+
+        for ( double step : new double[] { 1, 2, 5, 10 } )
+        {
+            if ( step * power >= value )
+            {
+                return step * power;
+            }
+        }
+
+        return 10 * power;
+    }
+
+    private static String label( double value )
+    {
+        if ( value >= 1e6 && value % 1e6 == 0 )
+        {
+            return (long) ( value / 1e6 ) + "M";
+        }
+        else if ( value >= 1e3 && value % 1e3 == 0 )
+        {
+            return (long) ( value / 1e3 ) + "k";
+        }
+        else if ( value == Math.rint( value ) )
+        {
+            return Long.toString( (long) value );
+        }
+
+        return String.format( Locale.ROOT, "%.3g", value );
+    }
+
+    private static String line( double x1, double y1, double x2, double y2, String color )
+    {
+        return String.format( Locale.ROOT, "<line x1=\"%.1f\" y1=\"%.1f\" x2=\"%.1f\" y2=\"%.1f\" stroke=\"%s\"/>\n", x1, y1, x2, y2, color );
+    }
+
+    private static String text( double x, double y, String anchor, int size, String text )
+    {
+        return String.format( Locale.ROOT, "<text x=\"%.1f\" y=\"%.1f\" text-anchor=\"%s\" font-size=\"%d\">%s</text>\n",
+            x, y, anchor, size, escape( text ) );
+    }
+
+    private static String escape( String text )
+    {
+        return text.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates orgUnit hierarchies, periods and data values for running
+ * expressions at national scale. The same arguments always generate the
+ * same data.
+ * <p/>
+ * Data values are not stored: each one is computed from a hash of its
+ * item, orgUnit, period and the seed, so a million orgUnits of data cost
+ * no memory, and a value is missing (null) for a fraction of them.
+ */
+public final class SyntheticData
+{
+    private SyntheticData()
+    {
+    }
+
+    /**
+     * Makes an orgUnit hierarchy with one root, where every orgUnit above
+     * the last level has the same number of children.
+     *
+     * @param depth the number of levels.
+     * @param fanout the number of children of each orgUnit.
+     * @return the hierarchy.
+     */
+    public static OrgUnitHierarchy hierarchy( int depth, int fanout )
+    {
+        long size = orgUnits( depth, fanout );
+
+        if ( size > Integer.MAX_VALUE / 2 )
+        {
+            throw new IllegalArgumentException( "too many orgUnits: " + size );
+        }
+
+        String[] uids = new String[(int) size];
+        String[] parentUids = new String[(int) size];
+
+        uids[0] = uid( "OU", 0 );
+
+        // Breadth first: the children of orgUnit p are fanout * p + 1 on.
+
+        for ( int i = 1; i < uids.length; i++ )
+        {
+            uids[i] = uid( "OU", i );
+            parentUids[i] = uids[( i - 1 ) / fanout];
+        }
+
+        return new OrgUnitHierarchy( uids, parentUids );
+    }
+
+    /**
+     * Gets the number of orgUnits in a hierarchy made by
+     * {@link #hierarchy}.
+     */
+    public static long orgUnits( int depth, int fanout )
+    {
+        long size = 0;
+
+        for ( long level = 0, width = 1; level < depth; level++, width *= fanout )
+        {
+            size += width;
+        }
+
+        return size;
+    }
+
+    /**
+     * Makes orgUnit groups, each with a fraction of the orgUnits, spread
+     * through the hierarchy.
+     *
+     * @param hierarchy the hierarchy.
+     * @param fractions the fraction of orgUnits in each group. Group i
+     *                  has uid OUG followed by i + 1, to 11 characters.
+     * @param seed the random seed.
+     * @return the groups.
+     */
+    public static OrgUnitGroups groups( OrgUnitHierarchy hierarchy, double[] fractions, long seed )
+    {
+        Map<String, List<String>> members = new HashMap<>();
+
+        for ( int g = 0; g < fractions.length; g++ )
+        {
+            List<String> group = new ArrayList<>();
+
+            for ( int id = 0; id < hierarchy.size(); id++ )
+            {
+                if ( unit( hash( seed, g, id, 0 ) ) < fractions[g] )
+                {
+                    group.add( hierarchy.uid( id ) );
+                }
+            }
+
+            members.put( uid( "OUG", g + 1 ), group );
+        }
+
+        return new OrgUnitGroups( hierarchy, members );
+    }
+
+    /**
+     * Makes consecutive monthly periods.
+     *
+     * @param start the first month, such as "201801".
+     * @param count the number of months.
+     * @return the period ids.
+     */
+    public static int[] months( String start, int count )
+    {
+        int[] periods = new int[count];
+
+        periods[0] = Periods.parse( start );
+
+        for ( int i = 1; i < count; i++ )
+        {
+            periods[i] = Periods.shift( periods[i - 1], 1, 0 );
+        }
+
+        return periods;
+    }
+
+    /**
+     * Makes a source of sparse data values: for each item, orgUnit and
+     * period, a value from 0 to 1000, or null.
+     *
+     * @param density the fraction of values that are not null.
+     * @param seed the random seed.
+     * @return the value source.
+     */
+    public static ValueSource values( double density, long seed )
+    {
+        return ( item, orgUnit, period ) ->
+        {
+            long hash = hash( seed, item.hashCode(), orgUnit, period );
+
+            return unit( hash ) < density ? (double) ( ( hash & 0xFFFFF ) % 1001 ) : null;
+        };
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Makes an 11 character uid from a prefix and a number.
+     */
+    private static String uid( String prefix, int number )
+    {
+        String digits = Integer.toString( number );
+
+        StringBuilder sb = new StringBuilder( 11 ).append( prefix );
+
+        for ( int i = prefix.length() + digits.length(); i < 11; i++ )
+        {
+            sb.append( '0' );
+        }
+
+        return sb.append( digits ).toString();
+    }
+
+    /**
+     * Mixes a seed and three ints into a hash (the SplitMix64 finalizer.)
+     */
+    private static long hash( long seed, int a, int b, int c )
+    {
+        long z = seed + 0x9E3779B97F4A7C15L * ( ( (long) a << 32 ^ b ) * 31 + c + 1 );
+
+        z = ( z ^ z >>> 30 ) * 0xBF58476D1CE4E5B9L;
+        z = ( z ^ z >>> 27 ) * 0x94D049BB133111EBL;
+
+        return z ^ z >>> 31;
+    }
+
+    /**
+     * Maps a hash to [0, 1).
+     */
+    private static double unit( long hash )
+    {
+        return ( hash >>> 11 ) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,24 @@
+package bench;
+
+/**
+ * A bulk evaluation of expressions for every orgUnit and period.
+ */
+public interface Bulk
+{
+    /**
+     * Makes the orgUnits, values and evaluator.
+     *
+     * @param levels the levels of the orgUnit hierarchy, with 10 children
+     *               under each orgUnit above the last level.
+     * @param parallelism the number of threads to evaluate with.
+     */
+    void setUp( int levels, int parallelism );
+
+    /**
+     * Evaluates every expression for every orgUnit and period.
+     *
+     * @return the number of results.
+     */
+    long evaluate()
+        throws InterruptedException;
+}
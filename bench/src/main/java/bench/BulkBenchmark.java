@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times BulkEvaluator over a 1111 orgUnit hierarchy and 12 periods, by
+ * the number of threads, to see how it scales. (Scaling can only be seen
+ * with at least as many cores as threads; baseline.txt was recorded on
+ * one.)
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class BulkBenchmark
+{
+    @Param( { "1", "2", "4", "8" } )
+    private int parallelism;
+
+    private Bulk bulk;
+
+    @Setup
+    public void setUp()
+        throws ReflectiveOperationException
+    {
+        bulk = Workloads.load( "BulkWorkload", Bulk.class );
+        bulk.setUp( 4, parallelism );
+    }
+
+    @Benchmark
+    public long evaluate()
+        throws InterruptedException
+    {
+        return bulk.evaluate();
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times evaluating compiled expressions as doubles, without boxing, over
+ * the expressions with numeric values of the corpora that have them (the
+ * string corpus has none.) One context is reused, so the allocation is
+ * that of the evaluation alone.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DoubleBenchmark
+{
+    @Param( { "literal", "arithmetic", "logical", "scope" } )
+    private String corpus;
+
+    private Phases phases;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp()
+        throws ReflectiveOperationException
+    {
+        phases = Workloads.load( "ExpressionPhases", Phases.class );
+        phases.setUp( corpus );
+
+        if ( phases.numericSize() == 0 )
+        {
+            throw new IllegalArgumentException( "No numeric expressions in corpus: " + corpus );
+        }
+    }
+
+    @Benchmark
+    public double evaluateDouble()
+    {
+        int i = next;
+
+        next = i + 1 == phases.numericSize() ? 0 : i + 1;
+
+        return phases.evaluateDouble( i );
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times last(k) over the values of ten or a hundred years of months,
+ * added in period order (walking back from the end) or shuffled (a
+ * bounded heap), against the TreeMap selection it replaced.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LastBenchmark
+{
+    @Param( { "true", "false" } )
+    private boolean inPeriodOrder;
+
+    @Param( { "1", "3", "12" } )
+    private int limit;
+
+    @Param( { "120", "1200" } )
+    private int size;
+
+    private PeriodValues values;
+
+    @Setup
+    public void setUp()
+        throws ReflectiveOperationException
+    {
+        values = Workloads.load( "PeriodValuesWorkload", PeriodValues.class );
+        values.setUp( size, inPeriodOrder );
+    }
+
+    @Benchmark
+    public Object last()
+    {
+        return values.last( limit );
+    }
+
+    @Benchmark
+    public Object lastTreeMap()
+    {
+        return values.lastTreeMap( limit );
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a compiled indicator of six dimension items and a constant,
+ * reading the items from a map by their text or from a value frame by
+ * slot.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LeafBenchmark
+{
+    @Param( { "false", "true" } )
+    private boolean bySlot;
+
+    private LeafLookup lookup;
+
+    @Setup
+    public void setUp()
+        throws ReflectiveOperationException
+    {
+        lookup = Workloads.load( "LeafLookupWorkload", LeafLookup.class );
+        lookup.setUp( bySlot );
+    }
+
+    @Benchmark
+    public double evaluate()
+    {
+        return lookup.evaluate();
+    }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+/**
+ * An indicator whose dimension items are looked up by text or by slot.
+ */
+public interface LeafLookup
+{
+    /**
+     * Prepares the values.
+     *
+     * @param bySlot whether the items are read from a value frame by slot,
+     *               or from a value source by text.
+     */
+    void setUp( boolean bySlot );
+
+    /**
+     * Evaluates the indicator.
+     */
+    double evaluate();
+}
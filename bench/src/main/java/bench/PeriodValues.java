@@ -0,0 +1,29 @@
+package bench;
+
+/**
+ * Values from many periods, to select the last of.
+ */
+public interface PeriodValues
+{
+    /**
+     * Makes the values.
+     *
+     * @param size the number of monthly values.
+     * @param inPeriodOrder whether they are added in period order, as
+     *                      scopes add them, or shuffled.
+     */
+    void setUp( int size, boolean inPeriodOrder );
+
+    /**
+     * Selects the values of the last periods.
+     */
+    Object last( int limit );
+
+    /**
+     * Selects the values of the last periods as MultiPeriodValues.last did
+     * before it selected in place: by grouping all the values by period in
+     * a reverse-ordered TreeMap of lists, from parallel lists of period
+     * strings and boxed values.
+     */
+    Object lastTreeMap( int limit );
+}
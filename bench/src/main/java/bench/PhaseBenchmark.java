@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each phase of handling an expression separately, over corpora of
+ * the Test expressions by kind. Each operation is one expression, taken
+ * in turn from the corpus, so the times are per expression. (Evaluation
+ * as a double is timed by {@link DoubleBenchmark}.)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PhaseBenchmark
+{
+    @Param( { "literal", "arithmetic", "string", "logical", "scope" } )
+    private String corpus;
+
+    private Phases phases;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp()
+        throws ReflectiveOperationException
+    {
+        phases = Workloads.load( "ExpressionPhases", Phases.class );
+        phases.setUp( corpus );
+    }
+
+    private int next()
+    {
+        int i = next;
+
+        next = i + 1 == phases.size() ? 0 : i + 1;
+
+        return i;
+    }
+
+    @Benchmark
+    public Object lex()
+    {
+        return phases.lex( next() );
+    }
+
+    @Benchmark
+    public Object parse()
+    {
+        return phases.parse( next() );
+    }
+
+    @Benchmark
+    public Object parseAntlr()
+    {
+        return phases.parseAntlr( next() );
+    }
+
+    @Benchmark
+    public Object check()
+    {
+        return phases.check( next() );
+    }
+
+    @Benchmark
+    public Object evaluate()
+    {
+        return phases.evaluate( next() );
+    }
+
+    @Benchmark
+    public Object evaluateCompiled()
+    {
+        return phases.evaluateCompiled( next() );
+    }
+}
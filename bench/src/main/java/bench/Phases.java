@@ -0,0 +1,62 @@
+package bench;
+
+/**
+ * The phases of handling an expression, each run on one expression of a
+ * corpus at a time.
+ */
+public interface Phases
+{
+    /**
+     * Builds a corpus, and prepares its expressions for each phase.
+     *
+     * @param corpus the corpus name: literal, arithmetic, string, logical
+     *               or scope.
+     */
+    void setUp( String corpus );
+
+    int size();
+
+    /**
+     * Gets the number of expressions of the corpus with numeric values,
+     * for {@link #evaluateDouble}.
+     */
+    int numericSize();
+
+    /**
+     * Lexes an expression, with a reused lexer.
+     */
+    Object lex( int i );
+
+    /**
+     * Lexes and parses an expression with ExpressionParsingService: the
+     * Pratt parser, falling back to two-stage ANTLR.
+     */
+    Object parse( int i );
+
+    /**
+     * Lexes and parses an expression with a new ANTLR lexer and parser,
+     * full LL, as expressions were parsed before the faster front ends.
+     */
+    Object parseAntlr( int i );
+
+    /**
+     * Type-checks a parsed expression with ExpressionChecker.
+     */
+    Object check( int i );
+
+    /**
+     * Evaluates a parsed expression with ExpressionEvaluator.
+     */
+    Object evaluate( int i );
+
+    /**
+     * Evaluates a compiled expression's node tree.
+     */
+    Object evaluateCompiled( int i );
+
+    /**
+     * Evaluates the i-th numeric expression's node tree as a double,
+     * without boxing, reusing one context.
+     */
+    double evaluateDouble( int i );
+}
@@ -0,0 +1,23 @@
+package bench;
+
+/**
+ * Loads the workloads the benchmarks run.
+ * <p/>
+ * The expression classes are in the default package, which a named
+ * package cannot import, and JMH needs benchmarks in a named package. So
+ * each workload is a default package class implementing an interface
+ * from this package, which the benchmark loads by name and calls through
+ * the interface. The calls are monomorphic, so they are inlined.
+ */
+final class Workloads
+{
+    private Workloads()
+    {
+    }
+
+    static <T> T load( String className, Class<T> type )
+        throws ReflectiveOperationException
+    {
+        return type.cast( Class.forName( className ).getDeclaredConstructor().newInstance() );
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Aggregates values in a single pass, as they are found in a scope,
+ * without keeping them. Memory use does not depend on the number of
+ * values.
+ * <p/>
+ * The mean and variance are kept with Welford's method. Sum, max and min
+ * give the same results as Commons Math {@code StatUtils}. Mean, variance
+ * and standard deviation can differ from its two-pass results in the last
+ * bits.
+ */
+public class Accumulator
+    implements ValueSink
+{
+    private long count;
+
+    private double sum;
+
+    private double mean;
+
+    private double m2; // Sum of squared differences from the mean.
+
+    private double max = Double.NaN;
+
+    private double min = Double.NaN;
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void addValue( Object value )
+    {
+        if ( value != null )
+        {
+            if ( value instanceof MultiValues )
+            {
+                MultiValues values = (MultiValues) value;
+
+                double[] doubles = values.getDoubles();
+
+                for ( int i = 0; i < values.size(); i++ )
+                {
+                    addDouble( doubles[i] );
+                }
+            }
+            else
+            {
+                addDouble( Values.castDouble( value ) );
+            }
+        }
+    }
+
+    @Override
+    public void addDouble( double value )
+    {
+        if ( count++ == 0 )
+        {
+            max = value;
+            min = value;
+        }
+        else if ( !Double.isNaN( value ) ) // (As StatUtils max and min.)
+        {
+            max = max > value ? max : value;
+            min = min < value ? min : value;
+        }
+
+        sum += value;
+
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * ( value - mean );
+    }
+
+    /**
+     * Gets the sum, or 0 if there are no values.
+     */
+    public double getSum()
+    {
+        return sum;
+    }
+
+    /**
+     * Gets the maximum, or NaN if there are no values.
+     */
+    public double getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Gets the minimum, or NaN if there are no values.
+     */
+    public double getMin()
+    {
+        return min;
+    }
+
+    /**
+     * Gets the mean, or NaN if there are no values.
+     */
+    public double getMean()
+    {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * Gets the sample variance: 0 for one value, NaN if there are none.
+     */
+    public double getVariance()
+    {
+        return count == 0 ? Double.NaN : count == 1 ? 0. : m2 / ( count - 1 );
+    }
+
+    /**
+     * Gets the sample standard deviation: 0 for one value, NaN if there are
+     * none.
+     */
+    public double getStdDev()
+    {
+        return Math.sqrt( getVariance() );
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+}
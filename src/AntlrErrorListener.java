@@ -1,30 +1,104 @@
 import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the syntax errors of one lex and parse, each with its line,
+ * column and offending token. A listener keeps its errors until they are
+ * returned, so each parse (and so each thread) needs its own listener.
+ */
 public class AntlrErrorListener extends BaseErrorListener
 {
-    private StringBuilder sb = new StringBuilder();
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
 
     @Override
     public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
         int line, int charPositionInLine, String msg,
         RecognitionException e)
     {
-        if ( sb.length() != 0 )
-        {
-            sb.append( "; " );
-        }
+        diagnostics.add( new Diagnostic( line, charPositionInLine, offendingText( recognizer, offendingSymbol ), msg ) );
+    }
 
-        sb.append( msg );
+    public boolean hasErrors()
+    {
+        return !diagnostics.isEmpty();
     }
 
+    /**
+     * Returns the error messages, separated by "; ", and forgets the
+     * errors.
+     */
     public String returnErrors()
     {
-        String errors = sb.toString();
+        String errors = messages( diagnostics );
 
-        sb = new StringBuilder();
+        diagnostics.clear();
 
         return errors;
     }
+
+    /**
+     * Returns the errors, and forgets them.
+     */
+    public List<Diagnostic> returnDiagnostics()
+    {
+        List<Diagnostic> errors = new ArrayList<>( diagnostics );
+
+        diagnostics.clear();
+
+        return errors;
+    }
+
+    /**
+     * Joins the messages of diagnostics, separated by "; ".
+     */
+    public static String messages( List<Diagnostic> diagnostics )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for ( Diagnostic diagnostic : diagnostics )
+        {
+            if ( sb.length() != 0 )
+            {
+                sb.append( "; " );
+            }
+
+            sb.append( diagnostic.getMessage() );
+        }
+
+        return sb.toString();
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the text of the offending token, or for a lexer error (which
+     * has no token), the text the lexer could not match.
+     */
+    private static String offendingText( Recognizer<?, ?> recognizer, Object offendingSymbol )
+    {
+        if ( offendingSymbol instanceof Token )
+        {
+            return ( (Token) offendingSymbol ).getText();
+        }
+
+        if ( recognizer instanceof Lexer )
+        {
+            Lexer lexer = (Lexer) recognizer;
+            CharStream input = lexer.getInputStream();
+
+            return input.getText( Interval.of( lexer._tokenStartCharIndex, input.index() ) );
+        }
+
+        return null;
+    }
 }
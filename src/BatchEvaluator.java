@@ -0,0 +1,499 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Evaluates a compiled expression over a whole {@link ColumnBatch} at
+ * once, producing a column with one value per row.
+ * <p/>
+ * The expression tree is walked once per batch rather than once per row,
+ * and each operator runs as a simple loop over its operand columns. This
+ * suits expressions such as indicators that are evaluated for every
+ * orgUnit at a level.
+ * <p/>
+ * Batch evaluation supports the number and boolean values and operators,
+ * and the if, except, isNull and coalesce functions. Aggregation and
+ * scope functions and orgUnit group counts, which need values from other
+ * periods or orgUnits, and string values are not supported.
+ * <p/>
+ * Null values propagate: the result of an operator is null in any row
+ * where an operand it needs is null. As when evaluating a single row,
+ * the right operand of && and || is not needed if the left operand
+ * decides the result.
+ */
+public class BatchEvaluator
+{
+    private final ExprNode root;
+
+    private final Map<String, Double> constantMap;
+
+    private final ExprNode.Type type;
+
+    /**
+     * Prepares an expression for batch evaluation.
+     *
+     * @param root the compiled expression node tree.
+     * @param constantMap the constant values.
+     * @throws ParsingException if the expression has anything that is not
+     *         supported in batch evaluation.
+     */
+    public BatchEvaluator( ExprNode root, Map<String, Double> constantMap )
+    {
+        this.root = root;
+        this.constantMap = constantMap;
+        this.type = check( root );
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evaluates the expression for every row in a batch.
+     *
+     * @param batch the batch of dimension item values.
+     * @return the result column (1 or 0 for a boolean expression.)
+     * @throws ParsingException if the expression has [days] and the batch
+     *         has no period.
+     */
+    public ColumnBatch.Column evaluate( ColumnBatch batch )
+    {
+        return eval( root, batch );
+    }
+
+    /**
+     * Tells whether the result is boolean (1 or 0) rather than a number.
+     */
+    public boolean isBoolean()
+    {
+        return type == ExprNode.Type.BOOLEAN;
+    }
+
+    // -------------------------------------------------------------------------
+    // Checking
+    // -------------------------------------------------------------------------
+
+    /**
+     * Finds the type of a node in batch evaluation, and checks that it and
+     * its operands are supported.
+     *
+     * @param node the node to check.
+     * @return NUMBER or BOOLEAN.
+     */
+    private ExprNode.Type check( ExprNode node )
+    {
+        if ( node instanceof ExprNode.LiteralNode )
+        {
+            if ( node.type() == ExprNode.Type.STRING )
+            {
+                throw unsupported( "string values" );
+            }
+
+            return node.type();
+        }
+        else if ( isScalar( node ) || node instanceof ExprNode.DimensionItemNode )
+        {
+            return ExprNode.Type.NUMBER;
+        }
+        else if ( node instanceof ExprNode.NegateNode )
+        {
+            return expect( ( (ExprNode.Unary) node ).operand, ExprNode.Type.NUMBER );
+        }
+        else if ( node instanceof ExprNode.NotNode )
+        {
+            return expect( ( (ExprNode.Unary) node ).operand, ExprNode.Type.BOOLEAN );
+        }
+        else if ( node instanceof ExprNode.AddNode
+            || node instanceof ExprNode.NumericBinary )
+        {
+            expect( ( (ExprNode.Binary) node ).left, ExprNode.Type.NUMBER );
+            return expect( ( (ExprNode.Binary) node ).right, ExprNode.Type.NUMBER );
+        }
+        else if ( node instanceof ExprNode.Compare )
+        {
+            expect( ( (ExprNode.Binary) node ).right, check( ( (ExprNode.Binary) node ).left ) );
+            return ExprNode.Type.BOOLEAN;
+        }
+        else if ( node instanceof ExprNode.AndNode
+            || node instanceof ExprNode.OrNode )
+        {
+            expect( ( (ExprNode.Binary) node ).left, ExprNode.Type.BOOLEAN );
+            return expect( ( (ExprNode.Binary) node ).right, ExprNode.Type.BOOLEAN );
+        }
+        else if ( node instanceof ExprNode.IfNode )
+        {
+            ExprNode.IfNode ifNode = (ExprNode.IfNode) node;
+            expect( ifNode.test, ExprNode.Type.BOOLEAN );
+            return expect( ifNode.ifFalse, check( ifNode.ifTrue ) );
+        }
+        else if ( node instanceof ExprNode.ExceptNode )
+        {
+            expect( ( (ExprNode.ExceptNode) node ).test, ExprNode.Type.BOOLEAN );
+            return check( ( (ExprNode.ExceptNode) node ).operand );
+        }
+        else if ( node instanceof ExprNode.IsNullNode )
+        {
+            check( ( (ExprNode.Unary) node ).operand );
+            return ExprNode.Type.BOOLEAN;
+        }
+        else if ( node instanceof ExprNode.CoalesceNode )
+        {
+            ExprNode[] args = ( (ExprNode.CoalesceNode) node ).args;
+            ExprNode.Type argType = check( args[0] );
+
+            for ( int i = 1; i < args.length; i++ )
+            {
+                expect( args[i], argType );
+            }
+
+            return argType;
+        }
+
+        throw unsupported( node.getClass().getSimpleName().replace( "Node", "" ) );
+    }
+
+    private ExprNode.Type expect( ExprNode node, ExprNode.Type expected )
+    {
+        ExprNode.Type found = check( node );
+
+        if ( found != expected )
+        {
+            throw new ParsingException( ( expected == ExprNode.Type.NUMBER ? "number" : "boolean" )
+                + " expected in batch evaluation" );
+        }
+
+        return found;
+    }
+
+    private static ParsingException unsupported( String what )
+    {
+        return new ParsingException( what + " not supported in batch evaluation" );
+    }
+
+    /**
+     * Makes the context to evaluate a scalar node in, at the batch period.
+     *
+     * @throws ParsingException if the node is [days] and the batch has no
+     *         period.
+     */
+    private EvalContext scalarContext( ExprNode node, ColumnBatch batch )
+    {
+        EvalContext ctx = new EvalContext( null, constantMap );
+
+        if ( batch.getPeriod() != ColumnBatch.NO_PERIOD )
+        {
+            ctx.setCurrentPeriod( batch.getPeriod() );
+        }
+        else if ( node instanceof ExprNode.DaysNode )
+        {
+            throw new ParsingException( "[days] needs a batch with a period" );
+        }
+
+        return ctx;
+    }
+
+    /**
+     * Tells whether a node has the same value in every row.
+     */
+    private static boolean isScalar( ExprNode node )
+    {
+        return node instanceof ExprNode.LiteralNode
+            || node instanceof ExprNode.ConstantNode
+            || node instanceof ExprNode.ReportingRateNode
+            || node instanceof ExprNode.DaysNode;
+    }
+
+    // -------------------------------------------------------------------------
+    // Evaluation
+    // -------------------------------------------------------------------------
+
+    private ColumnBatch.Column eval( ExprNode node, ColumnBatch batch )
+    {
+        int n = batch.getRowCount();
+
+        if ( isScalar( node ) )
+        {
+            return scalar( node.eval( scalarContext( node, batch ) ), n );
+        }
+        else if ( node instanceof ExprNode.DimensionItemNode )
+        {
+            return batch.getColumn( ( (ExprNode.DimensionItemNode) node ).item );
+        }
+        else if ( node instanceof ExprNode.NegateNode )
+        {
+            ColumnBatch.Column a = eval( ( (ExprNode.Unary) node ).operand, batch );
+            double[] x = a.getValues();
+            double[] out = new double[n];
+
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = -x[i];
+            }
+
+            return new ColumnBatch.Column( out, a.getValid() );
+        }
+        else if ( node instanceof ExprNode.NotNode )
+        {
+            ColumnBatch.Column a = eval( ( (ExprNode.Unary) node ).operand, batch );
+            double[] x = a.getValues();
+            double[] out = new double[n];
+
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = 1. - x[i];
+            }
+
+            return new ColumnBatch.Column( out, a.getValid() );
+        }
+        else if ( node instanceof ExprNode.Binary && !( node instanceof ExprNode.AndNode || node instanceof ExprNode.OrNode ) )
+        {
+            ExprNode.Binary binary = (ExprNode.Binary) node;
+
+            return binary( binary, eval( binary.left, batch ), eval( binary.right, batch ), n );
+        }
+        else if ( node instanceof ExprNode.AndNode || node instanceof ExprNode.OrNode )
+        {
+            ExprNode.Binary binary = (ExprNode.Binary) node;
+
+            return andOr( node instanceof ExprNode.AndNode, eval( binary.left, batch ), eval( binary.right, batch ), n );
+        }
+        else if ( node instanceof ExprNode.IfNode )
+        {
+            ExprNode.IfNode ifNode = (ExprNode.IfNode) node;
+
+            return ifFunction( eval( ifNode.test, batch ), eval( ifNode.ifTrue, batch ), eval( ifNode.ifFalse, batch ), n );
+        }
+        else if ( node instanceof ExprNode.ExceptNode )
+        {
+            ExprNode.ExceptNode except = (ExprNode.ExceptNode) node;
+
+            return except( eval( except.test, batch ), eval( except.operand, batch ), n );
+        }
+        else if ( node instanceof ExprNode.IsNullNode )
+        {
+            ColumnBatch.Column a = eval( ( (ExprNode.Unary) node ).operand, batch );
+            double[] out = new double[n];
+
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = a.isValid( i ) ? 0. : 1.;
+            }
+
+            return new ColumnBatch.Column( out, ColumnBatch.Column.allValid( n ) );
+        }
+        else // CoalesceNode
+        {
+            ExprNode[] args = ( (ExprNode.CoalesceNode) node ).args;
+            ColumnBatch.Column a = eval( args[0], batch );
+            double[] out = Arrays.copyOf( a.getValues(), n );
+            long[] valid = a.getValid().clone();
+
+            for ( int arg = 1; arg < args.length; arg++ )
+            {
+                ColumnBatch.Column b = eval( args[arg], batch );
+
+                for ( int i = 0; i < n; i++ )
+                {
+                    if ( ( valid[i >>> 6] & ( 1L << i ) ) == 0 && b.isValid( i ) )
+                    {
+                        out[i] = b.getValues()[i];
+                        valid[i >>> 6] |= 1L << i;
+                    }
+                }
+            }
+
+            return new ColumnBatch.Column( out, valid );
+        }
+    }
+
+    private static ColumnBatch.Column scalar( Object value, int n )
+    {
+        double[] out = new double[n];
+
+        if ( value == null )
+        {
+            return new ColumnBatch.Column( out, new long[ColumnBatch.Column.words( n )] );
+        }
+
+        Arrays.fill( out, value instanceof Boolean ? ( (Boolean) value ? 1. : 0. ) : (Double) value );
+
+        return new ColumnBatch.Column( out, ColumnBatch.Column.allValid( n ) );
+    }
+
+    /**
+     * Evaluates an arithmetic or comparison operator. Comparisons use
+     * {@link Double#compare}, as single-row evaluation does.
+     */
+    private static ColumnBatch.Column binary( ExprNode.Binary node, ColumnBatch.Column a, ColumnBatch.Column b, int n )
+    {
+        double[] x = a.getValues();
+        double[] y = b.getValues();
+        double[] out = new double[n];
+
+        if ( node instanceof ExprNode.AddNode || node instanceof ExprNode.NumericAddNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = x[i] + y[i];
+            }
+        }
+        else if ( node instanceof ExprNode.SubtractNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = x[i] - y[i];
+            }
+        }
+        else if ( node instanceof ExprNode.MultiplyNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = x[i] * y[i];
+            }
+        }
+        else if ( node instanceof ExprNode.DivideNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = x[i] / y[i];
+            }
+        }
+        else if ( node instanceof ExprNode.ModNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = x[i] % y[i];
+            }
+        }
+        else if ( node instanceof ExprNode.PowerNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Math.pow( x[i], y[i] );
+            }
+        }
+        else if ( node instanceof ExprNode.LeqNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) <= 0 ? 1. : 0.;
+            }
+        }
+        else if ( node instanceof ExprNode.GeqNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) >= 0 ? 1. : 0.;
+            }
+        }
+        else if ( node instanceof ExprNode.LtNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) < 0 ? 1. : 0.;
+            }
+        }
+        else if ( node instanceof ExprNode.GtNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) > 0 ? 1. : 0.;
+            }
+        }
+        else if ( node instanceof ExprNode.EqNode )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) == 0 ? 1. : 0.;
+            }
+        }
+        else // NeNode
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                out[i] = Double.compare( x[i], y[i] ) != 0 ? 1. : 0.;
+            }
+        }
+
+        return new ColumnBatch.Column( out, and( a.getValid(), b.getValid() ) );
+    }
+
+    /**
+     * Evaluates && or ||. A row is valid if the left operand is valid and
+     * either decides the result alone or the right operand is also valid.
+     */
+    private static ColumnBatch.Column andOr( boolean and, ColumnBatch.Column a, ColumnBatch.Column b, int n )
+    {
+        double[] out = new double[n];
+        long[] valid = new long[ColumnBatch.Column.words( n )];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            if ( a.isValid( i ) )
+            {
+                boolean left = a.getValues()[i] != 0.;
+
+                if ( left != and ) // false && ..., true || ...
+                {
+                    out[i] = left ? 1. : 0.;
+                    valid[i >>> 6] |= 1L << i;
+                }
+                else if ( b.isValid( i ) )
+                {
+                    out[i] = b.getValues()[i];
+                    valid[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+
+        return new ColumnBatch.Column( out, valid );
+    }
+
+    private static ColumnBatch.Column ifFunction( ColumnBatch.Column test, ColumnBatch.Column a, ColumnBatch.Column b, int n )
+    {
+        double[] out = new double[n];
+        long[] valid = new long[ColumnBatch.Column.words( n )];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            if ( test.isValid( i ) )
+            {
+                ColumnBatch.Column chosen = test.getValues()[i] != 0. ? a : b;
+
+                if ( chosen.isValid( i ) )
+                {
+                    out[i] = chosen.getValues()[i];
+                    valid[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+
+        return new ColumnBatch.Column( out, valid );
+    }
+
+    private static ColumnBatch.Column except( ColumnBatch.Column test, ColumnBatch.Column a, int n )
+    {
+        long[] valid = new long[ColumnBatch.Column.words( n )];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            if ( test.isValid( i ) && test.getValues()[i] == 0. && a.isValid( i ) )
+            {
+                valid[i >>> 6] |= 1L << i;
+            }
+        }
+
+        return new ColumnBatch.Column( a.getValues(), valid );
+    }
+
+    private static long[] and( long[] a, long[] b )
+    {
+        long[] valid = new long[a.length];
+
+        for ( int w = 0; w < valid.length; w++ )
+        {
+            valid[w] = a[w] & b[w];
+        }
+
+        return valid;
+    }
+}
@@ -0,0 +1,505 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates many compiled expressions for many orgUnits and periods, in
+ * parallel: the nightly analytics job, which computes every indicator for
+ * every orgUnit and period.
+ * <p/>
+ * The orgUnits are sorted by {@link OrgUnitHierarchy} id (preorder), and
+ * split into chunks at subtree boundaries where possible, so each chunk
+ * is one or more neighbouring subtrees. A chunk evaluates every
+ * expression for each of its orgUnits and periods, so the values of an
+ * orgUnit (and of its neighbours, for orgUnit scopes) are used while they
+ * are still in cache. The chunks run on a work-stealing
+ * {@link ForkJoinPool}.
+ * <p/>
+ * Results are passed to a {@link Sink} on the calling thread, in chunk
+ * blocks, through a bounded queue. If the sink is slower than the
+ * evaluation, the queue fills and the chunks wait, so results never pile
+ * up in memory. The sink need not be thread-safe.
+ */
+public class BulkEvaluator
+{
+    private static final Object END = new Object(); // Marks the end of the results in the queue.
+
+    private final OrgUnitHierarchy hierarchy;
+
+    private final Map<String, Double> constantMap;
+
+    private final ValueSource valueSource;
+
+    private OrgUnitGroups orgUnitGroups;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private int chunkSize = 4096;
+
+    private int queueCapacity = 64;
+
+    /**
+     * Receives the results of a bulk evaluation, one at a time, on the
+     * thread that called {@link #evaluate}.
+     */
+    public interface Sink
+    {
+        /**
+         * Receives the value of an expression at an orgUnit and period.
+         *
+         * @param expression the index of the expression.
+         * @param orgUnit the orgUnit id.
+         * @param period the period id.
+         * @param value the value, possibly null.
+         */
+        void accept( int expression, int orgUnit, int period, Object value );
+
+        /**
+         * Receives the error from evaluating an expression at an orgUnit
+         * and period (or from compiling it.) By default, errors are
+         * skipped.
+         *
+         * @param expression the index of the expression.
+         * @param orgUnit the orgUnit id.
+         * @param period the period id.
+         * @param error the error.
+         */
+        default void error( int expression, int orgUnit, int period, ParsingException error )
+        {
+        }
+    }
+
+    /**
+     * Makes a bulk evaluator.
+     *
+     * @param hierarchy the orgUnit hierarchy.
+     * @param constantMap the constants.
+     * @param valueSource the source of dimension item values.
+     */
+    public BulkEvaluator( OrgUnitHierarchy hierarchy, Map<String, Double> constantMap, ValueSource valueSource )
+    {
+        this.hierarchy = hierarchy;
+        this.constantMap = constantMap;
+        this.valueSource = valueSource;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evaluates each expression at each orgUnit and period, passing the
+     * results to a sink. Returns when all the results have been passed.
+     *
+     * @param expressions the compiled expressions.
+     * @param orgUnits the orgUnit ids.
+     * @param periods the period ids.
+     * @param sink the sink for the results.
+     * @throws InterruptedException if interrupted while waiting for
+     *         results.
+     */
+    public void evaluate( List<CompiledExpression> expressions, int[] orgUnits, int[] periods, Sink sink )
+        throws InterruptedException
+    {
+        List<int[]> chunks = chunks( orgUnits, Math.max( 1, chunkSize / Math.max( 1, expressions.size() * periods.length ) ) );
+
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>( queueCapacity );
+
+        Run run = new Run( expressions, periods, queue );
+
+        ExecutorService executor = new ForkJoinPool( parallelism );
+
+        executor.execute( () -> run.finish( new ChunkTask( run, chunks, 0, chunks.size() )::invoke ) );
+
+        try
+        {
+            for ( Object block = queue.take(); block != END; block = queue.take() )
+            {
+                ( (Block) block ).deliver( sink );
+            }
+        }
+        catch ( RuntimeException | InterruptedException ex )
+        {
+            run.cancelled = true;
+
+            for ( Object block = queue.take(); block != END; block = queue.take() )
+            {
+                // Discard results until the running chunks are done.
+            }
+
+            throw ex;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        if ( run.failure != null )
+        {
+            throw run.failure;
+        }
+    }
+
+    /**
+     * Ranks orgUnits by the value of an expression in a period, as for a
+     * league table. The expression is evaluated in bulk, and the values
+     * are ranked together by a {@link RankIndex}, in O(n log n) rather
+     * than the O(n^2) of a rank expression for each orgUnit.
+     *
+     * @param expression the compiled expression.
+     * @param orgUnits the orgUnit ids, with no repeats.
+     * @param period the period id.
+     * @param rank the rank function: for example {@link RankIndex.Rank#LOW}
+     *             to give 1 to the highest value.
+     * @return the rank of each orgUnit, in the order given, or 0 if its
+     *         value is null, not a number, or an error. Only the orgUnits
+     *         with numbers are ranked.
+     * @throws InterruptedException if interrupted while waiting for
+     *         results.
+     */
+    public int[] rank( CompiledExpression expression, int[] orgUnits, int period, RankIndex.Rank rank )
+        throws InterruptedException
+    {
+        Map<Integer, Integer> position = new HashMap<>();
+
+        for ( int i = 0; i < orgUnits.length; i++ )
+        {
+            position.put( orgUnits[i], i );
+        }
+
+        double[] values = new double[orgUnits.length];
+
+        Arrays.fill( values, Double.NaN );
+
+        evaluate( Collections.singletonList( expression ), orgUnits, new int[] { period }, ( e, orgUnit, p, value ) ->
+        {
+            if ( value instanceof Double )
+            {
+                values[position.get( orgUnit )] = (Double) value;
+            }
+        } );
+
+        double[] numbers = Arrays.stream( values ).filter( v -> !Double.isNaN( v ) ).toArray();
+
+        RankIndex index = new RankIndex( numbers, numbers.length );
+
+        int[] ranks = new int[orgUnits.length];
+
+        for ( int i = 0; i < orgUnits.length; i++ )
+        {
+            ranks[i] = Double.isNaN( values[i] ) ? 0 : index.rank( rank, values[i] );
+        }
+
+        return ranks;
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Splits orgUnits into chunks in id order. Each split is made at the
+     * shallowest orgUnit in the middle half of the range, which starts the
+     * largest subtree there, so chunks tend to be whole subtrees.
+     *
+     * @param orgUnits the orgUnit ids.
+     * @param maxOrgUnits the most orgUnits in a chunk.
+     * @return the chunks, in id order.
+     */
+    private List<int[]> chunks( int[] orgUnits, int maxOrgUnits )
+    {
+        int[] sorted = orgUnits.clone();
+
+        Arrays.sort( sorted );
+
+        List<int[]> chunks = new ArrayList<>();
+
+        split( sorted, 0, sorted.length, maxOrgUnits, chunks );
+
+        return chunks;
+    }
+
+    private void split( int[] sorted, int from, int to, int maxOrgUnits, List<int[]> chunks )
+    {
+        if ( to - from <= maxOrgUnits )
+        {
+            if ( to > from )
+            {
+                chunks.add( Arrays.copyOfRange( sorted, from, to ) );
+            }
+
+            return;
+        }
+
+        int quarter = ( to - from ) / 4;
+        int at = from + Math.max( 1, quarter );
+
+        for ( int i = at + 1; i < to - quarter; i++ )
+        {
+            if ( hierarchy.level( sorted[i] ) < hierarchy.level( sorted[at] ) )
+            {
+                at = i;
+            }
+        }
+
+        split( sorted, from, at, maxOrgUnits, chunks );
+        split( sorted, at, to, maxOrgUnits, chunks );
+    }
+
+    // -------------------------------------------------------------------------
+    // Run, chunk tasks and result blocks
+    // -------------------------------------------------------------------------
+
+    /**
+     * The state of one bulk evaluation, shared by its chunks.
+     */
+    private final class Run
+    {
+        final List<CompiledExpression> expressions;
+
+        final int[] periods;
+
+        final BlockingQueue<Object> queue;
+
+        volatile boolean cancelled = false;
+
+        volatile RuntimeException failure;
+
+        Run( List<CompiledExpression> expressions, int[] periods, BlockingQueue<Object> queue )
+        {
+            this.expressions = expressions;
+            this.periods = periods;
+            this.queue = queue;
+        }
+
+        /**
+         * Evaluates every expression at every orgUnit and period of a
+         * chunk, and queues the results, waiting if the queue is full.
+         * Anything but a {@link ParsingException} cancels the run.
+         */
+        void evaluate( int[] orgUnits )
+        {
+            if ( cancelled )
+            {
+                return;
+            }
+
+            Block block;
+
+            try
+            {
+                block = evaluateChunk( orgUnits );
+            }
+            catch ( RuntimeException ex )
+            {
+                cancelled = true;
+
+                throw ex;
+            }
+
+            try
+            {
+                queue.put( block );
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+
+                cancelled = true;
+            }
+        }
+
+        private Block evaluateChunk( int[] orgUnits )
+        {
+            Block block = new Block( orgUnits, periods, expressions.size() );
+
+            int cell = 0;
+
+            for ( int orgUnit : orgUnits )
+            {
+                for ( int period : periods )
+                {
+                    EvalContext ctx = new EvalContext( null, constantMap, hierarchy, hierarchy.uid( orgUnit ) );
+
+                    ctx.setOrgUnitGroups( orgUnitGroups );
+                    ctx.setValueSource( valueSource );
+                    ctx.setCurrentPeriod( period );
+
+                    for ( CompiledExpression expression : expressions )
+                    {
+                        try
+                        {
+                            block.values[cell++] = expression.evaluate( ctx );
+                        }
+                        catch ( ParsingException ex )
+                        {
+                            block.values[cell - 1] = ex;
+                        }
+                    }
+                }
+            }
+
+            return block;
+        }
+
+        /**
+         * Runs all the chunks, then queues the end marker (after any
+         * failure is recorded.)
+         */
+        void finish( Runnable chunks )
+        {
+            try
+            {
+                chunks.run();
+            }
+            catch ( RuntimeException ex )
+            {
+                failure = ex;
+            }
+            finally
+            {
+                try
+                {
+                    queue.put( END );
+                }
+                catch ( InterruptedException ex )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates a range of chunks, splitting it in half for other workers
+     * to steal until it is one chunk.
+     */
+    private static final class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Run run;
+
+        private final List<int[]> chunks;
+
+        private final int from;
+
+        private final int to;
+
+        ChunkTask( Run run, List<int[]> chunks, int from, int to )
+        {
+            this.run = run;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( to - from == 1 )
+            {
+                run.evaluate( chunks.get( from ) );
+            }
+            else if ( to > from )
+            {
+                int mid = ( from + to ) >>> 1;
+
+                invokeAll( new ChunkTask( run, chunks, from, mid ), new ChunkTask( run, chunks, mid, to ) );
+            }
+        }
+    }
+
+    /**
+     * The results of a chunk: the value (or error) of each expression at
+     * each orgUnit and period, in that order.
+     */
+    private static final class Block
+    {
+        final int[] orgUnits;
+
+        final int[] periods;
+
+        final int expressions;
+
+        final Object[] values;
+
+        Block( int[] orgUnits, int[] periods, int expressions )
+        {
+            this.orgUnits = orgUnits;
+            this.periods = periods;
+            this.expressions = expressions;
+            this.values = new Object[orgUnits.length * periods.length * expressions];
+        }
+
+        void deliver( Sink sink )
+        {
+            int cell = 0;
+
+            for ( int orgUnit : orgUnits )
+            {
+                for ( int period : periods )
+                {
+                    for ( int e = 0; e < expressions; e++ )
+                    {
+                        Object value = values[cell++];
+
+                        if ( value instanceof ParsingException )
+                        {
+                            sink.error( e, orgUnit, period, (ParsingException) value );
+                        }
+                        else
+                        {
+                            sink.accept( e, orgUnit, period, value );
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters and setters
+    // -------------------------------------------------------------------------
+
+    public void setOrgUnitGroups( OrgUnitGroups orgUnitGroups )
+    {
+        this.orgUnitGroups = orgUnitGroups;
+    }
+
+    /**
+     * Sets the number of ForkJoinPool workers. The default is the number
+     * of processors.
+     */
+    public void setParallelism( int parallelism )
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the target number of results in a chunk (expressions x
+     * orgUnits x periods.) A chunk has at least one orgUnit. The default
+     * is 4096.
+     */
+    public void setChunkSize( int chunkSize )
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the number of chunk results that may wait for the sink before
+     * the chunks wait too. The default is 64.
+     */
+    public void setQueueCapacity( int queueCapacity )
+    {
+        this.queueCapacity = queueCapacity;
+    }
+}
@@ -0,0 +1,371 @@
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Validates every expression in a metadata file before it is imported:
+ * the syntax by the grammar, and the types by the
+ * {@link ExpressionChecker}.
+ * <p/>
+ * Expressions are read from an {@link ExpressionReader} in batches, which
+ * are validated in parallel. Results are passed to a {@link Sink} on the
+ * calling thread, in file order. At most a fixed number of batches are
+ * read ahead of the sink, so memory is bounded whatever the size of the
+ * file.
+ * <p/>
+ * From the command line,
+ * <pre>
+ * java BulkValidator metadata.json [diagnostics.csv]
+ * </pre>
+ * writes a CSV row for each error (to standard output if no file is
+ * given), and reports the throughput on standard error.
+ */
+public class BulkValidator
+{
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private int batchSize = 256;
+
+    private int queueCapacity = 64;
+
+    /**
+     * Receives the validation results, one expression at a time, in file
+     * order, on the thread that called {@link #validate}.
+     */
+    public interface Sink
+    {
+        /**
+         * Receives the result of validating an expression.
+         *
+         * @param record the expression.
+         * @param diagnostics its errors, or an empty list if it is valid.
+         * @throws IOException if the result cannot be written.
+         */
+        void accept( ExpressionRecord record, List<Diagnostic> diagnostics )
+            throws IOException;
+    }
+
+    /**
+     * The counts and time of a bulk validation.
+     */
+    public static final class Summary
+    {
+        private long expressions = 0;
+
+        private long invalid = 0;
+
+        private long nanos = 0;
+
+        public long getExpressions()
+        {
+            return expressions;
+        }
+
+        public long getInvalid()
+        {
+            return invalid;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        public double getExpressionsPerSecond()
+        {
+            return nanos == 0 ? 0 : expressions * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%d expressions, %d invalid, in %.3f s: %.0f expressions/s",
+                expressions, invalid, nanos / 1e9, getExpressionsPerSecond() );
+        }
+    }
+
+    /**
+     * A batch of expressions, being validated.
+     */
+    private static final class Batch
+    {
+        final List<ExpressionRecord> records;
+
+        final Future<List<List<Diagnostic>>> diagnostics;
+
+        Batch( List<ExpressionRecord> records, Future<List<List<Diagnostic>>> diagnostics )
+        {
+            this.records = records;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Validates an expression.
+     *
+     * @param expression the expression text.
+     * @return the errors, or an empty list if the expression is valid. Any
+     *         unexpected exception is also reported as an error, so that
+     *         the other expressions are still validated.
+     */
+    public static List<Diagnostic> validate( String expression )
+    {
+        try
+        {
+            ExpressionParsingService.Result parsed = ExpressionParsingService.parse( expression );
+
+            ParseTree tree = parsed.getTree();
+
+            if ( tree == null )
+            {
+                return parsed.getDiagnostics();
+            }
+
+            ExpressionMetrics metrics = Instrumentation.get();
+
+            long start = metrics.isEnabled() ? System.nanoTime() : 0;
+
+            new ExpressionChecker().visit( tree );
+
+            if ( metrics.isEnabled() )
+            {
+                metrics.recordLatency( ExpressionMetrics.Phase.CHECK, System.nanoTime() - start );
+            }
+
+            return Collections.emptyList();
+        }
+        catch ( ParsingException ex )
+        {
+            Token token = ex.getToken();
+
+            return Collections.singletonList( token == null ? new Diagnostic( ex.getMessage() )
+                : new Diagnostic( token.getLine(), token.getCharPositionInLine(), token.getText(), ex.getMessage() ) );
+        }
+        catch ( StackOverflowError ex )
+        {
+            return Collections.singletonList( new Diagnostic( "Expression is nested too deeply." ) );
+        }
+        catch ( RuntimeException ex ) // A checker bug must not abort the whole file
+        {
+            return Collections.singletonList( new Diagnostic( "Expression could not be checked: " + ex ) );
+        }
+    }
+
+    /**
+     * Validates all the expressions from a reader, passing the results to
+     * a sink. Returns when all the results have been passed.
+     *
+     * @param reader the reader of expressions.
+     * @param sink the sink for the results.
+     * @return the counts and time.
+     * @throws IOException if the expressions cannot be read, or the
+     *         results cannot be written.
+     * @throws InterruptedException if interrupted while waiting for
+     *         results.
+     */
+    public Summary validate( ExpressionReader reader, Sink sink )
+        throws IOException, InterruptedException
+    {
+        Summary summary = new Summary();
+
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool( parallelism );
+
+        ArrayDeque<Batch> batches = new ArrayDeque<>( queueCapacity );
+
+        try
+        {
+            for ( List<ExpressionRecord> records = readBatch( reader ); !records.isEmpty(); records = readBatch( reader ) )
+            {
+                if ( batches.size() >= queueCapacity )
+                {
+                    deliver( batches.poll(), sink, summary );
+                }
+
+                List<ExpressionRecord> batch = records;
+
+                batches.add( new Batch( batch, executor.submit( () -> validateAll( batch ) ) ) );
+            }
+
+            while ( !batches.isEmpty() )
+            {
+                deliver( batches.poll(), sink, summary );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        summary.nanos = System.nanoTime() - start;
+
+        return summary;
+    }
+
+    /**
+     * Validates a metadata file, writing a CSV row for each error.
+     *
+     * @param args the metadata file (.json or .csv), and optionally the
+     *             file to write (by default, standard output.)
+     */
+    public static void main( String[] args )
+        throws Exception
+    {
+        if ( args.length < 1 || args.length > 2 )
+        {
+            System.err.println( "Usage: java BulkValidator <metadata.json|metadata.csv> [diagnostics.csv]" );
+            System.exit( 2 );
+        }
+
+        try ( ExpressionReader reader = ExpressionReader.open( Paths.get( args[0] ) );
+            Writer out = args.length == 2
+                ? Files.newBufferedWriter( Paths.get( args[1] ), StandardCharsets.UTF_8 )
+                : new BufferedWriter( new OutputStreamWriter( System.out, StandardCharsets.UTF_8 ) ) )
+        {
+            out.write( "line,id,field,expressionLine,column,token,message\n" );
+
+            Summary summary = new BulkValidator().validate( reader, ( record, diagnostics ) ->
+            {
+                for ( Diagnostic diagnostic : diagnostics )
+                {
+                    out.write( record.getLine() + "," + csv( record.getId() ) + "," + csv( record.getField() ) + ","
+                        + diagnostic.getLine() + "," + diagnostic.getColumn() + ","
+                        + csv( diagnostic.getToken() ) + "," + csv( diagnostic.getMessage() ) + "\n" );
+                }
+            } );
+
+            out.flush();
+
+            System.err.println( summary );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private List<ExpressionRecord> readBatch( ExpressionReader reader )
+        throws IOException
+    {
+        List<ExpressionRecord> records = new ArrayList<>( batchSize );
+
+        for ( ExpressionRecord record; records.size() < batchSize && ( record = reader.next() ) != null; )
+        {
+            records.add( record );
+        }
+
+        return records;
+    }
+
+    private static List<List<Diagnostic>> validateAll( List<ExpressionRecord> records )
+    {
+        List<List<Diagnostic>> diagnostics = new ArrayList<>( records.size() );
+
+        for ( ExpressionRecord record : records )
+        {
+            diagnostics.add( validate( record.getExpression() ) );
+        }
+
+        return diagnostics;
+    }
+
+    /**
+     * Waits for a batch to be validated, and passes its results to the
+     * sink.
+     */
+    private static void deliver( Batch batch, Sink sink, Summary summary )
+        throws IOException, InterruptedException
+    {
+        List<List<Diagnostic>> diagnostics;
+
+        try
+        {
+            diagnostics = batch.diagnostics.get();
+        }
+        catch ( ExecutionException ex )
+        {
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause()
+                : new IllegalStateException( ex.getCause() );
+        }
+
+        for ( int i = 0; i < diagnostics.size(); i++ )
+        {
+            summary.expressions++;
+
+            if ( !diagnostics.get( i ).isEmpty() )
+            {
+                summary.invalid++;
+            }
+
+            sink.accept( batch.records.get( i ), diagnostics.get( i ) );
+        }
+    }
+
+    /**
+     * Quotes a CSV field if needed.
+     */
+    private static String csv( String field )
+    {
+        if ( field == null )
+        {
+            return "";
+        }
+
+        if ( field.indexOf( ',' ) < 0 && field.indexOf( '"' ) < 0 && field.indexOf( '\n' ) < 0 && field.indexOf( '\r' ) < 0 )
+        {
+            return field;
+        }
+
+        return '"' + field.replace( "\"", "\"\"" ) + '"';
+    }
+
+    // -------------------------------------------------------------------------
+    // Setters
+    // -------------------------------------------------------------------------
+
+    /**
+     * Sets the number of threads to validate with. The default is the
+     * number of processors.
+     */
+    public void setParallelism( int parallelism )
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the number of expressions validated together as one task. The
+     * default is 256.
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the most batches read ahead of the sink. The default is 64.
+     */
+    public void setQueueCapacity( int queueCapacity )
+    {
+        this.queueCapacity = queueCapacity;
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A batch of rows (for example, one row per orgUnit) holding a column of
+ * double values for each dimension item, for {@link BatchEvaluator}.
+ * <p/>
+ * Each column has a validity bitmap, with one bit per row: a clear bit
+ * means the value in that row is null.
+ * <p/>
+ * All the rows are for one period, which is needed to evaluate [days].
+ */
+public class ColumnBatch
+{
+    /**
+     * The period of a batch made without one.
+     */
+    public static final int NO_PERIOD = -1;
+
+    private final int rowCount;
+
+    private final int period;
+
+    private final Map<String, Column> columns = new HashMap<>();
+
+    /**
+     * Makes a batch without a period, for expressions without [days].
+     *
+     * @param rowCount the number of rows.
+     */
+    public ColumnBatch( int rowCount )
+    {
+        this( rowCount, NO_PERIOD );
+    }
+
+    /**
+     * Makes a batch of rows for a period.
+     *
+     * @param rowCount the number of rows.
+     * @param period the period, as a {@link Periods} id.
+     */
+    public ColumnBatch( int rowCount, int period )
+    {
+        this.rowCount = rowCount;
+        this.period = period;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Adds the column for a dimension item.
+     *
+     * @param item the dimension item, as written in expressions (for
+     *             example "#{A0000000001}".)
+     * @param values the value in each row.
+     * @param valid the validity bitmap, or null if all rows are valid.
+     */
+    public void addColumn( String item, double[] values, long[] valid )
+    {
+        if ( values.length < rowCount )
+        {
+            throw new IllegalArgumentException( "Column " + item + " has " + values.length + " values for " + rowCount + " rows" );
+        }
+
+        columns.put( item, new Column( values, valid == null ? Column.allValid( rowCount ) : valid ) );
+    }
+
+    /**
+     * Gets the column for a dimension item. If the batch has no column for
+     * the item, returns a column of nulls.
+     *
+     * @param item the dimension item.
+     * @return the column.
+     */
+    public Column getColumn( String item )
+    {
+        Column column = columns.get( item );
+
+        return column != null ? column : new Column( new double[rowCount], new long[Column.words( rowCount )] );
+    }
+
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * Gets the period of the rows, or NO_PERIOD if there is none.
+     */
+    public int getPeriod()
+    {
+        return period;
+    }
+
+    // -------------------------------------------------------------------------
+    // Column
+    // -------------------------------------------------------------------------
+
+    /**
+     * A column of double values with a validity bitmap. Boolean columns
+     * hold 1 for true and 0 for false.
+     */
+    public static class Column
+    {
+        private final double[] values;
+
+        private final long[] valid;
+
+        public Column( double[] values, long[] valid )
+        {
+            this.values = values;
+            this.valid = valid;
+        }
+
+        /**
+         * Makes a validity bitmap with every row valid.
+         *
+         * @param rowCount the number of rows.
+         * @return the validity bitmap.
+         */
+        public static long[] allValid( int rowCount )
+        {
+            long[] valid = new long[words( rowCount )];
+
+            Arrays.fill( valid, -1L );
+
+            return valid;
+        }
+
+        /**
+         * Gets the number of bitmap words for a number of rows.
+         */
+        public static int words( int rowCount )
+        {
+            return ( rowCount + 63 ) >>> 6;
+        }
+
+        public boolean isValid( int row )
+        {
+            return ( valid[row >>> 6] & ( 1L << row ) ) != 0;
+        }
+
+        /**
+         * Gets a row value as an object, or null if it is not valid.
+         */
+        public Double getValue( int row )
+        {
+            return isValid( row ) ? values[row] : null;
+        }
+
+        public double[] getValues()
+        {
+            return values;
+        }
+
+        public long[] getValid()
+        {
+            return valid;
+        }
+    }
+}
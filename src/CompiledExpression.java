@@ -0,0 +1,358 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An expression that has been lexed, parsed and type-checked once, so it
+ * can be evaluated many times without repeating that work.
+ * <p/>
+ * If the expression has syntax or type errors, the errors are kept
+ * instead of the parse tree, so that invalid expressions are not
+ * re-parsed either.
+ * <p/>
+ * A compiled expression can be shared by threads: the parse tree and
+ * node tree are only read during evaluation, and all per-evaluation
+ * state is in the {@link EvalContext} (or the visitor) each thread
+ * evaluates with. The only thing that changes is the switch to bytecode,
+ * which is made once and published through a volatile field.
+ */
+public class CompiledExpression
+{
+    private final String expression;
+
+    private final SlotLayout layout;
+
+    private final ParseTree tree;
+
+    private volatile ExprNode root;
+
+    private volatile int bytecodeThreshold = -1;
+
+    private volatile boolean bytecodeGenerated = false;
+
+    private final AtomicInteger invocationCount = new AtomicInteger();
+
+    private final String errors;
+
+    private final int weight;
+
+    private CompiledExpression( String expression, SlotLayout layout, ParseTree tree, ExprNode root, String errors, int weight )
+    {
+        this.expression = expression;
+        this.layout = layout;
+        this.tree = tree;
+        this.root = root;
+        this.errors = errors;
+        this.weight = weight;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Lexes, parses and type-checks an expression.
+     *
+     * @param expression the expression text.
+     * @return the compiled expression, which may hold errors.
+     */
+    public static CompiledExpression compile( String expression )
+    {
+        return compile( expression, new SlotLayout() );
+    }
+
+    /**
+     * Lexes, parses and type-checks an expression, giving its dimension
+     * items and constants slots in a layout, so it can be evaluated with
+     * {@link ValueFrame}s made by that layout.
+     *
+     * @param expression the expression text.
+     * @param layout the slot layout, which may be shared with other
+     *               expressions.
+     * @return the compiled expression, which may hold errors.
+     */
+    public static CompiledExpression compile( String expression, SlotLayout layout )
+    {
+        ExpressionParsingService.Result parsed = ExpressionParsingService.parse( expression ); // Lex and parse
+
+        if ( parsed.getErrors() != null )
+        {
+            return new CompiledExpression( expression, layout, null, null, parsed.getErrors(), expression.length() );
+        }
+
+        ParseTree tree = parsed.getTree();
+
+        ExprNode root;
+
+        ExpressionMetrics metrics = Instrumentation.get();
+
+        try
+        {
+            long start = metrics.isEnabled() ? System.nanoTime() : 0;
+
+            new ExpressionChecker().visit( tree ); // For type checking and nested function compatibility
+
+            if ( metrics.isEnabled() )
+            {
+                metrics.recordLatency( ExpressionMetrics.Phase.CHECK, System.nanoTime() - start );
+            }
+
+            root = ExpressionCompiler.compile( (ExpressionParser.ExprContext) tree, layout );
+        }
+        catch ( ParsingException ex )
+        {
+            return new CompiledExpression( expression, layout, null, null, ex.getMessage(), expression.length() );
+        }
+
+        return new CompiledExpression( expression, layout, tree, root, null, parsed.getTokenCount() + expression.length() );
+    }
+
+    /**
+     * Evaluates the compiled expression node tree.
+     *
+     * @param ctx the context holding the values to evaluate with.
+     * @return the expression value.
+     * @throws ParsingException if the expression is not valid.
+     */
+    public Object evaluate( EvalContext ctx )
+    {
+        ExprNode node = prepare( ctx );
+
+        if ( !Instrumentation.get().isEnabled() )
+        {
+            return node.eval( ctx );
+        }
+
+        long start = System.nanoTime();
+
+        try
+        {
+            return node.eval( ctx );
+        }
+        finally
+        {
+            recordEval( start );
+        }
+    }
+
+    /**
+     * Evaluates the compiled expression node tree as a double, without
+     * boxing if the expression is numeric.
+     *
+     * @param ctx the context holding the values to evaluate with.
+     * @return the expression value.
+     * @throws ParsingException if the expression is not valid or its
+     *         value is not a number.
+     */
+    public double evaluateDouble( EvalContext ctx )
+    {
+        ExprNode node = prepare( ctx );
+
+        if ( !Instrumentation.get().isEnabled() )
+        {
+            return node.evalDouble( ctx );
+        }
+
+        long start = System.nanoTime();
+
+        try
+        {
+            return node.evalDouble( ctx );
+        }
+        finally
+        {
+            recordEval( start );
+        }
+    }
+
+    /**
+     * Sets the number of evaluations after which this expression is
+     * switched from the node tree to generated bytecode (see
+     * {@link ExpressionClassGenerator}.) The default is -1, which never
+     * switches. 0 switches at the first evaluation. Once the switch has
+     * been made, the threshold has no effect.
+     *
+     * @param bytecodeThreshold the number of evaluations before switching.
+     */
+    public void setBytecodeThreshold( int bytecodeThreshold )
+    {
+        this.bytecodeThreshold = bytecodeThreshold;
+    }
+
+    public boolean isBytecodeGenerated()
+    {
+        return bytecodeGenerated;
+    }
+
+    /**
+     * Evaluates the compiled expression's parse tree with a visitor.
+     *
+     * @param evaluator the evaluator holding the values to evaluate with.
+     * @return the expression value.
+     * @throws ParsingException if the expression is not valid.
+     */
+    public Object evaluate( ExpressionChecker evaluator )
+    {
+        if ( tree == null )
+        {
+            throw new ParsingException( errors );
+        }
+
+        if ( !Instrumentation.get().isEnabled() )
+        {
+            return evaluator.visit( tree );
+        }
+
+        long start = System.nanoTime();
+
+        try
+        {
+            return evaluator.visit( tree );
+        }
+        finally
+        {
+            recordEval( start );
+        }
+    }
+
+    public boolean isValid()
+    {
+        return tree != null;
+    }
+
+    /**
+     * Finds the data this expression reads, without evaluating it, so it
+     * can be loaded in bulk beforehand.
+     *
+     * @return the data requirements.
+     * @throws ParsingException if the expression is not valid, or a scope
+     *         function has an argument that is not constant.
+     */
+    public DataRequirements getDataRequirements()
+    {
+        if ( tree == null )
+        {
+            throw new ParsingException( errors );
+        }
+
+        return DataRequirements.of( (ExpressionParser.ExprContext) tree );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the node tree to evaluate, switching it to bytecode if the
+     * threshold has been passed, and clears the context's sorted views
+     * for this evaluation.
+     *
+     * @throws ParsingException if the expression is not valid.
+     */
+    private ExprNode prepare( EvalContext ctx )
+    {
+        ExprNode node = root;
+
+        if ( node == null )
+        {
+            throw new ParsingException( errors );
+        }
+
+        if ( bytecodeThreshold >= 0 && invocationCount.incrementAndGet() > bytecodeThreshold )
+        {
+            node = generateBytecode();
+        }
+
+        ctx.clearSortedViews();
+
+        return node;
+    }
+
+    /**
+     * Records the latency of an evaluation that started at a time from
+     * {@link System#nanoTime}.
+     */
+    private static void recordEval( long start )
+    {
+        Instrumentation.get().recordLatency( ExpressionMetrics.Phase.EVAL, System.nanoTime() - start );
+    }
+
+    /**
+     * Replaces the node tree with generated bytecode, if it can be
+     * generated. Either way, the threshold is switched off so this is
+     * only tried once. Threads that pass the threshold together wait for
+     * the first one, then use its nodes. (Counting stops once the
+     * threshold is switched off, so the shared counter is only touched
+     * until then.)
+     */
+    private synchronized ExprNode generateBytecode()
+    {
+        if ( bytecodeThreshold < 0 || bytecodeGenerated )
+        {
+            return root;
+        }
+
+        ExprNode generated = null;
+
+        try
+        {
+            generated = ExpressionClassGenerator.generate( root );
+
+            if ( generated != null )
+            {
+                root = generated;
+            }
+        }
+        finally
+        {
+            bytecodeGenerated = generated != null;
+            bytecodeThreshold = -1; // Even if generating threw
+        }
+
+        return root;
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public String getExpression()
+    {
+        return expression;
+    }
+
+    /**
+     * Gets the layout of the slots of this expression's dimension items
+     * and constants, for making the {@link ValueFrame}s to evaluate it
+     * with.
+     */
+    public SlotLayout getSlotLayout()
+    {
+        return layout;
+    }
+
+    public ParseTree getTree()
+    {
+        return tree;
+    }
+
+    public ExprNode getRoot()
+    {
+        return root;
+    }
+
+    public String getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * Gets the approximate cost of keeping this expression in a cache.
+     * Valid expressions weigh their token count plus their length (for
+     * the parse tree and the text); invalid ones just their length.
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+}
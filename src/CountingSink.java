@@ -0,0 +1,62 @@
+/**
+ * Passes values on to another sink, counting them, to measure the size of
+ * a scope (see {@link ExpressionMetrics#recordScopeSize}.) Only used when
+ * metrics are enabled.
+ */
+class CountingSink
+    implements ValueSink
+{
+    private final ValueSink sink;
+
+    private int count = 0;
+
+    CountingSink( ValueSink sink )
+    {
+        this.sink = sink;
+    }
+
+    @Override
+    public void addValue( Object value )
+    {
+        count++;
+
+        sink.addValue( value );
+    }
+
+    @Override
+    public void addDouble( double value )
+    {
+        count++;
+
+        sink.addDouble( value );
+    }
+
+    @Override
+    public void addPeriodValue( Object value, String period )
+    {
+        count++;
+
+        sink.addPeriodValue( value, period );
+    }
+
+    @Override
+    public void addPeriodValue( Object value, int periodId )
+    {
+        count++;
+
+        sink.addPeriodValue( value, periodId );
+    }
+
+    @Override
+    public void addPeriodDouble( double value, int periodId )
+    {
+        count++;
+
+        sink.addPeriodDouble( value, periodId );
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+}
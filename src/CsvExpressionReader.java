@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the expressions in a CSV metadata export. The first row names the
+ * columns: each column named in {@link #EXPRESSION_FIELDS} holds
+ * expressions, and a column named "id" (or "uid") holds the object ids.
+ * <p/>
+ * Fields may be quoted with double quotes, doubling any quotes inside, so
+ * that they can hold commas, quotes and line breaks, as expressions
+ * often do. Only one row is held at a time.
+ */
+public class CsvExpressionReader
+    extends ExpressionReader
+{
+    private final List<String> row = new ArrayList<>();
+
+    private final StringBuilder sb = new StringBuilder();
+
+    private List<String> header;
+
+    private int idColumn = -1;
+
+    private long rowLine; // The line the row starts on.
+
+    public CsvExpressionReader( ReadableByteChannel channel )
+    {
+        super( channel );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    @Override
+    protected boolean advance()
+        throws IOException
+    {
+        if ( !readRow() )
+        {
+            return false;
+        }
+
+        if ( header == null )
+        {
+            header = new ArrayList<>( row );
+
+            for ( int i = 0; i < header.size(); i++ )
+            {
+                String name = header.get( i ).trim();
+
+                header.set( i, name );
+
+                if ( name.equalsIgnoreCase( "id" ) || name.equalsIgnoreCase( "uid" ) )
+                {
+                    idColumn = i;
+                }
+            }
+
+            return true;
+        }
+
+        String id = idColumn >= 0 && idColumn < row.size() ? row.get( idColumn ) : null;
+
+        for ( int i = 0; i < row.size() && i < header.size(); i++ )
+        {
+            if ( EXPRESSION_FIELDS.contains( header.get( i ) ) && !row.get( i ).isEmpty() )
+            {
+                emit( new ExpressionRecord( rowLine, id, header.get( i ), row.get( i ) ) );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the fields of the next row, skipping empty lines.
+     *
+     * @return false at the end of the file.
+     */
+    private boolean readRow()
+        throws IOException
+    {
+        row.clear();
+
+        int c;
+
+        while ( ( c = peek() ) == '\r' || c == '\n' )
+        {
+            read();
+        }
+
+        if ( c < 0 )
+        {
+            return false;
+        }
+
+        rowLine = getLine();
+
+        do
+        {
+            row.add( readField() );
+        }
+        while ( read() == ',' );
+
+        return true;
+    }
+
+    /**
+     * Reads a field, up to the comma or line break (or end of file) after
+     * it, which is left unread.
+     */
+    private String readField()
+        throws IOException
+    {
+        sb.setLength( 0 );
+
+        if ( peek() != '"' )
+        {
+            for ( int c = peek(); c >= 0 && c != ',' && c != '\r' && c != '\n'; c = peek() )
+            {
+                sb.append( (char) read() );
+            }
+
+            return sb.toString();
+        }
+
+        read(); // Opening quote
+
+        for ( ;; )
+        {
+            int c = read();
+
+            if ( c < 0 )
+            {
+                throw malformed( "Unterminated CSV quoted field" );
+            }
+
+            if ( c == '"' )
+            {
+                if ( peek() != '"' )
+                {
+                    break;
+                }
+
+                read(); // Doubled quote
+            }
+
+            sb.append( (char) c );
+        }
+
+        for ( int c = peek(); c >= 0 && c != ',' && c != '\r' && c != '\n'; c = peek() )
+        {
+            sb.append( (char) read() ); // Text after the closing quote, kept as is
+        }
+
+        return sb.toString();
+    }
+}
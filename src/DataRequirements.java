@@ -0,0 +1,151 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The data that one or more expressions read: for each item (data
+ * element, program data element, tracked entity attribute, program
+ * indicator, reporting rate, orgUnit group count or constant), the orgUnit
+ * scopes it is read in, and the period offsets it is read at in each.
+ * <p/>
+ * An orgUnit scope is a path of scope functions from the orgUnit being
+ * evaluated, outermost first, such as "ouDescendant(2).ouAncestor(1)". The
+ * empty path is the orgUnit itself. Period offsets are relative to the
+ * period being evaluated, as a number of periods and of years (see
+ * {@link PeriodOffset}), so they hold for any period type.
+ * <p/>
+ * Requirements from several expressions can be merged into one fetch plan.
+ */
+public class DataRequirements
+{
+    /**
+     * Item -> orgUnit scope -> period offsets.
+     */
+    private final Map<String, Map<String, SortedSet<PeriodOffset>>> requirements = new TreeMap<>();
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Finds the data requirements of a parsed expression.
+     *
+     * @param ctx the expression context.
+     * @return the data requirements.
+     * @throws ParsingException if a scope function has an argument that is
+     *         not constant.
+     */
+    public static DataRequirements of( ExpressionParser.ExprContext ctx )
+    {
+        DataRequirements requirements = new DataRequirements();
+
+        new DataRequirementsAnalyzer( requirements ).visit( ctx );
+
+        return requirements;
+    }
+
+    /**
+     * Adds the need for an item in an orgUnit scope at some period offsets.
+     *
+     * @param item the item, as written in expressions (for example
+     *             "#{A0000000001}".)
+     * @param orgUnitScope the orgUnit scope path.
+     * @param periodOffsets the period offsets.
+     */
+    public void add( String item, String orgUnitScope, Iterable<PeriodOffset> periodOffsets )
+    {
+        SortedSet<PeriodOffset> offsets = requirements
+            .computeIfAbsent( item, i -> new TreeMap<>() )
+            .computeIfAbsent( orgUnitScope, s -> new TreeSet<>() );
+
+        for ( PeriodOffset offset : periodOffsets )
+        {
+            offsets.add( offset );
+        }
+    }
+
+    /**
+     * Merges in the requirements of another expression.
+     *
+     * @param other the other requirements.
+     * @return these requirements, with the others added.
+     */
+    public DataRequirements merge( DataRequirements other )
+    {
+        for ( Map.Entry<String, Map<String, SortedSet<PeriodOffset>>> item : other.requirements.entrySet() )
+        {
+            for ( Map.Entry<String, SortedSet<PeriodOffset>> scope : item.getValue().entrySet() )
+            {
+                add( item.getKey(), scope.getKey(), scope.getValue() );
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Gets the items needed.
+     */
+    public SortedSet<String> getItems()
+    {
+        return Collections.unmodifiableSortedSet( new TreeSet<>( requirements.keySet() ) );
+    }
+
+    /**
+     * Gets the orgUnit scopes an item is needed in.
+     *
+     * @param item the item.
+     * @return the orgUnit scope paths (empty if the item is not needed.)
+     */
+    public SortedSet<String> getOrgUnitScopes( String item )
+    {
+        Map<String, SortedSet<PeriodOffset>> scopes = requirements.get( item );
+
+        return scopes == null ? Collections.emptySortedSet()
+            : Collections.unmodifiableSortedSet( new TreeSet<>( scopes.keySet() ) );
+    }
+
+    /**
+     * Gets the period offsets an item is needed at in an orgUnit scope.
+     *
+     * @param item the item.
+     * @param orgUnitScope the orgUnit scope path.
+     * @return the period offsets (empty if not needed.)
+     */
+    public SortedSet<PeriodOffset> getPeriodOffsets( String item, String orgUnitScope )
+    {
+        SortedSet<PeriodOffset> offsets = requirements.getOrDefault( item, Collections.emptyMap() ).get( orgUnitScope );
+
+        return offsets == null ? Collections.emptySortedSet() : Collections.unmodifiableSortedSet( offsets );
+    }
+
+    public boolean isEmpty()
+    {
+        return requirements.isEmpty();
+    }
+
+    // -------------------------------------------------------------------------
+    // toString
+    // -------------------------------------------------------------------------
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for ( Map.Entry<String, Map<String, SortedSet<PeriodOffset>>> item : requirements.entrySet() )
+        {
+            for ( Map.Entry<String, SortedSet<PeriodOffset>> scope : item.getValue().entrySet() )
+            {
+                sb.append( sb.length() == 0 ? "" : "; " )
+                    .append( item.getKey() )
+                    .append( scope.getKey().isEmpty() ? "" : " at " + scope.getKey() )
+                    .append( " periods " ).append( scope.getValue() );
+            }
+        }
+
+        return sb.toString();
+    }
+}
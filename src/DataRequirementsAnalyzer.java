@@ -0,0 +1,210 @@
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Finds the {@link DataRequirements} of an expression by walking its parse
+ * tree once, without evaluating it.
+ * <p/>
+ * Each item is recorded in the orgUnit scope and at the period offsets in
+ * effect where it appears. The arguments of scope functions must be
+ * constants, so the scopes can be known before any data is loaded.
+ */
+public class DataRequirementsAnalyzer
+    extends ExpressionBaseVisitor<Object>
+{
+    private final DataRequirements requirements;
+
+    private SortedSet<PeriodOffset> periodOffsets = new TreeSet<>();
+
+    private String orgUnitScope = "";
+
+    public DataRequirementsAnalyzer( DataRequirements requirements )
+    {
+        this.requirements = requirements;
+
+        periodOffsets.add( PeriodOffset.ZERO );
+    }
+
+    // -------------------------------------------------------------------------
+    // Visitor methods
+    // -------------------------------------------------------------------------
+
+    @Override
+    public Object visitExpr( ExpressionParser.ExprContext ctx )
+    {
+        if ( ctx.fun == null )
+        {
+            return visitChildren( ctx );
+        }
+
+        switch ( ctx.fun.getType() )
+        {
+            case ExpressionParser.PERIOD:
+                return periodScope( ctx );
+
+            case ExpressionParser.OU_LEVEL:
+            case ExpressionParser.OU_ANCESTOR:
+            case ExpressionParser.OU_DESCENDANT:
+            case ExpressionParser.OU_PEER:
+                return orgUnitScope( ctx, ctx.a1_2().expr(), false );
+
+            case ExpressionParser.OU_GROUP:
+                return orgUnitScope( ctx, ctx.a1_n().expr(), true );
+
+            default:
+                return visitChildren( ctx );
+        }
+    }
+
+    @Override
+    public Object visitDimensionItemObject( ExpressionParser.DimensionItemObjectContext ctx )
+    {
+        return item( ctx.getText() );
+    }
+
+    @Override
+    public Object visitOrgUnitCount( ExpressionParser.OrgUnitCountContext ctx )
+    {
+        return item( ctx.getText() );
+    }
+
+    @Override
+    public Object visitReportingRate( ExpressionParser.ReportingRateContext ctx )
+    {
+        return item( ctx.getText() );
+    }
+
+    @Override
+    public Object visitConstant( ExpressionParser.ConstantContext ctx )
+    {
+        return item( ctx.getText() );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private Object item( String item )
+    {
+        requirements.add( item, orgUnitScope, periodOffsets );
+
+        return null;
+    }
+
+    /**
+     * Visits the operand of a period function at the periods it shifts to,
+     * as evaluated by {@link ExpressionChecker#iteratePeriods}.
+     */
+    private Object periodScope( ExpressionParser.ExprContext ctx )
+    {
+        List<ExpressionParser.ExprContext> args = ctx.a1_n().expr();
+
+        SortedSet<PeriodOffset> shifts = new TreeSet<>();
+
+        if ( args.size() == 1 )
+        {
+            shifts.add( new PeriodOffset( intArg( args, 0, 0 ), 0 ) );
+        }
+        else
+        {
+            for ( int i = 0; i < args.size() / 4 + 1; i++ )
+            {
+                int periodShiftFrom = intArg( args, i, 0 );
+                int periodShiftTo = intArg( args, i + 1, periodShiftFrom );
+                int yearShiftFrom = intArg( args, i + 2, 0 );
+                int yearShiftTo = intArg( args, i + 3, yearShiftFrom );
+
+                for ( int yearShift = yearShiftFrom; yearShift <= yearShiftTo; yearShift++ )
+                {
+                    for ( int periodShift = periodShiftFrom; periodShift <= periodShiftTo; periodShift++ )
+                    {
+                        shifts.add( new PeriodOffset( periodShift, yearShift ) );
+                    }
+                }
+            }
+        }
+
+        SortedSet<PeriodOffset> savedOffsets = periodOffsets;
+
+        periodOffsets = new TreeSet<>();
+
+        for ( PeriodOffset offset : savedOffsets )
+        {
+            for ( PeriodOffset shift : shifts )
+            {
+                periodOffsets.add( offset.plus( shift ) );
+            }
+        }
+
+        visit( ctx.expr( 0 ) );
+
+        periodOffsets = savedOffsets;
+
+        return null;
+    }
+
+    /**
+     * Visits the operand of an orgUnit scope function, in the scope it
+     * adds to the current one.
+     */
+    private Object orgUnitScope( ExpressionParser.ExprContext ctx, List<ExpressionParser.ExprContext> args, boolean strings )
+    {
+        StringBuilder scope = new StringBuilder( orgUnitScope );
+
+        scope.append( orgUnitScope.isEmpty() ? "" : "." ).append( ctx.fun.getText() ).append( "(" );
+
+        for ( int i = 0; i < args.size(); i++ )
+        {
+            scope.append( i == 0 ? "" : "," )
+                .append( strings ? "'" + stringArg( args.get( i ) ) + "'" : Integer.toString( intArg( args, i, 0 ) ) );
+        }
+
+        String savedScope = orgUnitScope;
+
+        orgUnitScope = scope.append( ")" ).toString();
+
+        visit( ctx.expr( 0 ) );
+
+        orgUnitScope = savedScope;
+
+        return null;
+    }
+
+    private static int intArg( List<ExpressionParser.ExprContext> args, int i, int defaultValue )
+    {
+        return i < args.size() ? constantInt( args.get( i ) ) : defaultValue;
+    }
+
+    /**
+     * Gets the value of a constant integer argument: a number, possibly
+     * negated or in parentheses.
+     */
+    private static int constantInt( ExpressionParser.ExprContext ctx )
+    {
+        if ( ctx.fun == null && ctx.expr( 0 ) != null ) // Parentheses or unary +
+        {
+            return constantInt( ctx.expr( 0 ) );
+        }
+        else if ( ctx.fun != null && ctx.fun.getType() == ExpressionParser.MINUS && ctx.expr( 1 ) == null )
+        {
+            return -constantInt( ctx.expr( 0 ) );
+        }
+        else if ( ctx.value() != null && ctx.value().numericLiteral() != null )
+        {
+            return Values.castInteger( Double.valueOf( ctx.getText() ) );
+        }
+
+        throw new ParsingException( "constant expected at: '" + ctx.getText() + "'" );
+    }
+
+    private static String stringArg( ExpressionParser.ExprContext ctx )
+    {
+        if ( ctx.value() != null && ctx.value().stringLiteral() != null )
+        {
+            return ExpressionChecker.unquote( ctx.getText() );
+        }
+
+        throw new ParsingException( "constant string expected at: '" + ctx.getText() + "'" );
+    }
+}
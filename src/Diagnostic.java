@@ -0,0 +1,79 @@
+/**
+ * An error found in an expression: where it is, the text it is at, and
+ * what is wrong.
+ * <p/>
+ * Syntax errors have the line and column of the offending token (or, for
+ * lexer errors, of the text that could not be lexed.) Type errors, found
+ * by the {@link ExpressionChecker} after parsing, have the position of the
+ * function or operator they were found in (or of the first token of a
+ * value.) Errors not tied to any part of the expression, such as nesting
+ * too deeply, have no position or token.
+ */
+public final class Diagnostic
+{
+    public static final int NO_POSITION = -1;
+
+    private final int line;
+
+    private final int column;
+
+    private final String token;
+
+    private final String message;
+
+    /**
+     * Makes a diagnostic.
+     *
+     * @param line the line in the expression, from 1, or NO_POSITION.
+     * @param column the column in the line, from 0, or NO_POSITION.
+     * @param token the offending text, or null.
+     * @param message the error message.
+     */
+    public Diagnostic( int line, int column, String token, String message )
+    {
+        this.line = line;
+        this.column = column;
+        this.token = token;
+        this.message = message;
+    }
+
+    /**
+     * Makes a diagnostic for the whole expression.
+     *
+     * @param message the error message.
+     */
+    public Diagnostic( String message )
+    {
+        this( NO_POSITION, NO_POSITION, null, message );
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public int getLine()
+    {
+        return line;
+    }
+
+    public int getColumn()
+    {
+        return column;
+    }
+
+    public String getToken()
+    {
+        return token;
+    }
+
+    public String getMessage()
+    {
+        return message;
+    }
+
+    @Override
+    public String toString()
+    {
+        return line == NO_POSITION ? message : line + ":" + column + " " + message;
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the state of one evaluation of a compiled expression: the values
+ * to evaluate with, and the period and orgUnit currently in scope.
+ * <p/>
+ * Compiled expression nodes keep no state of their own, so each
+ * evaluation gets its own context. A context is used by one thread at a
+ * time; the maps, hierarchy and groups it refers to are only read, so
+ * contexts on many threads can share them.
+ */
+public class EvalContext
+{
+    private final Map<String, Double> valueMap;
+
+    private final Map<String, Double> constantMap;
+
+    private final OrgUnitHierarchy hierarchy;
+
+    private OrgUnitGroups orgUnitGroups;
+
+    private ValueSource valueSource;
+
+    private FrameSource frameSource;
+
+    private ValueFrame frame; // The last frame from the frame source
+
+    private int frameOrgUnit;
+
+    private int framePeriod;
+
+    private ValueFrame constantFrame;
+
+    private int currentPeriod = Periods.parse( "201808" ); // Reporting period for demonstration
+
+    private int currentOrgUnit;
+
+    private Map<ViewKey, OrderStatistics.SortedView> sortedViews;
+
+    public EvalContext( Map<String, Double> valueMap, Map<String, Double> constantMap )
+    {
+        this( valueMap, constantMap, null, null );
+    }
+
+    /**
+     * Makes a context for evaluating at an orgUnit, so that orgUnit scope
+     * functions can be evaluated.
+     *
+     * @param valueMap the values.
+     * @param constantMap the constants.
+     * @param hierarchy the orgUnit hierarchy, or null if none.
+     * @param orgUnit the uid of the orgUnit to evaluate at.
+     * @throws IllegalArgumentException if the orgUnit is not in the
+     *         hierarchy.
+     */
+    public EvalContext( Map<String, Double> valueMap, Map<String, Double> constantMap,
+        OrgUnitHierarchy hierarchy, String orgUnit )
+    {
+        this.valueMap = valueMap;
+        this.constantMap = constantMap;
+        this.hierarchy = hierarchy;
+        this.currentOrgUnit = hierarchy == null ? -1 : hierarchy.id( orgUnit );
+
+        if ( hierarchy != null && currentOrgUnit < 0 )
+        {
+            throw new IllegalArgumentException( "orgUnit not in hierarchy: " + orgUnit );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the sorted view shared by the order statistics (median and
+     * percentiles) of a scope node in the current period and orgUnit, so
+     * the scope is evaluated and sorted only once in this evaluation.
+     *
+     * @param scope the scope node.
+     * @return the sorted view, or null if there isn't one yet.
+     */
+    public OrderStatistics.SortedView getSortedView( ExprNode scope )
+    {
+        return sortedViews == null ? null : sortedViews.get( new ViewKey( scope, currentPeriod, currentOrgUnit ) );
+    }
+
+    /**
+     * Saves the sorted view for a scope node in the current period and
+     * orgUnit.
+     *
+     * @param scope the scope node.
+     * @param view the sorted view.
+     */
+    public void putSortedView( ExprNode scope, OrderStatistics.SortedView view )
+    {
+        if ( sortedViews == null )
+        {
+            sortedViews = new HashMap<>();
+        }
+
+        sortedViews.put( new ViewKey( scope, currentPeriod, currentOrgUnit ), view );
+    }
+
+    /**
+     * Forgets the sorted views, so order statistics are found again from
+     * the current values. Called at the start of each evaluation of a
+     * compiled expression, and when the values change.
+     */
+    public void clearSortedViews()
+    {
+        if ( sortedViews != null )
+        {
+            sortedViews.clear();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters and setters
+    // -------------------------------------------------------------------------
+
+    public Map<String, Double> getValueMap()
+    {
+        return valueMap;
+    }
+
+    public Map<String, Double> getConstantMap()
+    {
+        return constantMap;
+    }
+
+    /**
+     * Gets the orgUnit hierarchy.
+     *
+     * @throws ParsingException if there is none.
+     */
+    public OrgUnitHierarchy getHierarchy()
+    {
+        if ( hierarchy == null )
+        {
+            throw new ParsingException( "orgUnit hierarchy needed for orgUnit scope" );
+        }
+
+        return hierarchy;
+    }
+
+    /**
+     * Gets the orgUnit groups.
+     *
+     * @throws ParsingException if there are none.
+     */
+    public OrgUnitGroups getOrgUnitGroups()
+    {
+        if ( orgUnitGroups == null )
+        {
+            throw new ParsingException( "orgUnit groups needed for orgUnit group count or scope" );
+        }
+
+        return orgUnitGroups;
+    }
+
+    public void setOrgUnitGroups( OrgUnitGroups orgUnitGroups )
+    {
+        this.orgUnitGroups = orgUnitGroups;
+    }
+
+    /**
+     * Gets the source of dimension item values, or null if there is none
+     * (and dimension items have placeholder values.)
+     */
+    public ValueSource getValueSource()
+    {
+        return valueSource;
+    }
+
+    public void setValueSource( ValueSource valueSource )
+    {
+        this.valueSource = valueSource;
+
+        clearSortedViews();
+    }
+
+    /**
+     * Gets the source of dimension item value frames, or null if there is
+     * none (and dimension items are looked up in the value source.)
+     */
+    public FrameSource getFrameSource()
+    {
+        return frameSource;
+    }
+
+    public void setFrameSource( FrameSource frameSource )
+    {
+        this.frameSource = frameSource;
+        this.frame = null;
+
+        clearSortedViews();
+    }
+
+    /**
+     * Sets one frame of dimension item values to evaluate with, whatever
+     * the orgUnit and period.
+     *
+     * @param frame the values.
+     */
+    public void setValueFrame( ValueFrame frame )
+    {
+        setFrameSource( ( orgUnit, period ) -> frame );
+    }
+
+    /**
+     * Gets the frame of dimension item values at the current orgUnit and
+     * period, asking the frame source only if they have changed since the
+     * last frame.
+     *
+     * @return the frame (empty if the source has none), or null if there
+     *         is no frame source.
+     */
+    public ValueFrame getFrame()
+    {
+        if ( frameSource == null )
+        {
+            return null;
+        }
+
+        if ( frame == null || frameOrgUnit != currentOrgUnit || framePeriod != currentPeriod )
+        {
+            ValueFrame f = frameSource.getFrame( currentOrgUnit, currentPeriod );
+
+            frame = f != null ? f : ValueFrame.EMPTY;
+            frameOrgUnit = currentOrgUnit;
+            framePeriod = currentPeriod;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Gets the frame of constant values (see
+     * {@link SlotLayout#constantFrame}), or null if there is none (and
+     * constants are looked up in the constant map.)
+     */
+    public ValueFrame getConstantFrame()
+    {
+        return constantFrame;
+    }
+
+    public void setConstantFrame( ValueFrame constantFrame )
+    {
+        this.constantFrame = constantFrame;
+
+        clearSortedViews();
+    }
+
+    public int getOrgUnitLevel()
+    {
+        return getHierarchy().level( currentOrgUnit );
+    }
+
+    /**
+     * Gets the current period, as a {@link Periods} id.
+     */
+    public int getCurrentPeriod()
+    {
+        return currentPeriod;
+    }
+
+    public void setCurrentPeriod( int currentPeriod )
+    {
+        this.currentPeriod = currentPeriod;
+    }
+
+    /**
+     * Gets the current orgUnit, as an {@link OrgUnitHierarchy} id (or -1
+     * if there is no hierarchy.)
+     */
+    public int getCurrentOrgUnit()
+    {
+        return currentOrgUnit;
+    }
+
+    public void setCurrentOrgUnit( int currentOrgUnit )
+    {
+        this.currentOrgUnit = currentOrgUnit;
+    }
+
+    // -------------------------------------------------------------------------
+    // ViewKey
+    // -------------------------------------------------------------------------
+
+    /**
+     * A scope node evaluated in a period and orgUnit.
+     */
+    private static final class ViewKey
+    {
+        private final ExprNode scope;
+
+        private final int period;
+
+        private final int orgUnit;
+
+        ViewKey( ExprNode scope, int period, int orgUnit )
+        {
+            this.scope = scope;
+            this.period = period;
+            this.orgUnit = orgUnit;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof ViewKey ) )
+            {
+                return false;
+            }
+
+            ViewKey other = (ViewKey) o;
+
+            return scope == other.scope && period == other.period && orgUnit == other.orgUnit;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ( System.identityHashCode( scope ) * 31 + period ) * 31 + orgUnit;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds which part of an expression its evaluation time is spent in.
+ * <p/>
+ * A sample of evaluations is made with a {@link ProfilingEvaluator},
+ * which times the evaluation of each node of the parse tree, and the
+ * rest are evaluated as usual (by the compiled node tree, which has the
+ * same semantics.) With a sample interval of 1000, one evaluation in
+ * about 1000 is profiled, at random, so profiling can be left on.
+ * <p/>
+ * For each node, this keeps the number of times it was evaluated, the
+ * number of values it produced (the size of a scope's values, 1 for a
+ * single value, 0 for null), and its inclusive and exclusive time
+ * (without the time in the nodes below it.) Nodes are identified by the
+ * expression and the character positions of their start and stop tokens.
+ * (Each time includes reading the clock, which overstates the time of
+ * the smallest nodes, such as literals.)
+ * <p/>
+ * The results can be written as folded stacks, one line per node with its
+ * exclusive nanoseconds, for flame graph tools:
+ * <pre>
+ * #{A}.ouDescendant(1).sum()_+_1;+[0:29];sum[0:25];ouDescendant[0:19] 181000
+ * </pre>
+ * or as a text report of the nodes with the most exclusive time.
+ * <p/>
+ * A profiler can be shared by threads. It keeps the parse trees it has
+ * seen until it is {@link #reset}.
+ */
+public class EvaluationProfiler
+{
+    private final int sampleInterval;
+
+    private final Map<ExpressionParser.ExprContext, Node> nodes = new ConcurrentHashMap<>();
+
+    private final LongAdder sampleCount = new LongAdder();
+
+    /**
+     * Makes a profiler.
+     *
+     * @param sampleInterval the average number of evaluations per one
+     *                       that is profiled: 1 to profile them all.
+     */
+    public EvaluationProfiler( int sampleInterval )
+    {
+        if ( sampleInterval < 1 )
+        {
+            throw new IllegalArgumentException( "sample interval must be at least 1: " + sampleInterval );
+        }
+
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * The measurements of one node of an expression.
+     */
+    public static final class Node
+    {
+        private final String expression;
+
+        private final String label;
+
+        private final String stack;
+
+        private final int start;
+
+        private final int stop;
+
+        private final LongAdder invocations = new LongAdder();
+
+        private final LongAdder values = new LongAdder();
+
+        private final LongAdder inclusiveNanos = new LongAdder();
+
+        private final LongAdder exclusiveNanos = new LongAdder();
+
+        private Node( String expression, String label, String stack, int start, int stop )
+        {
+            this.expression = expression;
+            this.label = label;
+            this.stack = stack;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        void record( long inclusive, long exclusive, int valueCount )
+        {
+            invocations.increment();
+            values.add( valueCount );
+            inclusiveNanos.add( inclusive );
+            exclusiveNanos.add( exclusive );
+        }
+
+        public String getExpression()
+        {
+            return expression;
+        }
+
+        /**
+         * Gets the name of the node: its function or operator, or the text
+         * of a value.
+         */
+        public String getLabel()
+        {
+            return label;
+        }
+
+        /**
+         * Gets the folded stack of the node: the expression and the labels
+         * of the nodes from the root down to this one, separated by
+         * semicolons.
+         */
+        public String getStack()
+        {
+            return stack;
+        }
+
+        /**
+         * Gets the position in the expression of the node's first
+         * character.
+         */
+        public int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * Gets the position in the expression of the node's last
+         * character.
+         */
+        public int getStop()
+        {
+            return stop;
+        }
+
+        public long getInvocations()
+        {
+            return invocations.sum();
+        }
+
+        public long getValues()
+        {
+            return values.sum();
+        }
+
+        public long getInclusiveNanos()
+        {
+            return inclusiveNanos.sum();
+        }
+
+        public long getExclusiveNanos()
+        {
+            return exclusiveNanos.sum();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evaluates a compiled expression, profiling the evaluation if it is
+     * in the sample.
+     *
+     * @param expression the compiled expression.
+     * @param ctx the context holding the values to evaluate with.
+     * @return the expression value.
+     * @throws ParsingException if the expression is not valid.
+     */
+    public Object evaluate( CompiledExpression expression, EvalContext ctx )
+    {
+        if ( sampleInterval > 1 && ThreadLocalRandom.current().nextInt( sampleInterval ) != 0 )
+        {
+            return expression.evaluate( ctx );
+        }
+
+        sampleCount.increment();
+
+        return expression.evaluate( new ProfilingEvaluator( ctx, this, expression.getExpression() ) );
+    }
+
+    /**
+     * Writes the folded stacks of all the nodes, with their exclusive
+     * nanoseconds, for a flame graph tool such as flamegraph.pl.
+     *
+     * @param out where to write.
+     * @throws IOException if writing fails.
+     */
+    public void writeFolded( Writer out )
+        throws IOException
+    {
+        for ( Node node : getNodes() )
+        {
+            if ( node.getExclusiveNanos() > 0 )
+            {
+                out.write( node.getStack() + " " + node.getExclusiveNanos() + "\n" );
+            }
+        }
+    }
+
+    /**
+     * Reports the nodes with the most exclusive time.
+     *
+     * @param n the number of nodes to report.
+     * @return the report, one line per node.
+     */
+    public String topReport( int n )
+    {
+        List<Node> top = getNodes();
+
+        top.sort( Comparator.comparingLong( Node::getExclusiveNanos ).reversed() );
+
+        StringBuilder sb = new StringBuilder( String.format( Locale.ROOT, "%d evaluations profiled%n%10s %10s %10s %10s  %-12s %s%n",
+            sampleCount.sum(), "excl ms", "incl ms", "calls", "values", "position", "node" ) );
+
+        for ( Node node : top.subList( 0, Math.min( n, top.size() ) ) )
+        {
+            sb.append( String.format( Locale.ROOT, "%10.3f %10.3f %10d %10d  %-12s %s in %s%n",
+                node.getExclusiveNanos() / 1e6, node.getInclusiveNanos() / 1e6, node.getInvocations(), node.getValues(),
+                node.getStart() + ":" + node.getStop(), node.getLabel(), abbreviate( node.getExpression(), 60 ) ) );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Forgets all the measurements, and the parse trees they were for.
+     */
+    public void reset()
+    {
+        nodes.clear();
+        sampleCount.reset();
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the measurements of a node, making them the first time.
+     *
+     * @param ctx the node.
+     * @param expression the expression text.
+     * @param parent the measurements of the node's parent, or null for
+     *               the root.
+     */
+    Node node( ExpressionParser.ExprContext ctx, String expression, Node parent )
+    {
+        Node node = nodes.get( ctx );
+
+        if ( node == null )
+        {
+            String label = label( ctx );
+
+            String stack = ( parent == null ? frame( abbreviate( expression, 60 ) ) : parent.stack ) + ";"
+                + frame( label ) + "[" + ctx.getStart().getStartIndex() + ":" + ctx.getStop().getStopIndex() + "]";
+
+            node = nodes.computeIfAbsent( ctx, c -> new Node( expression, label, stack,
+                c.getStart().getStartIndex(), c.getStop().getStopIndex() ) );
+        }
+
+        return node;
+    }
+
+    /**
+     * Gets the label of a node: the function or operator, the first token
+     * of parentheses or unary plus, or the text of a value.
+     */
+    private static String label( ExpressionParser.ExprContext ctx )
+    {
+        if ( ctx.fun != null )
+        {
+            return ctx.fun.getText();
+        }
+        else if ( ctx.expr( 0 ) != null )
+        {
+            return ctx.getStart().getText();
+        }
+
+        String text = ctx.getText();
+
+        return text.length() <= 30 ? text : text.substring( 0, 27 ) + "...";
+    }
+
+    /**
+     * Makes text safe for a folded stack frame, which cannot contain a
+     * semicolon, or a space (before the count.)
+     */
+    private static String frame( String text )
+    {
+        return text.replace( ';', ',' ).replaceAll( "\\s+", "_" );
+    }
+
+    private static String abbreviate( String text, int length )
+    {
+        return text.length() <= length ? text : text.substring( 0, length - 3 ) + "...";
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public int getSampleInterval()
+    {
+        return sampleInterval;
+    }
+
+    /**
+     * Gets the number of evaluations that have been profiled.
+     */
+    public long getSampleCount()
+    {
+        return sampleCount.sum();
+    }
+
+    /**
+     * Gets the measurements of all the nodes, in order of expression and
+     * then stack.
+     */
+    public List<Node> getNodes()
+    {
+        List<Node> list = new ArrayList<>( nodes.values() );
+
+        list.sort( Comparator.comparing( Node::getExpression ).thenComparing( Node::getStack ) );
+
+        return list;
+    }
+}
@@ -0,0 +1,1640 @@
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static java.lang.Math.pow;
+
+/**
+ * A node in a compiled expression tree. Each node class does one thing,
+ * so evaluation is a direct call per node instead of a visitor dispatch
+ * and a switch on the function type.
+ * <p/>
+ * Nodes are immutable. All evaluation state is in the {@link EvalContext}.
+ * <p/>
+ * Nodes whose value is always a number or a boolean report it in their
+ * {@link #type()}, and return it unboxed from {@link #evalDouble} or
+ * {@link #evalBoolean}. Nodes that operate on numbers or booleans call
+ * those methods on their operands, so a numeric subtree is evaluated
+ * without boxing, and the value is only boxed when it is returned from
+ * {@link #eval}.
+ * <p/>
+ * The nodes have the same semantics as {@link ExpressionEvaluator}.
+ */
+public abstract class ExprNode
+{
+    private final static Double PLACEHOLDER = Double.valueOf( 2. );
+
+    private final static Double ONE = Double.valueOf( 1. );
+
+    /**
+     * Evaluates this node.
+     *
+     * @param ctx the evaluation context.
+     * @return the value of this node.
+     */
+    public abstract Object eval( EvalContext ctx );
+
+    /**
+     * Evaluates this node as a double, casting the value if needed.
+     *
+     * @param ctx the evaluation context.
+     * @return the value of this node.
+     */
+    public double evalDouble( EvalContext ctx )
+    {
+        return Values.castDouble( eval( ctx ) );
+    }
+
+    /**
+     * Evaluates this node as a boolean, casting the value if needed.
+     *
+     * @param ctx the evaluation context.
+     * @return the value of this node.
+     */
+    public boolean evalBoolean( EvalContext ctx )
+    {
+        return Values.castBoolean( eval( ctx ) );
+    }
+
+    /**
+     * Gets the type of value this node always returns.
+     *
+     * @return the value type, or OBJECT if it might vary or be null.
+     */
+    public Type type()
+    {
+        return Type.OBJECT;
+    }
+
+    /**
+     * Tells whether this node's value is never a string in a context, even
+     * if its type is OBJECT, so that addition can add it as a double
+     * without boxing (see {@link AddNode}.)
+     *
+     * @param ctx the evaluation context.
+     * @return true if the value is a number or null.
+     */
+    boolean isNumeric( EvalContext ctx )
+    {
+        return type() == Type.NUMBER;
+    }
+
+    /**
+     * Static value types. NUMBER, BOOLEAN and STRING values are never null.
+     */
+    public enum Type
+    {
+        NUMBER, BOOLEAN, STRING, OBJECT
+    }
+
+    // -------------------------------------------------------------------------
+    // Node base classes
+    // -------------------------------------------------------------------------
+
+    abstract static class Unary extends ExprNode
+    {
+        final ExprNode operand;
+
+        Unary( ExprNode operand )
+        {
+            this.operand = operand;
+        }
+    }
+
+    abstract static class Binary extends ExprNode
+    {
+        final ExprNode left;
+
+        final ExprNode right;
+
+        Binary( ExprNode left, ExprNode right )
+        {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * A node whose value is always a number.
+     */
+    abstract static class NumericBinary extends Binary
+    {
+        NumericBinary( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalDouble( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+    }
+
+    /**
+     * A node whose value is always a boolean.
+     */
+    abstract static class BooleanBinary extends Binary
+    {
+        BooleanBinary( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalBoolean( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.BOOLEAN;
+        }
+    }
+
+    /**
+     * A comparison. If the left operand is always a number, the operands
+     * are compared as doubles without boxing.
+     */
+    abstract static class Compare extends BooleanBinary
+    {
+        final boolean numeric;
+
+        Compare( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+            this.numeric = left.type() == Type.NUMBER;
+        }
+
+        int compare( EvalContext ctx )
+        {
+            if ( numeric )
+            {
+                return Double.compare( left.evalDouble( ctx ), right.evalDouble( ctx ) );
+            }
+
+            return Values.compare( left.eval( ctx ), right.eval( ctx ) );
+        }
+    }
+
+    /**
+     * An aggregation of the double values from a multiple-value operand.
+     */
+    abstract static class Aggregate extends Unary
+    {
+        Aggregate( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalDouble( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+
+        /**
+         * Gets the multiple values to aggregate. Aggregations read them
+         * from {@link MultiValues#getDoubles()} without copying.
+         */
+        MultiValues values( EvalContext ctx )
+        {
+            return Values.castMultiValues( operand.eval( ctx ) );
+        }
+
+        /**
+         * Aggregates the multiple values in one pass. If the operand is a
+         * scope, its values are streamed into the accumulator as they are
+         * found, without collecting them.
+         */
+        Accumulator accumulate( EvalContext ctx )
+        {
+            Accumulator accumulator = new Accumulator();
+
+            if ( operand instanceof Scope )
+            {
+                ( (Scope) operand ).scan( ctx, accumulator );
+            }
+            else
+            {
+                accumulator.addValue( values( ctx ) );
+            }
+
+            return accumulator;
+        }
+    }
+
+    /**
+     * A median or percentile. The order statistics of a scope node share
+     * one sorted view in each evaluation, so with several of them
+     * the scope is evaluated once and its values sorted at most once. (The
+     * compiler gives order statistics of the same scope the same node.)
+     */
+    abstract static class OrderStatistic extends Aggregate
+    {
+        OrderStatistic( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        OrderStatistics.SortedView view( EvalContext ctx )
+        {
+            OrderStatistics.SortedView view = ctx.getSortedView( operand );
+
+            if ( view == null )
+            {
+                MultiValues values = values( ctx );
+
+                view = new OrderStatistics.SortedView( values.getDoubles(), values.size() );
+
+                ctx.putSortedView( operand, view );
+            }
+
+            return view;
+        }
+    }
+
+    /**
+     * An aggregation that ranks a test argument among multiple values.
+     */
+    abstract static class Rank extends Aggregate
+    {
+        final ExprNode test;
+
+        Rank( ExprNode operand, ExprNode test )
+        {
+            super( operand );
+            this.test = test;
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return Values.castDouble( eval( ctx ) );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.OBJECT; // (Integer)
+        }
+
+        int rankHigh( MultiValues values, EvalContext ctx )
+        {
+            double[] doubles = values.getDoubles();
+
+            double t = test.evalDouble( ctx );
+
+            int rankHigh = 0;
+
+            for ( int i = 0; i < values.size(); i++ )
+            {
+                if ( doubles[i] <= t )
+                {
+                    rankHigh++;
+                }
+            }
+
+            return rankHigh;
+        }
+
+        int rankLow( MultiValues values, EvalContext ctx )
+        {
+            double[] doubles = values.getDoubles();
+
+            double t = test.evalDouble( ctx );
+
+            int rankLow = 1;
+
+            for ( int i = 0; i < values.size(); i++ )
+            {
+                if ( doubles[i] > t )
+                {
+                    rankLow++;
+                }
+            }
+
+            return rankLow;
+        }
+    }
+
+    /**
+     * A node that evaluates its operand over a scope of periods or orgUnits,
+     * giving multiple values.
+     */
+    interface Scope
+    {
+        /**
+         * Evaluates the operand over the scope, passing each value to a
+         * sink instead of collecting them.
+         *
+         * @param ctx the evaluation context.
+         * @param sink the sink for the values.
+         */
+        void scan( EvalContext ctx, ValueSink sink );
+    }
+
+    /**
+     * Evaluates the operand at each orgUnit of a scope in the
+     * {@link OrgUnitHierarchy}.
+     */
+    abstract static class OrgUnitScope extends Unary
+        implements Scope
+    {
+        OrgUnitScope( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            MultiValues values = new MultiValues();
+
+            scan( ctx, values );
+
+            return values;
+        }
+
+        @Override
+        public void scan( EvalContext ctx, ValueSink sink )
+        {
+            int savedOrgUnit = ctx.getCurrentOrgUnit();
+
+            ExpressionMetrics metrics = Instrumentation.get();
+
+            ValueSink target = metrics.isEnabled() ? new CountingSink( sink ) : sink;
+
+            scanOrgUnits( ctx, ctx.getHierarchy(), savedOrgUnit, orgUnit ->
+            {
+                ctx.setCurrentOrgUnit( orgUnit );
+
+                if ( operand.type() == Type.NUMBER )
+                {
+                    target.addDouble( operand.evalDouble( ctx ) );
+                }
+                else
+                {
+                    target.addValue( operand.eval( ctx ) );
+                }
+            } );
+
+            ctx.setCurrentOrgUnit( savedOrgUnit );
+
+            if ( target != sink )
+            {
+                metrics.recordScopeSize( function(), ( (CountingSink) target ).getCount() );
+            }
+        }
+
+        /**
+         * Gets the {@link ExpressionParser} token type of the scope
+         * function, for metrics.
+         */
+        abstract int function();
+
+        /**
+         * Finds the orgUnits in the scope.
+         *
+         * @param ctx the evaluation context, for the scope arguments.
+         * @param hierarchy the orgUnit hierarchy.
+         * @param orgUnit the orgUnit the scope is from.
+         * @param action the action for each orgUnit in the scope.
+         */
+        abstract void scanOrgUnits( EvalContext ctx, OrgUnitHierarchy hierarchy, int orgUnit, IntConsumer action );
+    }
+
+    // -------------------------------------------------------------------------
+    // Values
+    // -------------------------------------------------------------------------
+
+    static final class LiteralNode extends ExprNode
+    {
+        final Object value;
+
+        final Type type;
+
+        LiteralNode( Object value )
+        {
+            this.value = value;
+            this.type = value instanceof Double ? Type.NUMBER
+                : value instanceof Boolean ? Type.BOOLEAN
+                : Type.STRING;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return value;
+        }
+
+        @Override
+        public Type type()
+        {
+            return type;
+        }
+    }
+
+    /**
+     * A dimension item, read from its slot in the frame of values if the
+     * context has frames, otherwise from the value source.
+     */
+    static final class DimensionItemNode extends ExprNode
+    {
+        final String item;
+
+        final SlotLayout layout;
+
+        final int slot;
+
+        DimensionItemNode( String item, SlotLayout layout )
+        {
+            this.item = item;
+            this.layout = layout;
+            this.slot = layout.itemSlot( item );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            ValueFrame frame = ctx.getFrame();
+
+            if ( frame != null )
+            {
+                return checkLayout( frame, layout ).get( slot );
+            }
+
+            ValueSource valueSource = ctx.getValueSource();
+
+            if ( valueSource != null )
+            {
+                return valueSource.getValue( item, ctx.getCurrentOrgUnit(), ctx.getCurrentPeriod() );
+            }
+
+            //TODO: for data elmenets, return object type based on data element type
+            //TODO: for non-typed DimensionItemObjects, return a Double constant.
+            return ONE;
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            ValueFrame frame = ctx.getFrame();
+
+            if ( frame != null && frame.getLayout() == layout && !frame.isNull( slot ) )
+            {
+                return frame.getDouble( slot );
+            }
+
+            return Values.castDouble( eval( ctx ) );
+        }
+
+        /**
+         * Values read from a frame are numbers, but a value source may
+         * return strings.
+         */
+        @Override
+        boolean isNumeric( EvalContext ctx )
+        {
+            return ctx.getFrame() != null;
+        }
+    }
+
+    /**
+     * A constant, read from its slot in the frame of constants if the
+     * context has one, otherwise from the constant map.
+     */
+    static final class ConstantNode extends ExprNode
+    {
+        final String uid;
+
+        final SlotLayout layout;
+
+        final int slot;
+
+        ConstantNode( String uid, SlotLayout layout )
+        {
+            this.uid = uid;
+            this.layout = layout;
+            this.slot = layout.constantSlot( uid );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            ValueFrame constants = ctx.getConstantFrame();
+
+            if ( constants != null )
+            {
+                return checkLayout( constants, layout ).get( slot );
+            }
+
+            return ctx.getConstantMap().get( uid );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            ValueFrame constants = ctx.getConstantFrame();
+
+            if ( constants != null && constants.getLayout() == layout && !constants.isNull( slot ) )
+            {
+                return constants.getDouble( slot );
+            }
+
+            return Values.castDouble( eval( ctx ) );
+        }
+
+        @Override
+        boolean isNumeric( EvalContext ctx )
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Counts the members of an orgUnit group that are the current orgUnit
+     * or its descendants.
+     */
+    static final class OrgUnitCountNode extends ExprNode
+    {
+        final String group;
+
+        OrgUnitCountNode( String group )
+        {
+            this.group = group;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalDouble( ctx );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return ctx.getOrgUnitGroups().count( group, ctx.getCurrentOrgUnit() );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+    }
+
+    static final class ReportingRateNode extends ExprNode
+    {
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            //TODO: write the real ReportingRate code
+            return PLACEHOLDER;
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+    }
+
+    static final class DaysNode extends ExprNode
+    {
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalDouble( ctx );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return Periods.days( ctx.getCurrentPeriod() );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Arithmetic Operators (return Double)
+    // -------------------------------------------------------------------------
+
+    static final class NegateNode extends Unary
+    {
+        NegateNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalDouble( ctx );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return -operand.evalDouble( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.NUMBER;
+        }
+    }
+
+    static final class SubtractNode extends NumericBinary
+    {
+        SubtractNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return left.evalDouble( ctx )
+                - right.evalDouble( ctx );
+        }
+    }
+
+    static final class AddNode extends Binary
+    {
+        AddNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            Object l = left.eval( ctx );
+            Object r = right.eval( ctx );
+
+            if ( l != null && l.getClass() == String.class )
+            {
+                return Values.castString( l )
+                    + Values.castString( r );
+            }
+
+            return Values.castDouble( l )
+                + Values.castDouble( r );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            if ( left.isNumeric( ctx ) )
+            {
+                return left.evalDouble( ctx )
+                    + right.evalDouble( ctx );
+            }
+
+            Object l = left.eval( ctx );
+            Object r = right.eval( ctx );
+
+            if ( l != null && l.getClass() == String.class )
+            {
+                return Values.castDouble( Values.castString( l )
+                    + Values.castString( r ) );
+            }
+
+            return Values.castDouble( l )
+                + Values.castDouble( r );
+        }
+
+        @Override
+        boolean isNumeric( EvalContext ctx )
+        {
+            return left.isNumeric( ctx );
+        }
+    }
+
+    /**
+     * Addition when the left operand is always a number.
+     */
+    static final class NumericAddNode extends NumericBinary
+    {
+        NumericAddNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return left.evalDouble( ctx )
+                + right.evalDouble( ctx );
+        }
+    }
+
+    /**
+     * Concatenation when the left operand is always a string.
+     */
+    static final class ConcatNode extends Binary
+    {
+        ConcatNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return (String) left.eval( ctx )
+                + Values.castString( right.eval( ctx ) );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.STRING;
+        }
+    }
+
+    static final class PowerNode extends NumericBinary
+    {
+        PowerNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return pow( left.evalDouble( ctx ),
+                right.evalDouble( ctx ) );
+        }
+    }
+
+    static final class MultiplyNode extends NumericBinary
+    {
+        MultiplyNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return left.evalDouble( ctx )
+                * right.evalDouble( ctx );
+        }
+    }
+
+    static final class DivideNode extends NumericBinary
+    {
+        DivideNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return left.evalDouble( ctx )
+                / right.evalDouble( ctx );
+        }
+    }
+
+    static final class ModNode extends NumericBinary
+    {
+        ModNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return left.evalDouble( ctx )
+                % right.evalDouble( ctx );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Logical Operators (return Boolean)
+    // -------------------------------------------------------------------------
+
+    static final class NotNode extends Unary
+    {
+        NotNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalBoolean( ctx );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return !operand.evalBoolean( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.BOOLEAN;
+        }
+    }
+
+    static final class LeqNode extends Compare
+    {
+        LeqNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) <= 0;
+        }
+    }
+
+    static final class GeqNode extends Compare
+    {
+        GeqNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) >= 0;
+        }
+    }
+
+    static final class LtNode extends Compare
+    {
+        LtNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) < 0;
+        }
+    }
+
+    static final class GtNode extends Compare
+    {
+        GtNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) > 0;
+        }
+    }
+
+    static final class EqNode extends Compare
+    {
+        EqNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) == 0;
+        }
+    }
+
+    static final class NeNode extends Compare
+    {
+        NeNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return compare( ctx ) != 0;
+        }
+    }
+
+    static final class AndNode extends BooleanBinary
+    {
+        AndNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return left.evalBoolean( ctx )
+                && right.evalBoolean( ctx );
+        }
+    }
+
+    static final class OrNode extends BooleanBinary
+    {
+        OrNode( ExprNode left, ExprNode right )
+        {
+            super( left, right );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return left.evalBoolean( ctx )
+                || right.evalBoolean( ctx );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Logical functions
+    // -------------------------------------------------------------------------
+
+    static final class IfNode extends ExprNode
+    {
+        final ExprNode test;
+
+        final ExprNode ifTrue;
+
+        final ExprNode ifFalse;
+
+        final Type type;
+
+        IfNode( ExprNode test, ExprNode ifTrue, ExprNode ifFalse )
+        {
+            this.test = test;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+            this.type = ifTrue.type() == ifFalse.type() ? ifTrue.type() : Type.OBJECT;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return test.evalBoolean( ctx )
+                ? ifTrue.eval( ctx )
+                : ifFalse.eval( ctx );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return test.evalBoolean( ctx )
+                ? ifTrue.evalDouble( ctx )
+                : ifFalse.evalDouble( ctx );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return test.evalBoolean( ctx )
+                ? ifTrue.evalBoolean( ctx )
+                : ifFalse.evalBoolean( ctx );
+        }
+
+        @Override
+        public Type type()
+        {
+            return type;
+        }
+    }
+
+    static final class ExceptNode extends Unary
+    {
+        final ExprNode test;
+
+        ExceptNode( ExprNode operand, ExprNode test )
+        {
+            super( operand );
+            this.test = test;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return test.evalBoolean( ctx )
+                ? null
+                : operand.eval( ctx );
+        }
+    }
+
+    static final class IsNullNode extends Unary
+    {
+        IsNullNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return evalBoolean( ctx );
+        }
+
+        @Override
+        public boolean evalBoolean( EvalContext ctx )
+        {
+            return operand.eval( ctx ) == null;
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.BOOLEAN;
+        }
+    }
+
+    static final class CoalesceNode extends ExprNode
+    {
+        final ExprNode[] args;
+
+        CoalesceNode( ExprNode[] args )
+        {
+            this.args = args;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            for ( ExprNode arg : args )
+            {
+                Object val = arg.eval( ctx );
+
+                if ( val != null )
+                {
+                    return val;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Aggregation functions
+    // -------------------------------------------------------------------------
+
+    static final class LastNode extends Unary
+    {
+        final ExprNode limit;
+
+        LastNode( ExprNode operand, ExprNode limit )
+        {
+            super( operand );
+            this.limit = limit;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            MultiPeriodValues mpv = Values.castMultiPeriodValues( operand.eval( ctx ) );
+
+            if ( limit == null )
+            {
+                List<Object> values = mpv.last( 1 ).getValues();
+
+                return values.isEmpty() ? null : values.get( 0 );
+            }
+            else
+            {
+                return mpv.last( Values.castInteger( limit.eval( ctx ) ) );
+            }
+        }
+    }
+
+    static final class SumNode extends Aggregate
+    {
+        SumNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getSum();
+        }
+    }
+
+    static final class MaxNode extends Aggregate
+    {
+        MaxNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getMax();
+        }
+    }
+
+    static final class MinNode extends Aggregate
+    {
+        MinNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getMin();
+        }
+    }
+
+    static final class AverageNode extends Aggregate
+    {
+        AverageNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getMean();
+        }
+    }
+
+    static final class StdDevNode extends Aggregate
+    {
+        StdDevNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getStdDev();
+        }
+    }
+
+    static final class VarianceNode extends Aggregate
+    {
+        VarianceNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return accumulate( ctx ).getVariance();
+        }
+    }
+
+    static final class MedianNode extends OrderStatistic
+    {
+        MedianNode( ExprNode operand )
+        {
+            super( operand );
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            return view( ctx ).percentile( 50 );
+        }
+    }
+
+    static final class PercentileNode extends OrderStatistic
+    {
+        final ExprNode percentile;
+
+        PercentileNode( ExprNode operand, ExprNode percentile )
+        {
+            super( operand );
+            this.percentile = percentile;
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            OrderStatistics.SortedView view = view( ctx );
+
+            return view.percentile( ExpressionChecker.checkPercentile( percentile.evalDouble( ctx ) ) );
+        }
+    }
+
+    static final class RankHighNode extends Rank
+    {
+        RankHighNode( ExprNode operand, ExprNode test )
+        {
+            super( operand, test );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return rankHigh( values( ctx ), ctx );
+        }
+    }
+
+    static final class RankLowNode extends Rank
+    {
+        RankLowNode( ExprNode operand, ExprNode test )
+        {
+            super( operand, test );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            return rankLow( values( ctx ), ctx );
+        }
+    }
+
+    static final class RankPercentileHighNode extends Rank
+    {
+        RankPercentileHighNode( ExprNode operand, ExprNode test )
+        {
+            super( operand, test );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            MultiValues vals = values( ctx );
+            return vals.size() == 0 ? 0 : (int)Math.round( 100.0 * rankHigh( vals, ctx ) / vals.size() );
+        }
+    }
+
+    static final class RankPercentileLowNode extends Rank
+    {
+        RankPercentileLowNode( ExprNode operand, ExprNode test )
+        {
+            super( operand, test );
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            MultiValues values = values( ctx );
+            return values.size() == 0 ? 0 : (int)Math.round( 100.0 * rankLow( values, ctx ) / values.size() );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Aggregation scope functions
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evaluates the operand in a single period shifted from the current one.
+     */
+    static final class PeriodShiftNode extends Unary
+    {
+        final ExprNode periodShift;
+
+        PeriodShiftNode( ExprNode operand, ExprNode periodShift )
+        {
+            super( operand );
+            this.periodShift = periodShift;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            int savedPeriod = ctx.getCurrentPeriod();
+
+            ctx.setCurrentPeriod( Periods.shift( savedPeriod, intDefault( periodShift, ctx, 0 ), 0 ) );
+
+            Object value = operand.eval( ctx );
+
+            ctx.setCurrentPeriod( savedPeriod );
+
+            return value;
+        }
+
+        @Override
+        public double evalDouble( EvalContext ctx )
+        {
+            int savedPeriod = ctx.getCurrentPeriod();
+
+            ctx.setCurrentPeriod( Periods.shift( savedPeriod, intDefault( periodShift, ctx, 0 ), 0 ) );
+
+            double value = operand.evalDouble( ctx );
+
+            ctx.setCurrentPeriod( savedPeriod );
+
+            return value;
+        }
+
+        @Override
+        public Type type()
+        {
+            return operand.type();
+        }
+    }
+
+    /**
+     * Evaluates the operand over ranges of periods, as described in
+     * {@link ExpressionChecker#iteratePeriods}.
+     */
+    static final class PeriodScopeNode extends Unary
+        implements Scope
+    {
+        final ExprNode[] args;
+
+        PeriodScopeNode( ExprNode operand, ExprNode[] args )
+        {
+            super( operand );
+            this.args = args;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            MultiPeriodValues values = new MultiPeriodValues();
+
+            scan( ctx, values );
+
+            return values;
+        }
+
+        @Override
+        public void scan( EvalContext ctx, ValueSink sink )
+        {
+            int savedPeriod = ctx.getCurrentPeriod();
+
+            int values = 0;
+
+            for ( int i = 0; i < args.length / 4 + 1; i++ )
+            {
+                int periodShiftFrom = intDefault( arg( i ), ctx, 0 );
+                int periodShiftTo = intDefault( arg( i + 1 ), ctx, periodShiftFrom );
+                int yearShiftFrom = intDefault( arg( i + 2 ), ctx, 0 );
+                int yearShiftTo = intDefault( arg( i + 3 ), ctx, yearShiftFrom );
+
+                for ( int yearShift = yearShiftFrom; yearShift <= yearShiftTo; yearShift++ )
+                {
+                    for ( int periodShift = periodShiftFrom; periodShift <= periodShiftTo; periodShift++ )
+                    {
+                        int periodId = Periods.shift( savedPeriod, periodShift, yearShift );
+
+                        ctx.setCurrentPeriod( periodId );
+
+                        if ( operand.type() == Type.NUMBER )
+                        {
+                            sink.addPeriodDouble( operand.evalDouble( ctx ), periodId );
+                        }
+                        else
+                        {
+                            sink.addPeriodValue( operand.eval( ctx ), periodId );
+                        }
+
+                        values++;
+                    }
+                }
+            }
+
+            ctx.setCurrentPeriod( savedPeriod );
+
+            Instrumentation.get().recordScopeSize( ExpressionParser.PERIOD, values );
+        }
+
+        private ExprNode arg( int i )
+        {
+            return i < args.length ? args[i] : null;
+        }
+    }
+
+    /**
+     * Evaluates the operand at all orgUnits at a level, or range of levels.
+     */
+    static final class OuLevelNode extends OrgUnitScope
+    {
+        final ExprNode from;
+
+        final ExprNode to;
+
+        OuLevelNode( ExprNode operand, ExprNode from, ExprNode to )
+        {
+            super( operand );
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        int function()
+        {
+            return ExpressionParser.OU_LEVEL;
+        }
+
+        @Override
+        void scanOrgUnits( EvalContext ctx, OrgUnitHierarchy hierarchy, int orgUnit, IntConsumer action )
+        {
+            int levelFrom = intDefault( from, ctx, 0 );
+            int levelTo = intDefault( to, ctx, levelFrom );
+
+            for ( int level = levelFrom; level <= levelTo; level++ )
+            {
+                hierarchy.scanLevel( level, action );
+            }
+        }
+    }
+
+    /**
+     * Evaluates the operand at the current orgUnit's descendants some
+     * generations, or range of generations, down.
+     */
+    static final class OuDescendantNode extends OrgUnitScope
+    {
+        final ExprNode from;
+
+        final ExprNode to;
+
+        OuDescendantNode( ExprNode operand, ExprNode from, ExprNode to )
+        {
+            super( operand );
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        int function()
+        {
+            return ExpressionParser.OU_DESCENDANT;
+        }
+
+        @Override
+        void scanOrgUnits( EvalContext ctx, OrgUnitHierarchy hierarchy, int orgUnit, IntConsumer action )
+        {
+            int generationsFrom = intDefault( from, ctx, 0 );
+            int generationsTo = intDefault( to, ctx, generationsFrom );
+
+            for ( int generations = generationsFrom; generations <= generationsTo; generations++ )
+            {
+                hierarchy.scanDescendants( orgUnit, generations, action );
+            }
+        }
+    }
+
+    /**
+     * Evaluates the operand at the current orgUnit's peers, as described in
+     * {@link ExpressionChecker#iterateOuPeer}.
+     */
+    static final class OuPeerNode extends OrgUnitScope
+    {
+        final ExprNode from;
+
+        final ExprNode to;
+
+        OuPeerNode( ExprNode operand, ExprNode from, ExprNode to )
+        {
+            super( operand );
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        int function()
+        {
+            return ExpressionParser.OU_PEER;
+        }
+
+        @Override
+        void scanOrgUnits( EvalContext ctx, OrgUnitHierarchy hierarchy, int orgUnit, IntConsumer action )
+        {
+            int removedFrom = intDefault( from, ctx, 0 );
+
+            hierarchy.scanPeers( orgUnit, removedFrom, intDefault( to, ctx, removedFrom ), action );
+        }
+    }
+
+    /**
+     * Evaluates the operand at the members of one or more orgUnit groups,
+     * in id order.
+     */
+    static final class OuGroupNode extends OrgUnitScope
+    {
+        final ExprNode[] groups;
+
+        OuGroupNode( ExprNode operand, ExprNode[] groups )
+        {
+            super( operand );
+            this.groups = groups;
+        }
+
+        @Override
+        int function()
+        {
+            return ExpressionParser.OU_GROUP;
+        }
+
+        @Override
+        void scanOrgUnits( EvalContext ctx, OrgUnitHierarchy hierarchy, int orgUnit, IntConsumer action )
+        {
+            OrgUnitGroups orgUnitGroups = ctx.getOrgUnitGroups();
+
+            String[] uids = new String[groups.length];
+
+            for ( int i = 0; i < groups.length; i++ )
+            {
+                uids[i] = Values.castString( groups[i].eval( ctx ) );
+            }
+
+            orgUnitGroups.getMembers( uids ).forEach( action );
+        }
+    }
+
+    /**
+     * Evaluates the operand at the current orgUnit's ancestor, or null if
+     * there is no ancestor that far up.
+     */
+    static final class OuAncestorNode extends Unary
+    {
+        final ExprNode generations;
+
+        OuAncestorNode( ExprNode operand, ExprNode generations )
+        {
+            super( operand );
+            this.generations = generations;
+        }
+
+        @Override
+        public Object eval( EvalContext ctx )
+        {
+            int savedOrgUnit = ctx.getCurrentOrgUnit();
+
+            int ancestor = ctx.getHierarchy().ancestor( savedOrgUnit, intDefault( generations, ctx, 0 ) );
+
+            if ( ancestor < 0 )
+            {
+                return null;
+            }
+
+            ctx.setCurrentOrgUnit( ancestor );
+
+            Object value = operand.eval( ctx );
+
+            ctx.setCurrentOrgUnit( savedOrgUnit );
+
+            return value;
+        }
+
+        @Override
+        public Type type()
+        {
+            return Type.OBJECT; // Null when there is no such ancestor, whatever the operand type
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    static int intDefault( ExprNode node, EvalContext ctx, int defaultValue )
+    {
+        return node == null ? defaultValue : Values.castInteger( node.eval( ctx ) );
+    }
+
+    /**
+     * Checks that a frame of values is for the slot layout an expression
+     * was compiled with, so its slots mean the same items.
+     *
+     * @throws ParsingException if it is not.
+     */
+    static ValueFrame checkLayout( ValueFrame frame, SlotLayout layout )
+    {
+        if ( frame.getLayout() != layout && frame != ValueFrame.EMPTY )
+        {
+            throw new ParsingException( "value frame is not for the slot layout the expression was compiled with" );
+        }
+
+        return frame;
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of compiled expressions, keyed by the
+ * expression text.
+ * <p/>
+ * The cache is bounded by the total weight of its entries (see
+ * {@link CompiledExpression#getWeight()}) rather than by their number,
+ * so a few very long expressions cannot crowd out memory. When the total
+ * weight goes above the maximum, the least recently used entries are
+ * evicted.
+ * <p/>
+ * Compilation happens outside the cache lock, so a slow compile does
+ * not block lookups of other expressions. If two threads miss on the
+ * same expression at once, both compile it and the first one stored wins.
+ */
+public class ExpressionCache
+{
+    private final long maximumWeight;
+
+    private final Map<String, CompiledExpression> cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+    private long weight = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    public ExpressionCache( long maximumWeight )
+    {
+        this.maximumWeight = maximumWeight;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the compiled form of an expression, compiling it if it is not
+     * already in the cache.
+     *
+     * @param expression the expression text.
+     * @return the compiled expression, which may hold errors.
+     */
+    public CompiledExpression get( String expression )
+    {
+        synchronized ( this )
+        {
+            CompiledExpression compiled = cache.get( expression );
+
+            if ( compiled != null )
+            {
+                hitCount++;
+
+                Instrumentation.get().recordCacheAccess( true );
+
+                return compiled;
+            }
+
+            missCount++;
+        }
+
+        Instrumentation.get().recordCacheAccess( false );
+
+        CompiledExpression compiled = CompiledExpression.compile( expression );
+
+        synchronized ( this )
+        {
+            CompiledExpression existing = cache.get( expression );
+
+            if ( existing != null )
+            {
+                return existing;
+            }
+
+            cache.put( expression, compiled );
+
+            weight += compiled.getWeight();
+
+            evict();
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Removes all entries from the cache. Statistics are kept.
+     */
+    public synchronized void clear()
+    {
+        cache.clear();
+
+        weight = 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    public synchronized int size()
+    {
+        return cache.size();
+    }
+
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Gets the fraction of lookups that were found in the cache, or 0 if
+     * there have been no lookups.
+     */
+    public synchronized double getHitRatio()
+    {
+        long requestCount = hitCount + missCount;
+
+        return requestCount == 0 ? 0. : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "size " + cache.size()
+            + ", weight " + weight + "/" + maximumWeight
+            + ", hits " + hitCount
+            + ", misses " + missCount
+            + ", evictions " + evictionCount;
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evicts least recently used entries until the cache is within its
+     * maximum weight. Always keeps the most recently added entry, even if
+     * it alone is heavier than the maximum.
+     */
+    private void evict()
+    {
+        Iterator<CompiledExpression> it = cache.values().iterator();
+
+        while ( weight > maximumWeight && cache.size() > 1 )
+        {
+            weight -= it.next().getWeight();
+
+            it.remove();
+
+            evictionCount++;
+        }
+    }
+}
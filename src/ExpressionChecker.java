@@ -1,6 +1,5 @@
-import org.apache.commons.lang3.ArrayUtils;
+import org.antlr.v4.runtime.Token;
 import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -10,11 +9,16 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static java.lang.Math.pow;
-import static org.apache.commons.lang3.StringEscapeUtils.unescapeJava;
 
 /**
  * Checks parsed experssions for data type compatibility. Also provides much
  * of the base functionality for expression evaluation.
+ * <p/>
+ * The period and orgUnit in scope are kept in an {@link EvalContext}, not
+ * in the visitor, so an evaluation's state is all in one place. A visitor
+ * is bound to its context and must not be used by two threads at once;
+ * it is cheap to make one per evaluation. (A compiled node tree, see
+ * {@link CompiledExpression#evaluate(EvalContext)}, can be shared.)
  */
 public class ExpressionChecker extends ExpressionBaseVisitor<Object>
 {
@@ -24,30 +28,59 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
     
     private final static Double ONE = Double.valueOf( 1. );
 
-    private int orgUnitLevel = 3; // Reporting orgUnit level for demonstration
+    /**
+     * The type of the implicit token 'rankPpercentileLow' (see
+     * {@link #funType}), or -1 if the grammar has none.
+     */
+    private final static int RANK_PPERCENTILE_LOW = literalType( "'rankPpercentileLow'" );
 
-    private String currentPeriod = "201808"; //TODO: Replace with real DHIS2 period type.
+    private final EvalContext evalContext;
+
+    public ExpressionChecker()
+    {
+        this( new EvalContext( null, null ) );
+    }
 
-    private String currentOrgUnit = "ABC.XYZ"; //TODO: Replace with real DHIS2 orgUnits.
+    public ExpressionChecker( EvalContext evalContext )
+    {
+        this.evalContext = evalContext;
+    }
 
     // -------------------------------------------------------------------------
     // Visitor methods
     // -------------------------------------------------------------------------
 
+    /**
+     * Visits an expression. An error without a position is given the
+     * position of the innermost expression it was found in: its function
+     * or operator, or else its first token.
+     */
     @Override
     public Object visitExpr( ExpressionParser.ExprContext ctx )
     {
-        if ( ctx.fun != null )
-        {
-            return function( ctx );
-        }
-        else if ( ctx.expr( 0 ) != null ) // pass through the expression
+        try
         {
-            return visit( ctx.expr( 0 ) );
+            if ( ctx.fun != null )
+            {
+                return function( ctx );
+            }
+            else if ( ctx.expr( 0 ) != null ) // pass through the expression
+            {
+                return visit( ctx.expr( 0 ) );
+            }
+            else // pass through the entire subtree
+            {
+                return visit( ctx.getChild( 0 ) );
+            }
         }
-        else // pass through the entire subtree
+        catch ( ParsingException ex )
         {
-            return visit( ctx.getChild( 0 ) );
+            if ( ex.getToken() != null )
+            {
+                throw ex;
+            }
+
+            throw new ParsingException( ex.getMessage(), ctx.fun != null ? ctx.fun : ctx.getStart() );
         }
     }
 
@@ -104,7 +137,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
     @Override
     public Object visitStringLiteral(ExpressionParser.StringLiteralContext ctx)
     {
-        return unescapeJava( ctx.getText().substring( 1, ctx.getText().length() - 1 ) );
+        return unquote( ctx.getText() );
     }
 
     @Override
@@ -125,7 +158,11 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object function( ExpressionParser.ExprContext ctx )
     {
-        switch ( ctx.fun.getType() )
+        int fun = funType( ctx.fun );
+
+        Instrumentation.get().countFunction( fun );
+
+        switch ( fun )
         {
             // -----------------------------------------------------------------
             // Arithmetic Operators (return Double)
@@ -146,7 +183,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
                 Object left = visit( ctx.expr( 0 ) );
                 Object right = visit( ctx.expr( 1 ) );
 
-                if ( left.getClass() == String.class )
+                if ( left != null && left.getClass() == String.class )
                 {
                     return castString( left )
                         + castString( right );
@@ -231,29 +268,28 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
                 return evalAll( ctx ).size();
 
             case ExpressionParser.SUM:
-                return StatUtils.sum( getDoubles( ctx ) );
+                return accumulate( ctx ).getSum();
 
             case ExpressionParser.MAX:
-                return StatUtils.max( getDoubles( ctx ) );
+                return accumulate( ctx ).getMax();
 
             case ExpressionParser.MIN:
-                return StatUtils.min( getDoubles( ctx ) );
+                return accumulate( ctx ).getMin();
 
             case ExpressionParser.AVERAGE:
-                return StatUtils.mean( getDoubles( ctx ) );
+                return accumulate( ctx ).getMean();
 
             case ExpressionParser.STDDEV:
-                StandardDeviation stdDev = new StandardDeviation();
-                return stdDev.evaluate( getDoubles( ctx ) );
+                return accumulate( ctx ).getStdDev();
 
             case ExpressionParser.VARIANCE:
-                return StatUtils.variance( getDoubles( ctx ) );
+                return accumulate( ctx ).getVariance();
 
             case ExpressionParser.MEDIAN:
                 return StatUtils.percentile( getDoubles( ctx ), 50 );
 
             case ExpressionParser.PERCENTILE:
-                return StatUtils.percentile( getDoubles( ctx ), castDouble( visit( ctx.a1().expr() ) ) );
+                return StatUtils.percentile( getDoubles( ctx ), checkPercentile( castDouble( visit( ctx.a1().expr() ) ) ) );
 
             case ExpressionParser.RANK_HIGH:
                 return rankHigh( getDoubles( ctx ), ctx );
@@ -292,7 +328,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
                 return iterateOuGroup( ctx );
 
             default: // (Shouldn't happen, mismatch between expression grammer and here.)
-                throw new ParsingException( "fun=" + ctx.fun.getType() + " not recognized." );
+                throw new ParsingException( "fun=" + fun + " not recognized." );
         }
     }
 
@@ -470,7 +506,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object iteratePeriods( ExpressionParser.ExprContext ctx )
     {
-        String savedPeriod = currentPeriod;
+        int savedPeriod = evalContext.getCurrentPeriod();
 
         Object returnVal;
 
@@ -482,30 +518,52 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
         {
             MultiPeriodValues values = new MultiPeriodValues();
 
-            for ( int i = 0; i < ctx.a1_n().expr().size() / 4 + 1; i++ )
-            {
-                int periodShiftFrom = evalIntDefault( ctx.a1_n().expr( i ), 0 );
-                int periodShiftTo = evalIntDefault( ctx.a1_n().expr( i + 1 ), periodShiftFrom );
-                int yearShiftFrom = evalIntDefault( ctx.a1_n().expr( i + 2 ), 0 );
-                int yearShiftTo = evalIntDefault( ctx.a1_n().expr( i + 3 ), yearShiftFrom );
+            scanPeriods( ctx, values );
+
+            returnVal = values;
+        }
+
+        evalContext.setCurrentPeriod( savedPeriod );
+
+        return returnVal;
+    }
 
-                for ( int yearShift = yearShiftFrom; yearShift <= yearShiftTo; yearShift++ )
+    /**
+     * Evaluates an expression over ranges of periods, as described in
+     * {@link #iteratePeriods}, passing each value to a sink.
+     *
+     * @param ctx the parsing context, with two or more arguments.
+     * @param sink the sink for the values.
+     */
+    protected void scanPeriods( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        int savedPeriod = evalContext.getCurrentPeriod();
+
+        int values = 0;
+
+        for ( int i = 0; i < ctx.a1_n().expr().size() / 4 + 1; i++ )
+        {
+            int periodShiftFrom = evalIntDefault( ctx.a1_n().expr( i ), 0 );
+            int periodShiftTo = evalIntDefault( ctx.a1_n().expr( i + 1 ), periodShiftFrom );
+            int yearShiftFrom = evalIntDefault( ctx.a1_n().expr( i + 2 ), 0 );
+            int yearShiftTo = evalIntDefault( ctx.a1_n().expr( i + 3 ), yearShiftFrom );
+
+            for ( int yearShift = yearShiftFrom; yearShift <= yearShiftTo; yearShift++ )
+            {
+                for ( int periodShift = periodShiftFrom; periodShift <= periodShiftTo; periodShift++ )
                 {
-                    for ( int periodShift = periodShiftFrom; periodShift <= periodShiftTo; periodShift++ )
-                    {
-                        Object value = periodShiftValue( ctx, savedPeriod, periodShift, yearShift );
+                    Object value = periodShiftValue( ctx, savedPeriod, periodShift, yearShift );
 
-                        values.addPeriodValue( value, currentPeriod );
-                    }
+                    sink.addPeriodValue( value, evalContext.getCurrentPeriod() );
+
+                    values++;
                 }
             }
-
-            returnVal = values;
         }
 
-        currentPeriod = savedPeriod;
+        evalContext.setCurrentPeriod( savedPeriod );
 
-        return returnVal;
+        Instrumentation.get().recordScopeSize( ExpressionParser.PERIOD, values );
     }
 
     /**
@@ -517,16 +575,9 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      * @param yearShift the number of years to shift from the base.
      * @return the value of the expression shifted in time.
      */
-    protected Object periodShiftValue( ExpressionParser.ExprContext ctx, String basePeriod, int periodShift, int yearShift )
+    protected Object periodShiftValue( ExpressionParser.ExprContext ctx, int basePeriod, int periodShift, int yearShift )
     {
-        //TODO: change to real code for DHIS2 periods. For this prototype, just shifts months.
-
-        int months = Integer.parseInt( basePeriod.substring( 0, 4 ) ) * 12 + Integer.parseInt( basePeriod.substring( 4 ) ) - 1
-            + periodShift + ( yearShift * 12 );
-
-        int m = ( months % 12 ) + 1;
-
-        currentPeriod = Integer.toString( months / 12 ) + ( m < 10 ? "0" : "" ) + Integer.toString( m );
+        evalContext.setCurrentPeriod( Periods.shift( basePeriod, periodShift, yearShift ) );
 
         return visit( ctx.expr( 0 ) );
     }
@@ -539,20 +590,25 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object iterateOuLevel( ExpressionParser.ExprContext ctx )
     {
-        //TODO: change to real DHIS2 orgUnit logic.
-
-        String savedOrgUnit = currentOrgUnit;
-
         MultiValues values = new MultiValues();
 
-        values.addValue( orgUnitValue( ctx, "ABC.DEF" ) );
-        values.addValue( orgUnitValue( ctx, "DEF.GHI" ) );
-
-        currentOrgUnit = savedOrgUnit;
+        scanOuLevel( ctx, values );
 
         return values;
     }
 
+    /**
+     * Evaluates an expression at all orgUnits at a given level, passing each
+     * value to a sink.
+     *
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
+     */
+    protected void scanOuLevel( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        checkOrgUnitScope( ctx, sink );
+    }
+
     /**
      * Returns the expression value, evaluated at the orgUnit's ancestor.
      *
@@ -562,15 +618,14 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object ouAncestor( ExpressionParser.ExprContext ctx )
     {
-        //TODO: change to real DHIS2 orgUnit logic.
-
-        String savedOrgUnit = currentOrgUnit;
-
-        Object value = orgUnitValue( ctx, "ABC" );
+        if ( ctx.a1_2().expr().size() > 1 )
+        {
+            throw new ParsingException( "one argument expected at: '" + ctx.getText() + "'" );
+        }
 
-        currentOrgUnit = savedOrgUnit;
+        evalIntDefault( ctx.a1_2().expr( 0 ), 0 );
 
-        return value;
+        return visit( ctx.expr( 0 ) );
     }
 
     /**
@@ -582,20 +637,25 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object iterateOuDescendant( ExpressionParser.ExprContext ctx )
     {
-        //TODO: change to real DHIS2 orgUnit logic.
-
-        String savedOrgUnit = currentOrgUnit;
-
         MultiValues values = new MultiValues();
 
-        values.addValue( orgUnitValue( ctx, "ABC.XYZ.DEF" ) );
-        values.addValue( orgUnitValue( ctx, "ABC.XYZ.GHI" ) );
-
-        currentOrgUnit = savedOrgUnit;
+        scanOuDescendant( ctx, values );
 
         return values;
     }
 
+    /**
+     * Evaluates an expression at the current orgUnit's descendants, passing
+     * each value to a sink.
+     *
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
+     */
+    protected void scanOuDescendant( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        checkOrgUnitScope( ctx, sink );
+    }
+
     /**
      * Interates over the current orgUnit's peers.
      * <ol>
@@ -613,20 +673,25 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object iterateOuPeer( ExpressionParser.ExprContext ctx )
     {
-        //TODO: change to real DHIS2 orgUnit logic.
-
-        String savedOrgUnit = currentOrgUnit;
-
         MultiValues values = new MultiValues();
 
-        values.addValue( orgUnitValue( ctx, "ABC.DEF" ) );
-        values.addValue( orgUnitValue( ctx, "ABC.GHI" ) );
-
-        currentOrgUnit = savedOrgUnit;
+        scanOuPeer( ctx, values );
 
         return values;
     }
 
+    /**
+     * Evaluates an expression at the current orgUnit's peers, passing each
+     * value to a sink.
+     *
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
+     */
+    protected void scanOuPeer( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        checkOrgUnitScope( ctx, sink );
+    }
+
     /**
      * Iterates over one or more orgUnit groups.
      *
@@ -635,57 +700,60 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Object iterateOuGroup( ExpressionParser.ExprContext ctx )
     {
-        //TODO: change to real DHIS2 orgUnit logic.
-
-        String savedOrgUnit = currentOrgUnit;
-
         MultiValues values = new MultiValues();
 
-        values.addValue( orgUnitValue( ctx, "ABCXYZ" ) );
-        values.addValue( orgUnitValue( ctx, "DEFXYZ" ) );
-
-        currentOrgUnit = savedOrgUnit;
+        scanOuGroup( ctx, values );
 
         return values;
     }
 
     /**
-     * Returns the expression value, evaluated at the given orgUnit.
+     * Evaluates an expression at one or more orgUnit groups, passing each
+     * value to a sink.
      *
-     * @param ctx
-     * @param orgUnit
-     * @return
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
      */
-    protected Object orgUnitValue( ExpressionParser.ExprContext ctx, String orgUnit )
+    protected void scanOuGroup( ExpressionParser.ExprContext ctx, ValueSink sink )
     {
-        currentOrgUnit = orgUnit;
+        for ( ExpressionParser.ExprContext group : ctx.a1_n().expr() )
+        {
+            castString( visit( group ) );
+        }
 
-        return visit( ctx.expr( 0 ) );
+        sink.addValue( visit( ctx.expr( 0 ) ) );
+        sink.addValue( visit( ctx.expr( 0 ) ) );
     }
 
     /**
-     * Casts object as Integer, or throw exception if we can't.
+     * Checks an orgUnit scope: checks that the arguments are integers, and
+     * checks the operand as if at two orgUnits, so the functions of the
+     * scope's multiple values are checked too. (Evaluators override the
+     * scope methods to evaluate over the orgUnit hierarchy.)
      *
-     * @param object the value to cast as an Integer.
-     * @return Integer value.
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
      */
-    protected Integer castInteger( Object object )
+    private void checkOrgUnitScope( ExpressionParser.ExprContext ctx, ValueSink sink )
     {
-        Double d = castDouble( object );
-
-        if ( d == null )
+        for ( ExpressionParser.ExprContext arg : ctx.a1_2().expr() )
         {
-            throw new ParsingException( "null found at: '" + object.toString() + "'" );
+            evalIntDefault( arg, 0 );
         }
 
-        Integer i = (int) (double) d;
-
-        if ( (double) d != i )
-        {
-            throw new ParsingException( "integer expected at: '" + object.toString() + "'" );
-        }
+        sink.addValue( visit( ctx.expr( 0 ) ) );
+        sink.addValue( visit( ctx.expr( 0 ) ) );
+    }
 
-        return i;
+    /**
+     * Casts object as Integer, or throw exception if we can't.
+     *
+     * @param object the value to cast as an Integer.
+     * @return Integer value.
+     */
+    protected Integer castInteger( Object object )
+    {
+        return Values.castInteger( object );
     }
 
     /**
@@ -696,19 +764,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Double castDouble( Object object )
     {
-        try
-        {
-            if ( object.getClass() == String.class )
-            {
-                return Double.valueOf( (String) object );
-            }
-
-            return (Double) object;
-        }
-        catch ( Exception ex )
-        {
-            throw new ParsingException( "number expected at: '" + object.toString() + "'" );
-        }
+        return Values.castDouble( object );
     }
 
     /**
@@ -719,14 +775,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected Boolean castBoolean( Object object )
     {
-        try
-        {
-            return (Boolean) object;
-        }
-        catch ( Exception ex )
-        {
-            throw new ParsingException( "boolean expected at: '" + object.toString() + "'" );
-        }
+        return Values.castBoolean( object );
     }
 
     /**
@@ -737,14 +786,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected String castString( Object object )
     {
-        try
-        {
-            return (String) object;
-        }
-        catch ( Exception ex )
-        {
-            throw new ParsingException( "string expected at: '" + object.toString() + "'" );
-        }
+        return Values.castString( object );
     }
 
     /**
@@ -755,12 +797,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected MultiValues castMultiValues( Object object )
     {
-        if ( !( object instanceof MultiValues ) )
-        {
-            throw new ParsingException( "multiple values expected at: '" + object.toString() + "'" );
-        }
-
-        return (MultiValues) object;
+        return Values.castMultiValues( object );
     }
 
     /**
@@ -771,12 +808,7 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     protected MultiPeriodValues castMultiPeriodvalues( Object object )
     {
-        if ( ! (object instanceof MultiPeriodValues ) )
-        {
-            throw new ParsingException( "multiple period values expected at: '" + object.toString() + "'" );
-        }
-
-        return (MultiPeriodValues) object;
+        return Values.castMultiPeriodValues( object );
     }
 
     /**
@@ -788,11 +820,19 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
             .map( v -> castDouble( v ) ).collect( Collectors.toList() ).toArray( new Double[0] );
     }
 
+    /**
+     * Gets the context holding the state of the evaluation.
+     */
+    protected EvalContext getEvalContext()
+    {
+        return evalContext;
+    }
+
     // -------------------------------------------------------------------------
     // Supportive methods
     // -------------------------------------------------------------------------
 
-    private int evalIntDefault( ExpressionParser.ExprContext ctx, int defaultValue )
+    protected int evalIntDefault( ExpressionParser.ExprContext ctx, int defaultValue )
     {
         if ( ctx == null )
         {
@@ -889,10 +929,223 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
      */
     private double[] getDoubles( ExpressionParser.ExprContext ctx )
     {
-        return ArrayUtils.toPrimitive( castMultiValues( visit( ctx.expr( 0 ) ) )
-            .getValues().stream()
-            .map( o -> castDouble( o ) ).collect( Collectors.toList() )
-            .toArray( new Double[0] ) );
+        MultiValues values = castMultiValues( visit( ctx.expr( 0 ) ) );
+
+        double[] doubles = values.getDoubles();
+
+        return doubles.length == values.size() ? doubles : Arrays.copyOf( doubles, values.size() );
+    }
+
+    /**
+     * Gets the type of a function token. The grammar spells
+     * rankPercentileLow as 'rankPpercentileLow', which the parsers match
+     * as an implicit token instead of RANK_PERCENTILE_LOW, so that token
+     * is given the type RANK_PERCENTILE_LOW.
+     *
+     * @param fun the function token.
+     * @return the token type.
+     */
+    static int funType( Token fun )
+    {
+        return fun.getType() == RANK_PPERCENTILE_LOW ? ExpressionParser.RANK_PERCENTILE_LOW : fun.getType();
+    }
+
+    private static int literalType( String literal )
+    {
+        for ( int type = 1; type <= ExpressionParser.VOCABULARY.getMaxTokenType(); type++ )
+        {
+            if ( literal.equals( ExpressionParser.VOCABULARY.getLiteralName( type ) ) )
+            {
+                return type;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets the value of a string literal: its text without the quotes, and
+     * with the escape sequences of the grammar replaced: \b \t \n \f \r
+     * \" \' \\, octal from \0 to \377, and a backslash, one or more
+     * u's and four hex digits.
+     *
+     * @param literal the literal, as written in the expression.
+     * @return the string value.
+     */
+    static String unquote( String literal )
+    {
+        int end = literal.length() - 1;
+
+        int escape = literal.indexOf( '\\', 1 );
+
+        if ( escape < 0 || escape >= end )
+        {
+            return literal.substring( 1, end );
+        }
+
+        StringBuilder sb = new StringBuilder( end ).append( literal, 1, escape );
+
+        for ( int i = escape; i < end; i++ )
+        {
+            char c = literal.charAt( i );
+
+            if ( c != '\\' || i + 1 == end )
+            {
+                sb.append( c );
+
+                continue;
+            }
+
+            c = literal.charAt( ++i );
+
+            switch ( c )
+            {
+                case 'b':
+                    sb.append( '\b' );
+                    break;
+
+                case 't':
+                    sb.append( '\t' );
+                    break;
+
+                case 'n':
+                    sb.append( '\n' );
+                    break;
+
+                case 'f':
+                    sb.append( '\f' );
+                    break;
+
+                case 'r':
+                    sb.append( '\r' );
+                    break;
+
+                case 'u':
+                    while ( literal.charAt( i + 1 ) == 'u' )
+                    {
+                        i++;
+                    }
+
+                    sb.append( (char) Integer.parseInt( literal.substring( i + 1, i + 5 ), 16 ) );
+                    i += 4;
+                    break;
+
+                default:
+                    if ( c >= '0' && c <= '7' )
+                    {
+                        int digits = c <= '3' ? 3 : 2;
+                        int j = i;
+
+                        while ( j + 1 < end && j + 1 < i + digits && literal.charAt( j + 1 ) >= '0' && literal.charAt( j + 1 ) <= '7' )
+                        {
+                            j++;
+                        }
+
+                        sb.append( (char) Integer.parseInt( literal.substring( i, j + 1 ), 8 ) );
+                        i = j;
+                    }
+                    else
+                    {
+                        sb.append( c ); // \" \' \\
+                    }
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Checks that a percentile is in range.
+     *
+     * @param p the percentile.
+     * @return the percentile.
+     * @throws ParsingException if the percentile is not greater than 0 and
+     *         at most 100.
+     */
+    static double checkPercentile( double p )
+    {
+        if ( !( p > 0 && p <= 100 ) )
+        {
+            throw new ParsingException( "percentile must be greater than 0 and at most 100: '" + p + "'" );
+        }
+
+        return p;
+    }
+
+    /**
+     * Aggregates the multiple values of the function operand in one pass.
+     * If the operand is a period or orgUnit scope, its values are streamed
+     * into the accumulator as they are found, without collecting them.
+     *
+     * @param ctx the parsing context.
+     * @return the accumulated values.
+     */
+    private Accumulator accumulate( ExpressionParser.ExprContext ctx )
+    {
+        Accumulator accumulator = new Accumulator();
+
+        if ( !scan( ctx.expr( 0 ), accumulator ) )
+        {
+            accumulator.addValue( castMultiValues( visit( ctx.expr( 0 ) ) ) );
+        }
+
+        return accumulator;
+    }
+
+    /**
+     * Passes the values of a scope expression to a sink.
+     *
+     * @param ctx the parsing context of the expression.
+     * @param sink the sink for the values.
+     * @return true if the expression was a scope, otherwise false and
+     *         nothing was evaluated.
+     */
+    private boolean scan( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        while ( ctx.fun == null && ctx.expr( 0 ) != null ) // Parentheses
+        {
+            ctx = ctx.expr( 0 );
+        }
+
+        if ( ctx.fun == null )
+        {
+            return false;
+        }
+
+        switch ( ctx.fun.getType() )
+        {
+            case ExpressionParser.PERIOD:
+                if ( ctx.a1_n().expr().size() == 1 ) // Single period shift returns single value.
+                {
+                    return false;
+                }
+
+                scanPeriods( ctx, sink );
+                break;
+
+            case ExpressionParser.OU_LEVEL:
+                scanOuLevel( ctx, sink );
+                break;
+
+            case ExpressionParser.OU_DESCENDANT:
+                scanOuDescendant( ctx, sink );
+                break;
+
+            case ExpressionParser.OU_PEER:
+                scanOuPeer( ctx, sink );
+                break;
+
+            case ExpressionParser.OU_GROUP:
+                scanOuGroup( ctx, sink );
+                break;
+
+            default:
+                return false;
+        }
+
+        Instrumentation.get().countFunction( ctx.fun.getType() ); // Not counted by function(), which is not called
+
+        return true;
     }
 
     private List<Object> evalAll( ExpressionParser.ExprContext ctx )
@@ -930,21 +1183,6 @@ public class ExpressionChecker extends ExpressionBaseVisitor<Object>
         Object o1 = visit( ctx.expr( 0 ) );
         Object o2 = visit( ctx.expr( 1 ) );
 
-        if ( o1.getClass() == Double.class )
-        {
-            return ( (Double) o1).compareTo( castDouble( o2 ) );
-        }
-        else if ( o1.getClass() == String.class )
-        {
-            return ( (String) o1).compareTo( castString( o2 ) );
-        }
-        else if ( o1.getClass() == Boolean.class )
-        {
-            return ( (Boolean) o1).compareTo( castBoolean( o2 ) );
-        }
-        else // (Shouldn't happen)
-        {
-            throw new ParsingException( "magnitude of " + o1.getClass().getSimpleName() + " cannot be compared at: '" + o2.toString() + "'" );
-        }
+        return Values.compare( o1, o2 );
     }
 }
@@ -0,0 +1,912 @@
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates a JVM class for a compiled expression, so the JIT can compile
+ * and inline the whole expression as one method.
+ * <p/>
+ * The arithmetic, comparison and logical operators and the if, except,
+ * isNull and coalesce functions are generated as bytecode. Where the
+ * types of their operands are known, doubles and booleans stay primitive
+ * and are only boxed when the value leaves the generated code. Any other
+ * node (values, aggregation and scope functions) is kept in a field of
+ * the generated class and called through its {@link ExprNode#eval}
+ * method, so the generated expression has the same semantics as the node
+ * tree it was made from.
+ * <p/>
+ * Each expression gets its own hidden class, which is unloaded when the
+ * expression is no longer referenced.
+ */
+public class ExpressionClassGenerator
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final int CLASS_VERSION = 49; // Verified by type inference, so no stack map frames are needed
+
+    private static final String EXPR_NODE = "ExprNode";
+
+    private static final String EVAL_DESCRIPTOR = "(LEvalContext;)Ljava/lang/Object;";
+
+    private static final int MAX_CODE_LENGTH = 32767; // So all branch offsets fit in 16 bits
+
+    private static final int MAX_STRING_LENGTH = 65535 / 3; // Longest string sure to fit in a constant
+
+    // Static types of generated values
+
+    private static final int DOUBLE = 0;
+
+    private static final int BOOLEAN = 1;
+
+    private static final int STRING = 2;
+
+    private static final int OBJECT = 3;
+
+    private final ConstantPool pool = new ConstantPool();
+
+    private final Code code = new Code();
+
+    private final List<ExprNode> fallbacks = new ArrayList<>();
+
+    private ExpressionClassGenerator()
+    {
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Generates a class for an expression node tree.
+     *
+     * @param root the root of the node tree.
+     * @return a node that evaluates the generated class, or null if none of
+     *         the tree can be generated (or it is too big, or the class
+     *         cannot be defined.)
+     */
+    public static ExprNode generate( ExprNode root )
+    {
+        if ( !isGenerated( root ) )
+        {
+            return null;
+        }
+
+        ExpressionClassGenerator generator = new ExpressionClassGenerator();
+
+        byte[] bytes = generator.classBytes( root );
+
+        if ( bytes == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            Class<?> c = LOOKUP.defineHiddenClass( bytes, true ).lookupClass();
+
+            return (ExprNode) c.getDeclaredConstructor( ExprNode[].class )
+                .newInstance( (Object) generator.fallbacks.toArray( new ExprNode[0] ) );
+        }
+        catch ( ReflectiveOperationException | LinkageError ex ) // Keep evaluating with the node tree
+        {
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Runtime support, called from generated code
+    // -------------------------------------------------------------------------
+
+    static Object add( Object left, Object right )
+    {
+        if ( left != null && left.getClass() == String.class )
+        {
+            return Values.castString( left )
+                + Values.castString( right );
+        }
+
+        return Values.castDouble( left )
+            + Values.castDouble( right );
+    }
+
+    static String concat( String left, String right )
+    {
+        return left + right;
+    }
+
+    // -------------------------------------------------------------------------
+    // Class generation
+    // -------------------------------------------------------------------------
+
+    private static boolean isGenerated( ExprNode node )
+    {
+        return node instanceof ExprNode.LiteralNode
+            || node instanceof ExprNode.NegateNode
+            || node instanceof ExprNode.NotNode
+            || node instanceof ExprNode.Binary
+            || node instanceof ExprNode.IfNode
+            || node instanceof ExprNode.ExceptNode
+            || node instanceof ExprNode.IsNullNode
+            || node instanceof ExprNode.CoalesceNode;
+    }
+
+    private byte[] classBytes( ExprNode root )
+    {
+        int thisClass = pool.classRef( "GeneratedExpression" );
+        int superClass = pool.classRef( EXPR_NODE );
+
+        coerce( expr( root ), OBJECT );
+        code.op( 0xb0 ); // areturn
+
+        if ( code.length() > MAX_CODE_LENGTH )
+        {
+            return null;
+        }
+
+        byte[] evalCode = code.toByteArray();
+
+        Code init = initCode( thisClass );
+
+        ByteWriter out = new ByteWriter();
+
+        int codeName = pool.utf8( "Code" );
+        int fieldDescriptor = pool.utf8( "L" + EXPR_NODE + ";" );
+        int[] fieldNames = new int[fallbacks.size()];
+
+        for ( int i = 0; i < fieldNames.length; i++ )
+        {
+            fieldNames[i] = pool.utf8( "n" + i );
+        }
+
+        int initName = pool.utf8( "<init>" );
+        int initDescriptor = pool.utf8( "([L" + EXPR_NODE + ";)V" );
+        int evalName = pool.utf8( "eval" );
+        int evalDescriptor = pool.utf8( EVAL_DESCRIPTOR );
+
+        out.u4( 0xcafebabe );
+        out.u2( 0 );
+        out.u2( CLASS_VERSION );
+        pool.write( out );
+        out.u2( 0x0030 ); // final super
+        out.u2( thisClass );
+        out.u2( superClass );
+        out.u2( 0 ); // interfaces
+
+        out.u2( fieldNames.length );
+
+        for ( int fieldName : fieldNames )
+        {
+            out.u2( 0x0012 ); // private final
+            out.u2( fieldName );
+            out.u2( fieldDescriptor );
+            out.u2( 0 );
+        }
+
+        out.u2( 2 ); // methods
+        method( out, 0x0001, initName, initDescriptor, codeName, init.toByteArray(), 3 );
+        method( out, 0x0001, evalName, evalDescriptor, codeName, evalCode, 4 * depth( root ) + 8 );
+        out.u2( 0 ); // attributes
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Generates the constructor, which stores the fallback nodes in fields.
+     */
+    private Code initCode( int thisClass )
+    {
+        Code init = new Code();
+
+        init.op( 0x2a ); // aload_0
+        init.op( 0xb7 ).u2( pool.methodRef( EXPR_NODE, "<init>", "()V" ) ); // invokespecial
+
+        for ( int i = 0; i < fallbacks.size(); i++ )
+        {
+            init.op( 0x2a ); // aload_0
+            init.op( 0x2b ); // aload_1
+            init.op( 0x11 ).u2( i ); // sipush
+            init.op( 0x32 ); // aaload
+            init.op( 0xb5 ).u2( pool.fieldRef( thisClass, "n" + i, "L" + EXPR_NODE + ";" ) ); // putfield
+        }
+
+        init.op( 0xb1 ); // return
+
+        return init;
+    }
+
+    private void method( ByteWriter out, int access, int name, int descriptor, int codeName, byte[] bytes, int maxStack )
+    {
+        out.u2( access );
+        out.u2( name );
+        out.u2( descriptor );
+        out.u2( 1 ); // attributes
+        out.u2( codeName );
+        out.u4( 12 + bytes.length );
+        out.u2( maxStack );
+        out.u2( 2 ); // max locals: this, ctx
+        out.u4( bytes.length );
+        out.bytes( bytes );
+        out.u2( 0 ); // exception table
+        out.u2( 0 ); // attributes
+    }
+
+    // -------------------------------------------------------------------------
+    // Expression generation
+    // -------------------------------------------------------------------------
+
+    /**
+     * Generates code that leaves the value of a node on the stack.
+     *
+     * @param node the node to generate.
+     * @return the static type of the value left on the stack.
+     */
+    private int expr( ExprNode node )
+    {
+        if ( node instanceof ExprNode.LiteralNode )
+        {
+            return literal( ( (ExprNode.LiteralNode) node ).value );
+        }
+        else if ( node instanceof ExprNode.NegateNode )
+        {
+            coerce( expr( ( (ExprNode.NegateNode) node ).operand ), DOUBLE );
+            code.op( 0x77 ); // dneg
+            return DOUBLE;
+        }
+        else if ( node instanceof ExprNode.NotNode )
+        {
+            coerce( expr( ( (ExprNode.NotNode) node ).operand ), BOOLEAN );
+            code.op( 0x04 ); // iconst_1
+            code.op( 0x82 ); // ixor
+            return BOOLEAN;
+        }
+        else if ( node instanceof ExprNode.AddNode
+            || node instanceof ExprNode.NumericAddNode
+            || node instanceof ExprNode.ConcatNode )
+        {
+            return add( (ExprNode.Binary) node );
+        }
+        else if ( node instanceof ExprNode.SubtractNode )
+        {
+            return arithmetic( (ExprNode.Binary) node, 0x67 ); // dsub
+        }
+        else if ( node instanceof ExprNode.MultiplyNode )
+        {
+            return arithmetic( (ExprNode.Binary) node, 0x6b ); // dmul
+        }
+        else if ( node instanceof ExprNode.DivideNode )
+        {
+            return arithmetic( (ExprNode.Binary) node, 0x6f ); // ddiv
+        }
+        else if ( node instanceof ExprNode.ModNode )
+        {
+            return arithmetic( (ExprNode.Binary) node, 0x73 ); // drem
+        }
+        else if ( node instanceof ExprNode.PowerNode )
+        {
+            ExprNode.Binary binary = (ExprNode.Binary) node;
+            coerce( expr( binary.left ), DOUBLE );
+            coerce( expr( binary.right ), DOUBLE );
+            code.op( 0xb8 ).u2( pool.methodRef( "java/lang/Math", "pow", "(DD)D" ) ); // invokestatic
+            return DOUBLE;
+        }
+        else if ( node instanceof ExprNode.LeqNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x9d ); // ifgt
+        }
+        else if ( node instanceof ExprNode.GeqNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x9b ); // iflt
+        }
+        else if ( node instanceof ExprNode.LtNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x9c ); // ifge
+        }
+        else if ( node instanceof ExprNode.GtNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x9e ); // ifle
+        }
+        else if ( node instanceof ExprNode.EqNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x9a ); // ifne
+        }
+        else if ( node instanceof ExprNode.NeNode )
+        {
+            return compare( (ExprNode.Binary) node, 0x99 ); // ifeq
+        }
+        else if ( node instanceof ExprNode.AndNode )
+        {
+            return andOr( (ExprNode.Binary) node, true );
+        }
+        else if ( node instanceof ExprNode.OrNode )
+        {
+            return andOr( (ExprNode.Binary) node, false );
+        }
+        else if ( node instanceof ExprNode.IfNode )
+        {
+            return ifFunction( (ExprNode.IfNode) node );
+        }
+        else if ( node instanceof ExprNode.ExceptNode )
+        {
+            return except( (ExprNode.ExceptNode) node );
+        }
+        else if ( node instanceof ExprNode.IsNullNode )
+        {
+            return isNull( (ExprNode.IsNullNode) node );
+        }
+        else if ( node instanceof ExprNode.CoalesceNode )
+        {
+            return coalesce( (ExprNode.CoalesceNode) node );
+        }
+
+        return fallback( node );
+    }
+
+    private int literal( Object value )
+    {
+        if ( value instanceof Double )
+        {
+            code.op( 0x14 ).u2( pool.doubleConstant( (Double) value ) ); // ldc2_w
+            return DOUBLE;
+        }
+        else if ( value instanceof Boolean )
+        {
+            code.op( (Boolean) value ? 0x04 : 0x03 ); // iconst_1 / iconst_0
+            return BOOLEAN;
+        }
+
+        if ( ( (String) value ).length() > MAX_STRING_LENGTH ) // Might not fit in a constant
+        {
+            return fallback( new ExprNode.LiteralNode( value ) );
+        }
+
+        code.op( 0x13 ).u2( pool.string( (String) value ) ); // ldc_w
+        return STRING;
+    }
+
+    /**
+     * Calls a node that is not generated, through a field holding it.
+     * Nodes that always return a number or a boolean are called without
+     * boxing.
+     */
+    private int fallback( ExprNode node )
+    {
+        int i = fallbacks.size();
+
+        fallbacks.add( node );
+
+        code.op( 0x2a ); // aload_0
+        code.op( 0xb4 ).u2( pool.fieldRef( pool.classRef( "GeneratedExpression" ), "n" + i, "L" + EXPR_NODE + ";" ) ); // getfield
+        code.op( 0x2b ); // aload_1
+
+        int type = typeOf( node );
+
+        if ( type == DOUBLE )
+        {
+            code.op( 0xb6 ).u2( pool.methodRef( EXPR_NODE, "evalDouble", "(LEvalContext;)D" ) ); // invokevirtual
+        }
+        else if ( type == BOOLEAN )
+        {
+            code.op( 0xb6 ).u2( pool.methodRef( EXPR_NODE, "evalBoolean", "(LEvalContext;)Z" ) ); // invokevirtual
+        }
+        else
+        {
+            code.op( 0xb6 ).u2( pool.methodRef( EXPR_NODE, "eval", EVAL_DESCRIPTOR ) ); // invokevirtual
+        }
+
+        return type;
+    }
+
+    /**
+     * Generates numeric addition or string concatenation. As in
+     * {@link ExprNode.AddNode}, both operands are evaluated before
+     * either is cast.
+     */
+    private int add( ExprNode.Binary node )
+    {
+        int left = expr( node.left );
+
+        if ( left == DOUBLE )
+        {
+            coerce( expr( node.right ), DOUBLE );
+            code.op( 0x63 ); // dadd
+            return DOUBLE;
+        }
+        else if ( left == STRING )
+        {
+            coerce( expr( node.right ), STRING );
+            code.op( 0xb8 ).u2( pool.methodRef( "ExpressionClassGenerator", "concat",
+                "(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;" ) ); // invokestatic
+            return STRING;
+        }
+
+        coerce( left, OBJECT );
+        coerce( expr( node.right ), OBJECT );
+        code.op( 0xb8 ).u2( pool.methodRef( "ExpressionClassGenerator", "add",
+            "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;" ) ); // invokestatic
+        return OBJECT;
+    }
+
+    private int arithmetic( ExprNode.Binary node, int opcode )
+    {
+        coerce( expr( node.left ), DOUBLE );
+        coerce( expr( node.right ), DOUBLE );
+        code.op( opcode );
+        return DOUBLE;
+    }
+
+    /**
+     * Generates a comparison. The type of the left operand decides how the
+     * operands are compared, as in {@link Values#compare}.
+     *
+     * @param falseJump the opcode that jumps when the comparison is false.
+     */
+    private int compare( ExprNode.Binary node, int falseJump )
+    {
+        int left = expr( node.left );
+
+        if ( left == DOUBLE )
+        {
+            coerce( expr( node.right ), DOUBLE );
+            code.op( 0xb8 ).u2( pool.methodRef( "java/lang/Double", "compare", "(DD)I" ) ); // invokestatic
+        }
+        else if ( left == BOOLEAN )
+        {
+            coerce( expr( node.right ), BOOLEAN );
+            code.op( 0xb8 ).u2( pool.methodRef( "java/lang/Boolean", "compare", "(ZZ)I" ) ); // invokestatic
+        }
+        else if ( left == STRING )
+        {
+            coerce( expr( node.right ), STRING );
+            code.op( 0xb6 ).u2( pool.methodRef( "java/lang/String", "compareTo", "(Ljava/lang/String;)I" ) ); // invokevirtual
+        }
+        else
+        {
+            coerce( expr( node.right ), OBJECT );
+            code.op( 0xb8 ).u2( pool.methodRef( "Values", "compare", "(Ljava/lang/Object;Ljava/lang/Object;)I" ) ); // invokestatic
+        }
+
+        int isFalse = code.jump( falseJump );
+        code.op( 0x04 ); // iconst_1
+        int end = code.jump( 0xa7 ); // goto
+        code.label( isFalse );
+        code.op( 0x03 ); // iconst_0
+        code.label( end );
+
+        return BOOLEAN;
+    }
+
+    private int andOr( ExprNode.Binary node, boolean and )
+    {
+        coerce( expr( node.left ), BOOLEAN );
+        int shortCircuit = code.jump( and ? 0x99 : 0x9a ); // ifeq / ifne
+        coerce( expr( node.right ), BOOLEAN );
+        int end = code.jump( 0xa7 ); // goto
+        code.label( shortCircuit );
+        code.op( and ? 0x03 : 0x04 ); // iconst_0 / iconst_1
+        code.label( end );
+
+        return BOOLEAN;
+    }
+
+    private int ifFunction( ExprNode.IfNode node )
+    {
+        int type = typeOf( node.ifTrue ) == typeOf( node.ifFalse ) ? typeOf( node.ifTrue ) : OBJECT;
+
+        coerce( expr( node.test ), BOOLEAN );
+        int isFalse = code.jump( 0x99 ); // ifeq
+        coerce( expr( node.ifTrue ), type );
+        int end = code.jump( 0xa7 ); // goto
+        code.label( isFalse );
+        coerce( expr( node.ifFalse ), type );
+        code.label( end );
+
+        return type;
+    }
+
+    private int except( ExprNode.ExceptNode node )
+    {
+        coerce( expr( node.test ), BOOLEAN );
+        int isFalse = code.jump( 0x99 ); // ifeq
+        code.op( 0x01 ); // aconst_null
+        int end = code.jump( 0xa7 ); // goto
+        code.label( isFalse );
+        coerce( expr( node.operand ), OBJECT );
+        code.label( end );
+
+        return OBJECT;
+    }
+
+    private int isNull( ExprNode.IsNullNode node )
+    {
+        int type = expr( node.operand );
+
+        if ( type != OBJECT ) // Generated primitives and strings are never null
+        {
+            code.op( type == DOUBLE ? 0x58 : 0x57 ); // pop2 / pop
+            code.op( 0x03 ); // iconst_0
+            return BOOLEAN;
+        }
+
+        int notNull = code.jump( 0xc7 ); // ifnonnull
+        code.op( 0x04 ); // iconst_1
+        int end = code.jump( 0xa7 ); // goto
+        code.label( notNull );
+        code.op( 0x03 ); // iconst_0
+        code.label( end );
+
+        return BOOLEAN;
+    }
+
+    private int coalesce( ExprNode.CoalesceNode node )
+    {
+        List<Integer> ends = new ArrayList<>();
+
+        for ( ExprNode arg : node.args )
+        {
+            int type = expr( arg );
+
+            coerce( type, OBJECT );
+
+            if ( type != OBJECT ) // Never null, so later arguments are not needed
+            {
+                break;
+            }
+
+            code.op( 0x59 ); // dup
+            ends.add( code.jump( 0xc7 ) ); // ifnonnull
+            code.op( 0x57 ); // pop
+
+            if ( arg == node.args[node.args.length - 1] )
+            {
+                code.op( 0x01 ); // aconst_null
+            }
+        }
+
+        for ( int end : ends )
+        {
+            code.label( end );
+        }
+
+        return OBJECT;
+    }
+
+    /**
+     * Converts the value on the stack from one static type to another,
+     * using the same casts as the node tree.
+     */
+    private void coerce( int from, int to )
+    {
+        if ( from == to )
+        {
+            return;
+        }
+
+        if ( from == DOUBLE )
+        {
+            code.op( 0xb8 ).u2( pool.methodRef( "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;" ) ); // invokestatic
+        }
+        else if ( from == BOOLEAN )
+        {
+            code.op( 0xb8 ).u2( pool.methodRef( "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;" ) ); // invokestatic
+        }
+
+        if ( to == DOUBLE )
+        {
+            code.op( 0xb8 ).u2( pool.methodRef( "Values", "castDouble", "(Ljava/lang/Object;)Ljava/lang/Double;" ) ); // invokestatic
+            code.op( 0xb6 ).u2( pool.methodRef( "java/lang/Double", "doubleValue", "()D" ) ); // invokevirtual
+        }
+        else if ( to == BOOLEAN )
+        {
+            code.op( 0xb8 ).u2( pool.methodRef( "Values", "castBoolean", "(Ljava/lang/Object;)Ljava/lang/Boolean;" ) ); // invokestatic
+            code.op( 0xb6 ).u2( pool.methodRef( "java/lang/Boolean", "booleanValue", "()Z" ) ); // invokevirtual
+        }
+        else if ( to == STRING )
+        {
+            code.op( 0xb8 ).u2( pool.methodRef( "Values", "castString", "(Ljava/lang/Object;)Ljava/lang/String;" ) ); // invokestatic
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Finds the static type that {@link #expr} will generate for a node,
+     * without generating it.
+     */
+    private static int typeOf( ExprNode node )
+    {
+        if ( !isGenerated( node ) )
+        {
+            return node.type() == ExprNode.Type.NUMBER ? DOUBLE
+                : node.type() == ExprNode.Type.BOOLEAN ? BOOLEAN
+                : OBJECT;
+        }
+        else if ( node instanceof ExprNode.LiteralNode )
+        {
+            Object value = ( (ExprNode.LiteralNode) node ).value;
+
+            return value instanceof Double ? DOUBLE : value instanceof Boolean ? BOOLEAN : STRING;
+        }
+        else if ( node instanceof ExprNode.NegateNode
+            || node instanceof ExprNode.SubtractNode
+            || node instanceof ExprNode.MultiplyNode
+            || node instanceof ExprNode.DivideNode
+            || node instanceof ExprNode.ModNode
+            || node instanceof ExprNode.PowerNode
+            || node instanceof ExprNode.NumericAddNode )
+        {
+            return DOUBLE;
+        }
+        else if ( node instanceof ExprNode.ConcatNode )
+        {
+            return STRING;
+        }
+        else if ( node instanceof ExprNode.AddNode )
+        {
+            int left = typeOf( ( (ExprNode.AddNode) node ).left );
+
+            return left == DOUBLE || left == STRING ? left : OBJECT;
+        }
+        else if ( node instanceof ExprNode.NotNode
+            || node instanceof ExprNode.Binary
+            || node instanceof ExprNode.IsNullNode )
+        {
+            return BOOLEAN;
+        }
+        else if ( node instanceof ExprNode.IfNode )
+        {
+            ExprNode.IfNode ifNode = (ExprNode.IfNode) node;
+
+            return typeOf( ifNode.ifTrue ) == typeOf( ifNode.ifFalse ) ? typeOf( ifNode.ifTrue ) : OBJECT;
+        }
+
+        return OBJECT;
+    }
+
+    private static int depth( ExprNode node )
+    {
+        if ( !isGenerated( node ) )
+        {
+            return 1;
+        }
+
+        int depth = 0;
+
+        for ( ExprNode child : children( node ) )
+        {
+            depth = Math.max( depth, depth( child ) );
+        }
+
+        return depth + 1;
+    }
+
+    private static List<ExprNode> children( ExprNode node )
+    {
+        if ( node instanceof ExprNode.Binary )
+        {
+            return Arrays.asList( ( (ExprNode.Binary) node ).left, ( (ExprNode.Binary) node ).right );
+        }
+        else if ( node instanceof ExprNode.ExceptNode )
+        {
+            return Arrays.asList( ( (ExprNode.ExceptNode) node ).operand, ( (ExprNode.ExceptNode) node ).test );
+        }
+        else if ( node instanceof ExprNode.Unary )
+        {
+            return Arrays.asList( ( (ExprNode.Unary) node ).operand );
+        }
+        else if ( node instanceof ExprNode.IfNode )
+        {
+            ExprNode.IfNode ifNode = (ExprNode.IfNode) node;
+
+            return Arrays.asList( ifNode.test, ifNode.ifTrue, ifNode.ifFalse );
+        }
+        else if ( node instanceof ExprNode.CoalesceNode )
+        {
+            return Arrays.asList( ( (ExprNode.CoalesceNode) node ).args );
+        }
+
+        return new ArrayList<>();
+    }
+
+    // -------------------------------------------------------------------------
+    // Class file writing
+    // -------------------------------------------------------------------------
+
+    private static class ByteWriter
+    {
+        byte[] buf = new byte[256];
+
+        int length = 0;
+
+        ByteWriter u1( int b )
+        {
+            if ( length == buf.length )
+            {
+                buf = Arrays.copyOf( buf, buf.length * 2 );
+            }
+
+            buf[length++] = (byte) b;
+
+            return this;
+        }
+
+        ByteWriter u2( int s )
+        {
+            return u1( s >>> 8 ).u1( s );
+        }
+
+        ByteWriter u4( int i )
+        {
+            return u2( i >>> 16 ).u2( i );
+        }
+
+        ByteWriter bytes( byte[] bytes )
+        {
+            for ( byte b : bytes )
+            {
+                u1( b );
+            }
+
+            return this;
+        }
+
+        int length()
+        {
+            return length;
+        }
+
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf( buf, length );
+        }
+    }
+
+    /**
+     * Method code, with forward jumps that are patched when their target
+     * label is reached.
+     */
+    private static class Code extends ByteWriter
+    {
+        Code op( int opcode )
+        {
+            u1( opcode );
+
+            return this;
+        }
+
+        /**
+         * Writes a forward jump and returns its position for {@link #label}.
+         */
+        int jump( int opcode )
+        {
+            int at = length();
+
+            u1( opcode ).u2( 0 );
+
+            return at;
+        }
+
+        /**
+         * Makes a forward jump land at the current position.
+         */
+        void label( int jump )
+        {
+            int offset = length() - jump;
+
+            buf[jump + 1] = (byte) ( offset >>> 8 );
+            buf[jump + 2] = (byte) offset;
+        }
+    }
+
+    private static class ConstantPool
+    {
+        private final ByteWriter entries = new ByteWriter();
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private int count = 1;
+
+        int utf8( String s )
+        {
+            return entry( "U" + s, () -> {
+                byte[] bytes = s.getBytes( StandardCharsets.UTF_8 ); // (No embedded nulls or supplementary characters in names)
+                entries.u1( 1 ).u2( bytes.length ).bytes( bytes );
+            }, 1 );
+        }
+
+        int classRef( String name )
+        {
+            int nameIndex = utf8( name );
+            return entry( "C" + name, () -> entries.u1( 7 ).u2( nameIndex ), 1 );
+        }
+
+        int string( String s )
+        {
+            int index = modifiedUtf8( s );
+            return entry( "S" + s, () -> entries.u1( 8 ).u2( index ), 1 );
+        }
+
+        int doubleConstant( double d )
+        {
+            long bits = Double.doubleToRawLongBits( d );
+            return entry( "D" + bits, () -> entries.u1( 6 ).u4( (int) ( bits >>> 32 ) ).u4( (int) bits ), 2 );
+        }
+
+        int fieldRef( int owner, String name, String descriptor )
+        {
+            int nameAndType = nameAndType( name, descriptor );
+            return entry( "F" + owner + "." + name, () -> entries.u1( 9 ).u2( owner ).u2( nameAndType ), 1 );
+        }
+
+        int methodRef( String owner, String name, String descriptor )
+        {
+            int ownerIndex = classRef( owner );
+            int nameAndType = nameAndType( name, descriptor );
+            return entry( "M" + owner + "." + name + descriptor, () -> entries.u1( 10 ).u2( ownerIndex ).u2( nameAndType ), 1 );
+        }
+
+        void write( ByteWriter out )
+        {
+            out.u2( count );
+            out.bytes( entries.toByteArray() );
+        }
+
+        private int nameAndType( String name, String descriptor )
+        {
+            int nameIndex = utf8( name );
+            int descriptorIndex = utf8( descriptor );
+            return entry( "N" + name + descriptor, () -> entries.u1( 12 ).u2( nameIndex ).u2( descriptorIndex ), 1 );
+        }
+
+        /**
+         * Adds a string literal as a modified UTF-8 constant, which encodes
+         * nulls and supplementary characters differently from UTF-8.
+         */
+        private int modifiedUtf8( String s )
+        {
+            return entry( "U" + s, () -> {
+                ByteWriter bytes = new ByteWriter();
+
+                for ( int i = 0; i < s.length(); i++ )
+                {
+                    char c = s.charAt( i );
+
+                    if ( c >= 0x01 && c <= 0x7f )
+                    {
+                        bytes.u1( c );
+                    }
+                    else if ( c <= 0x7ff )
+                    {
+                        bytes.u1( 0xc0 | ( c >> 6 ) ).u1( 0x80 | ( c & 0x3f ) );
+                    }
+                    else
+                    {
+                        bytes.u1( 0xe0 | ( c >> 12 ) ).u1( 0x80 | ( ( c >> 6 ) & 0x3f ) ).u1( 0x80 | ( c & 0x3f ) );
+                    }
+                }
+
+                entries.u1( 1 ).u2( bytes.length() ).bytes( bytes.toByteArray() );
+            }, 1 );
+        }
+
+        private int entry( String key, Runnable writer, int slots )
+        {
+            Integer index = indexes.get( key );
+
+            if ( index == null )
+            {
+                index = count;
+                writer.run();
+                count += slots;
+                indexes.put( key, index );
+            }
+
+            return index;
+        }
+    }
+}
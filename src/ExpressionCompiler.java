@@ -0,0 +1,367 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a parsed expression into a tree of {@link ExprNode}s.
+ * <p/>
+ * The compiler does the work that {@link ExpressionChecker} repeats at
+ * every node of every evaluation (finding the function type, looking up
+ * the child contexts) once, when the expression is compiled.
+ */
+public class ExpressionCompiler
+{
+    private ExpressionCompiler()
+    {
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Compiles an expression parse tree.
+     *
+     * @param ctx the expression context (which should have been checked.)
+     * @return the compiled expression node tree.
+     */
+    public static ExprNode compile( ExpressionParser.ExprContext ctx )
+    {
+        return compile( ctx, new SlotLayout() );
+    }
+
+    /**
+     * Compiles an expression parse tree, giving its dimension items and
+     * constants slots in a layout.
+     *
+     * @param ctx the expression context (which should have been checked.)
+     * @param layout the slot layout.
+     * @return the compiled expression node tree.
+     */
+    public static ExprNode compile( ExpressionParser.ExprContext ctx, SlotLayout layout )
+    {
+        return compile( ctx, new HashMap<>(), layout );
+    }
+
+    /**
+     * Compiles an expression parse tree, sharing order statistic operands.
+     *
+     * @param ctx the expression context.
+     * @param orderStatisticOperands the operand nodes of the medians and
+     *        percentiles compiled so far, by their expression text.
+     * @param layout the slot layout.
+     * @return the compiled expression node tree.
+     */
+    private static ExprNode compile( ExpressionParser.ExprContext ctx, Map<String, ExprNode> orderStatisticOperands, SlotLayout layout )
+    {
+        if ( ctx.fun != null )
+        {
+            List<ExprNode> exprs;
+
+            int fun = ExpressionChecker.funType( ctx.fun );
+
+            if ( fun == ExpressionParser.MEDIAN || fun == ExpressionParser.PERCENTILE )
+            {
+                // Order statistics of the same scope get the same operand
+                // node, so they can share one sorted view when evaluated.
+
+                String text = ctx.expr( 0 ).getText();
+
+                ExprNode operand = orderStatisticOperands.get( text );
+
+                if ( operand == null )
+                {
+                    operand = compile( ctx.expr( 0 ), orderStatisticOperands, layout );
+
+                    orderStatisticOperands.put( text, operand );
+                }
+
+                exprs = Collections.singletonList( operand );
+            }
+            else
+            {
+                exprs = compileAll( ctx.expr(), orderStatisticOperands, layout );
+            }
+
+            return function( fun, exprs, compileAll( arguments( ctx ), orderStatisticOperands, layout ) );
+        }
+        else if ( ctx.expr( 0 ) != null ) // pass through the expression
+        {
+            return compile( ctx.expr( 0 ), orderStatisticOperands, layout );
+        }
+        else if ( ctx.value() != null )
+        {
+            return value( ctx.value(), layout );
+        }
+        else
+        {
+            if ( ctx.programIndicatorExpr().programIndicatorVariable() != null )
+            {
+                throw new ParsingException( "Program indicator variable is not valid in this expression." );
+            }
+
+            throw new ParsingException( "Program indicator function is not valid in this expression." );
+        }
+    }
+
+    /**
+     * Makes the node for a function or operator.
+     *
+     * @param fun the function type (an {@link ExpressionParser} token type).
+     * @param exprs the operand expression(s).
+     * @param args the function arguments, if any.
+     * @return the node.
+     */
+    public static ExprNode function( int fun, List<ExprNode> exprs, List<ExprNode> args )
+    {
+        switch ( fun )
+        {
+            // -----------------------------------------------------------------
+            // Arithmetic Operators (return Double)
+            // -----------------------------------------------------------------
+
+            case ExpressionParser.MINUS:
+                if ( exprs.size() > 1 ) // Subtract operator
+                {
+                    return new ExprNode.SubtractNode( exprs.get( 0 ), exprs.get( 1 ) );
+                }
+                else // Unary Negative operator
+                {
+                    return new ExprNode.NegateNode( exprs.get( 0 ) );
+                }
+
+            case ExpressionParser.PLUS: // String concatenation or numeric addition
+                if ( exprs.get( 0 ).type() == ExprNode.Type.NUMBER )
+                {
+                    return new ExprNode.NumericAddNode( exprs.get( 0 ), exprs.get( 1 ) );
+                }
+                else if ( exprs.get( 0 ).type() == ExprNode.Type.STRING )
+                {
+                    return new ExprNode.ConcatNode( exprs.get( 0 ), exprs.get( 1 ) );
+                }
+
+                return new ExprNode.AddNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.POWER:
+                return new ExprNode.PowerNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.MUL:
+                return new ExprNode.MultiplyNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.DIV:
+                return new ExprNode.DivideNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.MOD:
+                return new ExprNode.ModNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            // -----------------------------------------------------------------
+            // Logical Operators (return Boolean)
+            // -----------------------------------------------------------------
+
+            case ExpressionParser.NOT:
+                return new ExprNode.NotNode( exprs.get( 0 ) );
+
+            case ExpressionParser.LEQ:
+                return new ExprNode.LeqNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.GEQ:
+                return new ExprNode.GeqNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.LT:
+                return new ExprNode.LtNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.GT:
+                return new ExprNode.GtNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.EQ:
+                return new ExprNode.EqNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.NE:
+                return new ExprNode.NeNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.AND:
+                return new ExprNode.AndNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            case ExpressionParser.OR:
+                return new ExprNode.OrNode( exprs.get( 0 ), exprs.get( 1 ) );
+
+            // -----------------------------------------------------------------
+            // Logical functions
+            // -----------------------------------------------------------------
+
+            case ExpressionParser.IF:
+                return new ExprNode.IfNode( exprs.get( 0 ), args.get( 0 ), args.get( 1 ) );
+
+            case ExpressionParser.EXCEPT:
+                return new ExprNode.ExceptNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.IS_NULL:
+                return new ExprNode.IsNullNode( exprs.get( 0 ) );
+
+            case ExpressionParser.COALESCE:
+                return new ExprNode.CoalesceNode( args.toArray( new ExprNode[0] ) );
+
+            // -----------------------------------------------------------------
+            // Aggregation functions
+            // -----------------------------------------------------------------
+
+            case ExpressionParser.LAST:
+                return new ExprNode.LastNode( exprs.get( 0 ), args.isEmpty() ? null : args.get( 0 ) );
+
+            case ExpressionParser.SUM:
+                return new ExprNode.SumNode( exprs.get( 0 ) );
+
+            case ExpressionParser.MAX:
+                return new ExprNode.MaxNode( exprs.get( 0 ) );
+
+            case ExpressionParser.MIN:
+                return new ExprNode.MinNode( exprs.get( 0 ) );
+
+            case ExpressionParser.AVERAGE:
+                return new ExprNode.AverageNode( exprs.get( 0 ) );
+
+            case ExpressionParser.STDDEV:
+                return new ExprNode.StdDevNode( exprs.get( 0 ) );
+
+            case ExpressionParser.VARIANCE:
+                return new ExprNode.VarianceNode( exprs.get( 0 ) );
+
+            case ExpressionParser.MEDIAN:
+                return new ExprNode.MedianNode( exprs.get( 0 ) );
+
+            case ExpressionParser.PERCENTILE:
+                return new ExprNode.PercentileNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.RANK_HIGH:
+                return new ExprNode.RankHighNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.RANK_LOW:
+                return new ExprNode.RankLowNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.RANK_PERCENTILE_HIGH:
+                return new ExprNode.RankPercentileHighNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.RANK_PERCENTILE_LOW:
+                return new ExprNode.RankPercentileLowNode( exprs.get( 0 ), args.get( 0 ) );
+
+            // -----------------------------------------------------------------
+            // Aggregation scope functions
+            // -----------------------------------------------------------------
+
+            case ExpressionParser.PERIOD:
+                if ( args.size() == 1 ) // Single period shift returns single value.
+                {
+                    return new ExprNode.PeriodShiftNode( exprs.get( 0 ), args.get( 0 ) );
+                }
+
+                return new ExprNode.PeriodScopeNode( exprs.get( 0 ), args.toArray( new ExprNode[0] ) );
+
+            case ExpressionParser.OU_LEVEL:
+                return new ExprNode.OuLevelNode( exprs.get( 0 ), args.get( 0 ), arg( args, 1 ) );
+
+            case ExpressionParser.OU_ANCESTOR:
+                return new ExprNode.OuAncestorNode( exprs.get( 0 ), args.get( 0 ) );
+
+            case ExpressionParser.OU_DESCENDANT:
+                return new ExprNode.OuDescendantNode( exprs.get( 0 ), args.get( 0 ), arg( args, 1 ) );
+
+            case ExpressionParser.OU_PEER:
+                return new ExprNode.OuPeerNode( exprs.get( 0 ), args.get( 0 ), arg( args, 1 ) );
+
+            case ExpressionParser.OU_GROUP:
+                return new ExprNode.OuGroupNode( exprs.get( 0 ), args.toArray( new ExprNode[0] ) );
+
+            default: // (Shouldn't happen, mismatch between expression grammer and here.)
+                throw new ParsingException( "fun=" + fun + " not recognized." );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static ExprNode value( ExpressionParser.ValueContext ctx, SlotLayout layout )
+    {
+        if ( ctx.dimensionItemObject() != null )
+        {
+            return new ExprNode.DimensionItemNode( ctx.getText(), layout );
+        }
+        else if ( ctx.orgUnitCount() != null )
+        {
+            return new ExprNode.OrgUnitCountNode( ctx.orgUnitCount().getToken( ExpressionParser.UID, 0 ).getText() );
+        }
+        else if ( ctx.reportingRate() != null )
+        {
+            return new ExprNode.ReportingRateNode();
+        }
+        else if ( ctx.constant() != null )
+        {
+            return new ExprNode.ConstantNode( ctx.constant().getToken( ExpressionParser.UID, 0 ).getText(), layout );
+        }
+        else if ( ctx.days() != null )
+        {
+            return new ExprNode.DaysNode();
+        }
+        else if ( ctx.numericLiteral() != null )
+        {
+            return new ExprNode.LiteralNode( Double.valueOf( ctx.getText() ) );
+        }
+        else if ( ctx.stringLiteral() != null )
+        {
+            return new ExprNode.LiteralNode( ExpressionChecker.unquote( ctx.getText() ) );
+        }
+        else
+        {
+            return new ExprNode.LiteralNode( Boolean.valueOf( ctx.getText() ) );
+        }
+    }
+
+    /**
+     * Gets the argument expressions of a function, from whichever argument
+     * list the function has.
+     */
+    private static List<ExpressionParser.ExprContext> arguments( ExpressionParser.ExprContext ctx )
+    {
+        if ( ctx.a0_1() != null && ctx.a0_1().expr() != null )
+        {
+            return Collections.singletonList( ctx.a0_1().expr() );
+        }
+        else if ( ctx.a1() != null )
+        {
+            return Collections.singletonList( ctx.a1().expr() );
+        }
+        else if ( ctx.a1_2() != null )
+        {
+            return ctx.a1_2().expr();
+        }
+        else if ( ctx.a1_n() != null )
+        {
+            return ctx.a1_n().expr();
+        }
+        else if ( ctx.a2() != null )
+        {
+            return ctx.a2().expr();
+        }
+
+        return Collections.emptyList();
+    }
+
+    private static ExprNode arg( List<ExprNode> args, int i )
+    {
+        return i < args.size() ? args.get( i ) : null;
+    }
+
+    private static List<ExprNode> compileAll( List<ExpressionParser.ExprContext> ctxs, Map<String, ExprNode> orderStatisticOperands, SlotLayout layout )
+    {
+        List<ExprNode> nodes = new ArrayList<>( ctxs.size() );
+
+        for ( ExpressionParser.ExprContext c : ctxs )
+        {
+            nodes.add( compile( c, orderStatisticOperands, layout ) );
+        }
+
+        return nodes;
+    }
+}
@@ -1,31 +1,68 @@
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class ExpressionEvaluator extends ExpressionChecker
 {
-    private Map<String, Double> valueMap;
-
-    private Map<String, Double> constantMap;
-
     //TODO: This goes away when we finish the TODOs.
     private final static Double PLACEHOLDER = Double.valueOf( 2. );
 
     public ExpressionEvaluator( Map<String, Double> valueMap, Map<String, Double> constantMap )
     {
-        this.valueMap = valueMap;
-        this.constantMap = constantMap;
+        this( new EvalContext( valueMap, constantMap ) );
+    }
+
+    /**
+     * Makes an evaluator for evaluating at an orgUnit, so that orgUnit
+     * scope functions can be evaluated.
+     *
+     * @param valueMap the values.
+     * @param constantMap the constants.
+     * @param hierarchy the orgUnit hierarchy, or null if none.
+     * @param orgUnit the uid of the orgUnit to evaluate at.
+     * @throws IllegalArgumentException if the orgUnit is not in the
+     *         hierarchy.
+     */
+    public ExpressionEvaluator( Map<String, Double> valueMap, Map<String, Double> constantMap,
+        OrgUnitHierarchy hierarchy, String orgUnit )
+    {
+        this( new EvalContext( valueMap, constantMap, hierarchy, orgUnit ) );
+    }
+
+    /**
+     * Makes an evaluator that evaluates with a context: its values, and the
+     * period and orgUnit it starts at.
+     *
+     * @param evalContext the evaluation context.
+     */
+    public ExpressionEvaluator( EvalContext evalContext )
+    {
+        super( evalContext );
+    }
+
+    @Override
+    public Object visitDimensionItemObject( ExpressionParser.DimensionItemObjectContext ctx )
+    {
+        ValueSource valueSource = getEvalContext().getValueSource();
+
+        if ( valueSource != null )
+        {
+            return valueSource.getValue( ctx.getText(), getEvalContext().getCurrentOrgUnit(), getEvalContext().getCurrentPeriod() );
+        }
+
+        return super.visitDimensionItemObject( ctx );
     }
 
     @Override
     public Object visitConstant( ExpressionParser.ConstantContext ctx )
     {
-        return constantMap.get( ctx.getToken( ExpressionParser.UID, 0 ).getText() );
+        return getEvalContext().getConstantMap().get( ctx.getToken( ExpressionParser.UID, 0 ).getText() );
     }
 
     @Override
     public Object visitOrgUnitCount( ExpressionParser.OrgUnitCountContext ctx )
     {
-        //TODO: write the real OrgUnitCount code
-        return PLACEHOLDER;
+        return Double.valueOf( getEvalContext().getOrgUnitGroups().count( ctx.getToken( ExpressionParser.UID, 0 ).getText(), getEvalContext().getCurrentOrgUnit() ) );
     }
 
     @Override
@@ -38,8 +75,7 @@ public class ExpressionEvaluator extends ExpressionChecker
     @Override
     public Object visitDays( ExpressionParser.DaysContext ctx )
     {
-        //TODO: write the real Days-in-the-month code
-        return 31.;
+        return Double.valueOf( Periods.days( getEvalContext().getCurrentPeriod() ) );
     }
 
     @Override
@@ -77,4 +113,129 @@ public class ExpressionEvaluator extends ExpressionChecker
         }
         return null;
     }
+
+    // -------------------------------------------------------------------------
+    // OrgUnit scopes
+    // -------------------------------------------------------------------------
+
+    @Override
+    protected void scanOuLevel( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        OrgUnitHierarchy hierarchy = getEvalContext().getHierarchy();
+
+        int levelFrom = evalIntDefault( ctx.a1_2().expr( 0 ), 0 );
+        int levelTo = evalIntDefault( ctx.a1_2().expr( 1 ), levelFrom );
+
+        scanOrgUnits( ctx, sink, action ->
+        {
+            for ( int level = levelFrom; level <= levelTo; level++ )
+            {
+                hierarchy.scanLevel( level, action );
+            }
+        } );
+    }
+
+    @Override
+    protected Object ouAncestor( ExpressionParser.ExprContext ctx )
+    {
+        EvalContext evalContext = getEvalContext();
+
+        int savedOrgUnit = evalContext.getCurrentOrgUnit();
+
+        int ancestor = evalContext.getHierarchy().ancestor( savedOrgUnit, evalIntDefault( ctx.a1_2().expr( 0 ), 0 ) );
+
+        if ( ancestor < 0 )
+        {
+            return null;
+        }
+
+        evalContext.setCurrentOrgUnit( ancestor );
+
+        Object value = visit( ctx.expr( 0 ) );
+
+        evalContext.setCurrentOrgUnit( savedOrgUnit );
+
+        return value;
+    }
+
+    @Override
+    protected void scanOuDescendant( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        OrgUnitHierarchy hierarchy = getEvalContext().getHierarchy();
+
+        int generationsFrom = evalIntDefault( ctx.a1_2().expr( 0 ), 0 );
+        int generationsTo = evalIntDefault( ctx.a1_2().expr( 1 ), generationsFrom );
+
+        int orgUnit = getEvalContext().getCurrentOrgUnit();
+
+        scanOrgUnits( ctx, sink, action ->
+        {
+            for ( int generations = generationsFrom; generations <= generationsTo; generations++ )
+            {
+                hierarchy.scanDescendants( orgUnit, generations, action );
+            }
+        } );
+    }
+
+    @Override
+    protected void scanOuPeer( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        OrgUnitHierarchy hierarchy = getEvalContext().getHierarchy();
+
+        int removedFrom = evalIntDefault( ctx.a1_2().expr( 0 ), 0 );
+        int removedTo = evalIntDefault( ctx.a1_2().expr( 1 ), removedFrom );
+
+        int orgUnit = getEvalContext().getCurrentOrgUnit();
+
+        scanOrgUnits( ctx, sink, action -> hierarchy.scanPeers( orgUnit, removedFrom, removedTo, action ) );
+    }
+
+    @Override
+    protected void scanOuGroup( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        getEvalContext().getHierarchy();
+
+        OrgUnitGroups groups = getEvalContext().getOrgUnitGroups();
+
+        String[] uids = ctx.a1_n().expr().stream().map( g -> castString( visit( g ) ) ).toArray( String[]::new );
+
+        scanOrgUnits( ctx, sink, groups.getMembers( uids )::forEach );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Evaluates the operand of an orgUnit scope at each orgUnit in the
+     * scope, passing each value to a sink.
+     *
+     * @param ctx the parsing context.
+     * @param sink the sink for the values.
+     * @param scope scans the orgUnits in the scope, from the current one.
+     */
+    private void scanOrgUnits( ExpressionParser.ExprContext ctx, ValueSink sink, Consumer<IntConsumer> scope )
+    {
+        EvalContext evalContext = getEvalContext();
+
+        int savedOrgUnit = evalContext.getCurrentOrgUnit();
+
+        ExpressionMetrics metrics = Instrumentation.get();
+
+        ValueSink target = metrics.isEnabled() ? new CountingSink( sink ) : sink;
+
+        scope.accept( orgUnit ->
+        {
+            evalContext.setCurrentOrgUnit( orgUnit );
+
+            target.addValue( visit( ctx.expr( 0 ) ) );
+        } );
+
+        evalContext.setCurrentOrgUnit( savedOrgUnit );
+
+        if ( target != sink )
+        {
+            metrics.recordScopeSize( ctx.fun.getType(), ( (CountingSink) target ).getCount() );
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/**
+ * Receives measurements of expression processing: the latency of each
+ * phase, the functions type-checked, expression cache lookups, and the
+ * number of values in each period or orgUnit scope evaluated.
+ * <p/>
+ * The metrics in use are set with {@link Instrumentation#set}. By default
+ * they are {@link #NOOP}, which is not enabled, so the measuring code
+ * reads no clocks and allocates nothing. All methods may be called by
+ * many threads at once.
+ * <p/>
+ * {@link InMemoryMetrics} keeps the measurements itself, for tests and
+ * tools, and {@link RegistryMetrics} passes them to an external registry
+ * through a {@link MetricsRegistry}.
+ */
+public interface ExpressionMetrics
+{
+    /**
+     * Metrics that record nothing.
+     */
+    ExpressionMetrics NOOP = new ExpressionMetrics()
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return false;
+        }
+    };
+
+    /**
+     * The phases of processing an expression.
+     */
+    enum Phase
+    {
+        LEX, PARSE, CHECK, EVAL
+    }
+
+    /**
+     * Whether measurements are wanted. Callers check this before measuring
+     * anything that costs time, such as reading the clock.
+     */
+    default boolean isEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * Records the time taken by one phase of processing an expression.
+     *
+     * @param phase the phase.
+     * @param nanos the time taken, in nanoseconds.
+     */
+    default void recordLatency( Phase phase, long nanos )
+    {
+    }
+
+    /**
+     * Counts a function or operator type-checked (or evaluated by a
+     * visitor) in {@link ExpressionChecker#function}.
+     *
+     * @param tokenType the {@link ExpressionParser} token type of the
+     *                  function, such as ExpressionParser.PLUS.
+     */
+    default void countFunction( int tokenType )
+    {
+    }
+
+    /**
+     * Records an {@link ExpressionCache} lookup.
+     *
+     * @param hit true if the expression was found in the cache.
+     */
+    default void recordCacheAccess( boolean hit )
+    {
+    }
+
+    /**
+     * Records the number of values found by a period or orgUnit scope.
+     *
+     * @param tokenType the {@link ExpressionParser} token type of the
+     *                  scope function, such as ExpressionParser.OU_DESCENDANT.
+     * @param values the number of values.
+     */
+    default void recordScopeSize( int tokenType, int values )
+    {
+    }
+}
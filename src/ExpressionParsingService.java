@@ -0,0 +1,306 @@
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lexes and parses expressions in two stages (after trying the
+ * {@link ExpressionPrattParser}, which parses most valid expressions
+ * without ANTLR.)
+ * <p/>
+ * The expr rule is left-recursive with many alternatives, so full LL
+ * prediction is expensive. Most expressions are valid, and SLL
+ * prediction (which ignores the parser call stack) parses valid input
+ * the same way, much faster. So each expression is first parsed with SLL
+ * and a {@link BailErrorStrategy}, which gives up at the first syntax
+ * error instead of recovering. Only if that fails is it parsed again with
+ * full LL and the default error recovery, collecting the errors exactly
+ * as a single full LL parse would.
+ * <p/>
+ * If the lexer finds an error in the first stage, the expression is lexed
+ * again in the second, so lexer and parser errors are reported together
+ * and in order.
+ * <p/>
+ * Each thread keeps one lexer and parser, which are reset for each
+ * expression instead of being made again, along with their token stream,
+ * error strategies and error listener. (The prediction DFAs are shared by
+ * all lexer and parser instances, so they stay warm either way.)
+ */
+public class ExpressionParsingService
+{
+    /**
+     * Each thread's lexer and parser, which are reset for each expression.
+     */
+    private static final ThreadLocal<Parsers> PARSERS = ThreadLocal.withInitial( Parsers::new );
+
+    private ExpressionParsingService()
+    {
+    }
+
+    /**
+     * A lexer and parser, with their token stream and error listener. The
+     * listener is on the lexer all the time, and on the parser only for
+     * full LL parsing.
+     */
+    private static final class Parsers
+    {
+        final AntlrErrorListener errorListener = new AntlrErrorListener();
+
+        final TimedLexer lexer = new TimedLexer();
+
+        final CommonTokenStream tokens = new CommonTokenStream( lexer );
+
+        final ExpressionParser parser = new ExpressionParser( tokens );
+
+        final BailErrorStrategy bailErrorStrategy = new BailErrorStrategy();
+
+        final DefaultErrorStrategy defaultErrorStrategy = new DefaultErrorStrategy();
+
+        Parsers()
+        {
+            lexer.removeErrorListeners(); // Remove default lexer error listener (prints to console)
+            lexer.addErrorListener( errorListener );
+            parser.removeErrorListeners(); // Remove default parser error listener (prints to console)
+        }
+
+        /**
+         * Starts lexing and parsing a new expression.
+         *
+         * @param expression the expression text.
+         * @param fullLL true for full LL, false for SLL bailing out at the
+         *               first error.
+         */
+        void start( String expression, boolean fullLL )
+        {
+            errorListener.returnErrors();
+
+            lexer.setInputStream( CharStreams.fromString( expression ) );
+            tokens.setTokenSource( lexer );
+
+            restart( fullLL );
+        }
+
+        /**
+         * Restarts parsing from the current token stream position.
+         */
+        void restart( boolean fullLL )
+        {
+            parser.setTokenStream( tokens );
+            parser.setState( ATNState.INVALID_STATE_NUMBER ); // Not reset by the parser, and taken as the invoking state of the top context
+            parser.removeErrorListeners();
+
+            if ( fullLL )
+            {
+                parser.addErrorListener( errorListener );
+            }
+
+            parser.setErrorHandler( fullLL ? defaultErrorStrategy : bailErrorStrategy );
+            parser.getInterpreter().setPredictionMode( fullLL ? PredictionMode.LL : PredictionMode.SLL );
+        }
+    }
+
+    /**
+     * A lexer that can add the time it takes to make each token to a total,
+     * for metrics.
+     */
+    private static final class TimedLexer extends ExpressionLexer
+    {
+        long[] lexNanos; // The total in the first element, or null if not timing
+
+        TimedLexer()
+        {
+            super( null );
+        }
+
+        @Override
+        public Token nextToken()
+        {
+            if ( lexNanos == null )
+            {
+                return super.nextToken();
+            }
+
+            long start = System.nanoTime();
+
+            try
+            {
+                return super.nextToken();
+            }
+            finally
+            {
+                lexNanos[0] += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * The outcome of parsing an expression: a parse tree, or the syntax
+     * errors.
+     */
+    public static final class Result
+    {
+        private final ParseTree tree;
+
+        private final List<Diagnostic> diagnostics;
+
+        private final int tokenCount;
+
+        private Result( ParseTree tree, List<Diagnostic> diagnostics, int tokenCount )
+        {
+            this.tree = tree;
+            this.diagnostics = diagnostics;
+            this.tokenCount = tokenCount;
+        }
+
+        /**
+         * Gets the parse tree, or null if there were syntax errors.
+         */
+        public ParseTree getTree()
+        {
+            return tree;
+        }
+
+        /**
+         * Gets the syntax errors, or null if there were none.
+         */
+        public String getErrors()
+        {
+            return diagnostics.isEmpty() ? null : AntlrErrorListener.messages( diagnostics );
+        }
+
+        /**
+         * Gets the syntax errors, with their positions, or an empty list if
+         * there were none.
+         */
+        public List<Diagnostic> getDiagnostics()
+        {
+            return diagnostics;
+        }
+
+        /**
+         * Gets the number of tokens read by the parser.
+         */
+        public int getTokenCount()
+        {
+            return tokenCount;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Lexes and parses an expression.
+     *
+     * @param expression the expression text.
+     * @return the parse tree or the syntax errors.
+     */
+    public static Result parse( String expression )
+    {
+        ExpressionMetrics metrics = Instrumentation.get();
+
+        if ( !metrics.isEnabled() )
+        {
+            return parse( expression, null );
+        }
+
+        long[] lexNanos = new long[1];
+
+        long start = System.nanoTime();
+
+        Result result = parse( expression, lexNanos );
+
+        long nanos = System.nanoTime() - start;
+
+        metrics.recordLatency( ExpressionMetrics.Phase.LEX, lexNanos[0] );
+        metrics.recordLatency( ExpressionMetrics.Phase.PARSE, nanos - lexNanos[0] );
+
+        return result;
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Lexes and parses an expression, timing the lexing if lexNanos is not
+     * null. (ANTLR lexes as the parser reads tokens, so its lexer times
+     * each token.)
+     *
+     * @param expression the expression text.
+     * @param lexNanos if not null, the nanoseconds spent lexing are added
+     *                 to its first element.
+     * @return the parse tree or the syntax errors.
+     */
+    private static Result parse( String expression, long[] lexNanos )
+    {
+        ExpressionParser.ExprContext fast = ExpressionPrattParser.parse( expression, lexNanos );
+
+        if ( fast != null )
+        {
+            return new Result( fast, Collections.emptyList(), ExpressionPrattParser.tokenCount( fast ) );
+        }
+
+        Parsers parsers = PARSERS.get();
+
+        parsers.lexer.lexNanos = lexNanos;
+
+        parsers.start( expression, false );
+
+        try
+        {
+            ParseTree tree = parsers.parser.expr();
+
+            if ( !parsers.errorListener.hasErrors() )
+            {
+                return new Result( tree, Collections.emptyList(), parsers.tokens.size() );
+            }
+
+            return parseLL( parsers, expression ); // Lexer error
+        }
+        catch ( ParseCancellationException ex )
+        {
+            // Syntax error, or SLL could not decide: parse again with full LL.
+        }
+
+        if ( parsers.errorListener.hasErrors() )
+        {
+            return parseLL( parsers, expression ); // Lexer error, to be reported in order with the parser errors
+        }
+
+        // The tokens read so far had no lexer errors, so they are reused.
+
+        parsers.tokens.seek( 0 );
+        parsers.restart( true );
+
+        return result( parsers.parser.expr(), parsers.errorListener, parsers.tokens );
+    }
+
+    /**
+     * Lexes and parses an expression from the start with full LL
+     * prediction and the default error recovery, collecting lexer and
+     * parser errors.
+     */
+    private static Result parseLL( Parsers parsers, String expression )
+    {
+        parsers.start( expression, true );
+
+        return result( parsers.parser.expr(), parsers.errorListener, parsers.tokens );
+    }
+
+    private static Result result( ParseTree tree, AntlrErrorListener errorListener, CommonTokenStream tokens )
+    {
+        List<Diagnostic> diagnostics = errorListener.returnDiagnostics(); // Collect errors if any
+
+        return new Result( diagnostics.isEmpty() ? tree : null, diagnostics, tokens.size() );
+    }
+}
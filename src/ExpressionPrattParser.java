@@ -0,0 +1,865 @@
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hand-written lexer and Pratt (precedence climbing) parser for the
+ * expression grammar, as a fast front end to the ANTLR parser.
+ * <p/>
+ * It builds the same parse tree as {@link ExpressionParser} would, out of
+ * the same context classes, so the tree is checked, compiled, evaluated
+ * and analysed exactly as before. The speed comes from not running the
+ * ANTLR prediction machinery: each token says what comes next, so no
+ * lookahead is needed.
+ * <p/>
+ * It handles valid expressions only. Given anything it is not sure the
+ * ANTLR parser would parse the same way (a syntax error, a lexer error,
+ * or a program indicator expression), it returns null, and the caller
+ * parses with ANTLR instead, which stays the reference: it gives the
+ * errors, and the definition of what is valid.
+ * <p/>
+ * The operator precedences are those ANTLR gives the left-recursive expr
+ * rule: each alternative binds tighter than the ones after it. The
+ * function suffixes (.sum() and so on) bind tightest, then ^ (right
+ * associative), then unary - and ! and +, then * / %, + -, comparisons,
+ * == !=, && and ||. As with the ANTLR parser, an expression ends at a
+ * token that can't continue it, and anything after that is ignored
+ * (except a '.', which the ANTLR parser takes as the start of a function
+ * and reports as an error.)
+ */
+public class ExpressionPrattParser
+{
+    // Precedences, as numbered by ANTLR in the generated parser.
+
+    private static final int POWER_PRECEDENCE = 11;
+
+    private static final int UNARY_PRECEDENCE = 10;
+
+    private static final int UNARY_PLUS_PRECEDENCE = 9;
+
+    /**
+     * Literal tokens (keywords and punctuation) by first character, each
+     * list longest first.
+     */
+    private static final String[][] LITERALS = new String[128][];
+
+    private static final int[][] LITERAL_TYPES = new int[128][];
+
+    private static final Map<String, Integer> TYPES = new HashMap<>();
+
+    /**
+     * The function suffixes: precedence and argument list, by the token
+     * type of the function name.
+     */
+    private static final Suffix[] SUFFIXES = new Suffix[ExpressionLexer.VOCABULARY.getMaxTokenType() + 1];
+
+    private static final int[] BINARY_PRECEDENCE = new int[ExpressionLexer.VOCABULARY.getMaxTokenType() + 1];
+
+    private static final int DOT;
+
+    private static final int COMMA;
+
+    private static final int LEFT_PAREN;
+
+    private static final int RIGHT_PAREN;
+
+    static
+    {
+        List<String> literals = new ArrayList<>();
+
+        for ( int type = 1; type <= ExpressionLexer.VOCABULARY.getMaxTokenType(); type++ )
+        {
+            String literal = ExpressionLexer.VOCABULARY.getLiteralName( type );
+
+            if ( literal != null )
+            {
+                literal = literal.substring( 1, literal.length() - 1 );
+
+                TYPES.put( literal, type );
+                literals.add( literal );
+            }
+        }
+
+        literals.sort( ( a, b ) -> b.length() - a.length() );
+
+        for ( char c = 0; c < 128; c++ )
+        {
+            final char first = c;
+
+            String[] byChar = literals.stream().filter( l -> l.charAt( 0 ) == first ).toArray( String[]::new );
+
+            LITERALS[c] = byChar;
+            LITERAL_TYPES[c] = Arrays.stream( byChar ).mapToInt( TYPES::get ).toArray();
+        }
+
+        DOT = TYPES.get( "." );
+        COMMA = TYPES.get( "," );
+        LEFT_PAREN = TYPES.get( "(" );
+        RIGHT_PAREN = TYPES.get( ")" );
+
+        suffix( "if", 34, Args.A2 );
+        suffix( "except", 33, Args.A1 );
+        suffix( "isNull", 32, Args.A1 );
+        suffix( "sum", 30, Args.A0 );
+        suffix( "max", 29, Args.A0 );
+        suffix( "min", 28, Args.A0 );
+        suffix( "average", 27, Args.A0 );
+        suffix( "stddev", 26, Args.A0 );
+        suffix( "variance", 25, Args.A0 );
+        suffix( "median", 24, Args.A0 );
+        suffix( "last", 23, Args.A0_1 );
+        suffix( "percentile", 22, Args.A1 );
+        suffix( "rankHigh", 21, Args.A1 );
+        suffix( "rankLow", 20, Args.A1 );
+        suffix( "rankPercentileHigh", 19, Args.A1 );
+        suffix( "rankPpercentileLow", 18, Args.A1 );
+        suffix( "period", 17, Args.A1_N );
+        suffix( "ouLevel", 16, Args.A1_2 );
+        suffix( "ouAncestor", 15, Args.A1_2 );
+        suffix( "ouDescendant", 14, Args.A1_2 );
+        suffix( "ouPeer", 13, Args.A1_2 );
+        suffix( "ouGroup", 12, Args.A1_N );
+
+        binary( 8, ExpressionParser.MUL, ExpressionParser.DIV, ExpressionParser.MOD );
+        binary( 7, ExpressionParser.PLUS, ExpressionParser.MINUS );
+        binary( 6, ExpressionParser.LEQ, ExpressionParser.GEQ, ExpressionParser.LT, ExpressionParser.GT );
+        binary( 5, ExpressionParser.EQ, ExpressionParser.NE );
+        binary( 4, ExpressionParser.AND );
+        binary( 3, ExpressionParser.OR );
+    }
+
+    private enum Args
+    {
+        A0, A0_1, A1, A1_2, A1_N, A2
+    }
+
+    private static final class Suffix
+    {
+        final int precedence;
+
+        final Args args;
+
+        Suffix( int precedence, Args args )
+        {
+            this.precedence = precedence;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Thrown to give up parsing, when the ANTLR parser is needed.
+     */
+    private static final class NotHandled extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        NotHandled()
+        {
+            super( null, null, false, false ); // No suppression or stack trace, so it can be shared
+        }
+    }
+
+    private static final NotHandled NOT_HANDLED = new NotHandled();
+
+    private final String input;
+
+    private final List<Token> tokens = new ArrayList<>();
+
+    private int next = 0; // Next token to parse.
+
+    private ExpressionPrattParser( String input )
+    {
+        this.input = input;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Parses an expression, if it can be parsed without ANTLR.
+     *
+     * @param expression the expression text.
+     * @return the parse tree, or null if the ANTLR parser is needed.
+     */
+    public static ExpressionParser.ExprContext parse( String expression )
+    {
+        return parse( expression, null );
+    }
+
+    /**
+     * Parses an expression, if it can be parsed without ANTLR, timing the
+     * lexing for metrics.
+     *
+     * @param expression the expression text.
+     * @param lexNanos if not null, the nanoseconds spent lexing are added
+     *                 to its first element.
+     * @return the parse tree, or null if the ANTLR parser is needed.
+     */
+    static ExpressionParser.ExprContext parse( String expression, long[] lexNanos )
+    {
+        ExpressionPrattParser parser = new ExpressionPrattParser( expression );
+
+        try
+        {
+            long start = lexNanos != null ? System.nanoTime() : 0;
+
+            try
+            {
+                parser.lex();
+            }
+            finally
+            {
+                if ( lexNanos != null )
+                {
+                    lexNanos[0] += System.nanoTime() - start;
+                }
+            }
+
+            return parser.expr( 0 );
+        }
+        catch ( NotHandled ex )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Counts the tokens of a parsed expression and the one after it, as
+     * the ANTLR token stream usually would have read them.
+     */
+    public static int tokenCount( ExpressionParser.ExprContext tree )
+    {
+        return tree.getStop().getTokenIndex() + 2;
+    }
+
+    // -------------------------------------------------------------------------
+    // Lexer
+    // -------------------------------------------------------------------------
+
+    /**
+     * Splits the input into tokens, as the ANTLR lexer would: the longest
+     * token that matches, or the first rule in the grammar if two match
+     * the same length.
+     */
+    private void lex()
+    {
+        int line = 1;
+        int lineStart = 0;
+
+        for ( int i = 0; i < input.length(); )
+        {
+            char c = input.charAt( i );
+
+            if ( c == ' ' || c == '\t' || c == '\r' || c == '\n' )
+            {
+                if ( c == '\n' )
+                {
+                    line++;
+                    lineStart = i + 1;
+                }
+
+                i++;
+                continue;
+            }
+
+            if ( c >= 128 )
+            {
+                throw NOT_HANDLED;
+            }
+
+            int length = 0;
+            int type = 0;
+
+            String[] literals = LITERALS[c];
+
+            for ( int l = 0; l < literals.length; l++ )
+            {
+                if ( input.startsWith( literals[l], i ) )
+                {
+                    length = literals[l].length();
+                    type = LITERAL_TYPES[c][l];
+                    break;
+                }
+            }
+
+            int n;
+
+            if ( ( n = numericLiteral( i ) ) > length )
+            {
+                length = n;
+                type = ExpressionParser.NUMERIC_LITERAL;
+            }
+
+            if ( ( n = stringLiteral( i ) ) > length )
+            {
+                length = n;
+                type = ExpressionParser.STRING_LITERAL;
+            }
+
+            if ( ( n = booleanLiteral( i ) ) > length )
+            {
+                length = n;
+                type = ExpressionParser.BOOLEAN_LITERAL;
+            }
+
+            if ( ( n = uid( i ) ) > length )
+            {
+                length = n;
+                type = ExpressionParser.UID;
+            }
+
+            if ( length == 0 )
+            {
+                throw NOT_HANDLED;
+            }
+
+            CommonToken token = new CommonToken( type, input.substring( i, i + length ) );
+            token.setStartIndex( i );
+            token.setStopIndex( i + length - 1 );
+            token.setLine( line );
+            token.setCharPositionInLine( i - lineStart );
+            token.setTokenIndex( tokens.size() );
+
+            tokens.add( token );
+
+            i += length;
+        }
+    }
+
+    /**
+     * Matches ('0' | [1-9] [0-9]*) ('.' [0-9]*)? Exponent?
+     * or '.' [0-9]+ Exponent?
+     */
+    private int numericLiteral( int start )
+    {
+        int i = start;
+
+        if ( at( i ) == '.' )
+        {
+            i = digits( i + 1 );
+
+            if ( i == start + 1 )
+            {
+                return 0;
+            }
+        }
+        else if ( at( i ) == '0' )
+        {
+            i++;
+        }
+        else if ( at( i ) >= '1' && at( i ) <= '9' )
+        {
+            i = digits( i + 1 );
+        }
+        else
+        {
+            return 0;
+        }
+
+        if ( at( start ) != '.' && at( i ) == '.' )
+        {
+            i = digits( i + 1 );
+        }
+
+        if ( at( i ) == 'e' || at( i ) == 'E' )
+        {
+            int e = i + 1;
+
+            if ( at( e ) == '+' || at( e ) == '-' )
+            {
+                e++;
+            }
+
+            if ( digits( e ) > e )
+            {
+                i = digits( e );
+            }
+        }
+
+        return i - start;
+    }
+
+    /**
+     * Matches '"' (~["\\\r\n] | EscapeSequence)* '"'
+     */
+    private int stringLiteral( int start )
+    {
+        if ( at( start ) != '"' )
+        {
+            return 0;
+        }
+
+        for ( int i = start + 1; i < input.length(); )
+        {
+            char c = input.charAt( i++ );
+
+            if ( c == '"' )
+            {
+                return i - start;
+            }
+            else if ( c == '\r' || c == '\n' )
+            {
+                return 0;
+            }
+            else if ( c == '\\' )
+            {
+                char e = at( i++ );
+
+                if ( e >= '0' && e <= '7' )
+                {
+                    int more = e <= '3' ? 2 : 1; // Up to \377
+
+                    for ( ; more > 0 && at( i ) >= '0' && at( i ) <= '7'; more-- )
+                    {
+                        i++;
+                    }
+                }
+                else if ( e == 'u' )
+                {
+                    while ( at( i ) == 'u' )
+                    {
+                        i++;
+                    }
+
+                    for ( int h = 0; h < 4; h++ )
+                    {
+                        if ( Character.digit( at( i++ ), 16 ) < 0 )
+                        {
+                            return 0;
+                        }
+                    }
+                }
+                else if ( "btnfr\"'\\".indexOf( e ) < 0 )
+                {
+                    return 0;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Matches true or false, in any case.
+     */
+    private int booleanLiteral( int start )
+    {
+        if ( input.regionMatches( true, start, "true", 0, 4 ) )
+        {
+            return 4;
+        }
+
+        return input.regionMatches( true, start, "false", 0, 5 ) ? 5 : 0;
+    }
+
+    /**
+     * Matches a letter then 10 letters or digits.
+     */
+    private int uid( int start )
+    {
+        if ( start + 11 > input.length() || !isAlpha( input.charAt( start ) ) )
+        {
+            return 0;
+        }
+
+        for ( int i = start + 1; i < start + 11; i++ )
+        {
+            char c = input.charAt( i );
+
+            if ( !isAlpha( c ) && ( c < '0' || c > '9' ) )
+            {
+                return 0;
+            }
+        }
+
+        return 11;
+    }
+
+    private int digits( int i )
+    {
+        while ( at( i ) >= '0' && at( i ) <= '9' )
+        {
+            i++;
+        }
+
+        return i;
+    }
+
+    private char at( int i )
+    {
+        return i < input.length() ? input.charAt( i ) : 0;
+    }
+
+    private static boolean isAlpha( char c )
+    {
+        return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' );
+    }
+
+    // -------------------------------------------------------------------------
+    // Parser
+    // -------------------------------------------------------------------------
+
+    /**
+     * Parses an expression whose operators all have at least a precedence.
+     */
+    private ExpressionParser.ExprContext expr( int precedence )
+    {
+        ExpressionParser.ExprContext left = primary();
+
+        while ( next < tokens.size() )
+        {
+            int type = type( 0 );
+
+            if ( type == DOT && SUFFIXES[type( 1 )] != null )
+            {
+                Suffix suffix = SUFFIXES[type( 1 )];
+
+                if ( suffix.precedence < precedence )
+                {
+                    break;
+                }
+
+                ExpressionParser.ExprContext ctx = context( new ExpressionParser.ExprContext( null, 0 ), left );
+                terminal( ctx );
+                ctx.fun = terminal( ctx );
+                args( ctx, suffix.args );
+                left = ctx;
+            }
+            else if ( type == ExpressionParser.POWER && POWER_PRECEDENCE >= precedence )
+            {
+                ExpressionParser.ExprContext ctx = context( new ExpressionParser.ExprContext( null, 0 ), left );
+                ctx.fun = terminal( ctx );
+                child( ctx, expr( POWER_PRECEDENCE ) ); // Right associative
+                left = ctx;
+            }
+            else if ( BINARY_PRECEDENCE[type] != 0 && BINARY_PRECEDENCE[type] >= precedence )
+            {
+                ExpressionParser.ExprContext ctx = context( new ExpressionParser.ExprContext( null, 0 ), left );
+                ctx.fun = terminal( ctx );
+                child( ctx, expr( BINARY_PRECEDENCE[type] + 1 ) );
+                left = ctx;
+            }
+            else if ( type == DOT )
+            {
+                throw NOT_HANDLED; // ANTLR takes a '.' as the start of a function, and fails.
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        return left;
+    }
+
+    private ExpressionParser.ExprContext primary()
+    {
+        ExpressionParser.ExprContext ctx = new ExpressionParser.ExprContext( null, 0 );
+
+        int type = type( 0 );
+
+        if ( type == LEFT_PAREN )
+        {
+            terminal( ctx );
+            child( ctx, expr( 0 ) );
+            expect( ctx, ")" );
+        }
+        else if ( type == ExpressionParser.COALESCE )
+        {
+            ctx.fun = terminal( ctx );
+            args( ctx, Args.A1_N );
+        }
+        else if ( type == ExpressionParser.MINUS || type == ExpressionParser.NOT )
+        {
+            ctx.fun = terminal( ctx );
+            child( ctx, expr( UNARY_PRECEDENCE ) );
+        }
+        else if ( type == ExpressionParser.PLUS )
+        {
+            terminal( ctx );
+            child( ctx, expr( UNARY_PLUS_PRECEDENCE ) );
+        }
+        else
+        {
+            child( ctx, value() );
+        }
+
+        return ctx;
+    }
+
+    private ExpressionParser.ValueContext value()
+    {
+        ExpressionParser.ValueContext ctx = new ExpressionParser.ValueContext( null, 0 );
+
+        String text = type( 0 ) == 0 ? "" : tokens.get( next ).getText();
+
+        switch ( type( 0 ) )
+        {
+            case ExpressionParser.NUMERIC_LITERAL:
+                terminal( child( ctx, new ExpressionParser.NumericLiteralContext( null, 0 ) ) );
+                return ctx;
+
+            case ExpressionParser.STRING_LITERAL:
+                terminal( child( ctx, new ExpressionParser.StringLiteralContext( null, 0 ) ) );
+                return ctx;
+
+            case ExpressionParser.BOOLEAN_LITERAL:
+                terminal( child( ctx, new ExpressionParser.BooleanLiteralContext( null, 0 ) ) );
+                return ctx;
+        }
+
+        switch ( text )
+        {
+            case "#{":
+                uids( dimensionItem( ctx, new ExpressionParser.DataElementOperandContext( null, 0 ) ), true );
+                break;
+
+            case "D{":
+                uids( dimensionItem( ctx, new ExpressionParser.ProgramDataElementContext( null, 0 ) ), true );
+                break;
+
+            case "A{":
+                ParserRuleContext attribute = dimensionItem( ctx, new ExpressionParser.ProgramTrackedEntityAttributeContext( null, 0 ) );
+                terminal( attribute );
+                expect( attribute, ExpressionParser.UID );
+                expect( attribute, "." );
+                expect( attribute, ExpressionParser.UID );
+                expect( attribute, "}" );
+                break;
+
+            case "I{":
+                uids( dimensionItem( ctx, new ExpressionParser.ProgramIndicatorContext( null, 0 ) ), false );
+                break;
+
+            case "OUG{":
+                uids( child( ctx, new ExpressionParser.OrgUnitCountContext( null, 0 ) ), false );
+                break;
+
+            case "R{":
+                ParserRuleContext reportingRate = child( ctx, new ExpressionParser.ReportingRateContext( null, 0 ) );
+                terminal( reportingRate );
+                expect( reportingRate, ExpressionParser.UID );
+                expect( reportingRate, ".REPORTING_RATE}" );
+                break;
+
+            case "C{":
+                uids( child( ctx, new ExpressionParser.ConstantContext( null, 0 ) ), false );
+                break;
+
+            case "[days]":
+                terminal( child( ctx, new ExpressionParser.DaysContext( null, 0 ) ) );
+                break;
+
+            default: // Including program indicator expressions.
+                throw NOT_HANDLED;
+        }
+
+        return ctx;
+    }
+
+    private ParserRuleContext dimensionItem( ExpressionParser.ValueContext value, ParserRuleContext item )
+    {
+        return child( child( value, new ExpressionParser.DimensionItemObjectContext( null, 0 ) ), item );
+    }
+
+    /**
+     * Parses the rest of '{' UID ('.' UID)? '}' (with the optional part if
+     * allowed.)
+     */
+    private void uids( ParserRuleContext ctx, boolean optionalSecond )
+    {
+        terminal( ctx );
+        expect( ctx, ExpressionParser.UID );
+
+        if ( optionalSecond && type( 0 ) == DOT )
+        {
+            terminal( ctx );
+            expect( ctx, ExpressionParser.UID );
+        }
+
+        expect( ctx, "}" );
+    }
+
+    private void args( ExpressionParser.ExprContext fun, Args args )
+    {
+        switch ( args )
+        {
+            case A0:
+                ParserRuleContext a0 = child( fun, new ExpressionParser.A0Context( null, 0 ) );
+                expect( a0, "(" );
+                expect( a0, ")" );
+                break;
+
+            case A0_1:
+                ParserRuleContext a0_1 = child( fun, new ExpressionParser.A0_1Context( null, 0 ) );
+                expect( a0_1, "(" );
+                optionalExpr( a0_1 );
+                expect( a0_1, ")" );
+                break;
+
+            case A1:
+                ParserRuleContext a1 = child( fun, new ExpressionParser.A1Context( null, 0 ) );
+                expect( a1, "(" );
+                child( a1, expr( 0 ) );
+                expect( a1, ")" );
+                break;
+
+            case A1_2:
+                ParserRuleContext a1_2 = child( fun, new ExpressionParser.A1_2Context( null, 0 ) );
+                expect( a1_2, "(" );
+                child( a1_2, expr( 0 ) );
+
+                if ( type( 0 ) == COMMA )
+                {
+                    terminal( a1_2 );
+                    optionalExpr( a1_2 );
+                }
+
+                expect( a1_2, ")" );
+                break;
+
+            case A1_N:
+                ExpressionParser.A1_nContext a1_n = child( fun, new ExpressionParser.A1_nContext( null, 0 ) );
+                expect( a1_n, "(" );
+                child( a1_n, expr( 0 ) );
+
+                while ( type( 0 ) == COMMA )
+                {
+                    terminal( a1_n );
+
+                    ExpressionParser.ExprContext arg = optionalExpr( a1_n );
+
+                    if ( arg != null )
+                    {
+                        a1_n.arg = arg;
+                    }
+                }
+
+                expect( a1_n, ")" );
+                break;
+
+            default: // A2
+                ParserRuleContext a2 = child( fun, new ExpressionParser.A2Context( null, 0 ) );
+                expect( a2, "(" );
+                child( a2, expr( 0 ) );
+                expect( a2, "," );
+                child( a2, expr( 0 ) );
+                expect( a2, ")" );
+        }
+    }
+
+    /**
+     * Parses an expression, unless the next token ends an argument list.
+     */
+    private ExpressionParser.ExprContext optionalExpr( ParserRuleContext ctx )
+    {
+        if ( type( 0 ) == RIGHT_PAREN || type( 0 ) == COMMA )
+        {
+            return null;
+        }
+
+        return child( ctx, expr( 0 ) );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static void suffix( String name, int precedence, Args args )
+    {
+        SUFFIXES[TYPES.get( name )] = new Suffix( precedence, args );
+    }
+
+    private static void binary( int precedence, int... types )
+    {
+        for ( int type : types )
+        {
+            BINARY_PRECEDENCE[type] = precedence;
+        }
+    }
+
+    /**
+     * Gets the type of a token ahead, or 0 past the end of the input.
+     */
+    private int type( int ahead )
+    {
+        return next + ahead < tokens.size() ? tokens.get( next + ahead ).getType() : 0;
+    }
+
+    /**
+     * Adds the next token to a context, and moves past it. The token ends
+     * the context and the contexts it is in so far.
+     */
+    private Token terminal( ParserRuleContext ctx )
+    {
+        Token token = tokens.get( next++ );
+
+        ctx.addChild( new TerminalNodeImpl( token ) );
+
+        for ( ParserRuleContext c = ctx; c != null; c = c.getParent() )
+        {
+            if ( c.start == null )
+            {
+                c.start = token;
+            }
+
+            c.stop = token;
+        }
+
+        return token;
+    }
+
+    private void expect( ParserRuleContext ctx, String literal )
+    {
+        expect( ctx, TYPES.get( literal ) );
+    }
+
+    private void expect( ParserRuleContext ctx, int type )
+    {
+        if ( type( 0 ) != type )
+        {
+            throw NOT_HANDLED;
+        }
+
+        terminal( ctx );
+    }
+
+    /**
+     * Adds a child context to a context.
+     */
+    private static <T extends ParserRuleContext> T child( ParserRuleContext ctx, T child )
+    {
+        ctx.addChild( child );
+        child.setParent( ctx );
+
+        if ( ctx.start == null )
+        {
+            ctx.start = child.start;
+        }
+
+        if ( child.stop != null )
+        {
+            ctx.stop = child.stop;
+        }
+
+        return child;
+    }
+
+    /**
+     * Starts a context with a first child, as the left operand.
+     */
+    private static <T extends ParserRuleContext> T context( T ctx, ParserRuleContext first )
+    {
+        child( ctx, first );
+
+        return ctx;
+    }
+}
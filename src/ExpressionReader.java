@@ -0,0 +1,189 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the expressions in a metadata file one at a time, so a file of
+ * any size can be read in bounded memory.
+ * <p/>
+ * The file is read through an NIO channel, decoded as UTF-8 into a fixed
+ * buffer. Subclasses read a file format, and pass each expression they
+ * find to {@link #emit}.
+ */
+public abstract class ExpressionReader
+    implements Closeable
+{
+    /**
+     * The names of the fields holding expressions: indicator numerators
+     * and denominators, and the expressions of validation rule sides and
+     * predictor generators and skip tests.
+     */
+    protected static final Set<String> EXPRESSION_FIELDS = new HashSet<>( Arrays.asList(
+        "expression", "numerator", "denominator" ) );
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private long line = 1;
+
+    private final ArrayDeque<ExpressionRecord> records = new ArrayDeque<>();
+
+    protected ExpressionReader( ReadableByteChannel channel )
+    {
+        this.reader = Channels.newReader( channel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE );
+    }
+
+    /**
+     * Opens a metadata file: CSV if its name ends with ".csv", otherwise
+     * JSON.
+     *
+     * @param path the file.
+     * @return the reader.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static ExpressionReader open( Path path )
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open( path, StandardOpenOption.READ );
+
+        return path.getFileName().toString().toLowerCase().endsWith( ".csv" )
+            ? new CsvExpressionReader( channel )
+            : new JsonExpressionReader( channel );
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Reads the next expression.
+     *
+     * @return the expression, or null at the end of the file.
+     * @throws IOException if the file cannot be read, or is malformed.
+     */
+    public ExpressionRecord next()
+        throws IOException
+    {
+        while ( records.isEmpty() )
+        {
+            if ( !advance() )
+            {
+                return null;
+            }
+        }
+
+        return records.poll();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        reader.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods for subclasses
+    // -------------------------------------------------------------------------
+
+    /**
+     * Reads on through the file, emitting any expressions found.
+     *
+     * @return false at the end of the file.
+     */
+    protected abstract boolean advance()
+        throws IOException;
+
+    /**
+     * Passes on an expression found in the file.
+     */
+    protected void emit( ExpressionRecord record )
+    {
+        records.add( record );
+    }
+
+    /**
+     * Reads a character, skipping a byte order mark at the start.
+     *
+     * @return the character, or -1 at the end of the file.
+     */
+    protected int read()
+        throws IOException
+    {
+        int c = peek();
+
+        if ( c >= 0 )
+        {
+            position++;
+
+            if ( c == '\n' )
+            {
+                line++;
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Gets the next character without reading it.
+     *
+     * @return the character, or -1 at the end of the file.
+     */
+    protected int peek()
+        throws IOException
+    {
+        if ( position == limit )
+        {
+            boolean start = limit == 0 && line == 1;
+
+            position = 0;
+            limit = Math.max( 0, reader.read( buffer ) );
+
+            if ( start && limit > 0 && buffer[0] == '\uFEFF' )
+            {
+                position = 1;
+            }
+
+            if ( position == limit )
+            {
+                return -1;
+            }
+        }
+
+        return buffer[position];
+    }
+
+    /**
+     * Gets the line of the next character, from 1.
+     */
+    protected long getLine()
+    {
+        return line;
+    }
+
+    /**
+     * Makes an exception for malformed input at the current line.
+     */
+    protected IOException malformed( String message )
+    {
+        return new IOException( message + " at line " + line );
+    }
+}
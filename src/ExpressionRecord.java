@@ -0,0 +1,54 @@
+/**
+ * An expression read from a metadata file, with where it came from.
+ */
+public final class ExpressionRecord
+{
+    private final long line;
+
+    private final String id;
+
+    private final String field;
+
+    private final String expression;
+
+    /**
+     * Makes an expression record.
+     *
+     * @param line the line of the file the expression starts on, from 1.
+     * @param id the id of the metadata object, or null if it has none.
+     * @param field the field holding the expression, such as
+     *              "indicators.numerator".
+     * @param expression the expression text.
+     */
+    public ExpressionRecord( long line, String id, String field, String expression )
+    {
+        this.line = line;
+        this.id = id;
+        this.field = field;
+        this.expression = expression;
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public long getLine()
+    {
+        return line;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getField()
+    {
+        return field;
+    }
+
+    public String getExpression()
+    {
+        return expression;
+    }
+}
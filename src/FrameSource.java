@@ -0,0 +1,24 @@
+/**
+ * Supplies the {@link ValueFrame} of dimension item values at an orgUnit
+ * and period, when evaluating compiled expressions. Compiled dimension
+ * items read their values from the frame by slot, instead of asking a
+ * {@link ValueSource} for each one by text.
+ * <p/>
+ * The evaluation context keeps the last frame it was given, and only asks
+ * again when the orgUnit or period changes (as in a scope.) So a source
+ * may refill and return the same frame each time.
+ */
+@FunctionalInterface
+public interface FrameSource
+{
+    /**
+     * Gets the dimension item values at an orgUnit and period.
+     *
+     * @param orgUnit the orgUnit, as an {@link OrgUnitHierarchy} id (or -1
+     *                if there is no hierarchy.)
+     * @param period the period, as a {@link Periods} id.
+     * @return the values, in a frame made by the {@link SlotLayout} the
+     *         expressions were compiled with, or null if there are none.
+     */
+    ValueFrame getFrame( int orgUnit, int period );
+}
@@ -0,0 +1,290 @@
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps expression metrics in memory, for tests and tools:
+ * <pre>
+ * InMemoryMetrics metrics = new InMemoryMetrics();
+ *
+ * Instrumentation.set( metrics );
+ * ... // Parse and evaluate
+ * Instrumentation.set( null );
+ *
+ * metrics.getLatency( ExpressionMetrics.Phase.EVAL ).getPercentile( 99 );
+ * </pre>
+ * Latencies and scope sizes are kept in {@link Histogram}s with a bucket
+ * for each power of two, so recording is a few atomic adds and the
+ * memory used is fixed.
+ */
+public class InMemoryMetrics
+    implements ExpressionMetrics
+{
+    private final Map<Phase, Histogram> latencies = new EnumMap<>( Phase.class );
+
+    private final AtomicLongArray functionCounts = new AtomicLongArray( ExpressionParser.VOCABULARY.getMaxTokenType() + 1 );
+
+    private final Histogram[] scopeSizes = new Histogram[ExpressionParser.VOCABULARY.getMaxTokenType() + 1];
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public InMemoryMetrics()
+    {
+        for ( Phase phase : Phase.values() )
+        {
+            latencies.put( phase, new Histogram() );
+        }
+
+        for ( int i = 0; i < scopeSizes.length; i++ )
+        {
+            scopeSizes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Counts of values in buckets of powers of two. Bucket 0 holds 0, and
+     * bucket i holds 2<sup>i-1</sup> to 2<sup>i</sup>-1.
+     */
+    public static final class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray( 65 );
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder sum = new LongAdder();
+
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a value, which must not be negative.
+         */
+        public void record( long value )
+        {
+            buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros( value ) );
+            count.increment();
+            sum.add( value );
+
+            if ( value > max.get() )
+            {
+                max.accumulateAndGet( value, Math::max );
+            }
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public long getSum()
+        {
+            return sum.sum();
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        public double getMean()
+        {
+            long n = count.sum();
+
+            return n == 0 ? 0. : (double) sum.sum() / n;
+        }
+
+        /**
+         * Gets an upper bound of a percentile: the top of the bucket that
+         * holds it, or the maximum if that is lower.
+         *
+         * @param percent the percentile, from 0 to 100.
+         * @return the upper bound, or 0 if nothing has been recorded.
+         */
+        public long getPercentile( double percent )
+        {
+            long n = count.sum();
+
+            long rank = Math.max( 1, (long) Math.ceil( percent / 100. * n ) );
+
+            long seen = 0;
+
+            for ( int i = 0; i < buckets.length(); i++ )
+            {
+                seen += buckets.get( i );
+
+                if ( seen >= rank )
+                {
+                    return Math.min( i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : ( 1L << i ) - 1, max.get() );
+                }
+            }
+
+            return max.get();
+        }
+
+        void reset()
+        {
+            for ( int i = 0; i < buckets.length(); i++ )
+            {
+                buckets.set( i, 0 );
+            }
+
+            count.reset();
+            sum.reset();
+            max.set( 0 );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( Locale.ROOT, "count %d, mean %.1f, p50 %d, p99 %d, max %d",
+                getCount(), getMean(), getPercentile( 50 ), getPercentile( 99 ), getMax() );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // ExpressionMetrics
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void recordLatency( Phase phase, long nanos )
+    {
+        latencies.get( phase ).record( Math.max( 0, nanos ) );
+    }
+
+    @Override
+    public void countFunction( int tokenType )
+    {
+        functionCounts.incrementAndGet( tokenType );
+    }
+
+    @Override
+    public void recordCacheAccess( boolean hit )
+    {
+        ( hit ? cacheHits : cacheMisses ).increment();
+    }
+
+    @Override
+    public void recordScopeSize( int tokenType, int values )
+    {
+        scopeSizes[tokenType].record( values );
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Clears all the metrics.
+     */
+    public void reset()
+    {
+        latencies.values().forEach( Histogram::reset );
+
+        for ( int i = 0; i < functionCounts.length(); i++ )
+        {
+            functionCounts.set( i, 0 );
+            scopeSizes[i].reset();
+        }
+
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+
+    /**
+     * Writes all the metrics that have been recorded, one per line.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for ( Phase phase : Phase.values() )
+        {
+            sb.append( "latency " ).append( phase ).append( " ns: " ).append( latencies.get( phase ) ).append( '\n' );
+        }
+
+        getFunctionCounts().forEach( ( name, count ) -> sb.append( "function " ).append( name ).append( ": " ).append( count ).append( '\n' ) );
+
+        for ( int i = 0; i < scopeSizes.length; i++ )
+        {
+            if ( scopeSizes[i].getCount() != 0 )
+            {
+                sb.append( "scope " ).append( Instrumentation.functionName( i ) ).append( " values: " ).append( scopeSizes[i] ).append( '\n' );
+            }
+        }
+
+        return sb.append( String.format( Locale.ROOT, "cache hits %d, misses %d, hit ratio %.3f%n",
+            getCacheHits(), getCacheMisses(), getCacheHitRatio() ) ).toString();
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the latencies of a phase, in nanoseconds.
+     */
+    public Histogram getLatency( Phase phase )
+    {
+        return latencies.get( phase );
+    }
+
+    public long getFunctionCount( int tokenType )
+    {
+        return functionCounts.get( tokenType );
+    }
+
+    /**
+     * Gets the counts of the functions that have been counted, by name
+     * (see {@link Instrumentation#functionName}.)
+     */
+    public Map<String, Long> getFunctionCounts()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+
+        for ( int i = 0; i < functionCounts.length(); i++ )
+        {
+            if ( functionCounts.get( i ) != 0 )
+            {
+                counts.put( Instrumentation.functionName( i ), functionCounts.get( i ) );
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Gets the numbers of values found by a scope function.
+     */
+    public Histogram getScopeSizes( int tokenType )
+    {
+        return scopeSizes[tokenType];
+    }
+
+    public long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses()
+    {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Gets the fraction of cache lookups that were hits, or 0 if there
+     * have been none.
+     */
+    public double getCacheHitRatio()
+    {
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+
+        return lookups == 0 ? 0. : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Holds the {@link ExpressionMetrics} in use by this JVM.
+ * <p/>
+ * Measuring code gets the metrics once and checks
+ * {@link ExpressionMetrics#isEnabled()} before reading the clock:
+ * <pre>
+ * ExpressionMetrics metrics = Instrumentation.get();
+ *
+ * long start = metrics.isEnabled() ? System.nanoTime() : 0;
+ * ...
+ * if ( metrics.isEnabled() )
+ * {
+ *     metrics.recordLatency( ExpressionMetrics.Phase.EVAL, System.nanoTime() - start );
+ * }
+ * </pre>
+ */
+public final class Instrumentation
+{
+    private static volatile ExpressionMetrics metrics = ExpressionMetrics.NOOP;
+
+    private Instrumentation()
+    {
+    }
+
+    /**
+     * Gets the metrics in use, which are {@link ExpressionMetrics#NOOP}
+     * unless others have been set.
+     */
+    public static ExpressionMetrics get()
+    {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics to use from now on.
+     *
+     * @param metrics the metrics, or null to record nothing.
+     */
+    public static void set( ExpressionMetrics metrics )
+    {
+        Instrumentation.metrics = metrics == null ? ExpressionMetrics.NOOP : metrics;
+    }
+
+    /**
+     * Gets the name of a function token type, for reports, such as
+     * "OU_DESCENDANT" or "PLUS".
+     */
+    public static String functionName( int tokenType )
+    {
+        String name = ExpressionParser.VOCABULARY.getSymbolicName( tokenType );
+
+        return name != null ? name : Integer.toString( tokenType );
+    }
+}
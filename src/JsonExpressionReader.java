@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the expressions in a JSON metadata export, such as
+ * <pre>
+ * { "indicators": [ { "id": "...", "numerator": "...", ... } ],
+ *   "validationRules": [ { "id": "...", "leftSide": { "expression": "..." }, ... } ] }
+ * </pre>
+ * Every string in a field named in {@link #EXPRESSION_FIELDS} is an
+ * expression. Its field is the path of field names to it, such as
+ * "validationRules.leftSide.expression", and its id is the "id" of the
+ * array element it is in.
+ * <p/>
+ * The JSON is scanned as a stream of tokens, keeping only the stack of
+ * open objects and arrays. The expressions of an array element are held
+ * until the element ends (since its id may come after them), so memory
+ * is bounded by the size of one metadata object, not of the file.
+ */
+public class JsonExpressionReader
+    extends ExpressionReader
+{
+    private final List<Frame> frames = new ArrayList<>();
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * An open object or array.
+     */
+    private static final class Frame
+    {
+        final boolean object;
+
+        final boolean element; // An object that is an array element (or the whole file.)
+
+        String key; // In an object, the field whose value comes next, or null for a field name.
+
+        String id;
+
+        List<ExpressionRecord> records; // Held until the element ends.
+
+        Frame( boolean object, boolean element )
+        {
+            this.object = object;
+            this.element = element;
+        }
+    }
+
+    public JsonExpressionReader( ReadableByteChannel channel )
+    {
+        super( channel );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    @Override
+    protected boolean advance()
+        throws IOException
+    {
+        int c = skipWhitespace();
+
+        Frame top = frames.isEmpty() ? null : frames.get( frames.size() - 1 );
+
+        switch ( c )
+        {
+            case -1:
+                if ( top != null )
+                {
+                    throw malformed( "Unexpected end of JSON" );
+                }
+                return false;
+
+            case '{':
+            case '[':
+                frames.add( new Frame( c == '{', c == '{' && ( top == null || !top.object ) ) );
+                break;
+
+            case '}':
+            case ']':
+                if ( top == null || top.object != ( c == '}' ) )
+                {
+                    throw malformed( "Unexpected '" + (char) c + "'" );
+                }
+
+                frames.remove( frames.size() - 1 );
+
+                if ( top.records != null )
+                {
+                    for ( ExpressionRecord record : top.records )
+                    {
+                        emit( new ExpressionRecord( record.getLine(), top.id, record.getField(), record.getExpression() ) );
+                    }
+                }
+
+                valueEnded();
+                break;
+
+            case ',':
+            case ':':
+                break;
+
+            case '"':
+                long line = getLine();
+                String string = readString();
+
+                if ( top != null && top.object && top.key == null )
+                {
+                    top.key = string;
+                }
+                else
+                {
+                    value( top, string, line );
+                    valueEnded();
+                }
+                break;
+
+            default: // Number, true, false or null
+                while ( ( c = peek() ) >= 0 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace( c ) )
+                {
+                    read();
+                }
+
+                valueEnded();
+        }
+
+        return true;
+    }
+
+    /**
+     * Handles a string value: keeps it if it is an expression or an id.
+     */
+    private void value( Frame top, String string, long line )
+    {
+        if ( top == null || !top.object )
+        {
+            return;
+        }
+
+        if ( top.element && top.key.equals( "id" ) )
+        {
+            top.id = string;
+        }
+        else if ( EXPRESSION_FIELDS.contains( top.key ) )
+        {
+            Frame element = top;
+            StringBuilder field = new StringBuilder();
+
+            for ( int i = 0; i < frames.size(); i++ )
+            {
+                Frame frame = frames.get( i );
+
+                if ( frame.element )
+                {
+                    element = frame;
+                }
+
+                if ( frame.object )
+                {
+                    field.append( field.length() == 0 ? "" : "." ).append( frame.key );
+                }
+            }
+
+            if ( element.records == null )
+            {
+                element.records = new ArrayList<>();
+            }
+
+            element.records.add( new ExpressionRecord( line, null, field.toString(), string ) );
+        }
+    }
+
+    /**
+     * Marks the end of a field value, so a field name comes next.
+     */
+    private void valueEnded()
+    {
+        if ( !frames.isEmpty() )
+        {
+            frames.get( frames.size() - 1 ).key = null;
+        }
+    }
+
+    private int skipWhitespace()
+        throws IOException
+    {
+        int c = read();
+
+        while ( c >= 0 && Character.isWhitespace( c ) )
+        {
+            c = read();
+        }
+
+        return c;
+    }
+
+    /**
+     * Reads the rest of a string, after its opening quote.
+     */
+    private String readString()
+        throws IOException
+    {
+        sb.setLength( 0 );
+
+        for ( int c = read(); c != '"'; c = read() )
+        {
+            if ( c < 0 )
+            {
+                throw malformed( "Unterminated JSON string" );
+            }
+
+            if ( c == '\\' )
+            {
+                c = read();
+
+                switch ( c )
+                {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u': c = readHex(); break;
+                    case '"': case '\\': case '/': break;
+                    default: throw malformed( "Invalid JSON escape" );
+                }
+            }
+
+            sb.append( (char) c );
+        }
+
+        return sb.toString();
+    }
+
+    private int readHex()
+        throws IOException
+    {
+        int value = 0;
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            int digit = Character.digit( read(), 16 );
+
+            if ( digit < 0 )
+            {
+                throw malformed( "Invalid JSON \\u escape" );
+            }
+
+            value = value << 4 | digit;
+        }
+
+        return value;
+    }
+}
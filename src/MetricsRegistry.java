@@ -0,0 +1,69 @@
+/**
+ * Adapts an external metrics registry (such as Micrometer or Dropwizard
+ * Metrics) for {@link RegistryMetrics}. An implementation looks up or
+ * registers a meter with a name and tags, and wraps it in one of the
+ * small interfaces here, for example with Micrometer:
+ * <pre>
+ * public Timer timer( String name, String... tags )
+ * {
+ *     io.micrometer.core.instrument.Timer timer = registry.timer( name, tags );
+ *
+ *     return nanos -> timer.record( nanos, TimeUnit.NANOSECONDS );
+ * }
+ * </pre>
+ * Meters are looked up once for each name and tags, and then kept, so
+ * lookups may be slow but meters must be safe for many threads.
+ */
+public interface MetricsRegistry
+{
+    /**
+     * Records durations.
+     */
+    interface Timer
+    {
+        void record( long nanos );
+    }
+
+    /**
+     * Counts events.
+     */
+    interface Counter
+    {
+        void increment();
+    }
+
+    /**
+     * Records the distribution of amounts, such as sizes.
+     */
+    interface DistributionSummary
+    {
+        void record( double amount );
+    }
+
+    /**
+     * Gets a timer.
+     *
+     * @param name the metric name.
+     * @param tags the tag keys and values, alternately.
+     * @return the timer.
+     */
+    Timer timer( String name, String... tags );
+
+    /**
+     * Gets a counter.
+     *
+     * @param name the metric name.
+     * @param tags the tag keys and values, alternately.
+     * @return the counter.
+     */
+    Counter counter( String name, String... tags );
+
+    /**
+     * Gets a distribution summary.
+     *
+     * @param name the metric name.
+     * @param tags the tag keys and values, alternately.
+     * @return the distribution summary.
+     */
+    DistributionSummary summary( String name, String... tags );
+}
@@ -1,75 +1,136 @@
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
+/**
+ * Multiple values, each from a period. The periods are kept as int ids in
+ * an array parallel to the values.
+ * <p/>
+ * Scopes usually add values in period order. While they do, the last
+ * values are found by walking back from the end. Otherwise they are
+ * selected with a heap bounded to the number of values wanted.
+ */
 public class MultiPeriodValues extends MultiValues
 {
-    private List<String> periods = new ArrayList<>(); //TODO: Change to DHIS2 periods
+    private static final int[] NO_PERIODS = {};
+
+    private int[] periodIds = NO_PERIODS; // Parallel to the values.
+
+    private boolean inPeriodOrder = true; // Period ids are non-decreasing.
 
     // -------------------------------------------------------------------------
     // Business logic
     // -------------------------------------------------------------------------
 
+    @Override
     public void addPeriodValue( Object value, String period )
+    {
+        addPeriodValue( value, Periods.parse( period ) );
+    }
+
+    /**
+     * Adds a value, or all the values from multiple values. Values from
+     * MultiPeriodValues keep their own periods, and values from other
+     * MultiValues all get the given period.
+     *
+     * @param value the value(s) to add.
+     * @param periodId the period id.
+     */
+    @Override
+    public void addPeriodValue( Object value, int periodId )
     {
         if ( value != null )
         {
+            int start = size();
+
             if ( value instanceof MultiPeriodValues )
             {
                 MultiPeriodValues multiPeriodValues = (MultiPeriodValues) value;
 
-                for ( int i = 0; i < multiPeriodValues.periods.size(); i++ )
-                {
-                    addPeriodValue( multiPeriodValues.getValues().get( i ), multiPeriodValues.getPeriods().get( i ) );
-                }
+                addAll( multiPeriodValues );
+
+                System.arraycopy( multiPeriodValues.periodIds, 0, periodIds, start, multiPeriodValues.size() );
             }
             else if ( value instanceof MultiValues )
             {
-                MultiValues multiValues = (MultiValues) value;
+                addAll( (MultiValues) value );
 
-                for ( Object val : multiValues.getValues() )
-                {
-                    addPeriodValue( val, period );
-                }
+                Arrays.fill( periodIds, start, size(), periodId );
             }
             else
             {
                 addValue( value );
-                periods.add( period );
+                periodIds[start] = periodId;
             }
+
+            checkPeriodOrder( start );
         }
     }
 
-    public MultiPeriodValues last( int limit )
+    /**
+     * Adds a number from a period, without boxing it.
+     *
+     * @param value the value to add.
+     * @param periodId the period id.
+     */
+    @Override
+    public void addPeriodDouble( double value, int periodId )
     {
-        SortedMap<String, List<Object>> sortedValues = new TreeMap<>( Collections.reverseOrder() );
+        int start = size();
 
-        for ( int i = 0; i < periods.size(); i++ )
-        {
-            if ( !sortedValues.containsKey( periods.get( i ) ) )
-            {
-                sortedValues.put( periods.get( i ), new ArrayList<Object>() );
-            }
+        addDouble( value );
 
-            sortedValues.get( periods.get( i ) ).add( getValues().get( i ) );
-        }
+        periodIds[start] = periodId;
 
+        checkPeriodOrder( start );
+    }
+
+    /**
+     * Gets the values from the latest periods. Values are returned latest
+     * period first, and values from the same period in the order they were
+     * added.
+     *
+     * @param limit the maximum number of values to return.
+     * @return the last values.
+     */
+    public MultiPeriodValues last( int limit )
+    {
         MultiPeriodValues lastValues = new MultiPeriodValues();
 
-        int count = 0;
+        if ( limit <= 0 || size() == 0 )
+        {
+            return lastValues;
+        }
 
-        for ( String period : sortedValues.keySet() )
+        if ( inPeriodOrder )
         {
-            for ( Object o : sortedValues.get( period ) )
+            // Walk back through the periods, adding each period's values in
+            // the order they were added.
+
+            int end = size();
+
+            while ( end > 0 && lastValues.size() < limit )
             {
-                if ( ++count > limit )
+                int start = end - 1;
+
+                while ( start > 0 && periodIds[start - 1] == periodIds[end - 1] )
                 {
-                    return lastValues;
+                    start--;
                 }
 
-                lastValues.addPeriodValue( o, period );
+                for ( int i = start; i < end && lastValues.size() < limit; i++ )
+                {
+                    lastValues.addFrom( this, i, periodIds[i] );
+                }
+
+                end = start;
+            }
+        }
+        else
+        {
+            for ( int i : selectLast( Math.min( limit, size() ) ) )
+            {
+                lastValues.addFrom( this, i, periodIds[i] );
             }
         }
 
@@ -80,8 +141,149 @@ public class MultiPeriodValues extends MultiValues
     // Getter
     // -------------------------------------------------------------------------
 
+    /**
+     * Gets the periods as a read-only list view.
+     */
     public List<String> getPeriods()
     {
-        return periods;
+        return new AbstractList<String>()
+        {
+            @Override
+            public String get( int index )
+            {
+                if ( index >= size() )
+                {
+                    throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size() );
+                }
+
+                return Periods.format( getPeriodIds()[index] );
+            }
+
+            @Override
+            public int size()
+            {
+                return MultiPeriodValues.this.size();
+            }
+        };
+    }
+
+    /**
+     * Gets the period ids. This is the backing array, not a copy: it may be
+     * longer than {@link #size()}, and must not be changed.
+     */
+    public int[] getPeriodIds()
+    {
+        return periodIds;
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private void addFrom( MultiPeriodValues other, int index, int periodId )
+    {
+        int start = size();
+
+        addFrom( other, index );
+
+        periodIds[start] = periodId;
+
+        checkPeriodOrder( start );
+    }
+
+    private void checkPeriodOrder( int start )
+    {
+        for ( int i = Math.max( start, 1 ); i < size() && inPeriodOrder; i++ )
+        {
+            inPeriodOrder = periodIds[i - 1] <= periodIds[i];
+        }
+    }
+
+    /**
+     * Selects the indexes of the last values, when they are not in period
+     * order, using a heap of the k best so far with the worst at the root.
+     *
+     * @param k the number of values to select.
+     * @return the value indexes, in {@link #last} order.
+     */
+    private int[] selectLast( int k )
+    {
+        int[] heap = new int[k];
+
+        for ( int i = 0; i < size(); i++ )
+        {
+            if ( i < k )
+            {
+                heap[i] = i;
+
+                for ( int c = i; c > 0 && before( heap[( c - 1 ) / 2], heap[c] ); c = ( c - 1 ) / 2 )
+                {
+                    swap( heap, c, ( c - 1 ) / 2 );
+                }
+            }
+            else if ( before( i, heap[0] ) )
+            {
+                heap[0] = i;
+
+                siftDown( heap, k );
+            }
+        }
+
+        for ( int n = k - 1; n > 0; n-- ) // Heap sort, worst to the end.
+        {
+            swap( heap, 0, n );
+
+            siftDown( heap, n );
+        }
+
+        return heap;
+    }
+
+    private void siftDown( int[] heap, int n )
+    {
+        int p = 0;
+
+        for ( int c = 1; c < n; p = c, c = 2 * c + 1 )
+        {
+            if ( c + 1 < n && before( heap[c], heap[c + 1] ) )
+            {
+                c++;
+            }
+
+            if ( !before( heap[p], heap[c] ) )
+            {
+                return;
+            }
+
+            swap( heap, p, c );
+        }
+    }
+
+    /**
+     * Tells whether value a comes before value b in {@link #last} order.
+     */
+    private boolean before( int a, int b )
+    {
+        return periodIds[a] > periodIds[b] || ( periodIds[a] == periodIds[b] && a < b );
+    }
+
+    private static void swap( int[] heap, int i, int j )
+    {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+    }
+
+    @Override
+    protected int ensureCapacity( int capacity )
+    {
+        int newCapacity = super.ensureCapacity( capacity );
+
+        if ( newCapacity != 0 )
+        {
+            periodIds = Arrays.copyOf( periodIds, newCapacity );
+        }
+
+        return newCapacity;
     }
 }
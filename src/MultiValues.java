@@ -1,36 +1,250 @@
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Multiple values, from evaluating an expression over more than one
+ * period or orgUnit.
+ * <p/>
+ * While all the values are numbers they are kept unboxed in a growable
+ * double array, which aggregation functions read directly. If a value that
+ * is not a Double is added (a String or Boolean, for example), all values
+ * are kept boxed from then on.
+ */
 public class MultiValues
+    implements ValueSink
 {
-    private List<Object> values = new ArrayList<>();
+    private static final double[] NO_DOUBLES = {};
+
+    private double[] doubles = NO_DOUBLES;
+
+    private Object[] objects; // Not null once any value is not a Double.
+
+    private int size;
 
     // -------------------------------------------------------------------------
     // Business logic
     // -------------------------------------------------------------------------
 
+    @Override
     public void addValue( Object value )
     {
         if ( value != null )
         {
             if ( value instanceof MultiValues )
             {
-                values.addAll( ( (MultiValues) value ).values );
+                addAll( (MultiValues) value );
             }
             else
             {
-                values.add( value );
+                append( value );
             }
         }
     }
 
+    /**
+     * Adds a number, without boxing it.
+     *
+     * @param value the value to add.
+     */
+    @Override
+    public void addDouble( double value )
+    {
+        ensureCapacity( size + 1 );
+
+        if ( objects == null )
+        {
+            doubles[size++] = value;
+        }
+        else
+        {
+            objects[size++] = value;
+        }
+    }
+
+    /**
+     * Adds all the values from other multiple values, copying them in bulk.
+     *
+     * @param other the values to add.
+     */
+    public void addAll( MultiValues other )
+    {
+        ensureCapacity( size + other.size );
+
+        if ( objects == null && other.objects == null )
+        {
+            System.arraycopy( other.doubles, 0, doubles, size, other.size );
+            size += other.size;
+        }
+        else
+        {
+            for ( int i = 0; i < other.size; i++ )
+            {
+                append( other.get( i ) );
+            }
+        }
+    }
+
+    /**
+     * Adds one value from other multiple values, without boxing it if both
+     * hold numbers.
+     *
+     * @param other the values to add from.
+     * @param index the index of the value to add.
+     */
+    public void addFrom( MultiValues other, int index )
+    {
+        if ( other.objects == null )
+        {
+            addDouble( other.doubles[index] );
+        }
+        else
+        {
+            append( other.objects[index] );
+        }
+    }
+
+    /**
+     * Gets the number of values.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Gets a value, boxing it if needed.
+     *
+     * @param index the value index.
+     * @return the value.
+     */
+    public Object get( int index )
+    {
+        return objects == null ? (Object) doubles[index] : objects[index];
+    }
+
+    /**
+     * Gets the values as an array of doubles, for aggregation. While all
+     * values are numbers this is the backing array, not a copy: it may be
+     * longer than {@link #size()}, and must not be changed.
+     *
+     * @return the values, in the first {@link #size()} array elements.
+     * @throws ParsingException if a value is not a number.
+     */
+    public double[] getDoubles()
+    {
+        if ( objects == null )
+        {
+            return doubles;
+        }
+
+        double[] values = new double[size];
+
+        for ( int i = 0; i < size; i++ )
+        {
+            values[i] = Values.castDouble( objects[i] );
+        }
+
+        return values;
+    }
+
+    // -------------------------------------------------------------------------
+    // toString
+    // -------------------------------------------------------------------------
+
+    @Override
+    public String toString()
+    {
+        return getValues().toString();
+    }
+
     // -------------------------------------------------------------------------
     // Getter
     // -------------------------------------------------------------------------
 
+    /**
+     * Gets the values as a read-only list view, boxing them as they are read.
+     */
     public List<Object> getValues()
     {
-        return values;
+        return new AbstractList<Object>()
+        {
+            @Override
+            public Object get( int index )
+            {
+                if ( index >= size )
+                {
+                    throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size );
+                }
+
+                return MultiValues.this.get( index );
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Makes room for at least the given number of values. Subclasses that
+     * keep arrays in parallel with the values grow them here too.
+     *
+     * @param capacity the number of values needed.
+     * @return the new capacity, if it grew, otherwise 0.
+     */
+    protected int ensureCapacity( int capacity )
+    {
+        int current = objects == null ? doubles.length : objects.length;
+
+        if ( capacity <= current )
+        {
+            return 0;
+        }
+
+        int newCapacity = Math.max( capacity, Math.max( 8, current + ( current >> 1 ) ) );
+
+        if ( objects == null )
+        {
+            doubles = Arrays.copyOf( doubles, newCapacity );
+        }
+        else
+        {
+            objects = Arrays.copyOf( objects, newCapacity );
+        }
+
+        return newCapacity;
     }
 
+    private void append( Object value )
+    {
+        ensureCapacity( size + 1 );
+
+        if ( objects == null )
+        {
+            if ( value instanceof Double )
+            {
+                doubles[size++] = (Double) value;
+
+                return;
+            }
+
+            objects = new Object[doubles.length];
+
+            for ( int i = 0; i < size; i++ )
+            {
+                objects[i] = doubles[i];
+            }
+
+            doubles = NO_DOUBLES;
+        }
+
+        objects[size++] = value;
+    }
 }
@@ -0,0 +1,227 @@
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+
+import java.util.BitSet;
+
+/**
+ * Percentiles of multiple values, with the same results as Commons Math
+ * {@code StatUtils.percentile} (its default estimation, with NaN values
+ * removed).
+ * <p/>
+ * A percentile is found by quickselect, in linear expected time. When
+ * several percentiles are wanted from the same values, they are read from
+ * one {@link SortedView}, which becomes more sorted with each selection
+ * instead of being sorted again for each one.
+ */
+public final class OrderStatistics
+{
+    private OrderStatistics()
+    {
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Finds a percentile of values by quickselect. The values are not
+     * changed.
+     *
+     * @param values the values, in the first size elements.
+     * @param size the number of values.
+     * @param p the percentile, in (0, 100].
+     * @return the percentile, or NaN if there are no (non-NaN) values.
+     */
+    public static double percentile( double[] values, int size, double p )
+    {
+        return new SortedView( values, size ).percentile( p );
+    }
+
+    /**
+     * The values for order statistics, with NaN values removed, sorted as
+     * far as the selections so far have needed. Each quickselect partition
+     * leaves its pivot values in their sorted positions, and these are
+     * remembered, so a later selection only partitions the range between
+     * the sorted positions around it. Reading all percentiles would end up
+     * sorting the values once.
+     */
+    public static final class SortedView
+    {
+        private final double[] work;
+
+        private final int n;
+
+        private final BitSet sorted; // Positions holding their sorted value.
+
+        /**
+         * Makes a view of values, copying them.
+         *
+         * @param values the values, in the first size elements.
+         * @param size the number of values.
+         */
+        public SortedView( double[] values, int size )
+        {
+            double[] work = new double[size];
+
+            int n = 0;
+
+            for ( int i = 0; i < size; i++ )
+            {
+                if ( !Double.isNaN( values[i] ) )
+                {
+                    work[n++] = values[i];
+                }
+            }
+
+            this.work = work;
+            this.n = n;
+            this.sorted = new BitSet( n );
+        }
+
+        /**
+         * Finds a percentile.
+         *
+         * @param p the percentile, in (0, 100].
+         * @return the percentile, or NaN if there are no (non-NaN) values.
+         */
+        public double percentile( double p )
+        {
+            if ( !( p > 0 && p <= 100 ) )
+            {
+                throw new OutOfRangeException( LocalizedFormats.OUT_OF_BOUNDS_QUANTILE_VALUE, p, 0, 100 );
+            }
+
+            if ( n == 0 )
+            {
+                return Double.NaN;
+            }
+
+            double quantile = p / 100;
+
+            double pos = quantile == 1 ? n : quantile * ( n + 1 );
+
+            if ( pos < 1 )
+            {
+                return select( 0 );
+            }
+
+            if ( pos >= n )
+            {
+                return select( n - 1 );
+            }
+
+            double fpos = Math.floor( pos );
+            int intPos = (int) fpos;
+            double dif = pos - fpos;
+
+            double lower = select( intPos - 1 );
+            double upper = select( intPos );
+
+            return lower + dif * ( upper - lower );
+        }
+
+        /**
+         * Finds the k-th smallest value.
+         */
+        private double select( int k )
+        {
+            if ( sorted.get( k ) )
+            {
+                return work[k];
+            }
+
+            int lo = sorted.previousSetBit( k ) + 1;
+            int hi = sorted.nextSetBit( k );
+
+            return quickselect( work, lo, hi < 0 ? n - 1 : hi - 1, k, sorted );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Partially orders values in a range so the k-th smallest is at index k,
+     * with no larger values before it and no smaller values after it.
+     * Marks the positions that get their sorted values.
+     *
+     * @return the k-th smallest value.
+     */
+    private static double quickselect( double[] a, int lo, int hi, int k, BitSet sorted )
+    {
+        while ( hi > lo )
+        {
+            // Median of three pivot, moved to hi. Both scans stop at values
+            // equal to the pivot, so many equal values still split evenly.
+
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( a[mid] < a[lo] )
+            {
+                swap( a, mid, lo );
+            }
+
+            if ( a[hi] < a[lo] )
+            {
+                swap( a, hi, lo );
+            }
+
+            if ( a[mid] < a[hi] )
+            {
+                swap( a, mid, hi );
+            }
+
+            double pivot = a[hi];
+
+            int i = lo - 1;
+            int j = hi;
+
+            while ( true )
+            {
+                while ( a[++i] < pivot )
+                {
+                }
+
+                while ( pivot < a[--j] && j > lo )
+                {
+                }
+
+                if ( i >= j )
+                {
+                    break;
+                }
+
+                swap( a, i, j );
+            }
+
+            swap( a, i, hi );
+
+            sorted.set( i );
+
+            if ( k < i )
+            {
+                hi = i - 1;
+            }
+            else if ( k > i )
+            {
+                lo = i + 1;
+            }
+            else
+            {
+                return a[k];
+            }
+        }
+
+        sorted.set( k );
+
+        return a[k];
+    }
+
+    private static void swap( double[] a, int i, int j )
+    {
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
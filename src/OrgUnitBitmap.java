@@ -0,0 +1,476 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable compressed set of orgUnit ids, in the style of a roaring
+ * bitmap.
+ * <p/>
+ * Ids are split into chunks of 65536 by their high 16 bits, and each
+ * non-empty chunk is stored in the smallest of three containers: a
+ * sorted array of its low 16 bits (for sparse chunks), a bitmap of 1024
+ * words (for dense chunks), or a list of runs (for chunks that are mostly
+ * ranges, as groups of neighbouring orgUnits are in preorder ids.)
+ * <p/>
+ * The cardinality of every chunk prefix is kept, so counting the members
+ * in an id range, such as a subtree of the {@link OrgUnitHierarchy}, only
+ * looks inside the containers at the two ends of the range.
+ */
+public final class OrgUnitBitmap
+{
+    public static final OrgUnitBitmap EMPTY = new OrgUnitBitmap( new int[0], new Container[0] );
+
+    private final int[] keys; // High 16 bits of each container's ids.
+
+    private final Container[] containers;
+
+    private final int[] cardinalityBefore; // Before each container, and in total.
+
+    private OrgUnitBitmap( int[] keys, Container[] containers )
+    {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalityBefore = new int[containers.length + 1];
+
+        for ( int i = 0; i < containers.length; i++ )
+        {
+            cardinalityBefore[i + 1] = cardinalityBefore[i] + containers[i].cardinality();
+        }
+    }
+
+    /**
+     * Makes a bitmap of ids.
+     *
+     * @param ids the ids, in any order, possibly repeated.
+     * @return the bitmap.
+     */
+    public static OrgUnitBitmap of( int... ids )
+    {
+        int[] sorted = ids.clone();
+
+        Arrays.sort( sorted );
+
+        int chunks = 0;
+
+        for ( int i = 0; i < sorted.length; i++ )
+        {
+            if ( i == 0 || sorted[i] >>> 16 != sorted[i - 1] >>> 16 )
+            {
+                chunks++;
+            }
+        }
+
+        int[] keys = new int[chunks];
+        Container[] containers = new Container[chunks];
+
+        long[] words = new long[1024];
+
+        for ( int i = 0, c = 0; i < sorted.length; c++ )
+        {
+            int key = sorted[i] >>> 16;
+
+            Arrays.fill( words, 0 );
+
+            for ( ; i < sorted.length && sorted[i] >>> 16 == key; i++ )
+            {
+                words[( sorted[i] & 0xFFFF ) >>> 6] |= 1L << sorted[i];
+            }
+
+            keys[c] = key;
+            containers[c] = Container.of( words );
+        }
+
+        return new OrgUnitBitmap( keys, containers );
+    }
+
+    /**
+     * Makes the union of bitmaps.
+     *
+     * @param bitmaps the bitmaps.
+     * @return the union.
+     */
+    public static OrgUnitBitmap or( OrgUnitBitmap... bitmaps )
+    {
+        if ( bitmaps.length == 1 )
+        {
+            return bitmaps[0];
+        }
+
+        int[] keys = Arrays.stream( bitmaps ).flatMapToInt( b -> Arrays.stream( b.keys ) ).sorted().distinct().toArray();
+        Container[] containers = new Container[keys.length];
+
+        int[] next = new int[bitmaps.length]; // Next container of each bitmap.
+
+        long[] words = new long[1024];
+
+        for ( int c = 0; c < keys.length; c++ )
+        {
+            Arrays.fill( words, 0 );
+
+            for ( int b = 0; b < bitmaps.length; b++ )
+            {
+                if ( next[b] < bitmaps[b].keys.length && bitmaps[b].keys[next[b]] == keys[c] )
+                {
+                    bitmaps[b].containers[next[b]++].orInto( words );
+                }
+            }
+
+            containers[c] = Container.of( words );
+        }
+
+        return new OrgUnitBitmap( keys, containers );
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    public int cardinality()
+    {
+        return cardinalityBefore[containers.length];
+    }
+
+    public boolean contains( int id )
+    {
+        int c = Arrays.binarySearch( keys, id >>> 16 );
+
+        return c >= 0 && containers[c].contains( id & 0xFFFF );
+    }
+
+    /**
+     * Counts the ids in a range.
+     *
+     * @param from the start of the range.
+     * @param to the end of the range (exclusive.)
+     * @return the number of ids from (inclusive) to (exclusive).
+     */
+    public int rangeCardinality( int from, int to )
+    {
+        return from >= to ? 0 : countBelow( to ) - countBelow( from );
+    }
+
+    /**
+     * Calls an action for each id, in increasing order.
+     */
+    public void forEach( IntConsumer action )
+    {
+        for ( int c = 0; c < containers.length; c++ )
+        {
+            containers[c].forEach( keys[c] << 16, action );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Counts the ids less than an id.
+     */
+    private int countBelow( int id )
+    {
+        int c = Arrays.binarySearch( keys, id >>> 16 );
+
+        if ( c < 0 )
+        {
+            return cardinalityBefore[-c - 1];
+        }
+
+        return cardinalityBefore[c] + containers[c].countBelow( id & 0xFFFF );
+    }
+
+    // -------------------------------------------------------------------------
+    // Containers
+    // -------------------------------------------------------------------------
+
+    /**
+     * The low 16 bits of the ids in one chunk.
+     */
+    private abstract static class Container
+    {
+        /**
+         * Makes the smallest container for a chunk.
+         *
+         * @param words the chunk as a bitmap.
+         * @return the container.
+         */
+        static Container of( long[] words )
+        {
+            int cardinality = 0;
+            int runs = 0;
+            long previousHigh = 0;
+
+            for ( long word : words )
+            {
+                cardinality += Long.bitCount( word );
+                runs += Long.bitCount( word & ~( word << 1 | previousHigh ) ); // Run starts.
+                previousHigh = word >>> 63;
+            }
+
+            int arrayBytes = cardinality * 2;
+            int runBytes = runs * 4;
+
+            if ( runBytes < arrayBytes && runBytes < 8192 )
+            {
+                return new RunContainer( words, runs );
+            }
+            else if ( arrayBytes < 8192 )
+            {
+                return new ArrayContainer( words, cardinality );
+            }
+
+            return new BitmapContainer( words.clone(), cardinality );
+        }
+
+        abstract int cardinality();
+
+        abstract boolean contains( int low );
+
+        /**
+         * Counts the values less than a low 16 bit value.
+         */
+        abstract int countBelow( int low );
+
+        abstract void forEach( int high, IntConsumer action );
+
+        abstract void orInto( long[] words );
+    }
+
+    private static final class ArrayContainer extends Container
+    {
+        private final char[] values;
+
+        ArrayContainer( long[] words, int cardinality )
+        {
+            values = new char[cardinality];
+
+            int n = 0;
+
+            for ( int w = 0; w < words.length; w++ )
+            {
+                for ( long word = words[w]; word != 0; word &= word - 1 )
+                {
+                    values[n++] = (char) ( w << 6 | Long.numberOfTrailingZeros( word ) );
+                }
+            }
+        }
+
+        @Override
+        int cardinality()
+        {
+            return values.length;
+        }
+
+        @Override
+        boolean contains( int low )
+        {
+            return Arrays.binarySearch( values, (char) low ) >= 0;
+        }
+
+        @Override
+        int countBelow( int low )
+        {
+            int i = Arrays.binarySearch( values, (char) low );
+
+            return i < 0 ? -i - 1 : i;
+        }
+
+        @Override
+        void forEach( int high, IntConsumer action )
+        {
+            for ( char value : values )
+            {
+                action.accept( high | value );
+            }
+        }
+
+        @Override
+        void orInto( long[] words )
+        {
+            for ( char value : values )
+            {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+    }
+
+    private static final class BitmapContainer extends Container
+    {
+        private final long[] words;
+
+        private final int cardinality;
+
+        private final int[] countBefore; // Values before each block of 16 words.
+
+        BitmapContainer( long[] words, int cardinality )
+        {
+            this.words = words;
+            this.cardinality = cardinality;
+            this.countBefore = new int[words.length / 16 + 1];
+
+            for ( int w = 0; w < words.length; w++ )
+            {
+                countBefore[w / 16 + 1] += Long.bitCount( words[w] );
+            }
+
+            for ( int b = 1; b < countBefore.length; b++ )
+            {
+                countBefore[b] += countBefore[b - 1];
+            }
+        }
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains( int low )
+        {
+            return ( words[low >>> 6] & 1L << low ) != 0;
+        }
+
+        @Override
+        int countBelow( int low )
+        {
+            int w = low >>> 6;
+            int count = countBefore[w / 16];
+
+            for ( int i = w & ~15; i < w; i++ )
+            {
+                count += Long.bitCount( words[i] );
+            }
+
+            return ( low & 63 ) == 0 ? count : count + Long.bitCount( words[w] & ( -1L >>> ( 64 - ( low & 63 ) ) ) );
+        }
+
+        @Override
+        void forEach( int high, IntConsumer action )
+        {
+            for ( int w = 0; w < words.length; w++ )
+            {
+                for ( long word = words[w]; word != 0; word &= word - 1 )
+                {
+                    action.accept( high | w << 6 | Long.numberOfTrailingZeros( word ) );
+                }
+            }
+        }
+
+        @Override
+        void orInto( long[] words )
+        {
+            for ( int w = 0; w < words.length; w++ )
+            {
+                words[w] |= this.words[w];
+            }
+        }
+    }
+
+    private static final class RunContainer extends Container
+    {
+        private final char[] starts;
+
+        private final char[] lengths; // Run length - 1, so a run can be 65536 long.
+
+        private final int[] countBefore; // Values in the runs before each run.
+
+        RunContainer( long[] words, int runs )
+        {
+            starts = new char[runs];
+            lengths = new char[runs];
+            countBefore = new int[runs + 1];
+
+            int r = 0;
+            int start = -1;
+
+            for ( int i = 0; i <= 65536; i++ )
+            {
+                boolean set = i < 65536 && ( words[i >>> 6] & 1L << i ) != 0;
+
+                if ( set && start < 0 )
+                {
+                    start = i;
+                }
+                else if ( !set && start >= 0 )
+                {
+                    starts[r] = (char) start;
+                    lengths[r] = (char) ( i - start - 1 );
+                    countBefore[r + 1] = countBefore[r] + i - start;
+                    r++;
+                    start = -1;
+                }
+            }
+        }
+
+        @Override
+        int cardinality()
+        {
+            return countBefore[starts.length];
+        }
+
+        @Override
+        boolean contains( int low )
+        {
+            int r = lastRunFrom( low );
+
+            return r >= 0 && low - starts[r] <= lengths[r];
+        }
+
+        @Override
+        int countBelow( int low )
+        {
+            int r = lastRunFrom( low - 1 );
+
+            return r < 0 ? 0 : countBefore[r] + Math.min( low - starts[r], lengths[r] + 1 );
+        }
+
+        @Override
+        void forEach( int high, IntConsumer action )
+        {
+            for ( int r = 0; r < starts.length; r++ )
+            {
+                for ( int v = starts[r], end = v + lengths[r]; v <= end; v++ )
+                {
+                    action.accept( high | v );
+                }
+            }
+        }
+
+        @Override
+        void orInto( long[] words )
+        {
+            for ( int r = 0; r < starts.length; r++ )
+            {
+                for ( int v = starts[r], end = v + lengths[r]; v <= end; v++ )
+                {
+                    words[v >>> 6] |= 1L << v;
+                }
+            }
+        }
+
+        /**
+         * Finds the last run starting at or before a value, or -1.
+         */
+        private int lastRunFrom( int low )
+        {
+            int lo = 0;
+            int hi = starts.length;
+
+            while ( lo < hi )
+            {
+                int mid = ( lo + hi ) >>> 1;
+
+                if ( starts[mid] <= low )
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+
+            return lo - 1;
+        }
+    }
+}
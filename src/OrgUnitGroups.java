@@ -0,0 +1,127 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The members of orgUnit groups, as an {@link OrgUnitBitmap} of
+ * {@link OrgUnitHierarchy} ids for each group.
+ * <p/>
+ * Since a subtree of the hierarchy is a range of ids, the members of a
+ * group under an orgUnit (OUG{uid}) are counted from the bitmap without
+ * looking at the members one by one. The members of several groups
+ * (ouGroup) are the union of their bitmaps, in id order.
+ */
+public class OrgUnitGroups
+{
+    private final OrgUnitHierarchy hierarchy;
+
+    private final Map<String, OrgUnitBitmap> groups = new HashMap<>();
+
+    private final Map<List<String>, OrgUnitBitmap> unions = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes orgUnit groups.
+     *
+     * @param hierarchy the orgUnit hierarchy.
+     * @param members the orgUnit uids of each group, by group uid.
+     * @throws IllegalArgumentException if a member is not in the
+     *         hierarchy.
+     */
+    public OrgUnitGroups( OrgUnitHierarchy hierarchy, Map<String, ? extends Collection<String>> members )
+    {
+        this.hierarchy = hierarchy;
+
+        for ( Map.Entry<String, ? extends Collection<String>> group : members.entrySet() )
+        {
+            int[] ids = new int[group.getValue().size()];
+            int n = 0;
+
+            for ( String orgUnit : group.getValue() )
+            {
+                int id = hierarchy.id( orgUnit );
+
+                if ( id < 0 )
+                {
+                    throw new IllegalArgumentException( "orgUnit in group " + group.getKey() + " not in hierarchy: " + orgUnit );
+                }
+
+                ids[n++] = id;
+            }
+
+            groups.put( group.getKey(), OrgUnitBitmap.of( ids ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the members of a group.
+     *
+     * @param group the group uid.
+     * @return the member ids.
+     * @throws ParsingException if the group is not found.
+     */
+    public OrgUnitBitmap getMembers( String group )
+    {
+        OrgUnitBitmap members = groups.get( group );
+
+        if ( members == null )
+        {
+            throw new ParsingException( "orgUnit group not found: '" + group + "'" );
+        }
+
+        return members;
+    }
+
+    /**
+     * Gets the members of any of several groups. Unions are kept, so each
+     * set of groups is merged only once.
+     *
+     * @param groups the group uids.
+     * @return the member ids.
+     * @throws ParsingException if a group is not found.
+     */
+    public OrgUnitBitmap getMembers( String... groups )
+    {
+        if ( groups.length == 1 )
+        {
+            return getMembers( groups[0] );
+        }
+
+        List<String> key = Arrays.asList( groups );
+
+        OrgUnitBitmap union = unions.get( key );
+
+        if ( union == null )
+        {
+            union = OrgUnitBitmap.or( Arrays.stream( groups ).map( this::getMembers ).toArray( OrgUnitBitmap[]::new ) );
+
+            unions.put( key, union );
+        }
+
+        return union;
+    }
+
+    /**
+     * Counts the members of a group that are an orgUnit or its descendants.
+     *
+     * @param group the group uid.
+     * @param orgUnit the orgUnit id.
+     * @return the count.
+     * @throws ParsingException if the group is not found.
+     */
+    public int count( String group, int orgUnit )
+    {
+        return getMembers( group ).rangeCardinality( orgUnit, hierarchy.subtreeEnd( orgUnit ) );
+    }
+
+    public OrgUnitHierarchy getHierarchy()
+    {
+        return hierarchy;
+    }
+}
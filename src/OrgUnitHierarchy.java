@@ -0,0 +1,379 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * An index of the orgUnit hierarchy, for the orgUnit scope functions.
+ * <p/>
+ * Each orgUnit gets a dense int id: its position in a preorder walk of the
+ * hierarchy. An orgUnit's descendants then have the ids from its own up
+ * to the end of its subtree. The orgUnits at each level are also listed
+ * in id order, so the orgUnits at one level under an orgUnit are a
+ * contiguous range of that list, found by binary search. Levels,
+ * descendants and peers are scanned as such ranges. Ancestors are found
+ * by binary lifting.
+ * <p/>
+ * Levels are numbered from 1 (the roots.) The index is a few int arrays
+ * per orgUnit, plus the uid map.
+ */
+public class OrgUnitHierarchy
+{
+    private final String[] uids;
+
+    private final Map<String, Integer> ids;
+
+    private final int[] parent;
+
+    private final int[] level;
+
+    private final int[] end; // Exclusive end of each subtree.
+
+    private final int[] byLevel; // Ids by level, then id.
+
+    private final int[] levelStart; // Start of each level in byLevel.
+
+    private final int[][] up; // up[k][id]: the ancestor 2^k levels up, or -1.
+
+    /**
+     * Indexes a hierarchy.
+     *
+     * @param uids the orgUnit uids.
+     * @param parentUids the uid of each orgUnit's parent, or null for a
+     *                   root.
+     * @throws IllegalArgumentException if a uid is repeated, a parent is
+     *         not found, or the parents have a cycle.
+     */
+    public OrgUnitHierarchy( String[] uids, String[] parentUids )
+    {
+        int n = uids.length;
+
+        Map<String, Integer> input = new HashMap<>( n * 2 );
+
+        for ( int i = 0; i < n; i++ )
+        {
+            if ( input.put( uids[i], i ) != null )
+            {
+                throw new IllegalArgumentException( "orgUnit repeated: " + uids[i] );
+            }
+        }
+
+        // Children of each orgUnit (and the roots, under n) in input order.
+
+        int[] inputParent = new int[n];
+        int[] childStart = new int[n + 3];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            Integer p = parentUids[i] == null ? Integer.valueOf( n ) : input.get( parentUids[i] );
+
+            if ( p == null )
+            {
+                throw new IllegalArgumentException( "parent of orgUnit " + uids[i] + " not found: " + parentUids[i] );
+            }
+
+            inputParent[i] = p;
+            childStart[p + 2]++;
+        }
+
+        for ( int i = 2; i < n + 3; i++ )
+        {
+            childStart[i] += childStart[i - 1];
+        }
+
+        int[] children = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            children[childStart[inputParent[i] + 1]++] = i;
+        }
+
+        // Preorder walk from the roots.
+
+        this.uids = new String[n];
+        this.ids = new HashMap<>( n * 2 );
+        this.parent = new int[n];
+        this.level = new int[n];
+        this.end = new int[n];
+
+        int[] stack = new int[n];
+        int[] stackParent = new int[n];
+        int top = 0;
+        int id = 0;
+        int maxLevel = 0;
+
+        for ( int c = childStart[n + 1] - 1; c >= childStart[n]; c-- )
+        {
+            stack[top] = children[c];
+            stackParent[top++] = -1;
+        }
+
+        while ( top > 0 )
+        {
+            int i = stack[--top];
+            int p = stackParent[top];
+
+            this.uids[id] = uids[i];
+            this.ids.put( uids[i], id );
+            this.parent[id] = p;
+            this.level[id] = p < 0 ? 1 : level[p] + 1;
+
+            maxLevel = Math.max( maxLevel, level[id] );
+
+            for ( int c = childStart[i + 1] - 1; c >= childStart[i]; c-- )
+            {
+                stack[top] = children[c];
+                stackParent[top++] = id;
+            }
+
+            id++;
+        }
+
+        if ( id < n )
+        {
+            throw new IllegalArgumentException( "orgUnit parents have a cycle" );
+        }
+
+        for ( int i = n - 1; i >= 0; i-- )
+        {
+            end[i] = Math.max( end[i], i + 1 );
+
+            if ( parent[i] >= 0 )
+            {
+                end[parent[i]] = Math.max( end[parent[i]], end[i] );
+            }
+        }
+
+        // Ids by level (a counting sort, which keeps them in id order.)
+
+        levelStart = new int[maxLevel + 2];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            levelStart[level[i] + 1]++;
+        }
+
+        for ( int l = 1; l < levelStart.length; l++ )
+        {
+            levelStart[l] += levelStart[l - 1];
+        }
+
+        byLevel = new int[n];
+
+        int[] next = Arrays.copyOf( levelStart, levelStart.length );
+
+        for ( int i = 0; i < n; i++ )
+        {
+            byLevel[next[level[i]]++] = i;
+        }
+
+        // Binary lifting, as far as the deepest level needs.
+
+        up = new int[Math.max( 1, 32 - Integer.numberOfLeadingZeros( maxLevel ) )][];
+        up[0] = parent;
+
+        for ( int k = 1; k < up.length; k++ )
+        {
+            up[k] = new int[n];
+
+            for ( int i = 0; i < n; i++ )
+            {
+                up[k][i] = up[k - 1][i] < 0 ? -1 : up[k - 1][up[k - 1][i]];
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the id of an orgUnit.
+     *
+     * @param uid the orgUnit uid.
+     * @return the id, or -1 if the orgUnit is not in the hierarchy.
+     */
+    public int id( String uid )
+    {
+        Integer id = ids.get( uid );
+
+        return id == null ? -1 : id;
+    }
+
+    public String uid( int id )
+    {
+        return uids[id];
+    }
+
+    /**
+     * Gets the parent of an orgUnit.
+     *
+     * @return the parent id, or -1 for a root.
+     */
+    public int parent( int id )
+    {
+        return parent[id];
+    }
+
+    public int level( int id )
+    {
+        return level[id];
+    }
+
+    public int maxLevel()
+    {
+        return levelStart.length - 2;
+    }
+
+    public int size()
+    {
+        return uids.length;
+    }
+
+    /**
+     * Gets the end of an orgUnit's subtree: its descendants (and itself)
+     * have the ids from its own up to, but not including, this.
+     */
+    public int subtreeEnd( int id )
+    {
+        return end[id];
+    }
+
+    /**
+     * Tests if an orgUnit is a descendant of another (or the same.)
+     */
+    public boolean isDescendant( int id, int ancestor )
+    {
+        return id >= ancestor && id < end[ancestor];
+    }
+
+    /**
+     * Gets the ancestor of an orgUnit, by binary lifting.
+     *
+     * @param id the orgUnit id.
+     * @param generations the generations up (0=self, 1=parent, etc.)
+     * @return the ancestor id, or -1 if there is none.
+     */
+    public int ancestor( int id, int generations )
+    {
+        if ( generations < 0 || generations >= level[id] )
+        {
+            return -1;
+        }
+
+        for ( int k = 0; generations != 0; k++, generations >>>= 1 )
+        {
+            if ( ( generations & 1 ) != 0 )
+            {
+                id = up[k][id];
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * Scans the orgUnits at a level, in id order.
+     *
+     * @param level the level (1=roots.)
+     * @param action the action for each orgUnit id.
+     */
+    public void scanLevel( int level, IntConsumer action )
+    {
+        if ( level >= 1 && level <= maxLevel() )
+        {
+            scan( levelStart[level], levelStart[level + 1], action );
+        }
+    }
+
+    /**
+     * Scans the descendants of an orgUnit some generations down, in id
+     * order.
+     *
+     * @param id the orgUnit id.
+     * @param generations the generations down (1=children, etc.)
+     * @param action the action for each orgUnit id.
+     */
+    public void scanDescendants( int id, int generations, IntConsumer action )
+    {
+        int l = level[id] + generations;
+
+        if ( generations >= 0 && l <= maxLevel() )
+        {
+            scan( from( l, id ), from( l, end[id] ), action );
+        }
+    }
+
+    /**
+     * Scans the peers of an orgUnit: the orgUnits at the same level with a
+     * common ancestor some generations up, in id order.
+     *
+     * @param id the orgUnit id.
+     * @param removedFrom the fewest generations removed (0=self,
+     *                    1=siblings, 2=cousins, etc.)
+     * @param removedTo the most generations removed. Generations above the
+     *                  root count as the root.
+     * @param action the action for each orgUnit id.
+     */
+    public void scanPeers( int id, int removedFrom, int removedTo, IntConsumer action )
+    {
+        if ( removedFrom < 0 || removedTo < removedFrom )
+        {
+            return;
+        }
+
+        int l = level[id];
+
+        int outer = ancestor( id, Math.min( removedTo, l - 1 ) );
+
+        if ( removedFrom == 0 )
+        {
+            scan( from( l, outer ), from( l, end[outer] ), action );
+        }
+        else if ( removedFrom <= l - 1 )
+        {
+            int inner = ancestor( id, removedFrom - 1 );
+
+            scan( from( l, outer ), from( l, inner ), action );
+            scan( from( l, end[inner] ), from( l, end[outer] ), action );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Finds the start of the orgUnits at a level with ids >= an id, in
+     * byLevel.
+     */
+    private int from( int level, int id )
+    {
+        int lo = levelStart[level];
+        int hi = levelStart[level + 1];
+
+        while ( lo < hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( byLevel[mid] < id )
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    private void scan( int start, int stop, IntConsumer action )
+    {
+        for ( int i = start; i < stop; i++ )
+        {
+            action.accept( byLevel[i] );
+        }
+    }
+}
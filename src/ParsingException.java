@@ -1,8 +1,34 @@
+import org.antlr.v4.runtime.Token;
+
 public class ParsingException
     extends RuntimeException
 {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Token token; // Not serializable, so null when deserialized.
+
     public ParsingException( String message )
+    {
+        this( message, null );
+    }
+
+    /**
+     * Makes an exception for an error at a token of the expression.
+     *
+     * @param message the error message.
+     * @param token the token the error is at, or null if not known.
+     */
+    public ParsingException( String message, Token token )
     {
         super( message );
+        this.token = token;
+    }
+
+    /**
+     * Gets the token the error is at, or null if not known.
+     */
+    public Token getToken()
+    {
+        return token;
     }
 }
@@ -0,0 +1,108 @@
+/**
+ * A period offset relative to the period being evaluated: a number of
+ * periods and a number of years, as given to the period function. The
+ * two are kept apart because a year is a different number of periods for
+ * each period type (see {@link Periods#shift}.)
+ */
+public final class PeriodOffset
+    implements Comparable<PeriodOffset>
+{
+    public static final PeriodOffset ZERO = new PeriodOffset( 0, 0 );
+
+    private final int periodShift;
+
+    private final int yearShift;
+
+    public PeriodOffset( int periodShift, int yearShift )
+    {
+        this.periodShift = periodShift;
+        this.yearShift = yearShift;
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Adds another offset to this one, as when period functions are nested.
+     * (For daily and weekly periods, which keep their day of the month or
+     * week of the year when shifted by years, the sum can be a day or week
+     * from shifting by each offset in turn near a leap day or a 53-week
+     * year.)
+     *
+     * @param other the other offset.
+     * @return the sum of the offsets.
+     */
+    public PeriodOffset plus( PeriodOffset other )
+    {
+        return new PeriodOffset( periodShift + other.periodShift, yearShift + other.yearShift );
+    }
+
+    /**
+     * Gets the period at this offset from a period.
+     *
+     * @param periodId the period id.
+     * @return the shifted period id.
+     */
+    public int apply( int periodId )
+    {
+        return Periods.shift( periodId, periodShift, yearShift );
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    public int getPeriodShift()
+    {
+        return periodShift;
+    }
+
+    public int getYearShift()
+    {
+        return yearShift;
+    }
+
+    // -------------------------------------------------------------------------
+    // equals, hashCode, compareTo and toString
+    // -------------------------------------------------------------------------
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof PeriodOffset ) )
+        {
+            return false;
+        }
+
+        PeriodOffset other = (PeriodOffset) o;
+
+        return periodShift == other.periodShift && yearShift == other.yearShift;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * yearShift + periodShift;
+    }
+
+    /**
+     * Orders offsets by year shift, then by period shift.
+     */
+    @Override
+    public int compareTo( PeriodOffset o )
+    {
+        return yearShift != o.yearShift ? Integer.compare( yearShift, o.yearShift )
+            : Integer.compare( periodShift, o.periodShift );
+    }
+
+    /**
+     * Formats the offset as the period shift, followed by the year shift
+     * if there is one (for example "-1" or "0 -1y".)
+     */
+    @Override
+    public String toString()
+    {
+        return yearShift == 0 ? Integer.toString( periodShift ) : periodShift + " " + yearShift + "y";
+    }
+}
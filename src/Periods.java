@@ -0,0 +1,420 @@
+/**
+ * Periods as int ids, so that scopes can shift and compare periods without
+ * parsing or allocating.
+ * <p/>
+ * A period id holds the period type in its top bits and the period's index
+ * within its type in the rest. Ids of the same type are in the same order
+ * as their periods, and shifting by n periods adds n to the index:
+ * <ul>
+ *     <li>Daily: days since 0001-01-01 (proleptic Gregorian calendar.)</li>
+ *     <li>Weekly (ISO weeks, from Monday): weeks since 0001-01-01, which
+ *     was a Monday.</li>
+ *     <li>Monthly, BiMonthly, Quarterly, SixMonthly and Yearly: periods
+ *     since year 0.</li>
+ *     <li>Financial years: the year they start in.</li>
+ * </ul>
+ * Periods are parsed from and formatted to the DHIS2 ISO formats, such as
+ * "20180815", "2018W33", "201808", "201804B", "2018Q3", "2018S2", "2018"
+ * and "2018April".
+ */
+public final class Periods
+{
+    private static final int TYPE_SHIFT = 27;
+
+    private static final int INDEX_MASK = ( 1 << TYPE_SHIFT ) - 1;
+
+    /**
+     * Days before each month, for normal and leap years (index 12 is the
+     * length of the year.)
+     */
+    private static final int[][] DAYS_BEFORE_MONTH = {
+        { 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334, 365 },
+        { 0, 31, 60, 91, 121, 152, 182, 213, 244, 274, 305, 335, 366 } };
+
+    /**
+     * The month (0-11) of each day of the year, for normal and leap years.
+     */
+    private static final byte[][] MONTH_OF_DAY = new byte[2][366];
+
+    static
+    {
+        for ( int leap = 0; leap < 2; leap++ )
+        {
+            for ( int m = 0; m < 12; m++ )
+            {
+                for ( int d = DAYS_BEFORE_MONTH[leap][m]; d < DAYS_BEFORE_MONTH[leap][m + 1]; d++ )
+                {
+                    MONTH_OF_DAY[leap][d] = (byte) m;
+                }
+            }
+        }
+    }
+
+    /**
+     * A type of period. Types made of months have a length in months, the
+     * month of the year (0-11) their years start in, and a fixed number of
+     * periods per year, so a year shift is one multiplication.
+     */
+    public enum Type
+    {
+        DAILY( 0, 0 ),
+        WEEKLY( 0, 0 ),
+        MONTHLY( 1, 0 ),
+        BI_MONTHLY( 2, 0 ),
+        QUARTERLY( 3, 0 ),
+        SIX_MONTHLY( 6, 0 ),
+        YEARLY( 12, 0 ),
+        FINANCIAL_APRIL( 12, 3 ),
+        FINANCIAL_JULY( 12, 6 ),
+        FINANCIAL_OCT( 12, 9 );
+
+        private static final Type[] TYPES = values();
+
+        private final int months;
+
+        private final int startMonth;
+
+        private final int periodsPerYear;
+
+        Type( int months, int startMonth )
+        {
+            this.months = months;
+            this.startMonth = startMonth;
+            this.periodsPerYear = months == 0 ? 0 : 12 / months;
+        }
+
+        /**
+         * Gets the id of the period of this type at an index.
+         *
+         * @param index the index of the period within its type.
+         * @return the period id.
+         */
+        public int id( int index )
+        {
+            return ordinal() << TYPE_SHIFT | index;
+        }
+
+        private boolean isMonths()
+        {
+            return months != 0;
+        }
+    }
+
+    private Periods()
+    {
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    public static Type type( int periodId )
+    {
+        return Type.TYPES[periodId >>> TYPE_SHIFT];
+    }
+
+    public static int index( int periodId )
+    {
+        return periodId & INDEX_MASK;
+    }
+
+    /**
+     * Shifts a period.
+     *
+     * @param periodId the period id to shift from.
+     * @param periodShift the number of periods to shift.
+     * @param yearShift the number of years to shift. Daily and weekly
+     *                  periods keep their day of the month or week of the
+     *                  year, or the last one if the year is shorter.
+     * @return the shifted period id.
+     */
+    public static int shift( int periodId, int periodShift, int yearShift )
+    {
+        Type type = type( periodId );
+        int index = index( periodId );
+
+        if ( yearShift != 0 )
+        {
+            if ( type.isMonths() )
+            {
+                index += yearShift * type.periodsPerYear;
+            }
+            else if ( type == Type.DAILY )
+            {
+                int date = date( index );
+                int year = date / 10000 + yearShift;
+                int month = date / 100 % 100;
+
+                index = day( year, month, Math.min( date % 100, daysInMonth( year, month ) ) );
+            }
+            else
+            {
+                int week = weekYearAndNumber( index );
+                int year = week / 100 + yearShift;
+
+                index = firstWeek( year ) + Math.min( week % 100, firstWeek( year + 1 ) - firstWeek( year ) ) - 1;
+            }
+        }
+
+        return type.id( index + periodShift );
+    }
+
+    /**
+     * Gets the number of days in a period.
+     *
+     * @param periodId the period id.
+     * @return the number of days.
+     */
+    public static int days( int periodId )
+    {
+        Type type = type( periodId );
+
+        switch ( type )
+        {
+            case DAILY:
+                return 1;
+
+            case WEEKLY:
+                return 7;
+
+            default:
+                int month = index( periodId ) * type.months + type.startMonth;
+
+                return firstDayOfMonth( month + type.months ) - firstDayOfMonth( month );
+        }
+    }
+
+    /**
+     * Parses a period.
+     *
+     * @param period the period, in DHIS2 ISO format.
+     * @return the period id.
+     * @throws ParsingException if the period is not valid.
+     */
+    public static int parse( String period )
+    {
+        try
+        {
+            int length = period.length();
+
+            if ( length < 4 )
+            {
+                throw new ParsingException( "period expected: '" + period + "'" );
+            }
+
+            int year = inRange( digits( period, 0, 4 ), 9999, period );
+            String suffix = period.substring( 4 );
+
+            if ( length == 4 )
+            {
+                return Type.YEARLY.id( year );
+            }
+            else if ( suffix.equals( "April" ) )
+            {
+                return Type.FINANCIAL_APRIL.id( year );
+            }
+            else if ( suffix.equals( "July" ) )
+            {
+                return Type.FINANCIAL_JULY.id( year );
+            }
+            else if ( suffix.equals( "Oct" ) )
+            {
+                return Type.FINANCIAL_OCT.id( year );
+            }
+            else if ( length == 6 && Character.isDigit( period.charAt( 4 ) ) )
+            {
+                return Type.MONTHLY.id( year * 12 + inRange( digits( period, 4, 6 ), 12, period ) - 1 );
+            }
+            else if ( length == 8 && Character.isDigit( period.charAt( 4 ) ) )
+            {
+                int month = inRange( digits( period, 4, 6 ), 12, period );
+
+                return Type.DAILY.id( day( year, month, inRange( digits( period, 6, 8 ), daysInMonth( year, month ), period ) ) );
+            }
+            else if ( length == 7 && period.charAt( 6 ) == 'B' )
+            {
+                return Type.BI_MONTHLY.id( year * 6 + inRange( digits( period, 4, 6 ), 6, period ) - 1 );
+            }
+            else if ( period.charAt( 4 ) == 'W' )
+            {
+                return Type.WEEKLY.id( firstWeek( year ) + inRange( digits( period, 5, length ), firstWeek( year + 1 ) - firstWeek( year ), period ) - 1 );
+            }
+            else if ( length == 6 && period.charAt( 4 ) == 'Q' )
+            {
+                return Type.QUARTERLY.id( year * 4 + inRange( digits( period, 5, 6 ), 4, period ) - 1 );
+            }
+            else if ( length == 6 && period.charAt( 4 ) == 'S' )
+            {
+                return Type.SIX_MONTHLY.id( year * 2 + inRange( digits( period, 5, 6 ), 2, period ) - 1 );
+            }
+        }
+        catch ( NumberFormatException ex )
+        {
+            // Fall through to report the period.
+        }
+
+        throw new ParsingException( "period expected: '" + period + "'" );
+    }
+
+    /**
+     * Formats a period.
+     *
+     * @param periodId the period id.
+     * @return the period, in DHIS2 ISO format.
+     */
+    public static String format( int periodId )
+    {
+        int index = index( periodId );
+
+        switch ( type( periodId ) )
+        {
+            case DAILY:
+                return Integer.toString( date( index ) );
+
+            case WEEKLY:
+                int week = weekYearAndNumber( index );
+
+                return week / 100 + "W" + week % 100;
+
+            case MONTHLY:
+                return index / 12 + twoDigits( index % 12 + 1 );
+
+            case BI_MONTHLY:
+                return index / 6 + twoDigits( index % 6 + 1 ) + "B";
+
+            case QUARTERLY:
+                return index / 4 + "Q" + ( index % 4 + 1 );
+
+            case SIX_MONTHLY:
+                return index / 2 + "S" + ( index % 2 + 1 );
+
+            case YEARLY:
+                return Integer.toString( index );
+
+            case FINANCIAL_APRIL:
+                return index + "April";
+
+            case FINANCIAL_JULY:
+                return index + "July";
+
+            default:
+                return index + "Oct";
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static boolean isLeap( int year )
+    {
+        return year % 4 == 0 && ( year % 100 != 0 || year % 400 == 0 );
+    }
+
+    /**
+     * Gets the day index of January 1 of a year.
+     */
+    private static int firstDayOfYear( int year )
+    {
+        int y = year - 1;
+
+        return y * 365 + y / 4 - y / 100 + y / 400;
+    }
+
+    /**
+     * Gets the day index of the first day of a month, counted from January
+     * of year 0.
+     */
+    private static int firstDayOfMonth( int month )
+    {
+        int year = month / 12;
+
+        return firstDayOfYear( year ) + DAYS_BEFORE_MONTH[isLeap( year ) ? 1 : 0][month % 12];
+    }
+
+    private static int daysInMonth( int year, int month )
+    {
+        int[] daysBefore = DAYS_BEFORE_MONTH[isLeap( year ) ? 1 : 0];
+
+        return daysBefore[month] - daysBefore[month - 1];
+    }
+
+    /**
+     * Gets the day index of a date (month 1-12.)
+     */
+    private static int day( int year, int month, int day )
+    {
+        return firstDayOfYear( year ) + DAYS_BEFORE_MONTH[isLeap( year ) ? 1 : 0][month - 1] + day - 1;
+    }
+
+    /**
+     * Gets the date of a day index, as an int yyyyMMdd.
+     */
+    private static int date( int day )
+    {
+        int year = (int) ( day * 400L / 146097 ) + 1; // Within one of the year.
+
+        if ( firstDayOfYear( year ) > day )
+        {
+            year--;
+        }
+        else if ( firstDayOfYear( year + 1 ) <= day )
+        {
+            year++;
+        }
+
+        int leap = isLeap( year ) ? 1 : 0;
+        int dayOfYear = day - firstDayOfYear( year );
+        int month = MONTH_OF_DAY[leap][dayOfYear];
+
+        return year * 10000 + ( month + 1 ) * 100 + dayOfYear - DAYS_BEFORE_MONTH[leap][month] + 1;
+    }
+
+    /**
+     * Gets the week index of the first ISO week of a year, the week with
+     * January 4 in it.
+     */
+    private static int firstWeek( int year )
+    {
+        return day( year, 1, 4 ) / 7;
+    }
+
+    /**
+     * Gets the ISO year and week number of a week index, as an int
+     * yyyyww. The year is the year of the week's Thursday.
+     */
+    private static int weekYearAndNumber( int week )
+    {
+        int year = date( week * 7 + 3 ) / 10000;
+
+        return year * 100 + week - firstWeek( year ) + 1;
+    }
+
+    private static int digits( String s, int start, int end )
+    {
+        for ( int i = start; i < end; i++ )
+        {
+            if ( !Character.isDigit( s.charAt( i ) ) )
+            {
+                throw new NumberFormatException();
+            }
+        }
+
+        return Integer.parseInt( s.substring( start, end ) );
+    }
+
+    private static int inRange( int n, int max, String period )
+    {
+        if ( n < 1 || n > max )
+        {
+            throw new ParsingException( "period expected: '" + period + "'" );
+        }
+
+        return n;
+    }
+
+    private static String twoDigits( int n )
+    {
+        return ( n < 10 ? "0" : "" ) + n;
+    }
+}
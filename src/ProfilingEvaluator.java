@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An evaluator that times the evaluation of each node of the parse tree,
+ * adding the measurements to an {@link EvaluationProfiler}.
+ * <p/>
+ * Each expression node is timed where it is visited. Period and orgUnit
+ * scopes whose values are streamed into an aggregation are not visited,
+ * so they are timed where they are scanned. The time of a node, less the
+ * time of the nodes timed below it, is its exclusive time.
+ * <p/>
+ * Like other evaluators, it is for one evaluation at a time, on one
+ * thread.
+ */
+public class ProfilingEvaluator extends ExpressionEvaluator
+{
+    private final EvaluationProfiler profiler;
+
+    private final String expression;
+
+    private final List<Frame> frames = new ArrayList<>();
+
+    /**
+     * Makes a profiling evaluator.
+     *
+     * @param evalContext the evaluation context.
+     * @param profiler the profiler to add the measurements to.
+     * @param expression the text of the expression to be evaluated.
+     */
+    public ProfilingEvaluator( EvalContext evalContext, EvaluationProfiler profiler, String expression )
+    {
+        super( evalContext );
+        this.profiler = profiler;
+        this.expression = expression;
+    }
+
+    /**
+     * A node being evaluated, with the time of the nodes timed below it
+     * so far.
+     */
+    private static final class Frame
+    {
+        final ExpressionParser.ExprContext ctx;
+
+        final EvaluationProfiler.Node node;
+
+        long childNanos = 0;
+
+        Frame( ExpressionParser.ExprContext ctx, EvaluationProfiler.Node node )
+        {
+            this.ctx = ctx;
+            this.node = node;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Visitor methods
+    // -------------------------------------------------------------------------
+
+    @Override
+    public Object visitExpr( ExpressionParser.ExprContext ctx )
+    {
+        Frame frame = push( ctx );
+
+        long start = System.nanoTime();
+
+        Object value = null;
+
+        try
+        {
+            value = super.visitExpr( ctx );
+
+            return value;
+        }
+        finally
+        {
+            pop( frame, System.nanoTime() - start, valueCount( value ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Scopes
+    // -------------------------------------------------------------------------
+
+    @Override
+    protected void scanPeriods( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        if ( isVisiting( ctx ) )
+        {
+            super.scanPeriods( ctx, sink );
+        }
+        else
+        {
+            scan( ctx, sink, s -> super.scanPeriods( ctx, s ) );
+        }
+    }
+
+    @Override
+    protected void scanOuLevel( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        if ( isVisiting( ctx ) )
+        {
+            super.scanOuLevel( ctx, sink );
+        }
+        else
+        {
+            scan( ctx, sink, s -> super.scanOuLevel( ctx, s ) );
+        }
+    }
+
+    @Override
+    protected void scanOuDescendant( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        if ( isVisiting( ctx ) )
+        {
+            super.scanOuDescendant( ctx, sink );
+        }
+        else
+        {
+            scan( ctx, sink, s -> super.scanOuDescendant( ctx, s ) );
+        }
+    }
+
+    @Override
+    protected void scanOuPeer( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        if ( isVisiting( ctx ) )
+        {
+            super.scanOuPeer( ctx, sink );
+        }
+        else
+        {
+            scan( ctx, sink, s -> super.scanOuPeer( ctx, s ) );
+        }
+    }
+
+    @Override
+    protected void scanOuGroup( ExpressionParser.ExprContext ctx, ValueSink sink )
+    {
+        if ( isVisiting( ctx ) )
+        {
+            super.scanOuGroup( ctx, sink );
+        }
+        else
+        {
+            scan( ctx, sink, s -> super.scanOuGroup( ctx, s ) );
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Whether a scope is being scanned for its own visit (to collect its
+     * values), so it is already timed.
+     */
+    private boolean isVisiting( ExpressionParser.ExprContext ctx )
+    {
+        return !frames.isEmpty() && frames.get( frames.size() - 1 ).ctx == ctx;
+    }
+
+    /**
+     * Times a scope whose values are streamed into a sink, counting them.
+     */
+    private void scan( ExpressionParser.ExprContext ctx, ValueSink sink, Consumer<ValueSink> scope )
+    {
+        Frame frame = push( ctx );
+
+        CountingSink counting = new CountingSink( sink );
+
+        long start = System.nanoTime();
+
+        try
+        {
+            scope.accept( counting );
+        }
+        finally
+        {
+            pop( frame, System.nanoTime() - start, counting.getCount() );
+        }
+    }
+
+    private Frame push( ExpressionParser.ExprContext ctx )
+    {
+        EvaluationProfiler.Node parent = frames.isEmpty() ? null : frames.get( frames.size() - 1 ).node;
+
+        Frame frame = new Frame( ctx, profiler.node( ctx, expression, parent ) );
+
+        frames.add( frame );
+
+        return frame;
+    }
+
+    private void pop( Frame frame, long nanos, int valueCount )
+    {
+        frames.remove( frames.size() - 1 );
+
+        frame.node.record( nanos, nanos - frame.childNanos, valueCount );
+
+        if ( !frames.isEmpty() )
+        {
+            frames.get( frames.size() - 1 ).childNanos += nanos;
+        }
+    }
+
+    /**
+     * Counts the values produced by a node: those of a scope, or 1 for a
+     * single value, or 0 for null.
+     */
+    private static int valueCount( Object value )
+    {
+        return value instanceof MultiValues ? ( (MultiValues) value ).size() : value != null ? 1 : 0;
+    }
+}
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+
+/**
+ * Ranks values among the multiple values of a scope, sorting them once so
+ * each rank is a binary search. Ranking every member of a scope of n
+ * values (a league table of orgUnits, for example) is O(n log n), instead
+ * of O(n) for each member with rankHigh/rankLow in an expression.
+ * <p/>
+ * Ranks are the same as from the expression functions:
+ * <ul>
+ *     <li>rankHigh: the number of values less than or equal to the test
+ *     value (so the highest value has rank n.)</li>
+ *     <li>rankLow: one more than the number of values greater than the
+ *     test value (so the highest value has rank 1.)</li>
+ *     <li>rankPercentileHigh and rankPercentileLow: those ranks as a
+ *     rounded percentage of the number of values, or 0 if there are
+ *     none.</li>
+ * </ul>
+ * NaN values are counted in the number of values, but never rank above
+ * or below a test value.
+ */
+public class RankIndex
+{
+    /**
+     * The rank functions.
+     */
+    public enum Rank
+    {
+        HIGH, LOW, PERCENTILE_HIGH, PERCENTILE_LOW
+    }
+
+    private final double[] values;
+
+    private final double[] sorted;
+
+    private final int n;
+
+    private final int numbers; // Values that are not NaN (sorted first).
+
+    /**
+     * Makes an index of values.
+     *
+     * @param values the values, in the first size elements.
+     * @param size the number of values.
+     */
+    public RankIndex( double[] values, int size )
+    {
+        this.values = Arrays.copyOf( values, size );
+        this.sorted = this.values.clone();
+        this.n = size;
+
+        Arrays.sort( sorted ); // NaNs sort to the end.
+
+        int numbers = size;
+
+        while ( numbers > 0 && Double.isNaN( sorted[numbers - 1] ) )
+        {
+            numbers--;
+        }
+
+        this.numbers = numbers;
+    }
+
+    /**
+     * Makes an index of multiple values.
+     *
+     * @param values the multiple values.
+     * @return the index.
+     */
+    public static RankIndex of( MultiValues values )
+    {
+        return new RankIndex( values.getDoubles(), values.size() );
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    public int rankHigh( double test )
+    {
+        return countAtMost( test );
+    }
+
+    public int rankLow( double test )
+    {
+        return Double.isNaN( test ) ? 1 : 1 + numbers - countAtMost( test );
+    }
+
+    public int rankPercentileHigh( double test )
+    {
+        return n == 0 ? 0 : (int) Math.round( 100.0 * rankHigh( test ) / n );
+    }
+
+    public int rankPercentileLow( double test )
+    {
+        return n == 0 ? 0 : (int) Math.round( 100.0 * rankLow( test ) / n );
+    }
+
+    /**
+     * Ranks a test value by one of the rank functions.
+     *
+     * @param rank the rank function.
+     * @param test the test value.
+     * @return the rank.
+     */
+    public int rank( Rank rank, double test )
+    {
+        switch ( rank )
+        {
+            case HIGH:
+                return rankHigh( test );
+
+            case LOW:
+                return rankLow( test );
+
+            case PERCENTILE_HIGH:
+                return rankPercentileHigh( test );
+
+            default:
+                return rankPercentileLow( test );
+        }
+    }
+
+    /**
+     * Gets the rankHigh of each of the values, in their original order.
+     */
+    public int[] rankHighAll()
+    {
+        int[] ranks = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            ranks[i] = rankHigh( values[i] );
+        }
+
+        return ranks;
+    }
+
+    /**
+     * Gets the rankLow of each of the values, in their original order.
+     */
+    public int[] rankLowAll()
+    {
+        int[] ranks = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            ranks[i] = rankLow( values[i] );
+        }
+
+        return ranks;
+    }
+
+    /**
+     * Gets the rankPercentileHigh of each of the values, in their original
+     * order.
+     */
+    public int[] rankPercentileHighAll()
+    {
+        int[] ranks = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            ranks[i] = rankPercentileHigh( values[i] );
+        }
+
+        return ranks;
+    }
+
+    /**
+     * Gets the rankPercentileLow of each of the values, in their original
+     * order.
+     */
+    public int[] rankPercentileLowAll()
+    {
+        int[] ranks = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            ranks[i] = rankPercentileLow( values[i] );
+        }
+
+        return ranks;
+    }
+
+    public int size()
+    {
+        return n;
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    /**
+     * Counts the values that are less than or equal to (<=) a test value,
+     * by binary search. (0.0 and -0.0 are equal, as in the expression
+     * functions.)
+     */
+    private int countAtMost( double test )
+    {
+        if ( Double.isNaN( test ) )
+        {
+            return 0;
+        }
+
+        int lo = 0;
+        int hi = numbers;
+
+        while ( lo < hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( sorted[mid] <= test )
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+}
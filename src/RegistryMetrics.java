@@ -0,0 +1,97 @@
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Passes expression metrics to an external registry, through a
+ * {@link MetricsRegistry}. The meters are:
+ * <ul>
+ *     <li>expression.phase: a timer, tagged phase=lex, parse, check or
+ *     eval.</li>
+ *     <li>expression.function: a counter, tagged function=the token name,
+ *     such as OU_DESCENDANT.</li>
+ *     <li>expression.cache: a counter, tagged result=hit or miss.</li>
+ *     <li>expression.scope.values: a distribution summary, tagged
+ *     scope=the token name.</li>
+ * </ul>
+ * The phase and cache meters are looked up when this is made, and the
+ * function and scope meters the first time each one is used.
+ */
+public class RegistryMetrics
+    implements ExpressionMetrics
+{
+    private final MetricsRegistry registry;
+
+    private final Map<Phase, MetricsRegistry.Timer> timers = new EnumMap<>( Phase.class );
+
+    private final AtomicReferenceArray<MetricsRegistry.Counter> functionCounters;
+
+    private final AtomicReferenceArray<MetricsRegistry.DistributionSummary> scopeSummaries;
+
+    private final MetricsRegistry.Counter cacheHits;
+
+    private final MetricsRegistry.Counter cacheMisses;
+
+    public RegistryMetrics( MetricsRegistry registry )
+    {
+        this.registry = registry;
+
+        for ( Phase phase : Phase.values() )
+        {
+            timers.put( phase, registry.timer( "expression.phase", "phase", phase.name().toLowerCase( Locale.ROOT ) ) );
+        }
+
+        functionCounters = new AtomicReferenceArray<>( ExpressionParser.VOCABULARY.getMaxTokenType() + 1 );
+        scopeSummaries = new AtomicReferenceArray<>( ExpressionParser.VOCABULARY.getMaxTokenType() + 1 );
+
+        cacheHits = registry.counter( "expression.cache", "result", "hit" );
+        cacheMisses = registry.counter( "expression.cache", "result", "miss" );
+    }
+
+    // -------------------------------------------------------------------------
+    // ExpressionMetrics
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void recordLatency( Phase phase, long nanos )
+    {
+        timers.get( phase ).record( nanos );
+    }
+
+    @Override
+    public void countFunction( int tokenType )
+    {
+        MetricsRegistry.Counter counter = functionCounters.get( tokenType );
+
+        if ( counter == null ) // If two threads look it up at once, the registry gives both the same meter.
+        {
+            counter = registry.counter( "expression.function", "function", Instrumentation.functionName( tokenType ) );
+
+            functionCounters.set( tokenType, counter );
+        }
+
+        counter.increment();
+    }
+
+    @Override
+    public void recordCacheAccess( boolean hit )
+    {
+        ( hit ? cacheHits : cacheMisses ).increment();
+    }
+
+    @Override
+    public void recordScopeSize( int tokenType, int values )
+    {
+        MetricsRegistry.DistributionSummary summary = scopeSummaries.get( tokenType );
+
+        if ( summary == null )
+        {
+            summary = registry.summary( "expression.scope.values", "scope", Instrumentation.functionName( tokenType ) );
+
+            scopeSummaries.set( tokenType, summary );
+        }
+
+        summary.record( values );
+    }
+}
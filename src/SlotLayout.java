@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the dimension items and constants of compiled expressions, so
+ * that their values can be looked up by index in a {@link ValueFrame}
+ * instead of by text in a map.
+ * <p/>
+ * Slots are given out when expressions are compiled (see
+ * {@link CompiledExpression#compile(String, SlotLayout)}), in the order
+ * the items and constants are first seen, and never change. Expressions
+ * compiled with the same layout can be evaluated with the same frames,
+ * so the values at an orgUnit and period are loaded once for all of
+ * them.
+ * <p/>
+ * Frames are sized for the slots given out when they are made, so they
+ * should be made after the expressions are compiled. (A slot given out
+ * later reads as null.)
+ */
+public class SlotLayout
+{
+    private final Map<String, Integer> itemSlots = new HashMap<>();
+
+    private final List<String> items = new ArrayList<>();
+
+    private final Map<String, Integer> constantSlots = new HashMap<>();
+
+    private final List<String> constants = new ArrayList<>();
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the slot of a dimension item, giving it the next one if it has
+     * none yet.
+     *
+     * @param item the dimension item, as written in the expression (for
+     *             example "#{A0000000001}".)
+     * @return the slot.
+     */
+    public synchronized int itemSlot( String item )
+    {
+        return slot( item, itemSlots, items );
+    }
+
+    /**
+     * Gets the slot of a constant, giving it the next one if it has none
+     * yet.
+     *
+     * @param uid the constant uid.
+     * @return the slot.
+     */
+    public synchronized int constantSlot( String uid )
+    {
+        return slot( uid, constantSlots, constants );
+    }
+
+    /**
+     * Makes a frame for the dimension items, with all values null.
+     */
+    public ValueFrame newFrame()
+    {
+        return new ValueFrame( this, getItemCount() );
+    }
+
+    /**
+     * Makes a frame of dimension item values from a map.
+     *
+     * @param values the values, keyed by dimension item as written in
+     *               expressions.
+     * @return the frame, with null for items not in the map.
+     */
+    public ValueFrame frame( Map<String, Double> values )
+    {
+        return frame( getItems(), values );
+    }
+
+    /**
+     * Makes a frame of constant values from a map, for
+     * {@link EvalContext#setConstantFrame}.
+     *
+     * @param constantMap the constant values, keyed by uid.
+     * @return the frame, with null for constants not in the map.
+     */
+    public ValueFrame constantFrame( Map<String, Double> constantMap )
+    {
+        return frame( getConstants(), constantMap );
+    }
+
+    // -------------------------------------------------------------------------
+    // Supportive methods
+    // -------------------------------------------------------------------------
+
+    private static int slot( String key, Map<String, Integer> slots, List<String> keys )
+    {
+        Integer slot = slots.get( key );
+
+        if ( slot == null )
+        {
+            slot = keys.size();
+
+            slots.put( key, slot );
+            keys.add( key );
+        }
+
+        return slot;
+    }
+
+    private ValueFrame frame( List<String> keys, Map<String, Double> values )
+    {
+        ValueFrame frame = new ValueFrame( this, keys.size() );
+
+        for ( int slot = 0; slot < keys.size(); slot++ )
+        {
+            Double value = values.get( keys.get( slot ) );
+
+            if ( value != null )
+            {
+                frame.set( slot, value );
+            }
+        }
+
+        return frame;
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the dimension items, in slot order.
+     */
+    public synchronized List<String> getItems()
+    {
+        return Collections.unmodifiableList( new ArrayList<>( items ) );
+    }
+
+    /**
+     * Gets the constant uids, in slot order.
+     */
+    public synchronized List<String> getConstants()
+    {
+        return Collections.unmodifiableList( new ArrayList<>( constants ) );
+    }
+
+    public synchronized int getItemCount()
+    {
+        return items.size();
+    }
+
+    public synchronized int getConstantCount()
+    {
+        return constants.size();
+    }
+}
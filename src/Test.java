@@ -1,7 +1,23 @@
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.Trees;
 
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class Test
 {
@@ -61,6 +77,9 @@ public class Test
             "#{A0000000001}.period(-10,-1).last().sum()",
             "#{A0000000001}.ouDescendant(2).period(-10,-1).sum()",
             "#{A0000000001}.ouDescendant(2).last()",
+            "#{A0000000001}.period(-10,-1).percentile(90) - #{A0000000001}.period(-10,-1).median()",
+            "OUG{OUG00000001}",
+            "#{A0000000001}.ouGroup(\"OUG00000001\",\"OUG00000002\").sum()",
         };
 
     private static final HashMap<String, Double> VALUE_MAP = new HashMap<String, Double>()
@@ -76,63 +95,861 @@ public class Test
         put( "E0000000000", 2.71828 );
     }};
 
-    public static void main( String[] args )
+    /**
+     * A small orgUnit hierarchy, evaluated at a level 3 orgUnit.
+     */
+    private static final OrgUnitHierarchy HIERARCHY = new OrgUnitHierarchy(
+        new String[] { "OU000000001", "OU000000002", "OU000000003", "OU000000004", "OU000000005", "OU000000006", "OU000000007" },
+        new String[] { null, "OU000000001", "OU000000002", "OU000000003", "OU000000004", "OU000000004", "OU000000002" } );
+
+    private static final String ORG_UNIT = "OU000000003";
+
+    private static final OrgUnitGroups GROUPS = new OrgUnitGroups( HIERARCHY, new HashMap<String, List<String>>()
+    {{
+        put( "OUG00000001", Arrays.asList( "OU000000005", "OU000000006", "OU000000007" ) );
+        put( "OUG00000002", Arrays.asList( "OU000000004", "OU000000005" ) );
+    }} );
+
+    private static final ExpressionCache CACHE = new ExpressionCache( 100000 );
+
+    private static final int STRESS_THREADS = 8;
+
+    private static final int STRESS_ROUNDS = 500;
+
+    public static void main( String[] args ) throws Exception
     {
         for ( String expr : TEST_EXPRESSIONS )
         {
             test( expr );
         }
+
+        stress();
+
+        bulk();
+
+        fuzzPratt();
+
+        validate();
+
+        metrics();
+
+        profile();
+
+        slots();
+
+        requirements();
+
+        sortedViews();
+
+        hierarchy();
+
+        batch();
+
+        ranks();
     }
 
     private static void test( String expr )
     {
-        AntlrErrorListener errorListener = new AntlrErrorListener(); // our error listener
+        CompiledExpression compiled = CACHE.get( expr ); // Lex, parse and type check (once per expression)
 
-        CharStream input = CharStreams.fromString( expr ); // Form an ANTLR lexer input stream
+        if ( !compiled.isValid() )
+        {
+            System.out.println( expr + " => " + compiled.getErrors() );
+            return;
+        }
 
-        ExpressionLexer lexer = new ExpressionLexer( input ); // Create a lexer for the input
-        lexer.removeErrorListeners(); // Remove default lexer error listener (prints to console)
-        lexer.addErrorListener( errorListener ); // Add our own error listener so we can collect the errors
+        String result = describe( () -> compiled.evaluate( new ExpressionEvaluator( context() ) ) );
 
-        CommonTokenStream tokens = new CommonTokenStream( lexer ); // Parse the input into a token stream
+        System.out.println( expr + result );
 
-        String errors = errorListener.returnErrors(); // Collect errors if any
+        // Differential check: the compiled node tree must match the evaluator.
 
-        if ( errors.length() != 0 )
+        String compiledResult = describe( () -> compiled.evaluate( context() ) );
+
+        if ( !compiledResult.equals( result ) )
         {
-            System.out.println( expr + " => lexer error: " + errors );
-            return;
+            System.out.println( expr + " MISMATCH compiled" + compiledResult );
         }
 
-        ExpressionParser parser = new ExpressionParser( tokens ); // Create a parser for the token stream
-        parser.removeErrorListeners(); // Remove default parser error listener (prints to console)
-        parser.addErrorListener( errorListener ); // Add our own error listener so we can collect the errors
+        ExprNode generated = ExpressionClassGenerator.generate( compiled.getRoot() );
 
-        ParseTree tree = parser.expr(); // Parse the token stream as an expression
+        String generatedResult = describe( () -> generated == null ? compiled.evaluate( context() )
+            : generated.eval( context() ) );
+
+        if ( !generatedResult.equals( result ) )
+        {
+            System.out.println( expr + " MISMATCH generated" + generatedResult );
+        }
+    }
 
-        errors = errorListener.returnErrors(); // Collect errors if any
+    /**
+     * Concurrency check: many threads evaluate the same compiled
+     * expressions at once, each with its own context and evaluator, by the
+     * visitor, the node tree, and the node tree as it switches to
+     * bytecode. Every result must match the single-threaded one.
+     */
+    private static void stress() throws Exception
+    {
+        List<CompiledExpression> trees = new ArrayList<>();
+        List<CompiledExpression> switching = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
 
-        if ( errors.length() != 0 )
+        for ( String expr : TEST_EXPRESSIONS )
         {
-            System.out.println( expr + " => " + errors );
-            return;
+            CompiledExpression compiled = CACHE.get( expr );
+
+            if ( compiled.isValid() )
+            {
+                CompiledExpression bytecode = CompiledExpression.compile( expr );
+
+                bytecode.setBytecodeThreshold( STRESS_ROUNDS );
+
+                trees.add( compiled );
+                switching.add( bytecode );
+                expected.add( describe( () -> compiled.evaluate( new ExpressionEvaluator( context() ) ) ) );
+            }
         }
 
-        ExpressionVisitor checker = new ExpressionChecker();
+        ExecutorService executor = Executors.newFixedThreadPool( STRESS_THREADS );
+
+        List<Future<Integer>> mismatches = new ArrayList<>();
+
+        for ( int t = 0; t < STRESS_THREADS; t++ )
+        {
+            mismatches.add( executor.submit( () ->
+            {
+                int count = 0;
+
+                for ( int round = 0; round < STRESS_ROUNDS; round++ )
+                {
+                    for ( int i = 0; i < trees.size(); i++ )
+                    {
+                        CompiledExpression compiled = trees.get( i );
+                        CompiledExpression bytecode = switching.get( i );
+
+                        count += describe( () -> compiled.evaluate( new ExpressionEvaluator( context() ) ) ).equals( expected.get( i ) ) ? 0 : 1;
+                        count += describe( () -> compiled.evaluate( context() ) ).equals( expected.get( i ) ) ? 0 : 1;
+                        count += describe( () -> bytecode.evaluate( context() ) ).equals( expected.get( i ) ) ? 0 : 1;
+                    }
+                }
+
+                return count;
+            } ) );
+        }
+
+        int total = 0;
+
+        for ( Future<Integer> future : mismatches )
+        {
+            total += future.get();
+        }
+
+        executor.shutdown();
+        executor.awaitTermination( 1, TimeUnit.MINUTES );
+
+        System.out.println( "concurrency: " + STRESS_THREADS + " threads x " + STRESS_ROUNDS + " rounds x "
+            + trees.size() + " expressions, mismatches: " + total + ", switched to bytecode: "
+            + switching.stream().filter( CompiledExpression::isBytecodeGenerated ).count() );
+    }
+
+    /**
+     * Bulk check: the test expressions at every orgUnit and a few periods,
+     * in small chunks through a small queue, must match evaluating them one
+     * at a time.
+     */
+    private static void bulk() throws Exception
+    {
+        List<CompiledExpression> expressions = new ArrayList<>();
+
+        for ( String expr : TEST_EXPRESSIONS )
+        {
+            if ( CACHE.get( expr ).isValid() )
+            {
+                expressions.add( CACHE.get( expr ) );
+            }
+        }
+
+        ValueSource source = ( item, orgUnit, period ) -> VALUE_MAP.containsKey( item )
+            ? VALUE_MAP.get( item ) * ( orgUnit + 1 ) + Periods.index( period ) % 12 : null;
+
+        int[] orgUnits = new int[HIERARCHY.size()];
+        int[] periods = { Periods.parse( "201806" ), Periods.parse( "201807" ), Periods.parse( "201808" ) };
+
+        for ( int i = 0; i < orgUnits.length; i++ )
+        {
+            orgUnits[i] = i;
+        }
+
+        BulkEvaluator bulk = new BulkEvaluator( HIERARCHY, CONSTANT_MAP, source );
+
+        bulk.setOrgUnitGroups( GROUPS );
+        bulk.setChunkSize( 1 );
+        bulk.setQueueCapacity( 2 );
+
+        int[] counts = new int[2]; // Results, mismatches.
+
+        bulk.evaluate( expressions, orgUnits, periods, new BulkEvaluator.Sink()
+        {
+            @Override
+            public void accept( int expression, int orgUnit, int period, Object value )
+            {
+                check( expression, orgUnit, period, " = (" + ( value == null ? "null)" : value.getClass().getSimpleName() + ") " + value ) );
+            }
+
+            @Override
+            public void error( int expression, int orgUnit, int period, ParsingException error )
+            {
+                check( expression, orgUnit, period, " => " + error.getMessage() );
+            }
+
+            private void check( int expression, int orgUnit, int period, String result )
+            {
+                EvalContext ctx = new EvalContext( VALUE_MAP, CONSTANT_MAP, HIERARCHY, HIERARCHY.uid( orgUnit ) );
+
+                ctx.setOrgUnitGroups( GROUPS );
+                ctx.setValueSource( source );
+                ctx.setCurrentPeriod( period );
+
+                counts[0]++;
+                counts[1] += describe( () -> expressions.get( expression ).evaluate( ctx ) ).equals( result ) ? 0 : 1;
+            }
+        } );
+
+        System.out.println( "bulk: " + counts[0] + " results, mismatches: " + counts[1] );
+    }
+
+    private static final String[] FUZZ_VALUES = { "1", "0.5", ".5e3", "2.E1", "\"s\\t\\101\"", "TRUE", "false", "[days]",
+        "#{A0000000001}", "#{A0000000001.B0000000002}", "D{A0000000001}", "A{A0000000001.B0000000002}",
+        "I{A0000000001}", "OUG{OUG00000001}", "R{A0000000001.REPORTING_RATE}", "C{PI000000000}", "V{event_date}" };
+
+    private static final String[] FUZZ_OPERATORS = { "+", "-", "*", "/", "%", "^", "<", "<=", ">", ">=", "==", "!=", "&&", "||" };
+
+    private static final String[] FUZZ_FUNCTIONS = { ".sum()", ".last()", ".last(2)", ".if(1,2)", ".except(1)", ".isNull(1)",
+        ".period(-1)", ".period(-1,,2)", ".ouLevel(1,)", ".ouDescendant(2)", ".ouGroup(\"a\",\"b\")", ".median()", ".percentile(5)" };
 
-        ExpressionChecker evaluator = new ExpressionEvaluator( VALUE_MAP, CONSTANT_MAP );
+    private static final String FUZZ_INSERTS = "().,+-^!=&\" 1x{}";
+
+    /**
+     * Differential fuzz check: generated expressions, some with a character
+     * inserted or deleted, must get the same parse tree from the Pratt
+     * parser as from ANTLR, whenever the Pratt parser takes them.
+     */
+    private static void fuzzPratt()
+    {
+        Random random = new Random( 1 );
+
+        int handled = 0;
+        int mismatches = 0;
+
+        for ( int i = 0; i < 20000; i++ )
+        {
+            StringBuilder sb = new StringBuilder();
+
+            for ( int operands = 1 + random.nextInt( 5 ), j = 0; j < operands; j++ )
+            {
+                sb.append( j > 0 ? FUZZ_OPERATORS[random.nextInt( FUZZ_OPERATORS.length )] : "" );
+                sb.append( random.nextInt( 5 ) == 0 ? "-" : random.nextInt( 5 ) == 0 ? "!" : "" );
+                sb.append( random.nextInt( 4 ) == 0 ? "(" + FUZZ_VALUES[random.nextInt( FUZZ_VALUES.length )] + ")"
+                    : FUZZ_VALUES[random.nextInt( FUZZ_VALUES.length )] );
+
+                while ( random.nextInt( 3 ) == 0 )
+                {
+                    sb.append( FUZZ_FUNCTIONS[random.nextInt( FUZZ_FUNCTIONS.length )] );
+                }
+            }
+
+            if ( random.nextInt( 4 ) == 0 )
+            {
+                int at = random.nextInt( sb.length() );
+
+                if ( random.nextBoolean() )
+                {
+                    sb.deleteCharAt( at );
+                }
+                else
+                {
+                    sb.insert( at, FUZZ_INSERTS.charAt( random.nextInt( FUZZ_INSERTS.length() ) ) );
+                }
+            }
+
+            ExpressionParser.ExprContext pratt = ExpressionPrattParser.parse( sb.toString() );
+
+            if ( pratt != null )
+            {
+                handled++;
+
+                AntlrErrorListener errorListener = new AntlrErrorListener();
+
+                ExpressionLexer lexer = new ExpressionLexer( CharStreams.fromString( sb.toString() ) );
+                lexer.removeErrorListeners();
+                lexer.addErrorListener( errorListener );
+
+                ExpressionParser parser = new ExpressionParser( new CommonTokenStream( lexer ) );
+                parser.removeErrorListeners();
+                parser.addErrorListener( errorListener );
+
+                String antlrTree = Trees.toStringTree( parser.expr(), Arrays.asList( ExpressionParser.ruleNames ) );
+                String prattTree = Trees.toStringTree( pratt, Arrays.asList( ExpressionParser.ruleNames ) );
+
+                if ( errorListener.returnErrors().length() != 0 || !antlrTree.equals( prattTree ) )
+                {
+                    System.out.println( sb + " MISMATCH pratt " + prattTree + " antlr " + antlrTree );
+                    mismatches++;
+                }
+            }
+        }
+
+        System.out.println( "pratt: 20000 generated, " + handled + " parsed, mismatches: " + mismatches );
+    }
+
+    /**
+     * Bulk validation check: the expressions in small JSON and CSV
+     * exports, each with its errors and their positions.
+     */
+    private static void validate() throws Exception
+    {
+        String json = "{ \"indicators\": [\n"
+            + "  { \"numerator\": \"#{A0000000001} + 1\", \"id\": \"IN000000001\", \"denominator\": \"1 +\\n* 2\" },\n"
+            + "  { \"id\": \"IN000000002\", \"numerator\": \"\\\"abc\\\" + 1 ~ 2\", \"denominator\": 1 } ],\n"
+            + "  \"validationRules\": [ { \"id\": \"VR000000001\", \"leftSide\": { \"expression\": \"1 < true\" } } ] }";
+
+        String csv = "id,name,numerator,denominator\r\n"
+            + "IN000000003,\"A, B\",\"\"\"a\"\" + 2\",(1\r\n"
+            + "IN000000004,C,\"1\n+ 2\",#{A0000000001}.period(-1)\r\n"
+            + "IN000000005,D,\"#{A0000000001}.period(-2,0).percentile(0)\",1\r\n";
+
+        BulkValidator validator = new BulkValidator();
+
+        validator.setBatchSize( 2 );
+        validator.setQueueCapacity( 1 );
+
+        for ( String input : new String[] { json, csv } )
+        {
+            ReadableByteChannel channel = Channels.newChannel( new ByteArrayInputStream( input.getBytes( StandardCharsets.UTF_8 ) ) );
+
+            try ( ExpressionReader reader = input == json ? new JsonExpressionReader( channel ) : new CsvExpressionReader( channel ) )
+            {
+                BulkValidator.Summary summary = validator.validate( reader, ( record, diagnostics ) ->
+                    System.out.println( "validate: line " + record.getLine() + " " + record.getId() + " " + record.getField()
+                        + " " + record.getExpression().replace( "\n", "\\n" ) + " => " + diagnostics
+                        + ( diagnostics.isEmpty() ? "" : " at '" + diagnostics.get( 0 ).getToken() + "'" ) ) );
+
+                System.out.println( "validate: " + summary.getExpressions() + " expressions, " + summary.getInvalid() + " invalid" );
+            }
+        }
+    }
+
+    /**
+     * Metrics check: what an in-memory reporter records for compiling an
+     * expression twice through a cache, then evaluating it both ways.
+     */
+    private static void metrics()
+    {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+
+        Instrumentation.set( metrics );
 
         try
         {
-            checker.visit( tree ); // For type checking and nested function compatibility
+            ExpressionCache cache = new ExpressionCache( 1000 );
+
+            cache.get( "#{A0000000001}.ouDescendant(1).sum() + #{A0000000001}.period(-2,0).max() * 2" );
+
+            CompiledExpression compiled = cache.get( "#{A0000000001}.ouDescendant(1).sum() + #{A0000000001}.period(-2,0).max() * 2" );
+
+            compiled.evaluate( context() );
+            compiled.evaluate( new ExpressionEvaluator( context() ) );
+        }
+        finally
+        {
+            Instrumentation.set( null );
+        }
+
+        for ( ExpressionMetrics.Phase phase : ExpressionMetrics.Phase.values() )
+        {
+            System.out.println( "metrics: " + phase + " " + metrics.getLatency( phase ).getCount() + " recorded" );
+        }
+
+        System.out.println( "metrics: functions " + metrics.getFunctionCounts() );
+        System.out.println( "metrics: ouDescendant values " + metrics.getScopeSizes( ExpressionParser.OU_DESCENDANT ).getSum()
+            + " in " + metrics.getScopeSizes( ExpressionParser.OU_DESCENDANT ).getCount()
+            + ", period values " + metrics.getScopeSizes( ExpressionParser.PERIOD ).getSum()
+            + " in " + metrics.getScopeSizes( ExpressionParser.PERIOD ).getCount() );
+        System.out.println( "metrics: cache hits " + metrics.getCacheHits() + ", misses " + metrics.getCacheMisses() );
+    }
+
+    /**
+     * Profiler check: the calls and values of each node of an expression
+     * profiled at every evaluation, by folded stack (without the times,
+     * which vary.)
+     */
+    private static void profile()
+    {
+        EvaluationProfiler profiler = new EvaluationProfiler( 1 );
+
+        CompiledExpression compiled = CACHE.get( "#{A0000000001}.ouDescendant(1).sum() + #{A0000000002}.period(-2,0).max() * (1 + 2)" );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            profiler.evaluate( compiled, context() );
+        }
+
+        for ( EvaluationProfiler.Node node : profiler.getNodes() )
+        {
+            System.out.println( "profile: " + node.getStack() + " calls " + node.getInvocations() + " values " + node.getValues() );
+        }
+    }
+
+    /**
+     * Slot check: expressions compiled with one slot layout, evaluated
+     * with value frames by orgUnit, and with a value source that looks up
+     * the same values by text.
+     */
+    private static void slots()
+    {
+        SlotLayout layout = new SlotLayout();
+
+        String[] expressions = {
+            "#{A0000000001} / #{A0000000002} * C{PI000000000}",
+            "#{A0000000002} + #{A0000000003}.ouDescendant(1).sum()",
+            "coalesce( #{A0000000004}, C{E0000000000}, -1 )" };
+
+        List<CompiledExpression> compiled = new ArrayList<>();
+
+        for ( String expression : expressions )
+        {
+            compiled.add( CompiledExpression.compile( expression, layout ) );
+        }
+
+        ValueFrame[] frames = new ValueFrame[HIERARCHY.size()];
+
+        for ( int orgUnit = 0; orgUnit < frames.length; orgUnit++ )
+        {
+            frames[orgUnit] = layout.newFrame();
+
+            for ( int slot = 0; slot < layout.getItemCount(); slot++ )
+            {
+                Double value = VALUE_MAP.get( layout.getItems().get( slot ) );
+
+                if ( value != null )
+                {
+                    frames[orgUnit].set( slot, value * ( orgUnit + 1 ) );
+                }
+            }
+        }
+
+        System.out.println( "slots: items " + layout.getItems() + ", constants " + layout.getConstants() );
+
+        for ( CompiledExpression expression : compiled )
+        {
+            EvalContext frameContext = context();
+
+            frameContext.setFrameSource( ( orgUnit, period ) -> frames[orgUnit] );
+            frameContext.setConstantFrame( layout.constantFrame( CONSTANT_MAP ) );
+
+            EvalContext sourceContext = context();
+
+            sourceContext.setValueSource( ( item, orgUnit, period ) ->
+                VALUE_MAP.containsKey( item ) ? VALUE_MAP.get( item ) * ( orgUnit + 1 ) : null );
+
+            System.out.println( "slots: " + expression.getExpression() + describe( () -> expression.evaluate( frameContext ) )
+                + ", by value source" + describe( () -> expression.evaluate( sourceContext ) ) );
+        }
+
+        EvalContext otherLayout = context();
+
+        otherLayout.setValueFrame( new SlotLayout().newFrame() );
+
+        System.out.println( "slots: other layout" + describe( () -> compiled.get( 0 ).evaluate( otherLayout ) ) );
+    }
+
+    /**
+     * Data requirements check: the period offsets of nested period
+     * functions with year shifts, and the quarters they resolve to.
+     */
+    private static void requirements()
+    {
+        CompiledExpression compiled = CACHE.get( "#{A0000000001}.period(-1,0,-1).sum() + #{A0000000002}.period(-1).period(0,0,-1,0).sum()" );
+
+        DataRequirements requirements = compiled.getDataRequirements();
+
+        System.out.println( "requirements: " + requirements );
+
+        for ( PeriodOffset offset : requirements.getPeriodOffsets( "#{A0000000002}", "" ) )
+        {
+            System.out.println( "requirements: #{A0000000002} at 2018Q3 " + offset + " = " + Periods.format( offset.apply( Periods.parse( "2018Q3" ) ) ) );
+        }
+    }
+
+    /**
+     * Order statistics check: a context reused with new values must not
+     * answer a median from the values it was sorted for before.
+     */
+    private static void sortedViews()
+    {
+        CompiledExpression compiled = CACHE.get( "#{A0000000001}.ouDescendant(1).median() + #{A0000000001}.ouDescendant(1).sum()" );
+
+        EvalContext ctx = context();
+
+        System.out.println( "sortedViews: placeholder values" + describe( () -> compiled.evaluate( ctx ) ) );
 
-            Object result = evaluator.visit( tree );
+        ctx.setValueSource( ( item, orgUnit, period ) -> 1000. * ( orgUnit + 1 ) );
+
+        System.out.println( "sortedViews: value source" + describe( () -> compiled.evaluate( ctx ) ) );
+    }
+
+    /**
+     * Hierarchy index check: the level, descendant, peer and ancestor
+     * answers of a random hierarchy, against brute force by walking up
+     * the parents. Also ouAncestor past the root, which is null whatever
+     * the operand type.
+     */
+    private static void hierarchy()
+    {
+        Random random = new Random( 1 );
+
+        int n = 300;
+
+        String[] uids = new String[n];
+        String[] parentUids = new String[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            uids[i] = String.format( "OU%09d", i );
+            parentUids[i] = i < 3 ? null : uids[random.nextInt( i )]; // Three roots
+        }
+
+        List<Integer> order = new ArrayList<>();
+
+        for ( int i = 0; i < n; i++ )
+        {
+            order.add( i );
+        }
+
+        Collections.shuffle( order, random ); // Not in preorder
+
+        String[] shuffledUids = new String[n];
+        String[] shuffledParents = new String[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            shuffledUids[i] = uids[order.get( i )];
+            shuffledParents[i] = parentUids[order.get( i )];
+        }
+
+        OrgUnitHierarchy h = new OrgUnitHierarchy( shuffledUids, shuffledParents );
+
+        int[] level = new int[n];
+
+        for ( int id = 0; id < n; id++ )
+        {
+            level[id] = 1;
+
+            for ( int p = h.parent( id ); p >= 0; p = h.parent( p ) )
+            {
+                level[id]++;
+            }
+        }
+
+        int checks = 0;
+        int mismatches = 0;
+
+        for ( int l = 0; l <= h.maxLevel() + 1; l++ )
+        {
+            List<Integer> expected = new ArrayList<>();
+
+            for ( int x = 0; x < n; x++ )
+            {
+                if ( level[x] == l )
+                {
+                    expected.add( x );
+                }
+            }
+
+            List<Integer> actual = new ArrayList<>();
+
+            h.scanLevel( l, actual::add );
+
+            checks++;
+            mismatches += actual.equals( expected ) ? 0 : 1;
+        }
+
+        for ( int id = 0; id < n; id++ )
+        {
+            checks++;
+            mismatches += h.level( id ) == level[id] ? 0 : 1;
+
+            for ( int g = -1; g <= level[id]; g++ )
+            {
+                checks++;
+                mismatches += h.ancestor( id, g ) == walkUp( h, id, g, level ) ? 0 : 1;
+
+                List<Integer> descendants = new ArrayList<>();
+
+                for ( int x = 0; x < n; x++ )
+                {
+                    if ( level[x] == level[id] + g && walkUp( h, x, g, level ) == id )
+                    {
+                        descendants.add( x );
+                    }
+                }
+
+                List<Integer> actual = new ArrayList<>();
+
+                h.scanDescendants( id, g, actual::add );
+
+                checks++;
+                mismatches += g < 0 || actual.equals( descendants ) ? 0 : 1;
+            }
+
+            for ( int x = 0; x < n; x++ )
+            {
+                checks++;
+                mismatches += h.isDescendant( x, id ) == ( level[x] >= level[id] && walkUp( h, x, level[x] - level[id], level ) == id ) ? 0 : 1;
+            }
+
+            for ( int from = 0; from <= level[id]; from++ )
+            {
+                for ( int to = from; to <= level[id] + 1; to++ )
+                {
+                    List<Integer> peers = new ArrayList<>();
+
+                    for ( int x = 0; x < n; x++ )
+                    {
+                        int removed = 0;
+
+                        while ( level[x] == level[id] && removed < level[id] && walkUp( h, x, removed, level ) != walkUp( h, id, removed, level ) )
+                        {
+                            removed++;
+                        }
+
+                        if ( level[x] == level[id] && removed < level[id] && removed >= from && removed <= Math.min( to, level[id] - 1 ) )
+                        {
+                            peers.add( x );
+                        }
+                    }
+
+                    List<Integer> actual = new ArrayList<>();
+
+                    h.scanPeers( id, from, to, actual::add );
+
+                    checks++;
+                    mismatches += actual.equals( peers ) ? 0 : 1;
+                }
+            }
+        }
+
+        System.out.println( "hierarchy: " + n + " orgUnits, " + h.maxLevel() + " levels, " + checks + " checks, " + mismatches + " mismatches" );
+
+        for ( String expression : new String[] { "#{A0000000001}.ouAncestor(5) + 1", "coalesce( #{A0000000001}.ouAncestor(5), -1 )" } )
+        {
+            CompiledExpression compiled = CACHE.get( expression );
+
+            System.out.println( "hierarchy: " + expression + describe( () -> compiled.evaluate( context() ) )
+                + ", by visitor" + describe( () -> compiled.evaluate( new ExpressionEvaluator( context() ) ) ) );
+        }
+    }
+
+    /**
+     * Batch evaluation check: each row of a batch, with some null values,
+     * must have the value the node tree gives for that row and period (or
+     * null where the node tree fails on a null operand.)
+     */
+    private static void batch()
+    {
+        double[] a1 = { 1, 2, 3, 4, 5, 6 };
+        double[] a2 = { 6, 5, 0, 3, 2, 1 };
+        long[] a2Valid = { 0b101011L }; // Rows 2 and 4 are null
+
+        String[] expressions = {
+            "#{A0000000001} + #{A0000000002} * 2",
+            "#{A0000000001} / [days] * 1000",
+            "(#{A0000000001} > #{A0000000002}).if( #{A0000000001}, -#{A0000000002} )",
+            "coalesce( #{A0000000002}, C{PI000000000} )",
+            "#{A0000000001} >= 3 && #{A0000000002} < 3",
+            "5.except( #{A0000000001} < 3 )" };
+
+        for ( String period : new String[] { "201802", "2018Q3" } )
+        {
+            ColumnBatch columns = new ColumnBatch( a1.length, Periods.parse( period ) );
+
+            columns.addColumn( "#{A0000000001}", a1, null );
+            columns.addColumn( "#{A0000000002}", a2, a2Valid );
+
+            for ( String expression : expressions )
+            {
+                CompiledExpression compiled = CACHE.get( expression );
+
+                ColumnBatch.Column column = new BatchEvaluator( compiled.getRoot(), CONSTANT_MAP ).evaluate( columns );
+
+                List<Object> values = new ArrayList<>();
+
+                int mismatches = 0;
+
+                for ( int row = 0; row < a1.length; row++ )
+                {
+                    int r = row;
+
+                    EvalContext ctx = context();
+
+                    ctx.setCurrentPeriod( columns.getPeriod() );
+                    ctx.setValueSource( ( item, orgUnit, p ) -> columns.getColumn( item ).getValue( r ) );
+
+                    Object value;
+
+                    try
+                    {
+                        value = compiled.evaluate( ctx );
+                    }
+                    catch ( ParsingException ex ) // Null operand, which the batch propagates as null
+                    {
+                        value = null;
+                    }
+
+                    values.add( value );
+
+                    Double expected = value instanceof Boolean ? Double.valueOf( (Boolean) value ? 1 : 0 ) : (Double) value;
+
+                    mismatches += Objects.equals( expected, column.getValue( row ) ) ? 0 : 1;
+                }
+
+                System.out.println( "batch: " + expression + " at " + period + " = " + values + ", " + mismatches + " mismatches" );
+            }
+        }
+
+        CompiledExpression days = CACHE.get( "[days]" );
+
+        System.out.println( "batch: [days] without a period" + describe( () ->
+            new BatchEvaluator( days.getRoot(), CONSTANT_MAP ).evaluate( new ColumnBatch( 1 ) ).getValue( 0 ) ) );
+    }
+
+    /**
+     * Rank check: RankIndex against the linear scans of the parsed rank
+     * functions, in the node tree and the visitor, over period values
+     * with ties and a NaN, for test values among them and between them.
+     * Then bulk league tables by each rank function against counting.
+     */
+    private static void ranks() throws Exception
+    {
+        double[] values = { 3, 1, 4, 1, 5, 9, 2, 6, Double.NaN, 5 };
+        double[] tests = { 3, 1, 4, 5, 9, 2, 6, Double.NaN, 0, 4.5, 10 };
+
+        RankIndex index = new RankIndex( values, values.length );
+
+        CompiledExpression[] functions = {
+            CACHE.get( "#{A0000000001}.period(-9,0).rankHigh(#{A0000000002})" ),
+            CACHE.get( "#{A0000000001}.period(-9,0).rankLow(#{A0000000002})" ),
+            CACHE.get( "#{A0000000001}.period(-9,0).rankPercentileHigh(#{A0000000002})" ),
+            CACHE.get( "#{A0000000001}.period(-9,0).rankPpercentileLow(#{A0000000002})" ) }; // As the grammar spells it
+
+        int checks = 0;
+        int mismatches = 0;
+
+        for ( double test : tests )
+        {
+            EvalContext ctx = context();
+
+            ctx.setValueSource( ( item, orgUnit, period ) -> item.equals( "#{A0000000001}" )
+                ? values[Periods.index( period ) % values.length] : test );
+
+            int[] expected = { index.rankHigh( test ), index.rankLow( test ), index.rankPercentileHigh( test ), index.rankPercentileLow( test ) };
+
+            for ( int f = 0; f < functions.length; f++ )
+            {
+                for ( Object rank : new Object[] { functions[f].evaluate( ctx ), functions[f].evaluate( new ExpressionEvaluator( ctx ) ) } )
+                {
+                    checks++;
+                    mismatches += rank instanceof Integer && (Integer) rank == expected[f] ? 0 : 1;
+                }
+            }
+        }
+
+        System.out.println( "ranks: " + checks + " checks against rank functions, " + mismatches + " mismatches" );
+
+        int[] orgUnits = { 6, 0, 3, 5, 1, 4, 2 };
+
+        ValueSource source = ( item, orgUnit, period ) -> orgUnit == 2 ? null : (double) ( orgUnit * 7 % 5 );
+
+        BulkEvaluator bulk = new BulkEvaluator( HIERARCHY, CONSTANT_MAP, source );
+
+        long numbers = Arrays.stream( orgUnits ).filter( o -> source.getValue( "#{A0000000001}", o, 0 ) != null ).count();
+
+        int[] league = null;
+
+        mismatches = 0;
+
+        for ( RankIndex.Rank rank : RankIndex.Rank.values() )
+        {
+            int[] ranks = bulk.rank( CACHE.get( "#{A0000000001} * 10" ), orgUnits, Periods.parse( "201808" ), rank );
+
+            for ( int i = 0; i < orgUnits.length; i++ )
+            {
+                Double value = (Double) source.getValue( "#{A0000000001}", orgUnits[i], 0 );
+
+                int higher = 0;
+                int atMost = 0;
+
+                for ( int other : orgUnits )
+                {
+                    Double otherValue = (Double) source.getValue( "#{A0000000001}", other, 0 );
+
+                    higher += otherValue != null && value != null && otherValue > value ? 1 : 0;
+                    atMost += otherValue != null && value != null && otherValue <= value ? 1 : 0;
+                }
+
+                int expected = rank == RankIndex.Rank.HIGH ? atMost
+                    : rank == RankIndex.Rank.LOW ? 1 + higher
+                    : rank == RankIndex.Rank.PERCENTILE_HIGH ? (int) Math.round( 100.0 * atMost / numbers )
+                    : (int) Math.round( 100.0 * ( 1 + higher ) / numbers );
+
+                mismatches += ranks[i] == ( value == null ? 0 : expected ) ? 0 : 1;
+            }
+
+            league = rank == RankIndex.Rank.LOW ? ranks : league;
+        }
+
+        System.out.println( "ranks: league table " + Arrays.toString( league ) + ", " + mismatches + " mismatches" );
+    }
+
+    /**
+     * Walks up the parents of an orgUnit some generations, or returns -1
+     * if there are not that many (or they are negative.)
+     */
+    private static int walkUp( OrgUnitHierarchy h, int id, int generations, int[] level )
+    {
+        if ( generations < 0 || generations >= level[id] )
+        {
+            return -1;
+        }
+
+        for ( int g = 0; g < generations; g++ )
+        {
+            id = h.parent( id );
+        }
+
+        return id;
+    }
+
+    static EvalContext context()
+    {
+        EvalContext ctx = new EvalContext( VALUE_MAP, CONSTANT_MAP, HIERARCHY, ORG_UNIT );
+
+        ctx.setOrgUnitGroups( GROUPS );
+
+        return ctx;
+    }
+
+    private static String describe( Supplier<Object> evaluation )
+    {
+        try
+        {
+            Object result = evaluation.get();
 
-            System.out.println( expr + " = (" + ( result == null ? "null)" : result.getClass().getSimpleName() + ") " + result.toString() ) );
+            return " = (" + ( result == null ? "null)" : result.getClass().getSimpleName() + ") " + result.toString() );
         }
         catch ( ParsingException ex )
         {
-            System.out.println( expr + " => " + ex.getMessage() );
+            return " => " + ex.getMessage();
         }
     }
 }
@@ -0,0 +1,123 @@
+import java.util.Arrays;
+
+/**
+ * The values of the dimension items (or constants) of a
+ * {@link SlotLayout} at one orgUnit and period, by slot: a double for
+ * each slot, and a bitmap with one bit per slot, where a clear bit means
+ * the value is null.
+ * <p/>
+ * Reading a value is an array index, without boxing for numbers. A frame
+ * can be refilled and reused for the next orgUnit and period (see
+ * {@link #clear}.) It must not be changed while it is being read.
+ */
+public final class ValueFrame
+{
+    /**
+     * A frame of no values, for any layout.
+     */
+    static final ValueFrame EMPTY = new ValueFrame( null, 0 );
+
+    private final SlotLayout layout;
+
+    private final double[] values;
+
+    private final long[] present;
+
+    ValueFrame( SlotLayout layout, int size )
+    {
+        this.layout = layout;
+        this.values = new double[size];
+        this.present = new long[( size + 63 ) >>> 6];
+    }
+
+    // -------------------------------------------------------------------------
+    // Business logic
+    // -------------------------------------------------------------------------
+
+    /**
+     * Sets the value in a slot.
+     *
+     * @param slot the slot.
+     * @param value the value.
+     * @throws ArrayIndexOutOfBoundsException if the slot was given out
+     *         after this frame was made.
+     */
+    public void set( int slot, double value )
+    {
+        values[slot] = value;
+        present[slot >>> 6] |= 1L << slot;
+    }
+
+    /**
+     * Sets the value in a slot to null.
+     *
+     * @param slot the slot.
+     */
+    public void setNull( int slot )
+    {
+        present[slot >>> 6] &= ~( 1L << slot );
+    }
+
+    /**
+     * Sets all the values to null.
+     */
+    public void clear()
+    {
+        Arrays.fill( present, 0L );
+    }
+
+    /**
+     * Tells whether the value in a slot is null. Slots given out after this
+     * frame was made are null.
+     *
+     * @param slot the slot.
+     * @return true if the value is null.
+     */
+    public boolean isNull( int slot )
+    {
+        return slot >= values.length || ( present[slot >>> 6] & 1L << slot ) == 0;
+    }
+
+    /**
+     * Gets the value in a slot that is not null.
+     *
+     * @param slot the slot.
+     * @return the value.
+     */
+    public double getDouble( int slot )
+    {
+        return values[slot];
+    }
+
+    /**
+     * Gets the value in a slot.
+     *
+     * @param slot the slot.
+     * @return the value, or null if it is null.
+     */
+    public Double get( int slot )
+    {
+        return isNull( slot ) ? null : values[slot];
+    }
+
+    // -------------------------------------------------------------------------
+    // Getters
+    // -------------------------------------------------------------------------
+
+    /**
+     * Gets the layout this frame is for (or null for the empty frame,
+     * which is for any layout.)
+     */
+    public SlotLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Gets the number of slots this frame holds.
+     */
+    public int size()
+    {
+        return values.length;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Receives the values found while iterating over an aggregation scope
+ * (periods or orgUnits). {@link MultiValues} collects them, and
+ * {@link Accumulator} aggregates them as they arrive.
+ */
+public interface ValueSink
+{
+    /**
+     * Adds a value. Null values are ignored, and multiple values are added
+     * one by one.
+     *
+     * @param value the value to add.
+     */
+    void addValue( Object value );
+
+    /**
+     * Adds a number, without boxing it.
+     *
+     * @param value the value to add.
+     */
+    void addDouble( double value );
+
+    /**
+     * Adds a value from a period.
+     *
+     * @param value the value to add.
+     * @param period the period.
+     */
+    default void addPeriodValue( Object value, String period )
+    {
+        addValue( value );
+    }
+
+    /**
+     * Adds a value from a period.
+     *
+     * @param value the value to add.
+     * @param periodId the period id.
+     */
+    default void addPeriodValue( Object value, int periodId )
+    {
+        addValue( value );
+    }
+
+    /**
+     * Adds a number from a period, without boxing it.
+     *
+     * @param value the value to add.
+     * @param periodId the period id.
+     */
+    default void addPeriodDouble( double value, int periodId )
+    {
+        addDouble( value );
+    }
+}
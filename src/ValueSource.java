@@ -0,0 +1,22 @@
+/**
+ * Supplies the values of dimension items (data elements, indicators and
+ * so on) at an orgUnit and period, when evaluating compiled expressions.
+ * <p/>
+ * A source may be called from many threads at once. If it blocks, for
+ * instance by querying a database, bulk evaluation can be run with more
+ * workers than processors (see {@link BulkEvaluator#setParallelism}.)
+ */
+@FunctionalInterface
+public interface ValueSource
+{
+    /**
+     * Gets a dimension item value.
+     *
+     * @param item the dimension item, as written in the expression.
+     * @param orgUnit the orgUnit, as an {@link OrgUnitHierarchy} id (or -1
+     *                if there is no hierarchy.)
+     * @param period the period, as a {@link Periods} id.
+     * @return the value, or null if there is none.
+     */
+    Object getValue( String item, int orgUnit, int period );
+}
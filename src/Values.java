@@ -0,0 +1,169 @@
+/**
+ * Static value casts and comparisons shared by the expression visitors
+ * and the compiled expression nodes, so both evaluate with exactly the
+ * same semantics.
+ */
+public final class Values
+{
+    private Values()
+    {
+    }
+
+    // -------------------------------------------------------------------------
+    // Casts
+    // -------------------------------------------------------------------------
+
+    /**
+     * Casts object as Integer, or throw exception if we can't.
+     *
+     * @param object the value to cast as an Integer.
+     * @return Integer value.
+     */
+    public static Integer castInteger( Object object )
+    {
+        Double d = castDouble( object );
+
+        if ( d == null )
+        {
+            throw new ParsingException( "null found at: '" + object + "'" );
+        }
+
+        Integer i = (int) (double) d;
+
+        if ( (double) d != i )
+        {
+            throw new ParsingException( "integer expected at: '" + object + "'" );
+        }
+
+        return i;
+    }
+
+    /**
+     * Casts object as Double, or throw exception if we can't.
+     *
+     * @param object the value to cast as a Double.
+     * @return Double value.
+     */
+    public static Double castDouble( Object object )
+    {
+        try
+        {
+            if ( object.getClass() == String.class )
+            {
+                return Double.valueOf( (String) object );
+            }
+
+            return (Double) object;
+        }
+        catch ( Exception ex )
+        {
+            throw new ParsingException( "number expected at: '" + object + "'" );
+        }
+    }
+
+    /**
+     * Casts object as Boolean, or throw exception if we can't.
+     *
+     * @param object the value to cast as a Boolean.
+     * @return Boolean value.
+     */
+    public static Boolean castBoolean( Object object )
+    {
+        try
+        {
+            return (Boolean) object;
+        }
+        catch ( Exception ex )
+        {
+            throw new ParsingException( "boolean expected at: '" + object + "'" );
+        }
+    }
+
+    /**
+     * Casts object as String, or throw exception if we can't.
+     *
+     * @param object the value to cast as a String.
+     * @return String value.
+     */
+    public static String castString( Object object )
+    {
+        try
+        {
+            return (String) object;
+        }
+        catch ( Exception ex )
+        {
+            throw new ParsingException( "string expected at: '" + object + "'" );
+        }
+    }
+
+    /**
+     * Casts object as Multivalues, or throws exception if we can't.
+     *
+     * @param object the value to cast as a Multivalues.
+     * @return Multivalues object.
+     */
+    public static MultiValues castMultiValues( Object object )
+    {
+        if ( !( object instanceof MultiValues ) )
+        {
+            throw new ParsingException( "multiple values expected at: '" + object + "'" );
+        }
+
+        return (MultiValues) object;
+    }
+
+    /**
+     * Casts object as MultiPeriodValues, or throws exception if we can't.
+     *
+     * @param object the value to cast as a MultiPeriodvalues.
+     * @return MultiPeriodvalues object.
+     */
+    public static MultiPeriodValues castMultiPeriodValues( Object object )
+    {
+        if ( !( object instanceof MultiPeriodValues ) )
+        {
+            throw new ParsingException( "multiple period values expected at: '" + object + "'" );
+        }
+
+        return (MultiPeriodValues) object;
+    }
+
+    // -------------------------------------------------------------------------
+    // Comparison
+    // -------------------------------------------------------------------------
+
+    /**
+     * Compares two values of the same type.
+     *
+     * @param o1 the first value, which determines the type compared.
+     * @param o2 the second value.
+     * @return negative, zero or positive as o1 is less than, equal to,
+     *         or greater than o2.
+     * @throws ParsingException if either value is null, or o2 is not of
+     *         the type of o1.
+     */
+    public static int compare( Object o1, Object o2 )
+    {
+        if ( o1 == null )
+        {
+            throw new ParsingException( "null cannot be compared at: '" + o2 + "'" );
+        }
+        else if ( o1.getClass() == Double.class )
+        {
+            return ( (Double) o1).compareTo( castDouble( o2 ) );
+        }
+        else if ( o1.getClass() == String.class )
+        {
+            return ( (String) o1).compareTo( castString( o2 ) );
+        }
+        else if ( o1.getClass() == Boolean.class )
+        {
+            return ( (Boolean) o1).compareTo( castBoolean( o2 ) );
+        }
+        else // (Shouldn't happen)
+        {
+            throw new ParsingException( "magnitude of " + o1.getClass().getSimpleName() + " cannot be compared at: '" + o2 + "'" );
+        }
+    }
+}